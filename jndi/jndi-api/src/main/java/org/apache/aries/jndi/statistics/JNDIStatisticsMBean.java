@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jndi.statistics;
+
+/**
+ * Statistics of the JNDI lookups made through the OSGi JNDI service. The JNDI core bundle
+ * registers an instance of this interface as an OSGi service with a <code>jmx.objectname</code>
+ * property, so that it is also exposed as an MBean if a JMX whiteboard is present.
+ * <p>
+ * Lookups are timed per URL scheme and per phase. The schemes are those returned by
+ * {@link #getSchemes()}: <code>osgi</code>, <code>aries</code> and <code>blueprint</code>,
+ * <code>other</code> for any other URL scheme and <code>default</code> for names without
+ * a scheme, which go to the default context. The <code>contextProvider</code> phase of an
+ * initial context and the <code>objectFactory</code> phase do not know the scheme of the
+ * lookup and are always recorded under <code>default</code>. Counts are totals since the bundle started or
+ * since the last call to {@link #reset()}, times are in microseconds. The values are read
+ * without stopping lookups, so they may be slightly inconsistent with each other.
+ */
+public interface JNDIStatisticsMBean
+{
+  /** The object name the statistics are registered with */
+  String OBJECTNAME = "org.apache.aries.jndi:type=JNDIStatistics";
+
+  String[] getSchemes();
+
+  /**
+   * @return the names of the timed phases: <code>contextProvider</code>,
+   *         <code>urlContextFactory</code>, <code>objectFactory</code> and 
+   *         <code>serviceFetch</code>
+   */
+  String[] getPhases();
+
+  /**
+   * @return the number of times the phase ran for the scheme
+   * @throws IllegalArgumentException if the scheme or phase is not known
+   */
+  long getCount(String scheme, String phase);
+
+  long getTotalTime(String scheme, String phase);
+
+  long getAverageTime(String scheme, String phase);
+
+  long getMaxTime(String scheme, String phase);
+
+  /**
+   * @return the number of times a lookup had to query the service registry
+   */
+  long getRegistryQueryCount();
+
+  /**
+   * @return the number of times a lookup was answered from a cache instead of
+   *         the service registry
+   */
+  long getCacheHitCount();
+
+  /**
+   * Reset all counters and timers.
+   */
+  void reset();
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jndi.statistics;
+
+/**
+ * Implemented by the statistics service of the JNDI core bundle so that URL context
+ * bundles can report the work they do. The data is published through the
+ * {@link JNDIStatisticsMBean}. Recording must not allocate, so it may be called on 
+ * every lookup.
+ */
+public interface JNDIStatisticsRecorder
+{
+  /** Finding the context provider for the default context or a URL scheme */
+  int CONTEXT_PROVIDER = 0;
+  /** Finding the URL context factory for a scheme */
+  int URL_CONTEXT_FACTORY = 1;
+  /** Finding the object factory that resolves a looked up object */
+  int OBJECT_FACTORY = 2;
+  /** Getting the object a URL context looked up */
+  int SERVICE_FETCH = 3;
+
+  /**
+   * Record the time taken by one phase of a lookup.
+   * 
+   * @param scheme the URL scheme, such as <code>osgi</code>, or null for the default context
+   * @param phase one of the phase constants of this interface
+   * @param nanos the elapsed time, as measured by {@link System#nanoTime()}
+   */
+  public void recordTime(String scheme, int phase, long nanos);
+
+  /**
+   * Record a query of the service registry
+   */
+  public void recordRegistryQuery();
+
+  /**
+   * Record a lookup that was answered from a cache
+   */
+  public void recordCacheHit();
+}
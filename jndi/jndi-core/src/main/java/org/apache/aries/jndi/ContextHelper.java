@@ -63,6 +63,19 @@ public final class ContextHelper {
                                            final String urlScheme, 
                                            final Hashtable<?, ?> env)
         throws NamingException {
+        
+        long start = System.nanoTime();
+        try {
+            return findURLContext(context, urlScheme, env);
+        } finally {
+            JNDIStatistics.INSTANCE.recordTime(urlScheme, JNDIStatistics.CONTEXT_PROVIDER, System.nanoTime() - start);
+        }
+    }
+
+    private static ContextProvider findURLContext(final BundleContext context,
+                                                  final String urlScheme, 
+                                                  final Hashtable<?, ?> env)
+        throws NamingException {
       
         ServicePair<ObjectFactory> urlObjectFactory = getURLObjectFactory(context, urlScheme, env);
         
@@ -81,9 +94,10 @@ public final class ContextHelper {
     public static final ServicePair<ObjectFactory> getURLObjectFactory(final BundleContext ctx, String urlScheme, Hashtable<?, ?> environment)
       throws NamingException
     {
+      long start = System.nanoTime();
       ServicePair<ObjectFactory> result = null;
       
-      ServiceReference ref = ServiceTrackerCustomizers.URL_FACTORY_CACHE.find(urlScheme);
+      ServiceReference ref = ServiceTrackerCustomizers.URL_FACTORY_CACHE.find(ctx, urlScheme);
       
       if (ref == null) {
         ServiceReference[] refs = AccessController.doPrivileged(new PrivilegedAction<ServiceReference[]>() {
@@ -109,9 +123,11 @@ public final class ContextHelper {
           }
         }
       } else {
+        JNDIStatistics.INSTANCE.recordCacheHit();
         result = new ServicePair<ObjectFactory>(ctx, ref);
       }
       
+      JNDIStatistics.INSTANCE.recordTime(urlScheme, JNDIStatistics.URL_CONTEXT_FACTORY, System.nanoTime() - start);
       return result;
     }
         
@@ -154,6 +170,19 @@ public final class ContextHelper {
                                                      Hashtable<?, ?> environment)
         throws NamingException {
         
+        long start = System.nanoTime();
+        try {
+            return findContextProvider(context, environment);
+        } finally {
+            // the initial context is found before any name is known, so it has no scheme
+            JNDIStatistics.INSTANCE.recordTime(null, JNDIStatistics.CONTEXT_PROVIDER, System.nanoTime() - start);
+        }
+    }
+
+    private static ContextProvider findContextProvider(BundleContext context,
+                                                       Hashtable<?, ?> environment)
+        throws NamingException {
+        
         ContextProvider provider = null;
         String contextFactoryClass = (String) environment.get(Context.INITIAL_CONTEXT_FACTORY);
         if (contextFactoryClass == null) {
@@ -162,33 +191,13 @@ public final class ContextHelper {
 
             // 2. lookup all ContextFactory services
             if (provider == null) {
-                
-                ServiceReference[] references = AccessController.doPrivileged(new PrivilegedAction<ServiceReference[]>() {
-                    public ServiceReference[] run() {
-                        return Activator.getInitialContextFactoryServices();
-                    }
-                });
-                
-                if (references != null) {
-                    Context initialContext = null;
-                    for (ServiceReference reference : references) {
-                        InitialContextFactory factory = (InitialContextFactory) Utils.getServicePrivileged(context, reference);
-                        try {
-                            initialContext = factory.getInitialContext(environment);
-                            if (initialContext != null) {
-                              provider = new SingleContextProvider(context, reference, initialContext);
-                              break;
-                          }
-                        } finally {
-                            if (provider == null) context.ungetService(reference);
-                        }
-                    }
-                }
+                provider = getInitialContextUsingFactories(context, environment);
             }
         } else {
-            ServiceReference ref = ServiceTrackerCustomizers.ICF_CACHE.find(contextFactoryClass);
+            ServiceReference ref = ServiceTrackerCustomizers.ICF_CACHE.find(context, contextFactoryClass);
             
             if (ref != null) {
+              JNDIStatistics.INSTANCE.recordCacheHit();
               Context initialContext = null;
               InitialContextFactory factory = (InitialContextFactory) Utils.getServicePrivileged(context, ref);
               if (factory != null) {
@@ -210,6 +219,59 @@ public final class ContextHelper {
         return provider;
     }
 
+    /**
+     * Try the InitialContextFactory services in ranking order, starting with the one
+     * that last worked for the calling bundle and this environment.
+     */
+    private static ContextProvider getInitialContextUsingFactories(BundleContext context,
+                                                                   Hashtable<?, ?> environment)
+            throws NamingException {
+        
+        Bundle caller = context.getBundle();
+        ServiceReference lastSuccessful = ServiceTrackerCustomizers.ICF_CACHE.getLastSuccessful(caller, environment);
+        
+        if (lastSuccessful != null) {
+            try {
+                ContextProvider provider = getInitialContextUsingFactory(context, lastSuccessful, environment);
+                if (provider != null) {
+                    JNDIStatistics.INSTANCE.recordCacheHit();
+                    return provider;
+                }
+            } catch (NamingException ne) {
+                // the factory may not work any more, so try them all again
+            }
+        }
+        
+        for (ServiceReference reference : ServiceTrackerCustomizers.ICF_CACHE.getServiceReferences(context)) {
+            ContextProvider provider = getInitialContextUsingFactory(context, reference, environment);
+            if (provider != null) {
+                ServiceTrackerCustomizers.ICF_CACHE.setLastSuccessful(caller, environment, reference);
+                return provider;
+            }
+        }
+        return null;
+    }
+    
+    private static ContextProvider getInitialContextUsingFactory(BundleContext context,
+                                                                 ServiceReference reference,
+                                                                 Hashtable<?, ?> environment)
+            throws NamingException {
+        
+        ContextProvider provider = null;
+        InitialContextFactory factory = (InitialContextFactory) Utils.getServicePrivileged(context, reference);
+        if (factory != null) {
+            try {
+                Context initialContext = factory.getInitialContext(environment);
+                if (initialContext != null) {
+                    provider = new SingleContextProvider(context, reference, initialContext);
+                }
+            } finally {
+                if (provider == null) context.ungetService(reference);
+            }
+        }
+        return provider;
+    }
+
     private static ContextProvider getInitialContextUsingBuilder(BundleContext context,
                                                                  Hashtable<?, ?> environment)
             throws NamingException {
@@ -223,6 +223,8 @@ public class DelegateContext implements DirContext, LdapContext {
         if (rebind) {
             if (contextProvider == null || !contextProvider.isValid()) {
                 contextProvider = ContextHelper.getContextProvider(bundleContext, env);
+            } else {
+                JNDIStatistics.INSTANCE.recordCacheHit();
             }
             if (contextProvider == null) {
                 throw new NoInitialContextException();
@@ -247,6 +249,8 @@ public class DelegateContext implements DirContext, LdapContext {
             if (provider == null || !!!provider.isValid()) {
               provider = ContextHelper.createURLContext(bundleContext, scheme, env);
               if (provider != null) urlContexts.put(scheme, provider);
+            } else {
+              JNDIStatistics.INSTANCE.recordCacheHit();
             }
             
             if (provider != null) ctx = provider.getContext();
@@ -31,6 +31,8 @@ import javax.naming.spi.DirObjectFactory;
 import javax.naming.spi.ObjectFactory;
 import javax.naming.spi.ObjectFactoryBuilder;
 
+import org.apache.aries.jndi.tracker.ServiceTrackerCustomizers;
+import org.apache.aries.jndi.tracker.ServiceTrackerCustomizers.ObjectFactoryCache;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 
@@ -96,26 +98,23 @@ public class DirObjectFactoryHelper extends ObjectFactoryHelper implements DirOb
         throws Exception {
         
         Object result = null;
-        ServiceReference[] refs = Utils.getReferencesPrivileged(callerContext, DirObjectFactory.class);
-        if (refs != null) {
-            Arrays.sort(refs, Utils.SERVICE_REFERENCE_COMPARATOR);
-            for (ServiceReference ref : refs) {
-              
-                if (canCallObjectFactory(obj, ref)) {
-                    DirObjectFactory factory = (DirObjectFactory) Utils.getServicePrivileged(callerContext, ref);
-    
-                    try {
-                        result = factory.getObjectInstance(obj, name, nameCtx, environment, attrs);
-                    } finally {
-                        callerContext.ungetService(ref);
-                    }
-    
-                    // if the result comes back and is not null and not the reference
-                    // object then we should return the result, so break out of the
-                    // loop we are in.
-                    if (result != null && result != obj) {
-                        break;
-                    }
+        ObjectFactoryCache factories = ServiceTrackerCustomizers.DIR_OBJECT_FACTORY_CACHE;
+        
+        for (ServiceReference ref : factories.getServiceReferences(callerContext)) {
+          
+            if (canCallObjectFactory(obj, ref)) {
+                DirObjectFactory factory = (DirObjectFactory) factories.getService(callerContext, ref);
+                
+                // the factory may have been unregistered since we got the references
+                if (factory == null) continue;
+
+                result = factory.getObjectInstance(obj, name, nameCtx, environment, attrs);
+
+                // if the result comes back and is not null and not the reference
+                // object then we should return the result, so break out of the
+                // loop we are in.
+                if (result != null && result != obj) {
+                    break;
                 }
             }
         }
@@ -156,7 +155,7 @@ public class DirObjectFactoryHelper extends ObjectFactoryHelper implements DirOb
             try {
                 result = ((DirObjectFactory) tuple.second).getObjectInstance(reference, name, nameCtx, environment, attrs);
             } finally {
-                defaultContext.ungetService(tuple.first);
+                if (tuple.first != null) defaultContext.ungetService(tuple.first);
             }
         }
 
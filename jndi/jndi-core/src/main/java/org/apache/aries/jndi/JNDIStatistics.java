@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jndi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.aries.jndi.statistics.JNDIStatisticsMBean;
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
+import org.apache.aries.util.concurrent.StripedCounters;
+
+/**
+ * Records the time taken by each phase of a lookup and how often a lookup needed the service
+ * registry. The URL context phases are recorded per URL scheme, the initial context provider
+ * and object factory phases do not know the scheme and are recorded under <code>default</code>. Recording adds to striped counters and does not allocate, so
+ * it is always on. The single instance is registered as a service by the activator so that
+ * the URL context bundles can record their work and JMX can read the results.
+ */
+public final class JNDIStatistics implements JNDIStatisticsMBean, JNDIStatisticsRecorder {
+
+    private static final String[] SCHEMES = { "osgi", "aries", "blueprint", "other", "default" };
+    private static final int OTHER = 3;
+    private static final int DEFAULT = 4;
+    private static final String[] PHASES = { "contextProvider", "urlContextFactory", "objectFactory", "serviceFetch" };
+
+    /** Each scheme and phase has a count followed by a total time, then come the global counters */
+    private static final int TIMERS = SCHEMES.length * PHASES.length;
+    private static final int REGISTRY_QUERIES = TIMERS * 2;
+    private static final int CACHE_HITS = REGISTRY_QUERIES + 1;
+
+    public static final JNDIStatistics INSTANCE = new JNDIStatistics();
+
+    private final StripedCounters counters = new StripedCounters(CACHE_HITS + 1);
+    private final AtomicLongArray maxTimes = new AtomicLongArray(TIMERS);
+
+    private JNDIStatistics() {
+    }
+
+    /**
+     * Get the scheme a name is recorded under.
+     * 
+     * @param name a name such as <code>osgi:service/foo</code>, or null
+     * @return the scheme of the name, <code>other</code> if it is not a known scheme, or
+     *         null if the name has no scheme
+     */
+    public static String getScheme(String name) {
+        if (name == null) return null;
+
+        for (int i = 0; i < OTHER; i++) {
+            String scheme = SCHEMES[i];
+            if (name.length() > scheme.length() && name.charAt(scheme.length()) == ':' && name.startsWith(scheme)) {
+                return scheme;
+            }
+        }
+        return (name.indexOf(':') == -1) ? null : SCHEMES[OTHER];
+    }
+
+    public void recordTime(String scheme, int phase, long nanos) {
+        // a bad phase must not fail the lookup being recorded
+        if (phase < 0 || phase >= PHASES.length) return;
+
+        int timer = getSchemeIndex(scheme) * PHASES.length + phase;
+        counters.add(timer * 2, 1, timer * 2 + 1, nanos);
+
+        long max = maxTimes.get(timer);
+        while (nanos > max && !!!maxTimes.compareAndSet(timer, max, nanos)) {
+            max = maxTimes.get(timer);
+        }
+    }
+
+    public void recordRegistryQuery() {
+        counters.add(REGISTRY_QUERIES, 1);
+    }
+
+    public void recordCacheHit() {
+        counters.add(CACHE_HITS, 1);
+    }
+
+    public String[] getSchemes() {
+        return SCHEMES.clone();
+    }
+
+    public String[] getPhases() {
+        return PHASES.clone();
+    }
+
+    public long getCount(String scheme, String phase) {
+        return counters.sum(getTimer(scheme, phase) * 2);
+    }
+
+    public long getTotalTime(String scheme, String phase) {
+        return counters.sum(getTimer(scheme, phase) * 2 + 1) / 1000;
+    }
+
+    public long getAverageTime(String scheme, String phase) {
+        int timer = getTimer(scheme, phase);
+        long count = counters.sum(timer * 2);
+        return (count == 0) ? 0 : counters.sum(timer * 2 + 1) / count / 1000;
+    }
+
+    public long getMaxTime(String scheme, String phase) {
+        return maxTimes.get(getTimer(scheme, phase)) / 1000;
+    }
+
+    public long getRegistryQueryCount() {
+        return counters.sum(REGISTRY_QUERIES);
+    }
+
+    public long getCacheHitCount() {
+        return counters.sum(CACHE_HITS);
+    }
+
+    public void reset() {
+        counters.reset();
+        for (int i = 0; i < TIMERS; i++) {
+            maxTimes.set(i, 0);
+        }
+    }
+
+    private static int getSchemeIndex(String scheme) {
+        if (scheme == null) return DEFAULT;
+
+        for (int i = 0; i < OTHER; i++) {
+            if (SCHEMES[i].equals(scheme)) return i;
+        }
+        return OTHER;
+    }
+
+    private static int getTimer(String scheme, String phase) {
+        int schemeIndex = indexOf(SCHEMES, scheme);
+        int phaseIndex = indexOf(PHASES, phase);
+        if (schemeIndex == -1 || phaseIndex == -1) {
+            throw new IllegalArgumentException(Utils.MESSAGES.getMessage("unknown.statistic", scheme, phase));
+        }
+        return schemeIndex * PHASES.length + phaseIndex;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+}
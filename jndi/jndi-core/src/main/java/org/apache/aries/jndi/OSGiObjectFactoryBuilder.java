@@ -53,8 +53,13 @@ public class OSGiObjectFactoryBuilder implements ObjectFactoryBuilder, ObjectFac
         if (callerContext == null) {
             return obj;
         }
-        DirObjectFactoryHelper helper = new DirObjectFactoryHelper(defaultContext, callerContext);
-        return helper.getObjectInstance(obj, name, nameCtx, environment);
+        long start = System.nanoTime();
+        try {
+            DirObjectFactoryHelper helper = new DirObjectFactoryHelper(defaultContext, callerContext);
+            return helper.getObjectInstance(obj, name, nameCtx, environment);
+        } finally {
+            recordTime(start);
+        }
     }
 
     public Object getObjectInstance(Object obj,
@@ -66,8 +71,19 @@ public class OSGiObjectFactoryBuilder implements ObjectFactoryBuilder, ObjectFac
         if (callerContext == null) {
             return obj;
         }
-        DirObjectFactoryHelper helper = new DirObjectFactoryHelper(defaultContext, callerContext);
-        return helper.getObjectInstance(obj, name, nameCtx, environment, attrs);
+        long start = System.nanoTime();
+        try {
+            DirObjectFactoryHelper helper = new DirObjectFactoryHelper(defaultContext, callerContext);
+            return helper.getObjectInstance(obj, name, nameCtx, environment, attrs);
+        } finally {
+            recordTime(start);
+        }
+    }
+
+    private static void recordTime(long start) {
+        // the name is relative to nameCtx so it does not tell which scheme the lookup used,
+        // object factories are always recorded under the default scheme
+        JNDIStatistics.INSTANCE.recordTime(null, JNDIStatistics.OBJECT_FACTORY, System.nanoTime() - start);
     }
 
     private BundleContext getCallerBundleContext(Hashtable<?, ?> environment) throws NamingException {
@@ -36,6 +36,8 @@ import javax.naming.StringRefAddr;
 import javax.naming.spi.ObjectFactory;
 import javax.naming.spi.ObjectFactoryBuilder;
 
+import org.apache.aries.jndi.tracker.ServiceTrackerCustomizers;
+import org.apache.aries.jndi.tracker.ServiceTrackerCustomizers.ObjectFactoryCache;
 import org.apache.aries.util.service.registry.ServicePair;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
@@ -155,31 +157,28 @@ public class ObjectFactoryHelper implements ObjectFactory {
                                                            Hashtable<?, ?> environment) 
         throws Exception {
         Object result = null;
-        ServiceReference[] refs = Utils.getReferencesPrivileged(callerContext, ObjectFactory.class);
+        ObjectFactoryCache factories = ServiceTrackerCustomizers.URL_FACTORY_CACHE;
             
-        if (refs != null) {
-            Arrays.sort(refs, Utils.SERVICE_REFERENCE_COMPARATOR);
+        for (ServiceReference ref : factories.getServiceReferences(callerContext)) {
+          if (canCallObjectFactory(obj, ref)) {
+            ObjectFactory factory = (ObjectFactory) factories.getService(callerContext, ref);
             
-            for (ServiceReference ref : refs) {
-              if (canCallObjectFactory(obj, ref)) {
-                ObjectFactory factory = (ObjectFactory) Utils.getServicePrivileged(callerContext, ref);
+            // the factory may have been unregistered since we got the references
+            if (factory == null) continue;
 
-                try {
-                    result = factory.getObjectInstance(obj, name, nameCtx, environment);
-                } catch (NamingException ne) {
-                  // Ignore this since we are doing last ditch finding, another OF might work.
-                } finally {
-                    callerContext.ungetService(ref);
-                }
+            try {
+                result = factory.getObjectInstance(obj, name, nameCtx, environment);
+            } catch (NamingException ne) {
+              // Ignore this since we are doing last ditch finding, another OF might work.
+            }
 
-                // if the result comes back and is not null and not the reference
-                // object then we should return the result, so break out of the
-                // loop we are in.
-                if (result != null && result != obj) {
-                    break;
-                }
-              }
+            // if the result comes back and is not null and not the reference
+            // object then we should return the result, so break out of the
+            // loop we are in.
+            if (result != null && result != obj) {
+                break;
             }
+          }
         }
 
         return (result == null) ? obj : result;
@@ -217,26 +216,35 @@ public class ObjectFactoryHelper implements ObjectFactory {
         while (addresses.hasMoreElements()) {
             RefAddr address = addresses.nextElement();
             if (address instanceof StringRefAddr && "URL".equals(address.getType())) {
-                String urlScheme = getUrlScheme( (String) address.getContent() );
+                String value = (String) address.getContent();
+                String urlScheme = getUrlScheme(value);
                 
-                ServicePair<ObjectFactory> factoryService = ContextHelper.getURLObjectFactory(callerContext, urlScheme, environment);
+                ObjectFactoryCache factories = ServiceTrackerCustomizers.URL_FACTORY_CACHE;
+                ServiceReference factoryRef = factories.find(callerContext, urlScheme);
+                ObjectFactory factory = (factoryRef == null) ? null : (ObjectFactory) factories.getService(callerContext, factoryRef);
                 
-                if (factoryService != null) {
-                    ObjectFactory factory = factoryService.get();
+                if (factory != null) {
+                    JNDIStatistics.INSTANCE.recordCacheHit();
+                    result = factory.getObjectInstance(value, name, nameCtx, environment);
+                } else {
+                    ServicePair<ObjectFactory> factoryService = ContextHelper.getURLObjectFactory(callerContext, urlScheme, environment);
                     
-                    String value = (String) address.getContent();
-                    try {
-                        result = factory.getObjectInstance(value, name, nameCtx, environment);
-                    } finally {
-                        factoryService.unget();
+                    if (factoryService != null) {
+                        factory = factoryService.get();
+                        
+                        try {
+                            result = factory.getObjectInstance(value, name, nameCtx, environment);
+                        } finally {
+                            factoryService.unget();
+                        }
                     }
+                }
                     
-                    // if the result comes back and is not null and not the reference
-                    // object then we should return the result, so break out of the
-                    // loop we are in.
-                    if (result != null && result != obj) {
-                        break;
-                    }
+                // if the result comes back and is not null and not the reference
+                // object then we should return the result, so break out of the
+                // loop we are in.
+                if (result != null && result != obj) {
+                    break;
                 }
             }
         }
@@ -244,11 +252,33 @@ public class ObjectFactoryHelper implements ObjectFactory {
         return (result == null) ? obj : result;
     }
 
+    /**
+     * Find the factory registered under a class name. If the first element of the result
+     * is null the factory is held by the tracker and must not be released by the caller.
+     */
     static Tuple<ServiceReference,ObjectFactory> findObjectFactoryByClassName(final BundleContext ctx, final String className) {
+        ObjectFactoryCache factories = ServiceTrackerCustomizers.URL_FACTORY_CACHE;
+        ServiceReference ref = factories.findByClassName(ctx, className);
+        
+        if (ref == null) {
+            factories = ServiceTrackerCustomizers.DIR_OBJECT_FACTORY_CACHE;
+            ref = factories.findByClassName(ctx, className);
+        }
+        
+        if (ref != null) {
+            ObjectFactory factory = (ObjectFactory) factories.getService(ctx, ref);
+            if (factory != null) {
+                JNDIStatistics.INSTANCE.recordCacheHit();
+                return new Tuple<ServiceReference, ObjectFactory>(null, factory);
+            }
+        }
+        
+        // the factory may be registered without the ObjectFactory interface, so ask the registry
         return AccessController.doPrivileged(new PrivilegedAction<Tuple<ServiceReference,ObjectFactory>>() {
             public Tuple<ServiceReference,ObjectFactory> run() {
                 ServiceReference serviceReference = null;
                 
+                JNDIStatistics.INSTANCE.recordRegistryQuery();
                 try {
                     ServiceReference[] refs = ctx.getServiceReferences(className, null);
                     if (refs != null && refs.length > 0) {
@@ -285,7 +315,7 @@ public class ObjectFactoryHelper implements ObjectFactory {
             try {
                 result = tuple.second.getObjectInstance(reference, name, nameCtx, environment);
             } finally {
-                defaultContext.ungetService(tuple.first);
+                if (tuple.first != null) defaultContext.ungetService(tuple.first);
             }
         }
 
@@ -24,7 +24,10 @@ import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.NamingException;
 
@@ -33,6 +36,7 @@ import org.apache.aries.jndi.startup.Activator;
 import org.apache.aries.util.nls.MessageUtil;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.BundleReference;
 import org.osgi.framework.InvalidSyntaxException;
@@ -47,6 +51,15 @@ public final class Utils {
         new ServiceReferenceComparator();
     public static final MessageUtil MESSAGES = MessageUtil.createMessageUtil(Utils.class, "org.apache.aries.jndi.nls.jndiMessages");
 
+    /** 
+     * The BundleContext found for each bundle class loader. The contexts are removed when
+     * their bundle stops, which also releases the class loaders. Only bundle class loaders
+     * are remembered: other class loaders, even those whose parent is a bundle class loader,
+     * would not be forgotten when that bundle stops.
+     */
+    private static final ConcurrentMap<ClassLoader, BundleContext> bundleContexts = 
+        new ConcurrentHashMap<ClassLoader, BundleContext>();
+
     /** Ensure no one constructs us */
     private Utils() {
         throw new RuntimeException();
@@ -106,6 +119,23 @@ public final class Utils {
     }
 
     private static BundleContext getBundleContext(ClassLoader cl2) {
+        if (cl2 == null) {
+            return null;
+        }
+        
+        BundleContext cached = bundleContexts.get(cl2);
+        if (cached != null) {
+            return cached;
+        }
+        
+        BundleContext result = findBundleContext(cl2);
+        if (result != null && cl2 instanceof BundleReference) {
+            bundleContexts.put(cl2, result);
+        }
+        return result;
+    }
+    
+    private static BundleContext findBundleContext(ClassLoader cl2) {
         ClassLoader cl = cl2;
         BundleContext result = null;
         while (result == null && cl != null) {
@@ -128,6 +158,42 @@ public final class Utils {
         return result;
     }
     
+    /**
+     * Forget the BundleContext of a bundle once it is no longer valid
+     * @param event
+     */
+    public static void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.STOPPING :
+            case BundleEvent.STOPPED :
+            case BundleEvent.UPDATED :
+            case BundleEvent.UNRESOLVED :
+            case BundleEvent.UNINSTALLED :
+                Bundle bundle = event.getBundle();
+                for (Iterator<BundleContext> it = bundleContexts.values().iterator(); it.hasNext();) {
+                    BundleContext context = it.next();
+                    try {
+                        if (bundle.equals(context.getBundle())) {
+                            it.remove();
+                        }
+                    } catch (IllegalStateException e) {
+                        // the context is no longer valid, so forget it anyway
+                        it.remove();
+                    }
+                }
+                break;
+            default :
+                break;
+        }
+    }
+    
+    /**
+     * Forget all the class loaders that have been seen
+     */
+    public static void clearBundleContexts() {
+        bundleContexts.clear();
+    }
+    
     private static class ServiceReferenceComparator implements Comparator<ServiceReference> {        
         public int compare(ServiceReference o1, ServiceReference o2) {        
           return o2.compareTo(o1);
@@ -181,6 +247,7 @@ public final class Utils {
     public static ServiceReference[] getReferencesPrivileged(final BundleContext ctx, final Class<?> clazz) {
     	return AccessController.doPrivileged(new PrivilegedAction<ServiceReference[]>() {
     		public ServiceReference[] run() {
+    			JNDIStatistics.INSTANCE.recordRegistryQuery();
     			try {
     				return ctx.getServiceReferences(clazz.getName(), null);
     			} catch (InvalidSyntaxException ise) {
@@ -22,6 +22,7 @@ import java.lang.reflect.Field;
 import java.util.Arrays;
 
 import javax.naming.NamingException;
+import javax.naming.spi.DirObjectFactory;
 import javax.naming.spi.InitialContextFactory;
 import javax.naming.spi.InitialContextFactoryBuilder;
 import javax.naming.spi.NamingManager;
@@ -29,17 +30,24 @@ import javax.naming.spi.ObjectFactory;
 import javax.naming.spi.ObjectFactoryBuilder;
 
 import org.apache.aries.jndi.ContextManagerServiceFactory;
+import org.apache.aries.jndi.JNDIStatistics;
 import org.apache.aries.jndi.JREInitialContextFactoryBuilder;
 import org.apache.aries.jndi.OSGiInitialContextFactoryBuilder;
 import org.apache.aries.jndi.OSGiObjectFactoryBuilder;
 import org.apache.aries.jndi.ProviderAdminServiceFactory;
 import org.apache.aries.jndi.Utils;
 import org.apache.aries.jndi.spi.EnvironmentAugmentation;
+import org.apache.aries.jndi.statistics.JNDIStatisticsMBean;
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
 import org.apache.aries.jndi.tracker.ServiceTrackerCustomizers;
 import org.apache.aries.jndi.urls.URLObjectFactoryFinder;
+import org.apache.aries.util.service.registry.MBeanServices;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.service.jndi.JNDIContextManager;
 import org.osgi.service.jndi.JNDIProviderAdmin;
 import org.osgi.util.tracker.ServiceTracker;
@@ -61,12 +69,24 @@ public class Activator implements BundleActivator {
     private static ServiceTracker urlObjectFactoryFinders;
     private static ServiceTracker initialContextFactories;
     private static ServiceTracker objectFactories;
+    private static ServiceTracker dirObjectFactories;
     private static ServiceTracker environmentAugmentors;
+    private BundleListener bundleContextInvalidator;
 
     public void start(BundleContext context) {
+        bundleContextInvalidator = new SynchronousBundleListener() {
+            public void bundleChanged(BundleEvent event) {
+                Utils.bundleChanged(event);
+                ServiceTrackerCustomizers.URL_FACTORY_CACHE.bundleChanged(event);
+                ServiceTrackerCustomizers.DIR_OBJECT_FACTORY_CACHE.bundleChanged(event);
+                ServiceTrackerCustomizers.ICF_CACHE.bundleChanged(event);
+            }
+        };
+        context.addBundleListener(bundleContextInvalidator);
 
         initialContextFactories = initServiceTracker(context, InitialContextFactory.class, ServiceTrackerCustomizers.ICF_CACHE);
         objectFactories = initServiceTracker(context, ObjectFactory.class, ServiceTrackerCustomizers.URL_FACTORY_CACHE);
+        dirObjectFactories = initServiceTracker(context, DirObjectFactory.class, ServiceTrackerCustomizers.DIR_OBJECT_FACTORY_CACHE);
         icfBuilders = initServiceTracker(context, InitialContextFactoryBuilder.class, ServiceTrackerCustomizers.LAZY);
         urlObjectFactoryFinders = initServiceTracker(context, URLObjectFactoryFinder.class, ServiceTrackerCustomizers.LAZY);
         environmentAugmentors = initServiceTracker(context, EnvironmentAugmentation.class, null);
@@ -108,6 +128,12 @@ public class Activator implements BundleActivator {
         context.registerService(JNDIContextManager.class.getName(),
                                 new ContextManagerServiceFactory(),
                                 null);
+
+        MBeanServices.register(context, 
+                               new String[] { JNDIStatisticsMBean.class.getName(), JNDIStatisticsRecorder.class.getName() },
+                               JNDIStatistics.INSTANCE,
+                               JNDIStatisticsMBean.OBJECTNAME,
+                               null);
     }
 
     private String getClassName(Class<?> expectedType)
@@ -149,8 +175,12 @@ public class Activator implements BundleActivator {
         icfBuilders.close();
         urlObjectFactoryFinders.close();
         objectFactories.close();
+        dirObjectFactories.close();
         initialContextFactories.close();
         environmentAugmentors.close();
+        
+        context.removeBundleListener(bundleContextInvalidator);
+        Utils.clearBundleContexts();
     }
 
     /*
@@ -180,15 +210,6 @@ public class Activator implements BundleActivator {
       return refs;
     }
 
-    public static ServiceReference[] getInitialContextFactoryServices()
-    {
-      ServiceReference[] refs = initialContextFactories.getServiceReferences();
-
-      if (refs != null) Arrays.sort(refs, Utils.SERVICE_REFERENCE_COMPARATOR);
-
-      return refs;
-    }
-
     public static ServiceReference[] getURLObectFactoryFinderServices()
     {
       ServiceReference[] refs = urlObjectFactoryFinders.getServiceReferences();
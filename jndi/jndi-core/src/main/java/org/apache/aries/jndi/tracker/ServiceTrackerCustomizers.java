@@ -21,12 +21,25 @@ package org.apache.aries.jndi.tracker;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.naming.spi.DirObjectFactory;
 import javax.naming.spi.InitialContextFactory;
+import javax.naming.spi.ObjectFactory;
 
+import org.apache.aries.jndi.Utils;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.jndi.JNDIConstants;
@@ -35,61 +48,132 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 public class ServiceTrackerCustomizers 
 {
+  private static final ServiceReference[] NO_REFERENCES = new ServiceReference[0];
+  
   public static interface CachingServiceTracker extends ServiceTrackerCustomizer {
-    public ServiceReference find(String identifier);
+    public ServiceReference find(BundleContext ctx, String identifier);
   }
   
+  /**
+   * Keeps the tracked services in ranking order. A bundle finds them through a view of
+   * the ones it can see, which takes one registry query to build, so that find hooks and
+   * region isolation apply to the bundle as they would to a registry lookup. The views
+   * are rebuilt once the tracked services change and forgotten when their bundle stops.
+   */
   private static abstract class BaseCachingServiceTracker implements CachingServiceTracker {
-    /** The cached references */
-    protected ConcurrentMap<String, ServiceReference> cache = new ConcurrentHashMap<String, ServiceReference>();
+    /** The interface the tracked services are registered under */
+    protected final Class<?> trackedType;
     /** A list of service references that are being tracked */
     protected List<ServiceReference> trackedReferences = new ArrayList<ServiceReference>();
+    /** All the tracked services, highest ranked first */
+    private volatile ServiceReference[] ranked = NO_REFERENCES;
+    /** The view each bundle context has of the tracked services */
+    private final ConcurrentMap<BundleContext, View> views = new ConcurrentHashMap<BundleContext, View>();
 
-    public ServiceReference find(String identifier) 
+    protected BaseCachingServiceTracker(Class<?> trackedType)
+    {
+      this.trackedType = trackedType;
+    }
+    
+    public ServiceReference find(BundleContext ctx, String identifier) 
     {
-      return cache.get(identifier);
+      return getView(ctx).keys.get(identifier);
     }
 
-    public synchronized Object addingService(ServiceReference reference) 
+    /**
+     * @param ctx The context of the bundle that will use the services
+     * @return the tracked services the bundle can see, highest ranked first.
+     */
+    public ServiceReference[] getServiceReferences(BundleContext ctx)
     {
-      List<String> cacheKeys = getProperty(reference);
-      
-      for (String key : cacheKeys) { 
-        cache.putIfAbsent(key, reference);
+      return getView(ctx).ranked;
+    }
+    
+    protected View getView(BundleContext ctx)
+    {
+      ServiceReference[] tracked = ranked;
+      View view = views.get(ctx);
+      if (view == null || view.tracked != tracked) {
+        view = new View(tracked, visibleReferences(tracked, Utils.getReferencesPrivileged(ctx, trackedType)));
+        views.put(ctx, view);
       }
-      
+      return view;
+    }
+
+    public synchronized Object addingService(ServiceReference reference) 
+    {
       trackedReferences.add(reference);
-      
+      reindex();
       return reference;
     }
 
     protected abstract List<String> getProperty(ServiceReference reference);
 
+    public synchronized void modifiedService(ServiceReference reference, Object service) 
+    {
+      //The ranking or the properties may have changed
+      reindex();
+    }
+
     public synchronized void removedService(ServiceReference reference, Object service) 
     {
       trackedReferences.remove(reference);
+      reindex();
+    }
+    
+    protected void reindex()
+    {
+      ServiceReference[] refs = trackedReferences.toArray(new ServiceReference[trackedReferences.size()]);
+      Arrays.sort(refs, Utils.SERVICE_REFERENCE_COMPARATOR);
+      ranked = refs;
+      views.clear();
+    }
+    
+    /**
+     * Forget the views of a bundle when it stops.
+     * 
+     * @param bundle
+     */
+    protected void forget(Bundle bundle)
+    {
+      Iterator<BundleContext> contexts = views.keySet().iterator();
+      while (contexts.hasNext()) {
+        BundleContext ctx = contexts.next();
+        try {
+          if (ctx.getBundle() == bundle) contexts.remove();
+        } catch (IllegalStateException e) {
+          contexts.remove();
+        }
+      }
+    }
+    
+    /**
+     * The tracked services a bundle can see, highest ranked first, and the highest 
+     * ranked of them for each cache key and class name.
+     */
+    protected final class View {
+      /** The tracked services the view was built from */
+      private final ServiceReference[] tracked;
+      private final ServiceReference[] ranked;
+      private final Map<String, ServiceReference> keys = new HashMap<String, ServiceReference>();
+      private final Map<String, ServiceReference> classNames = new HashMap<String, ServiceReference>();
       
-      List<String> keysToProcess = new ArrayList<String>(getProperty(reference));
-      
-      refLoop: for (ServiceReference ref : trackedReferences) {
-        List<String> refInt = getProperty(ref);
-        for (String interfaceName : refInt) {
-          int index = keysToProcess.indexOf(interfaceName);
-          if (index >= 0) {
-            keysToProcess.remove(index);
-            if (cache.replace(interfaceName, reference, ref)) {
-              if (keysToProcess.isEmpty()) break refLoop;
+      private View(ServiceReference[] tracked, ServiceReference[] ranked)
+      {
+        this.tracked = tracked;
+        this.ranked = ranked;
+        for (ServiceReference ref : ranked) {
+          for (String key : getProperty(ref)) {
+            if (!!!keys.containsKey(key)) keys.put(key, ref);
+          }
+          for (String name : (String[]) ref.getProperty(Constants.OBJECTCLASS)) {
+            if (!!!trackedType.getName().equals(name) && !!!classNames.containsKey(name)) {
+              classNames.put(name, ref);
             }
           }
         }
       }
-      
-      for (String interfaceName : keysToProcess) {
-        cache.remove(interfaceName, reference);
-      }
     }
-
-    public void modifiedService(ServiceReference reference, Object service) { }
   }
   
   public static final ServiceTrackerCustomizer LAZY = new ServiceTrackerCustomizer() {
@@ -101,7 +185,35 @@ public class ServiceTrackerCustomizers
     public void removedService(ServiceReference reference, Object service)  { }
   };
 
-  public static final CachingServiceTracker ICF_CACHE = new BaseCachingServiceTracker() {
+  /**
+   * Caches the InitialContextFactory services by their implementation class names, and
+   * keeps an index of all of them in ranking order. It also remembers which factory last
+   * created a context for a bundle and environment, so that the factories do not all have
+   * to be tried every time. That choice is forgotten whenever the set of factories changes
+   * or the bundle stops, and it is neither keyed on the security properties of the 
+   * environment nor does it hold on to the bundle.
+   */
+  public static final class InitialContextFactoryCache extends BaseCachingServiceTracker {
+    /** The most bundle and environment combinations to remember a factory for */
+    private static final int MAX_REMEMBERED_FACTORIES = 256;
+    
+    /** The factory that last succeeded for a bundle and environment, in least recently used order */
+    private final Map<FactoryChoice, ServiceReference> lastSuccessful = 
+      new LinkedHashMap<FactoryChoice, ServiceReference>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FactoryChoice, ServiceReference> eldest)
+        {
+          return size() > MAX_REMEMBERED_FACTORIES;
+        }
+      };
+
+    private InitialContextFactoryCache() 
+    {
+      super(InitialContextFactory.class);
+    }
+    
     public List<String> getProperty(ServiceReference ref)
     {
       String[] interfaces = (String[]) ref.getProperty(Constants.OBJECTCLASS);
@@ -114,10 +226,132 @@ public class ServiceTrackerCustomizers
       
       return resultList;
     }
-  };
+    
+    @Override
+    protected void reindex()
+    {
+      super.reindex();
+      
+      synchronized (lastSuccessful) {
+        lastSuccessful.clear();
+      }
+    }
+    
+    /**
+     * @param caller The bundle creating a context
+     * @param environment The environment used to create the context
+     * @return The factory that last created a context for the bundle and an equal 
+     *         environment, or null if there is none.
+     */
+    public ServiceReference getLastSuccessful(Bundle caller, Hashtable<?, ?> environment)
+    {
+      ServiceReference ref;
+      synchronized (lastSuccessful) {
+        ref = lastSuccessful.get(new FactoryChoice(caller, environment));
+      }
+      //The factory may have gone away since
+      return (ref == null || ref.getBundle() == null) ? null : ref;
+    }
+    
+    /**
+     * Remember that a factory created a context for a bundle and environment
+     * @param caller
+     * @param environment
+     * @param ref
+     */
+    public void setLastSuccessful(Bundle caller, Hashtable<?, ?> environment, ServiceReference ref)
+    {
+      FactoryChoice choice = new FactoryChoice(caller, environment);
+      synchronized (lastSuccessful) {
+        lastSuccessful.put(choice, ref);
+      }
+    }
+    
+    /**
+     * Forget the factories remembered for a bundle, and what it can see, when it stops.
+     * 
+     * @param event
+     */
+    public void bundleChanged(BundleEvent event)
+    {
+      if (event.getType() != BundleEvent.STOPPING) return;
+      
+      forget(event.getBundle());
+      long bundleId = event.getBundle().getBundleId();
+      synchronized (lastSuccessful) {
+        Iterator<FactoryChoice> choices = lastSuccessful.keySet().iterator();
+        while (choices.hasNext()) {
+          if (choices.next().callerId == bundleId) choices.remove();
+        }
+      }
+    }
+  }
+  
+  /**
+   * The bundle and environment a factory was chosen for. The environment is copied without
+   * its security properties, so that credentials are not kept, and without the bundle 
+   * context, which the bundle id already stands for.
+   */
+  private static final class FactoryChoice {
+    private static final String SECURITY_PREFIX = "java.naming.security.";
+    
+    private final long callerId;
+    private final Map<Object, Object> environment = new HashMap<Object, Object>();
+    private final int hashCode;
+    
+    public FactoryChoice(Bundle caller, Hashtable<?, ?> environment)
+    {
+      this.callerId = (caller == null) ? -1 : caller.getBundleId();
+      for (Map.Entry<?, ?> entry : environment.entrySet()) {
+        Object key = entry.getKey();
+        if (key instanceof String && (((String) key).startsWith(SECURITY_PREFIX) 
+                                      || JNDIConstants.BUNDLE_CONTEXT.equals(key))) {
+          continue;
+        }
+        this.environment.put(key, entry.getValue());
+      }
+      hashCode = 31 * (int) (callerId ^ (callerId >>> 32)) + this.environment.hashCode();
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj) return true;
+      if (!!!(obj instanceof FactoryChoice)) return false;
+      
+      FactoryChoice other = (FactoryChoice) obj;
+      return hashCode == other.hashCode 
+        && callerId == other.callerId
+        && environment.equals(other.environment);
+    }
+  }
+  
+  public static final InitialContextFactoryCache ICF_CACHE = new InitialContextFactoryCache();
   
-  // TODO we should probably cope with the url.scheme property changing.
-  public static final CachingServiceTracker URL_FACTORY_CACHE = new BaseCachingServiceTracker() {
+  /**
+   * Caches the ObjectFactory services by their URL schemes and by the other class names
+   * they are registered under, and keeps an index of all of them in ranking order. The
+   * factory objects that each bundle obtains are held on to until the factory or the
+   * bundle goes away, so a lookup does not need to get and unget every factory it tries.
+   * The index is tracked for jndi-core, so it is narrowed to what a bundle can see before
+   * the bundle walks it.
+   */
+  public static final class ObjectFactoryCache extends BaseCachingServiceTracker {
+    /** The factory objects obtained by each bundle context */
+    private final ConcurrentMap<BundleContext, ConcurrentMap<ServiceReference, Object>> obtained = 
+      new ConcurrentHashMap<BundleContext, ConcurrentMap<ServiceReference, Object>>();
+    
+    private ObjectFactoryCache(Class<?> factoryType) 
+    {
+      super(factoryType);
+    }
+    
     protected List<String> getProperty(ServiceReference reference) {
       Object scheme = reference.getProperty(JNDIConstants.JNDI_URLSCHEME);
       List<String> result;
@@ -133,5 +367,116 @@ public class ServiceTrackerCustomizers
       
       return result;
     }
-  };
+    
+    @Override
+    public synchronized void removedService(ServiceReference reference, Object service) 
+    {
+      super.removedService(reference, service);
+      
+      for (Map.Entry<BundleContext, ConcurrentMap<ServiceReference, Object>> entry : obtained.entrySet()) {
+        if (entry.getValue().remove(reference) != null) {
+          ungetService(entry.getKey(), reference);
+        }
+      }
+    }
+    
+    /**
+     * @param ctx The context of the bundle that will use the factory
+     * @param className A class name the factory is registered under
+     * @return The highest ranked factory registered under the class name that the 
+     *         bundle can see, or null if there is none.
+     */
+    public ServiceReference findByClassName(BundleContext ctx, String className)
+    {
+      return getView(ctx).classNames.get(className);
+    }
+    
+    /**
+     * Get a factory for a bundle. The factory is only obtained from the framework the
+     * first time the bundle asks for it, and must not be released by the caller.
+     * 
+     * @param ctx The context of the bundle using the factory
+     * @param reference The factory
+     * @return The factory object, or null if the service has gone away.
+     */
+    public Object getService(BundleContext ctx, ServiceReference reference)
+    {
+      ConcurrentMap<ServiceReference, Object> services = obtained.get(ctx);
+      if (services == null) {
+        services = new ConcurrentHashMap<ServiceReference, Object>();
+        ConcurrentMap<ServiceReference, Object> existing = obtained.putIfAbsent(ctx, services);
+        if (existing != null) services = existing;
+      }
+      
+      Object service = services.get(reference);
+      if (service == null) {
+        service = Utils.getServicePrivileged(ctx, reference);
+        if (service != null) {
+          Object existing = services.putIfAbsent(reference, service);
+          if (existing != null) {
+            ctx.ungetService(reference);
+            service = existing;
+          } else if (reference.getBundle() == null) {
+            //The factory was unregistered while we were getting it
+            services.remove(reference, service);
+          }
+        }
+      }
+      
+      return service;
+    }
+    
+    /**
+     * Release the factories obtained by a bundle when it stops, the framework will
+     * unget them anyway.
+     * 
+     * @param event
+     */
+    public void bundleChanged(BundleEvent event)
+    {
+      if (event.getType() != BundleEvent.STOPPING) return;
+      
+      forget(event.getBundle());
+      Iterator<BundleContext> contexts = obtained.keySet().iterator();
+      while (contexts.hasNext()) {
+        BundleContext ctx = contexts.next();
+        try {
+          if (ctx.getBundle() == event.getBundle()) contexts.remove();
+        } catch (IllegalStateException e) {
+          //The context is no longer valid, so neither is anything obtained with it
+          contexts.remove();
+        }
+      }
+    }
+    
+    private static void ungetService(BundleContext ctx, ServiceReference reference)
+    {
+      try {
+        ctx.ungetService(reference);
+      } catch (IllegalStateException e) {
+        //The bundle has stopped, so the framework has already released the service
+      }
+    }
+  }
+  
+  /**
+   * @param ranked The tracked references, highest ranked first
+   * @param visible The references a bundle found in the registry
+   * @return The tracked references that the bundle found, in ranking order
+   */
+  private static ServiceReference[] visibleReferences(ServiceReference[] ranked, ServiceReference[] visible)
+  {
+    if (visible == null || visible.length == 0) return NO_REFERENCES;
+    
+    Set<ServiceReference> found = new HashSet<ServiceReference>(Arrays.asList(visible));
+    List<ServiceReference> result = new ArrayList<ServiceReference>(visible.length);
+    for (ServiceReference ref : ranked) {
+      if (found.contains(ref)) result.add(ref);
+    }
+    return result.toArray(new ServiceReference[result.size()]);
+  }
+  
+  public static final ObjectFactoryCache URL_FACTORY_CACHE = new ObjectFactoryCache(ObjectFactory.class);
+  
+  public static final ObjectFactoryCache DIR_OBJECT_FACTORY_CACHE = new ObjectFactoryCache(DirObjectFactory.class);
 }
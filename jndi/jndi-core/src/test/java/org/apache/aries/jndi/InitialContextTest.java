@@ -42,6 +42,8 @@ import javax.naming.spi.ObjectFactory;
 import junit.framework.Assert;
 
 import org.apache.aries.jndi.startup.Activator;
+import org.apache.aries.jndi.statistics.JNDIStatisticsMBean;
+import org.apache.aries.jndi.tracker.ServiceTrackerCustomizers;
 import org.apache.aries.mocks.BundleContextMock;
 import org.apache.aries.unittest.mocks.MethodCall;
 import org.apache.aries.unittest.mocks.Skeleton;
@@ -49,6 +51,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.jndi.JNDIConstants;
 
 public class InitialContextTest 
@@ -98,6 +103,60 @@ public class InitialContextTest
     assertTrue("Context returned isn't the raw naming context: " + namingCtx, Skeleton.isSkeleton(namingCtx));
   }
   
+  @Test
+  public void testLookupWithoutICFNameRemembersFactory() throws NamingException
+  {
+    InitialContextFactory unwilling = Skeleton.newMock(InitialContextFactory.class);
+    Skeleton.getSkeleton(unwilling).setReturnValue(new MethodCall(InitialContextFactory.class, "getInitialContext", Hashtable.class), null);
+    Properties props = new Properties();
+    props.put(Constants.SERVICE_RANKING, 10);
+    bc.registerService(new String[] {InitialContextFactory.class.getName()}, unwilling, props);
+    
+    InitialContextFactory icf = Skeleton.newMock(InitialContextFactory.class);
+    bc.registerService(new String[] {InitialContextFactory.class.getName()}, icf, new Properties());
+    
+    props = new Properties();
+    props.put(JNDIConstants.BUNDLE_CONTEXT, bc);
+    new InitialContext(props).lookup("/");
+    new InitialContext(props).lookup("/");
+    
+    MethodCall getInitialContext = new MethodCall(InitialContextFactory.class, "getInitialContext", Hashtable.class);
+    Skeleton.getSkeleton(unwilling).assertCalledExactNumberOfTimes(getInitialContext, 1);
+    Skeleton.getSkeleton(icf).assertCalledExactNumberOfTimes(getInitialContext, 2);
+    
+    //A new factory means they all have to be tried again
+    bc.registerService(new String[] {InitialContextFactory.class.getName()}, Skeleton.newMock(InitialContextFactory.class), new Properties());
+    new InitialContext(props).lookup("/");
+    Skeleton.getSkeleton(unwilling).assertCalledExactNumberOfTimes(getInitialContext, 2);
+  }
+  
+  @Test
+  public void testRememberedFactoryIgnoresCredentialsAndIsForgottenWhenBundleStops() throws NamingException
+  {
+    InitialContextFactory unwilling = Skeleton.newMock(InitialContextFactory.class);
+    Skeleton.getSkeleton(unwilling).setReturnValue(new MethodCall(InitialContextFactory.class, "getInitialContext", Hashtable.class), null);
+    Properties props = new Properties();
+    props.put(Constants.SERVICE_RANKING, 10);
+    bc.registerService(new String[] {InitialContextFactory.class.getName()}, unwilling, props);
+    
+    bc.registerService(new String[] {InitialContextFactory.class.getName()}, Skeleton.newMock(InitialContextFactory.class), new Properties());
+    
+    props = new Properties();
+    props.put(JNDIConstants.BUNDLE_CONTEXT, bc);
+    props.put(Context.SECURITY_CREDENTIALS, "secret");
+    new InitialContext(props).lookup("/");
+    props.put(Context.SECURITY_CREDENTIALS, "another secret");
+    new InitialContext(props).lookup("/");
+    
+    MethodCall getInitialContext = new MethodCall(InitialContextFactory.class, "getInitialContext", Hashtable.class);
+    Skeleton.getSkeleton(unwilling).assertCalledExactNumberOfTimes(getInitialContext, 1);
+    
+    //Once the bundle stops the factories have to be tried again
+    ServiceTrackerCustomizers.ICF_CACHE.bundleChanged(new BundleEvent(BundleEvent.STOPPING, bc.getBundle()));
+    new InitialContext(props).lookup("/");
+    Skeleton.getSkeleton(unwilling).assertCalledExactNumberOfTimes(getInitialContext, 2);
+  }
+  
   @Test(expected=NoInitialContextException.class)
   public void testLookupWithoutICF() throws NamingException
   {
@@ -169,6 +228,35 @@ public class InitialContextTest
       assertEquals("result", ic.lookup("test:something"));
   }
   
+  @Test
+  public void testURLLookupIsRecorded() throws Exception {
+      ServiceReference ref = bc.getServiceReference(JNDIStatisticsMBean.class.getName());
+      assertNotNull(ref);
+      assertEquals(JNDIStatisticsMBean.OBJECTNAME, ref.getProperty("jmx.objectname"));
+      JNDIStatisticsMBean statistics = (JNDIStatisticsMBean) bc.getService(ref);
+      statistics.reset();
+      
+      registerURLObjectFactory(dummyObjectFactory(dummyContext("result")), "test");
+      ic = initialContext();
+      
+      assertEquals("result", ic.lookup("test:something"));
+      assertEquals("result", ic.lookup("test:something"));
+      
+      // the URL context is only found once, from the indexed factories
+      assertEquals(1, statistics.getCount("other", "contextProvider"));
+      assertEquals(1, statistics.getCount("other", "urlContextFactory"));
+      assertEquals(0, statistics.getCount("osgi", "contextProvider"));
+      assertEquals(2, statistics.getCacheHitCount());
+      // the registry is only asked once which context factories and which URL context
+      // factories the bundle can see
+      assertEquals(2, statistics.getRegistryQueryCount());
+      assertTrue(statistics.getMaxTime("other", "contextProvider") >= statistics.getAverageTime("other", "contextProvider"));
+      
+      statistics.reset();
+      assertEquals(0, statistics.getCount("other", "contextProvider"));
+      assertEquals(0, statistics.getCacheHitCount());
+  }
+  
   @Test
   public void testNoURLContextCaching() throws Exception {
       final AtomicBoolean second = new AtomicBoolean(false);
@@ -236,6 +324,17 @@ public class InitialContextTest
       bc.registerService(ObjectFactory.class.getName(), of, props);      
   }
   
+  /**
+   * Creates an ObjectFactory that always returns the given context
+   */
+  private ObjectFactory dummyObjectFactory(final Context ctx) {
+      return new ObjectFactory() {
+          public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) throws Exception {
+              return ctx;
+          }
+      };
+  }
+  
   /**
    * Creates a context that always returns the given object
    * @param toReturn
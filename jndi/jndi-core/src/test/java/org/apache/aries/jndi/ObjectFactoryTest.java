@@ -36,11 +36,13 @@ import org.apache.aries.jndi.startup.Activator;
 import org.apache.aries.jndi.urls.URLObjectFactoryFinder;
 import org.apache.aries.mocks.BundleContextMock;
 import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.MethodCallHandler;
 import org.apache.aries.unittest.mocks.Skeleton;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.jndi.JNDIConstants;
 
 public class ObjectFactoryTest
@@ -106,6 +108,27 @@ public class ObjectFactoryTest
     assertEquals("The naming manager should have returned the test object", testObject, obj);
   }
 
+  @Test
+  public void testURLReferenceWithHiddenHandler() throws Exception
+  {
+    ObjectFactory factory = Skeleton.newMock(ObjectFactory.class);
+    Skeleton.getSkeleton(factory).setReturnValue(new MethodCall(ObjectFactory.class, "getObjectInstance", Object.class, Name.class, Context.class, Hashtable.class), "Test object");
+
+    Properties props = new Properties();
+    props.setProperty("osgi.jndi.urlScheme", "wibble");
+
+    bc.registerService(ObjectFactory.class.getName(), factory, props);
+    
+    // a find hook hides the factory from the bundle
+    Skeleton.getSkeleton(bc).setReturnValue(new MethodCall(BundleContext.class, "getServiceReferences", ObjectFactory.class.getName(), null), null);
+
+    Reference ref = new Reference(null);
+    ref.add(new StringRefAddr("URL", "wibble"));
+    Object obj = NamingManager.getObjectInstance(ref, null, null, env);
+    
+    assertSame("The naming manager should have returned the reference object", ref, obj);
+  }
+
   @Test
   public void testURLReferenceUsingURLObjectFactoryFinder() throws Exception
   {
@@ -137,6 +160,32 @@ public class ObjectFactoryTest
     assertEquals("The naming manager should have returned the test object", testObject, obj);
   }
 
+  @Test
+  public void testFactoriesHiddenFromTheCallerAreNotUsed() throws Exception
+  {
+    String testObject = "Test object";
+    ObjectFactory factory = Skeleton.newMock(ObjectFactory.class);
+    Skeleton.getSkeleton(factory).setReturnValue(new MethodCall(ObjectFactory.class, "getObjectInstance", Object.class, Name.class, Context.class, Hashtable.class), testObject);
+
+    bc.registerService(ObjectFactory.class.getName(), factory, null);
+    
+    // a find hook hides every service from the caller
+    Skeleton.getSkeleton(bc).registerMethodCallHandler(new MethodCall(BundleContext.class, "getServiceReferences", String.class, String.class), 
+        new MethodCallHandler() 
+        {
+          public Object handle(MethodCall methodCall, Skeleton skeleton) throws Exception 
+          {
+            return null;
+          }
+        });
+
+    Reference ref = new Reference(null);
+    Object obj = NamingManager.getObjectInstance(ref, null, null, env);
+    
+    assertSame("The naming manager should have returned the reference object", ref, obj);
+    Skeleton.getSkeleton(factory).assertNotCalled(new MethodCall(ObjectFactory.class, "getObjectInstance", Object.class, Name.class, Context.class, Hashtable.class));
+  }
+
   @Test
   public void testSpecifiedFactoryWithMatchingFactory() throws Exception
   {
@@ -154,6 +203,47 @@ public class ObjectFactoryTest
     assertEquals("The naming manager should have returned the test object", testObject, obj);
   }
 
+  @Test
+  public void testFactoryLookupCostDoesNotGrowWithRegisteredFactories() throws Exception
+  {
+    String testObject = "Test object";
+    ObjectFactory factory = Skeleton.newMock(ObjectFactory.class);
+    Skeleton.getSkeleton(factory).setReturnValue(new MethodCall(ObjectFactory.class, "getObjectInstance", Object.class, Name.class, Context.class, Hashtable.class), testObject);
+
+    Properties props = new Properties();
+    props.setProperty(JNDIConstants.JNDI_URLSCHEME, "wibble");
+    bc.registerService(new String[] {ObjectFactory.class.getName(), "benchmark.Factory"}, factory, props);
+
+    Reference byClassName = new Reference("dummy.class.name", "benchmark.Factory", "");
+    Reference byScheme = new Reference(null);
+    byScheme.add(new StringRefAddr("URL", "wibble"));
+
+    MethodCall getServiceReferences = new MethodCall(BundleContext.class, "getServiceReferences", String.class, String.class);
+    MethodCall getService = new MethodCall(BundleContext.class, "getService", ServiceReference.class);
+    
+    int registered = 1;
+    for (int factories : new int[] {10, 100, 1000}) {
+      for (; registered < factories; registered++) {
+        props = new Properties();
+        props.setProperty(JNDIConstants.JNDI_URLSCHEME, "scheme" + registered);
+        bc.registerService(new String[] {ObjectFactory.class.getName(), "benchmark.Factory" + registered}, 
+                           Skeleton.newMock(ObjectFactory.class), props);
+      }
+      
+      Skeleton.getSkeleton(bc).clearMethodCalls();
+      
+      for (int i = 0; i < 100; i++) {
+        assertEquals(testObject, NamingManager.getObjectInstance(byClassName, null, null, env));
+        assertEquals(testObject, NamingManager.getObjectInstance(byScheme, null, null, env));
+      }
+      
+      // however many factories there are, the registry is only asked once which ones 
+      // the bundle can see and the one we use is only obtained by the first lookup
+      Skeleton.getSkeleton(bc).assertCalledExactNumberOfTimes(getServiceReferences, 1);
+      Skeleton.getSkeleton(bc).assertCalledExactNumberOfTimes(getService, (factories == 10) ? 1 : 0);
+    }
+  }
+
   @Test
   public void testSpecifiedFactoryWithRegisteredButNotMatchingFactory() throws Exception
   {
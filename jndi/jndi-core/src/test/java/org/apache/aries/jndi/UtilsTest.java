@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jndi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import javax.naming.InitialContext;
+
+import org.apache.aries.mocks.BundleContextMock;
+import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.Skeleton;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleReference;
+
+public class UtilsTest
+{
+  private Bundle bundle;
+  private BundleContext bc;
+  private ClassLoader originalTCCL;
+
+  private static class BundleClassLoader extends ClassLoader implements BundleReference
+  {
+    private final Bundle bundle;
+
+    public BundleClassLoader(Bundle bundle)
+    {
+      this.bundle = bundle;
+    }
+
+    public Bundle getBundle()
+    {
+      return bundle;
+    }
+  }
+
+  @Before
+  public void setup()
+  {
+    bc = Skeleton.newMock(new BundleContextMock(), BundleContext.class);
+    bundle = Skeleton.newMock(Bundle.class);
+    Skeleton.getSkeleton(bundle).setReturnValue(new MethodCall(Bundle.class, "getBundleContext"), bc);
+    Skeleton.getSkeleton(bc).setReturnValue(new MethodCall(BundleContext.class, "getBundle"), bundle);
+
+    originalTCCL = Thread.currentThread().getContextClassLoader();
+    Thread.currentThread().setContextClassLoader(new BundleClassLoader(bundle));
+  }
+
+  @After
+  public void teardown()
+  {
+    Thread.currentThread().setContextClassLoader(originalTCCL);
+    Utils.clearBundleContexts();
+    BundleContextMock.clear();
+  }
+
+  @Test
+  public void testBundleContextRememberedUntilBundleStops()
+  {
+    MethodCall getBundleContext = new MethodCall(Bundle.class, "getBundleContext");
+
+    assertSame(bc, Utils.getBundleContext(null, InitialContext.class));
+    assertSame(bc, Utils.getBundleContext(null, InitialContext.class));
+    Skeleton.getSkeleton(bundle).assertCalledExactNumberOfTimes(getBundleContext, 1);
+
+    //Another bundle stopping makes no difference
+    Utils.bundleChanged(new BundleEvent(BundleEvent.STOPPED, Skeleton.newMock(Bundle.class)));
+    assertSame(bc, Utils.getBundleContext(null, InitialContext.class));
+    Skeleton.getSkeleton(bundle).assertCalledExactNumberOfTimes(getBundleContext, 1);
+
+    Utils.bundleChanged(new BundleEvent(BundleEvent.STOPPED, bundle));
+    assertSame(bc, Utils.getBundleContext(null, InitialContext.class));
+    Skeleton.getSkeleton(bundle).assertCalledExactNumberOfTimes(getBundleContext, 2);
+  }
+
+  @Test
+  public void testClassLoadersAreForgotten()
+  {
+    ClassLoader bundleLoader = Thread.currentThread().getContextClassLoader();
+    assertSame(bc, Utils.getBundleContext(null, InitialContext.class));
+    assertTrue(isRemembered(bundleLoader));
+
+    Utils.bundleChanged(new BundleEvent(BundleEvent.STOPPING, bundle));
+    assertFalse("The class loader of a stopped bundle should be forgotten", isRemembered(bundleLoader));
+
+    ClassLoader plain = new ClassLoader(null) { };
+    Thread.currentThread().setContextClassLoader(plain);
+    Utils.getBundleContext(null, InitialContext.class);
+    assertFalse("A class loader outside of any bundle should not be remembered", isRemembered(plain));
+
+    ClassLoader child = new ClassLoader(bundleLoader) { };
+    Thread.currentThread().setContextClassLoader(child);
+    assertSame(bc, Utils.getBundleContext(null, InitialContext.class));
+    assertFalse("A class loader below a bundle class loader should not be remembered", isRemembered(child));
+  }
+
+  private static boolean isRemembered(ClassLoader cl)
+  {
+    try {
+      Field field = Utils.class.getDeclaredField("bundleContexts");
+      field.setAccessible(true);
+      return ((Map<?, ?>) field.get(null)).containsKey(cl);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -23,7 +23,7 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +33,7 @@ import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.NamingException;
 
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
 import org.apache.aries.jndi.url.Activator;
 import org.apache.aries.jndi.url.OsgiName;
 import org.apache.aries.proxy.ProxyManager;
@@ -210,10 +211,21 @@ public final class ServiceHelper
   private static final ConcurrentMap<ServiceKey, WeakReference<Object>> proxyCache = new ConcurrentHashMap<ServiceKey, WeakReference<Object>>();
   private static final CacheClearoutListener cacheClearoutListener = new CacheClearoutListener(proxyCache);
   private static final MessageUtil MESSAGES = MessageUtil.createMessageUtil(ServiceHelper.class, "org.apache.aries.jndi.nls.jndiUrlMessages");
+  /** The references found by earlier lookups, or null if they are not being cached */
+  private static volatile ServiceReferenceCache referenceCache;
+
+  /**
+   * @param cache The cache to use for service lookups, or null to stop caching them
+   */
+  public static void setServiceReferenceCache(ServiceReferenceCache cache)
+  {
+    referenceCache = cache;
+  }
 
   public static Object getService(BundleContext ctx, OsgiName lookupName, String id,
                                   boolean dynamicRebind, Map<String, Object> env, boolean requireProxy) throws NamingException
   {    
+    long start = System.nanoTime();
     String interfaceName = lookupName.getInterface();
     String filter = lookupName.getFilter();
     String serviceName = lookupName.getServiceName();
@@ -261,6 +273,12 @@ public final class ServiceHelper
       }
     }
 
+    JNDIStatisticsRecorder recorder = Activator.getStatisticsRecorder();
+    if (recorder != null) {
+      String scheme = lookupName.get(0).startsWith(OsgiName.ARIES_SCHEME + ':') ? OsgiName.ARIES_SCHEME : OsgiName.OSGI_SCHEME;
+      recorder.recordTime(scheme, JNDIStatisticsRecorder.SERVICE_FETCH, System.nanoTime() - start);
+    }
+
     return result;
   }
 
@@ -372,17 +390,9 @@ public final class ServiceHelper
     ServicePair p = null;
 
     try {
-      ServiceReference[] refs = ctx.getServiceReferences(interface1, filter);
+      ServiceReference[] refs = getRankedReferences(ctx, interface1, filter);
 
       if (refs != null) {
-        // natural order is the exact opposite of the order we desire.
-        Arrays.sort(refs, new Comparator<ServiceReference>() {
-          public int compare(ServiceReference o1, ServiceReference o2)
-          {
-            return o2.compareTo(o1);
-          }
-        });
-
         for (ServiceReference ref : refs) {
           Object service = ctx.getService(ref);
 
@@ -407,30 +417,68 @@ public final class ServiceHelper
 
   public static ServiceReference[] getServiceReferences(BundleContext ctx, String interface1,
       String filter, String serviceName, Map<String, Object> env) throws NamingException
+  {
+    ServiceReference[] refs = findServiceReferences(ctx, interface1, filter, serviceName);
+
+    // the cached array is shared, so give the caller their own copy
+    return (refs == null) ? null : refs.clone();
+  }
+
+  /**
+   * Find the references the same way as getServiceReferences, without copying them.
+   * 
+   * @return the matching references, highest ranked first. The list cannot be modified.
+   */
+  public static List<ServiceReference> getRankedServiceReferences(BundleContext ctx, String interface1,
+      String filter, String serviceName, Map<String, Object> env) throws NamingException
+  {
+    ServiceReference[] refs = findServiceReferences(ctx, interface1, filter, serviceName);
+
+    if (refs == null) return Collections.emptyList();
+    
+    return Collections.unmodifiableList(Arrays.asList(refs));
+  }
+
+  private static ServiceReference[] findServiceReferences(BundleContext ctx, String interface1,
+      String filter, String serviceName) throws NamingException
   {
     ServiceReference[] refs = null;
 
     try {
-      refs = ctx.getServiceReferences(interface1, filter);
+      refs = getRankedReferences(ctx, interface1, filter);
 
-      if (refs == null || refs.length == 0) {
-        refs = ctx.getServiceReferences(null, "(" + JNDIConstants.JNDI_SERVICENAME + "="
+      if (refs == null) {
+        refs = getRankedReferences(ctx, null, "(" + JNDIConstants.JNDI_SERVICENAME + "="
             + serviceName + ')');
       }
     } catch (InvalidSyntaxException e) {
       throw (NamingException) new NamingException(e.getFilter()).initCause(e);
     }
 
-    if (refs != null) {
-      // natural order is the exact opposite of the order we desire.
-      Arrays.sort(refs, new Comparator<ServiceReference>() {
-        public int compare(ServiceReference o1, ServiceReference o2)
-        {
-          return o2.compareTo(o1);
-        }
-      });
+    return refs;
+  }
+
+  /**
+   * @return the matching references, highest ranked first, or null if there are none.
+   *         The array must not be modified.
+   */
+  private static ServiceReference[] getRankedReferences(BundleContext ctx, String interface1, String filter)
+      throws InvalidSyntaxException
+  {
+    ServiceReferenceCache cache = referenceCache;
+    if (cache != null) {
+      return cache.getServiceReferences(ctx, interface1, filter);
     }
 
+    JNDIStatisticsRecorder recorder = Activator.getStatisticsRecorder();
+    if (recorder != null) recorder.recordRegistryQuery();
+
+    ServiceReference[] refs = ctx.getServiceReferences(interface1, filter);
+
+    if (refs == null || refs.length == 0) {
+      return null;
+    }
+    Arrays.sort(refs, ServiceReferenceCache.RANKING);
     return refs;
   }
 
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jndi.services;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
+import org.apache.aries.jndi.url.Activator;
+import org.osgi.framework.AllServiceListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Remembers the service references found for each bundle, interface and filter, highest
+ * ranked first. A service event only discards the lookups that the service matches or
+ * that found it, so repeated lookups of the same name do not query the service registry.
+ * The lookups are indexed by interface so that an event only looks at those for the
+ * interfaces of its service, and only the most recently used ones are kept.
+ */
+public final class ServiceReferenceCache implements AllServiceListener, SynchronousBundleListener
+{
+  /** natural order is the exact opposite of the order we desire. */
+  static final Comparator<ServiceReference> RANKING = new Comparator<ServiceReference>() {
+    public int compare(ServiceReference o1, ServiceReference o2)
+    {
+      return o2.compareTo(o1);
+    }
+  };
+
+  private static final ServiceReference[] NO_REFERENCES = new ServiceReference[0];
+
+  /** The most lookups to remember */
+  private static final int MAX_LOOKUPS = 1024;
+
+  private static final class Key
+  {
+    private final Bundle requesting;
+    private final String interfaceName;
+    private final String filter;
+    private final int hash;
+
+    public Key(Bundle requesting, String interfaceName, String filter)
+    {
+      this.requesting = requesting;
+      this.interfaceName = interfaceName;
+      this.filter = filter;
+      int h = System.identityHashCode(requesting);
+      h = 31 * h + (interfaceName == null ? 0 : interfaceName.hashCode());
+      h = 31 * h + (filter == null ? 0 : filter.hashCode());
+      hash = h;
+    }
+
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    public boolean equals(Object other)
+    {
+      if (other == this) return true;
+      if (!!!(other instanceof Key)) return false;
+
+      Key otherKey = (Key) other;
+      return otherKey.requesting == requesting
+          && (interfaceName == null ? otherKey.interfaceName == null : interfaceName.equals(otherKey.interfaceName))
+          && (filter == null ? otherKey.filter == null : filter.equals(otherKey.filter));
+    }
+  }
+
+  private static final class Lookup
+  {
+    private final Key key;
+    /** Matches every service the lookup could find, null matches everything */
+    private final Filter matcher;
+    /** The services found, highest ranked first */
+    private final ServiceReference[] refs;
+
+    public Lookup(Key key, Filter matcher, ServiceReference[] refs)
+    {
+      this.key = key;
+      this.matcher = matcher;
+      this.refs = refs;
+    }
+
+    public boolean isAffectedBy(ServiceReference ref)
+    {
+      if (matcher == null || matcher.match(ref)) return true;
+
+      for (ServiceReference found : refs) {
+        if (found.equals(ref)) return true;
+      }
+      return false;
+    }
+  }
+
+  private final BundleContext ctx;
+  /** Guards the lookups and their index */
+  private final Object lock = new Object();
+  /** The lookups, in least recently used order */
+  private final Map<Key, Lookup> cache = new LinkedHashMap<Key, Lookup>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Lookup> eldest)
+    {
+      if (size() <= MAX_LOOKUPS) return false;
+      unindex(eldest.getValue());
+      return true;
+    }
+  };
+  /** The lookups for each interface, those for any interface are under null */
+  private final Map<String, Set<Lookup>> byInterface = new HashMap<String, Set<Lookup>>();
+  /** Changes whenever a service event is seen, so a lookup racing with one isn't kept */
+  private final AtomicLong serviceChanges = new AtomicLong();
+
+  public ServiceReferenceCache(BundleContext context)
+  {
+    ctx = context;
+  }
+
+  public void open()
+  {
+    ctx.addBundleListener(this);
+    ctx.addServiceListener(this);
+  }
+
+  public void close()
+  {
+    ctx.removeServiceListener(this);
+    ctx.removeBundleListener(this);
+    synchronized (lock) {
+      cache.clear();
+      byInterface.clear();
+    }
+  }
+
+  /**
+   * Find the services visible to a bundle that match an interface and filter.
+   *
+   * @param caller The context of the bundle doing the lookup
+   * @param interfaceName The interface, or null for any
+   * @param filter The filter, or null for none
+   * @return The references, highest ranked first, or null if there are none. The
+   *         array is shared and must not be modified.
+   * @throws InvalidSyntaxException
+   */
+  public ServiceReference[] getServiceReferences(BundleContext caller, String interfaceName, String filter)
+      throws InvalidSyntaxException
+  {
+    Key key = new Key(caller.getBundle(), interfaceName, filter);
+    Lookup lookup;
+    synchronized (lock) {
+      lookup = cache.get(key);
+    }
+    JNDIStatisticsRecorder recorder = Activator.getStatisticsRecorder();
+
+    if (lookup == null) {
+      if (recorder != null) recorder.recordRegistryQuery();
+      long changes = serviceChanges.get();
+      Filter matcher = createMatcher(interfaceName, filter);
+
+      ServiceReference[] refs = caller.getServiceReferences(interfaceName, filter);
+      if (refs == null) {
+        refs = NO_REFERENCES;
+      } else {
+        Arrays.sort(refs, RANKING);
+      }
+
+      lookup = new Lookup(key, matcher, refs);
+      synchronized (lock) {
+        // a service may have changed while we were looking, if so we can't trust what we found
+        if (serviceChanges.get() == changes) {
+          Lookup previous = cache.put(key, lookup);
+          if (previous != null) unindex(previous);
+          Set<Lookup> lookups = byInterface.get(interfaceName);
+          if (lookups == null) {
+            lookups = new HashSet<Lookup>();
+            byInterface.put(interfaceName, lookups);
+          }
+          lookups.add(lookup);
+        }
+      }
+    } else if (recorder != null) {
+      recorder.recordCacheHit();
+    }
+
+    return (lookup.refs.length == 0) ? null : lookup.refs;
+  }
+
+  private static Filter createMatcher(String interfaceName, String filter) throws InvalidSyntaxException
+  {
+    String matcher;
+    if (interfaceName == null) {
+      matcher = filter;
+    } else if (filter == null) {
+      matcher = '(' + Constants.OBJECTCLASS + '=' + interfaceName + ')';
+    } else {
+      matcher = "(&(" + Constants.OBJECTCLASS + '=' + interfaceName + ')' + filter + ')';
+    }
+    return (matcher == null) ? null : FrameworkUtil.createFilter(matcher);
+  }
+
+  private void unindex(Lookup lookup)
+  {
+    Set<Lookup> lookups = byInterface.get(lookup.key.interfaceName);
+    if (lookups != null && lookups.remove(lookup) && lookups.isEmpty()) {
+      byInterface.remove(lookup.key.interfaceName);
+    }
+  }
+
+  public void serviceChanged(ServiceEvent event)
+  {
+    serviceChanges.incrementAndGet();
+
+    ServiceReference ref = event.getServiceReference();
+    String[] interfaces = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+    synchronized (lock) {
+      discardAffected(null, ref);
+      if (interfaces != null) {
+        for (String interfaceName : interfaces) {
+          discardAffected(interfaceName, ref);
+        }
+      }
+    }
+  }
+
+  /** Discard the lookups for an interface that a service matches or that found it */
+  private void discardAffected(String interfaceName, ServiceReference ref)
+  {
+    Set<Lookup> lookups = byInterface.get(interfaceName);
+    if (lookups == null) return;
+
+    Iterator<Lookup> it = lookups.iterator();
+    while (it.hasNext()) {
+      Lookup lookup = it.next();
+      if (lookup.isAffectedBy(ref)) {
+        it.remove();
+        cache.remove(lookup.key);
+      }
+    }
+    if (lookups.isEmpty()) byInterface.remove(interfaceName);
+  }
+
+  public void bundleChanged(BundleEvent event)
+  {
+    if (event.getType() == BundleEvent.STOPPED) {
+      Bundle b = event.getBundle();
+      synchronized (lock) {
+        Iterator<Lookup> lookups = cache.values().iterator();
+        while (lookups.hasNext()) {
+          Lookup lookup = lookups.next();
+          if (lookup.key.requesting == b) {
+            lookups.remove();
+            unindex(lookup);
+          }
+        }
+      }
+    }
+  }
+}
@@ -22,6 +22,9 @@ import java.util.Hashtable;
 
 import javax.naming.spi.ObjectFactory;
 
+import org.apache.aries.jndi.services.ServiceHelper;
+import org.apache.aries.jndi.services.ServiceReferenceCache;
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
 import org.apache.aries.proxy.ProxyManager;
 import org.apache.aries.util.AriesFrameworkUtil;
 import org.apache.aries.util.tracker.SingleServiceTracker;
@@ -37,19 +40,30 @@ public class Activator implements BundleActivator, SingleServiceListener
     private volatile ServiceRegistration osgiUrlReg = null;
     private volatile ServiceRegistration blueprintUrlReg = null;
     private static SingleServiceTracker<ProxyManager> proxyManager;
+    private static SingleServiceTracker<JNDIStatisticsRecorder> statistics;
+    private ServiceReferenceCache referenceCache;
+    private BlueprintContainerCache blueprintContainers;
 
     @Override
     public void start(BundleContext context) 
     {
         ctx = context;
+        referenceCache = new ServiceReferenceCache(context);
+        referenceCache.open();
+        ServiceHelper.setServiceReferenceCache(referenceCache);
         proxyManager = new SingleServiceTracker<ProxyManager>(context, ProxyManager.class, this);
         proxyManager.open();
+        statistics = new SingleServiceTracker<JNDIStatisticsRecorder>(context, JNDIStatisticsRecorder.class, null);
+        statistics.open();
         // Blueprint URL scheme requires access to the BlueprintContainer service.
         // We have an optional import
         // on org.osgi.service.blueprint.container: only register the blueprint:comp/URL
         // scheme if it's present
         try {
           ctx.getBundle().loadClass("org.osgi.service.blueprint.container.BlueprintContainer");
+          blueprintContainers = new BlueprintContainerCache(ctx);
+          blueprintContainers.open();
+          BlueprintURLContext.setBlueprintContainerCache(blueprintContainers);
           Hashtable<Object, Object> blueprintURlSchemeProps = new Hashtable<Object, Object>();
           blueprintURlSchemeProps.put(JNDIConstants.JNDI_URLSCHEME, new String[] { "blueprint" });
           blueprintUrlReg = ctx.registerService(ObjectFactory.class.getName(),
@@ -63,8 +77,15 @@ public class Activator implements BundleActivator, SingleServiceListener
     @Override
     public void stop(BundleContext context) {
       proxyManager.close();
+      statistics.close();
       AriesFrameworkUtil.safeUnregisterService(osgiUrlReg);
       AriesFrameworkUtil.safeUnregisterService(blueprintUrlReg);
+      if (blueprintContainers != null) {
+        BlueprintURLContext.setBlueprintContainerCache(null);
+        blueprintContainers.close();
+      }
+      ServiceHelper.setServiceReferenceCache(null);
+      referenceCache.close();
     }
   
 
@@ -94,4 +115,12 @@ public class Activator implements BundleActivator, SingleServiceListener
   {
     return proxyManager == null ? null : proxyManager.getService();
   }
+
+  /**
+   * @return the recorder of the JNDI statistics, or null if the JNDI core bundle isn't running
+   */
+  public static JNDIStatisticsRecorder getStatisticsRecorder()
+  {
+    return statistics == null ? null : statistics.getService();
+  }
 }
\ No newline at end of file
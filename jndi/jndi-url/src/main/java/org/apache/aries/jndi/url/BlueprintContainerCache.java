@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jndi.url;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.ServiceUnavailableException;
+
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
+import org.apache.aries.util.nls.MessageUtil;
+import org.osgi.framework.AllServiceListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.blueprint.container.BlueprintContainer;
+
+/**
+ * Remembers the BlueprintContainer of each bundle doing blueprint:comp lookups, and the
+ * grace period to wait for it. The container is got once and kept until its service is
+ * unregistered or the bundle stops. Lookups made while a bundle has no container all wait
+ * for the same registration, rather than each opening a tracker of their own.
+ */
+public final class BlueprintContainerCache implements AllServiceListener, SynchronousBundleListener
+{
+  private static final MessageUtil MESSAGES = MessageUtil.createMessageUtil(BlueprintContainerCache.class, "org.apache.aries.jndi.nls.jndiUrlMessages");
+
+  private static final class Entry
+  {
+    /** Released when the container is registered, or the entry is discarded, but never on a timeout */
+    private final CountDownLatch found = new CountDownLatch(1);
+    /** The grace period, parsed the first time we have to wait */
+    private Integer gracePeriod;
+    private ServiceReference ref;
+    private BlueprintContainer container;
+
+    private synchronized int getGracePeriod(Bundle b)
+    {
+      if (gracePeriod == null) gracePeriod = BlueprintURLContext.getGracePeriod(b);
+      return gracePeriod;
+    }
+
+    private synchronized void setReference(ServiceReference reference)
+    {
+      if (ref == null) ref = reference;
+      found.countDown();
+    }
+
+    private synchronized ServiceReference getReference()
+    {
+      return ref;
+    }
+
+    private synchronized BlueprintContainer getContainer(Bundle b)
+    {
+      if (container == null && ref != null) {
+        container = (BlueprintContainer) b.getBundleContext().getService(ref);
+      }
+      return container;
+    }
+
+    private synchronized void release(Bundle b)
+    {
+      found.countDown();
+
+      if (container != null) {
+        container = null;
+        try {
+          b.getBundleContext().ungetService(ref);
+        } catch (IllegalStateException e) {
+          // The bundle has stopped, so the framework has already released the container
+        }
+      }
+    }
+  }
+
+  private final BundleContext ctx;
+  private final ConcurrentMap<Bundle, Entry> entries = new ConcurrentHashMap<Bundle, Entry>();
+
+  public BlueprintContainerCache(BundleContext context)
+  {
+    ctx = context;
+  }
+
+  public void open()
+  {
+    ctx.addBundleListener(this);
+    try {
+      ctx.addServiceListener(this, '(' + Constants.OBJECTCLASS + '=' + BlueprintContainer.class.getName() + ')');
+    } catch (InvalidSyntaxException e) {
+      // should not happen
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void close()
+  {
+    ctx.removeServiceListener(this);
+    ctx.removeBundleListener(this);
+
+    for (Bundle b : entries.keySet()) {
+      discard(b);
+    }
+  }
+
+  /**
+   * Obtain the BlueprintContainer for the given bundle. If the service isn't there, wait for up
+   * to the blueprint.graceperiod defined for that bundle for one to be published.
+   * @param b The Bundle to look in
+   * @return The BlueprintContainer of that bundle, which must not be released by the caller
+   * @throws ServiceUnavailableException If no BlueprintContainer was found
+   */
+  public BlueprintContainer getContainer(Bundle b) throws ServiceUnavailableException
+  {
+    Entry entry = entries.get(b);
+    if (entry == null) {
+      entry = new Entry();
+      Entry existing = entries.putIfAbsent(b, entry);
+      if (existing != null) entry = existing;
+    }
+
+    BlueprintContainer container = entry.getContainer(b);
+    JNDIStatisticsRecorder recorder = Activator.getStatisticsRecorder();
+
+    if (container == null) {
+      if (recorder != null) recorder.recordRegistryQuery();
+      // The entry is already in place, so if the container isn't registered yet we will hear about it
+      ServiceReference ref = findBPCRef(b);
+      if (ref != null) {
+        entry.setReference(ref);
+      } else {
+        await(b, entry);
+      }
+
+      container = entry.getContainer(b);
+    } else if (recorder != null) {
+      recorder.recordCacheHit();
+    }
+
+    if (container == null) {
+      // If a container was found it went away, forget it so the next lookup looks again. If the
+      // wait timed out the entry is kept, as other lookups may still be waiting on it
+      if (entry.found.getCount() == 0 && entries.remove(b, entry)) entry.release(b);
+      throw new ServiceUnavailableException(MESSAGES.getMessage("no.blueprint.container", b.getSymbolicName() + '/' + b.getVersion()));
+    }
+
+    return container;
+  }
+
+  private static void await(Bundle b, Entry entry)
+  {
+    int graceperiod = entry.getGracePeriod(b);
+    if (graceperiod < 0) return;
+
+    try {
+      if (graceperiod == 0) { // Wait for an unlimited period
+        entry.found.await();
+      } else {
+        entry.found.await(graceperiod, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException ix) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Look for a BluepintContainer service in a given bundle
+   * @param b Bundle to look in
+   * @return BlueprintContainer service, or null if none available
+   */
+  private static ServiceReference findBPCRef(Bundle b)
+  {
+    ServiceReference[] refs = b.getRegisteredServices();
+    ServiceReference result = null;
+    if (refs != null) {
+      outer: for (ServiceReference r : refs) {
+        String[] objectClasses = (String[]) r.getProperty(Constants.OBJECTCLASS);
+        for (String objectClass : objectClasses) {
+          if (objectClass.equals(BlueprintContainer.class.getName())) {
+            // Arguably we could put an r.isAssignableTo(jndi-url-bundle, BlueprintContainer.class.getName())
+            // check here. But if you've got multiple, class-space inconsistent instances of blueprint in
+            // your environment, you've almost certainly got other problems.
+            result = r;
+            break outer;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private void discard(Bundle b)
+  {
+    Entry entry = entries.remove(b);
+    if (entry != null) entry.release(b);
+  }
+
+  public void serviceChanged(ServiceEvent event)
+  {
+    ServiceReference ref = event.getServiceReference();
+    Bundle b = ref.getBundle();
+    if (b == null) return;
+
+    Entry entry = entries.get(b);
+    if (entry == null) return;
+
+    switch (event.getType()) {
+      case ServiceEvent.REGISTERED:
+        entry.setReference(ref);
+        break;
+      case ServiceEvent.UNREGISTERING:
+        if (ref.equals(entry.getReference()) && entries.remove(b, entry)) entry.release(b);
+        break;
+    }
+  }
+
+  public void bundleChanged(BundleEvent event)
+  {
+    switch (event.getType()) {
+      case BundleEvent.STOPPING:
+      case BundleEvent.UPDATED:
+      case BundleEvent.UNINSTALLED:
+        // The bundle's headers, and so its grace period, may change by the time it is next used
+        discard(event.getBundle());
+        break;
+    }
+  }
+}
@@ -25,9 +25,6 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,14 +39,12 @@ import javax.naming.NamingException;
 import javax.naming.OperationNotSupportedException;
 import javax.naming.ServiceUnavailableException;
 
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
 import org.apache.aries.util.nls.MessageUtil;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
-import org.osgi.framework.ServiceReference;
 import org.osgi.service.blueprint.container.BlueprintContainer;
 import org.osgi.service.blueprint.container.NoSuchComponentException;
-import org.osgi.util.tracker.ServiceTracker;
-import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 public class BlueprintURLContext implements Context 
 {
@@ -74,22 +69,17 @@ public class BlueprintURLContext implements Context
     
     public BlueprintComponentNamingEnumeration (Bundle callersBundle, ComponentProcessor<T> p) throws ServiceUnavailableException 
     { 
-      ServiceReference blueprintContainerRef = getBlueprintContainerRef(callersBundle);
-      try { 
-        BlueprintContainer blueprintContainer = (BlueprintContainer) callersBundle.getBundleContext().getService(blueprintContainerRef);
-        @SuppressWarnings("unchecked")
-        Set<String> componentIds = blueprintContainer.getComponentIds();
-        blueprintIdToComponentBindings = new Binding[componentIds.size()];
-        Iterator<String> idIterator= componentIds.iterator();
-        for (int i=0; i < blueprintIdToComponentBindings.length; i++) { 
-          String id = idIterator.next();
-          Object o = blueprintContainer.getComponentInstance(id);
-          blueprintIdToComponentBindings[i] = new Binding (id, o);
-        }
-        processor = p;
-      } finally {
-        callersBundle.getBundleContext().ungetService(blueprintContainerRef);
+      BlueprintContainer blueprintContainer = getBlueprintContainer(callersBundle);
+      @SuppressWarnings("unchecked")
+      Set<String> componentIds = blueprintContainer.getComponentIds();
+      blueprintIdToComponentBindings = new Binding[componentIds.size()];
+      Iterator<String> idIterator= componentIds.iterator();
+      for (int i=0; i < blueprintIdToComponentBindings.length; i++) { 
+        String id = idIterator.next();
+        Object o = blueprintContainer.getComponentInstance(id);
+        blueprintIdToComponentBindings[i] = new Binding (id, o);
       }
+      processor = p;
     }
     
 
@@ -290,33 +280,31 @@ public class BlueprintURLContext implements Context
   @Override
   public Object lookup(Name name) throws NamingException, ServiceUnavailableException
   {
-    ServiceReference blueprintContainerRef = getBlueprintContainerRef(_callersBundle);
+    long start = System.nanoTime();
+    BlueprintContainer blueprintContainer = getBlueprintContainer(_callersBundle);
     Object result;
-    try {
-      BlueprintContainer blueprintContainer = (BlueprintContainer) 
-          _callersBundle.getBundleContext().getService(blueprintContainerRef);
-      BlueprintName bpName;
-      if (name instanceof BlueprintName) {
-        bpName = (BlueprintName) name;
-      } else if (_parentName != null) {
-        bpName = new BlueprintName(_parentName.toString() + "/" + name.toString());
-      } else {
-        bpName = (BlueprintName) _parser.parse(name.toString());
-      }
+    BlueprintName bpName;
+    if (name instanceof BlueprintName) {
+      bpName = (BlueprintName) name;
+    } else if (_parentName != null) {
+      bpName = new BlueprintName(_parentName.toString() + "/" + name.toString());
+    } else {
+      bpName = (BlueprintName) _parser.parse(name.toString());
+    }
 
-      if (bpName.hasComponent()) {
-        String componentId = bpName.getComponentId();
-        try {
-          result = blueprintContainer.getComponentInstance(componentId);
-        } catch (NoSuchComponentException nsce) {
-          throw new NameNotFoundException(nsce.getMessage());
-        }
-      } else {
-        result = new BlueprintURLContext(_callersBundle, bpName, _env);
+    if (bpName.hasComponent()) {
+      String componentId = bpName.getComponentId();
+      try {
+        result = blueprintContainer.getComponentInstance(componentId);
+      } catch (NoSuchComponentException nsce) {
+        throw new NameNotFoundException(nsce.getMessage());
       }
-    } finally {
-      _callersBundle.getBundleContext().ungetService(blueprintContainerRef);
+    } else {
+      result = new BlueprintURLContext(_callersBundle, bpName, _env);
     }
+
+    JNDIStatisticsRecorder recorder = Activator.getStatisticsRecorder();
+    if (recorder != null) recorder.recordTime("blueprint", JNDIStatisticsRecorder.SERVICE_FETCH, System.nanoTime() - start);
     return result;
   }
 
@@ -384,72 +372,29 @@ public class BlueprintURLContext implements Context
     throw new OperationNotSupportedException();
   }
   
-  /**
-   * Look for a BluepintContainer service in a given bundle
-   * @param b Bundle to look in
-   * @return BlueprintContainer service, or null if none available
-   */
-  private static ServiceReference findBPCRef (Bundle b) 
-  {
-    ServiceReference[] refs = b.getRegisteredServices();
-    ServiceReference result = null;
-    if (refs != null) {
-      outer: for (ServiceReference r : refs) {
-        String[] objectClasses = (String[]) r.getProperty(Constants.OBJECTCLASS);
-        for (String objectClass : objectClasses) {
-          if (objectClass.equals(BlueprintContainer.class.getName())) {
-            // Arguably we could put an r.isAssignableTo(jndi-url-bundle, BlueprintContainer.class.getName())
-            // check here. But if you've got multiple, class-space inconsistent instances of blueprint in 
-            // your environment, you've almost certainly got other problems.
-            result = r;
-            break outer;
-          }
-        }
-      }
-    }
-    return result;
-  }
-  
   private static final MessageUtil MESSAGES = MessageUtil.createMessageUtil(BlueprintURLContext.class, "org.apache.aries.jndi.nls.jndiUrlMessages");
 
+  private static volatile BlueprintContainerCache containers;
+  
+  static void setBlueprintContainerCache(BlueprintContainerCache cache)
+  {
+    containers = cache;
+  }
+
   /**
-   * Obtain a BlueprintContainerService for the given bundle. If the service isn't there, wait for up 
-   * to the blueprint.graceperiod defined for that bundle for one to be published. 
+   * Obtain the BlueprintContainer for the given bundle, waiting for up to the 
+   * blueprint.graceperiod defined for that bundle if it hasn't been published yet.
    * @param b The Bundle to look in
-   * @return BlueprintContainerService instance for that bundle
-   * @throws ServiceUnavailableException If no BlueprinContainerService found
+   * @return BlueprintContainer for that bundle
+   * @throws ServiceUnavailableException If no BlueprintContainer found
    */
-  private static ServiceReference getBlueprintContainerRef(Bundle b) throws ServiceUnavailableException 
-  {
-    ServiceReference result = findBPCRef(b);
-    if (result == null) { 
-      Semaphore s = new Semaphore(0);
-      AtomicReference<ServiceReference> bpcRef = new AtomicReference<ServiceReference>();
-      ServiceTracker st = new ServiceTracker (b.getBundleContext(), BlueprintContainer.class.getName(), 
-          new BlueprintContainerServiceTrackerCustomizer (b, s, bpcRef));
-      st.open();
-      
-      // Make another check for the BlueprintContainer service in case it came up just before our tracker engaged
-      int graceperiod = getGracePeriod(b);
-      result = findBPCRef(b);
-      if (result == null && graceperiod >= 0) {
-        if (graceperiod == 0) { // Wait for an unlimited period
-          try { 
-            s.acquire();
-          } catch (InterruptedException ix) {}
-        } else { 
-          try { 
-            s.tryAcquire(graceperiod, TimeUnit.MILLISECONDS);
-          } catch (InterruptedException ix) {}
-        }
-      }
-      result = bpcRef.get();
-      st.close();
-    }
-    if (result == null) { 
+  private static BlueprintContainer getBlueprintContainer(Bundle b) throws ServiceUnavailableException 
+  {
+    BlueprintContainerCache cache = containers;
+    if (cache == null) { 
       throw new ServiceUnavailableException (MESSAGES.getMessage("no.blueprint.container", b.getSymbolicName() + '/' + b.getVersion()));
     }
-    return result;
+    return cache.getContainer(b);
   }
   
   static final Pattern graceP = Pattern.compile(".*;\\s*blueprint.graceperiod\\s*:=\\s*\"?([A-Za-z]+).*");
@@ -490,35 +435,5 @@ public class BlueprintURLContext implements Context
     }
     return result;
   }
-  
-  private static class BlueprintContainerServiceTrackerCustomizer implements ServiceTrackerCustomizer 
-  {
-    Bundle bundleToFindBPCServiceIn = null;
-    Semaphore semaphore;
-    AtomicReference<ServiceReference> atomicRef = null;
-    public BlueprintContainerServiceTrackerCustomizer (Bundle b, Semaphore s, AtomicReference<ServiceReference> aref) { 
-      bundleToFindBPCServiceIn = b;
-      semaphore = s;
-      atomicRef = aref;
-    }
-    
-    @Override
-    public Object addingService(ServiceReference reference)
-    {
-      Object result = null;
-      if (bundleToFindBPCServiceIn.equals(reference.getBundle())) { 
-        atomicRef.set(reference);
-        semaphore.release();
-        result = reference.getBundle().getBundleContext().getService(reference);
-      }
-      return result;
-    }
-
-    @Override
-    public void modifiedService(ServiceReference reference, Object service) {}
-
-    @Override
-    public void removedService(ServiceReference reference, Object service) {}
-  }
 
 }
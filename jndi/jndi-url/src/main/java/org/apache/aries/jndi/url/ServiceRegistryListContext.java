@@ -18,6 +18,8 @@
  */
 package org.apache.aries.jndi.url;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
@@ -45,25 +47,31 @@ public class ServiceRegistryListContext extends AbstractServiceRegistryContext i
     public void release(BundleContext ctx, ServiceReference ref);
   }
   
+  /**
+   * Enumerates the references in ranking order, only creating an element when it is
+   * asked for. Anything obtained for an element is released when the caller moves on 
+   * or closes the enumeration, so stopping early never touches the remaining services.
+   */
   private static class ServiceNamingEnumeration<T> implements NamingEnumeration<T>
   {
     private BundleContext ctx;
-    private ServiceReference[] refs;
+    private List<ServiceReference> refs;
     private int position = 0;
     private ThingManager<T> mgr;
-    private T last;
+    /** The reference the last element was created from */
+    private ServiceReference current;
     
-    private ServiceNamingEnumeration(BundleContext context, ServiceReference[] theRefs, ThingManager<T> manager)
+    private ServiceNamingEnumeration(BundleContext context, List<ServiceReference> theRefs, ThingManager<T> manager)
     {
       ctx = context;
-      refs = (theRefs != null) ? theRefs : new ServiceReference[0];
+      refs = theRefs;
       mgr = manager;
     }
     
     public void close() throws NamingException
     {
-      mgr.release(ctx, refs[position - 1]);
-      last = null;
+      release();
+      position = refs.size();
     }
 
     public boolean hasMore() throws NamingException
@@ -78,20 +86,32 @@ public class ServiceRegistryListContext extends AbstractServiceRegistryContext i
 
     public boolean hasMoreElements()
     {
-      return position < refs.length;
+      // skip any services unregistered since the references were found
+      while (position < refs.size() && refs.get(position).getBundle() == null) {
+        position++;
+      }
+      
+      return position < refs.size();
     }
 
     public T nextElement()
     {
       if (!!!hasMoreElements()) throw new NoSuchElementException();
       
-      if (position > 0) mgr.release(ctx, refs[position - 1]);
+      release();
       
-      last = mgr.get(ctx, refs[position++]);
+      current = refs.get(position++);
       
-      return last;
+      return mgr.get(ctx, current);
     }
     
+    private void release()
+    {
+      if (current != null) {
+        mgr.release(ctx, current);
+        current = null;
+      }
+    }
   }
   
   public ServiceRegistryListContext(BundleContext callerContext, Map<String, Object> env, OsgiName validName)
@@ -109,19 +129,21 @@ public class ServiceRegistryListContext extends AbstractServiceRegistryContext i
   {
     if (!!!"".equals(name)) throw new NameNotFoundException(name);
     
-    final ServiceReference[] refs = ServiceHelper.getServiceReferences(callerContext, parentName.getInterface(), parentName.getFilter(), parentName.getServiceName(), env);
+    final List<ServiceReference> refs = ServiceHelper.getRankedServiceReferences(callerContext, parentName.getInterface(), parentName.getFilter(), parentName.getServiceName(), env);
+    final String interfaceName = parentName.getInterface();
     
     return new ServiceNamingEnumeration<NameClassPair>(callerContext, refs, new ThingManager<NameClassPair>() {
       public NameClassPair get(BundleContext ctx, ServiceReference ref)
       {
         String serviceId = String.valueOf(ref.getProperty(Constants.SERVICE_ID));
+        
+        // Use the interface the service was registered under rather than getting the
+        // service, which could cause it to be created.
+        String[] classNames = (String[]) ref.getProperty(Constants.OBJECTCLASS);
         String className = null;
-        Object service = ctx.getService(ref);
-        if (service != null) {
-          className = service.getClass().getName();
+        if (classNames != null && classNames.length > 0) {
+          className = Arrays.asList(classNames).contains(interfaceName) ? interfaceName : classNames[0];
         }
-
-        ctx.ungetService(ref);
         
         return new NameClassPair(serviceId, className, true);
       }
@@ -141,7 +163,7 @@ public class ServiceRegistryListContext extends AbstractServiceRegistryContext i
   {
     if (!!!"".equals(name)) throw new NameNotFoundException(name);
     
-    final ServiceReference[] refs = ServiceHelper.getServiceReferences(callerContext, parentName.getInterface(), parentName.getFilter(), parentName.getServiceName(), env);
+    final List<ServiceReference> refs = ServiceHelper.getRankedServiceReferences(callerContext, parentName.getInterface(), parentName.getFilter(), parentName.getServiceName(), env);
 
     return new ServiceNamingEnumeration<Binding>(callerContext, refs, new ThingManager<Binding>() {
       public Binding get(BundleContext ctx, ServiceReference ref)
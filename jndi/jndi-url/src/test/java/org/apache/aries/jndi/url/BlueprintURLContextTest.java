@@ -21,10 +21,15 @@ package org.apache.aries.jndi.url;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 
@@ -38,6 +43,7 @@ import javax.naming.NamingException;
 
 import org.apache.aries.mocks.BundleContextMock;
 import org.apache.aries.mocks.BundleMock;
+import org.apache.aries.unittest.mocks.MethodCall;
 import org.apache.aries.unittest.mocks.Skeleton;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -47,12 +53,16 @@ import org.junit.Test;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.blueprint.container.BlueprintContainer;
 import org.osgi.service.blueprint.container.NoSuchComponentException;
 
 public class BlueprintURLContextTest {
 
   private static Bundle bundle;
+  private static ServiceRegistration containerReg;
   
   static class SimpleComponent { 
     String id;
@@ -105,7 +115,7 @@ public class BlueprintURLContextTest {
     
     // Register a BlueprintContainer mock that will answer getComponentInstance(String id) calls
     BlueprintContainer bpc = Skeleton.newMock(new BlueprintContainerStub(), BlueprintContainer.class);
-    bc.registerService("org.osgi.service.blueprint.container.BlueprintContainer", bpc, new Hashtable<String, String>());
+    containerReg = bc.registerService("org.osgi.service.blueprint.container.BlueprintContainer", bpc, new Hashtable<String, String>());
     
   }
   
@@ -138,6 +148,131 @@ public class BlueprintURLContextTest {
     assertEquals ("comp1 message wrong", "comp1_message", msg);
   }
   
+  /**
+   * Check that the container is only got once, rather than around every lookup
+   */
+  @Test
+  public void testContainerKeptBetweenLookups() throws Exception { 
+    BlueprintURLContext bpURLc = new BlueprintURLContext (bundle, new Hashtable<String, String>());
+    for (int i = 0; i < 5; i++) { 
+      assertNotNull (bpURLc.lookup("blueprint:comp/comp1"));
+    }
+    
+    Skeleton skel = Skeleton.getSkeleton(bundle.getBundleContext());
+    skel.assertCalledExactNumberOfTimes(new MethodCall(BundleContext.class, "getService", containerReg.getReference()), 1);
+    skel.assertNotCalled(new MethodCall(BundleContext.class, "ungetService", containerReg.getReference()));
+  }
+  
+  /**
+   * Check that lookups made before a bundle's container is registered all wait for it,
+   * without each tracking the registry themselves
+   */
+  @Test
+  public void testLookupsWaitForContainer() throws Exception { 
+    Hashtable<String, String> headers = new Hashtable<String, String>();
+    headers.put(Constants.BUNDLE_SYMBOLICNAME, "waiting.bundle;blueprint.timeout:=10000");
+    final Bundle waiting = Skeleton.newMock(new BundleMock("waiting.bundle", headers), Bundle.class);
+    MethodCall getRegisteredServices = new MethodCall(Bundle.class, "getRegisteredServices");
+    Skeleton.getSkeleton(waiting).setReturnValue(getRegisteredServices, null);
+    
+    final List<Object> found = Collections.synchronizedList(new ArrayList<Object>());
+    Thread[] lookups = new Thread[3];
+    for (int i = 0; i < lookups.length; i++) { 
+      lookups[i] = new Thread() { 
+        public void run() { 
+          try { 
+            found.add(new BlueprintURLContext(waiting, new Hashtable<String, String>()).lookup("blueprint:comp/comp1"));
+          } catch (NamingException e) { 
+            found.add(e);
+          }
+        }
+      };
+      lookups[i].start();
+    }
+    Thread.sleep(100);
+    
+    BlueprintContainerStub stub = new BlueprintContainerStub();
+    ServiceRegistration reg = waiting.getBundleContext().registerService(BlueprintContainer.class.getName(), 
+        Skeleton.newMock(stub, BlueprintContainer.class), new Hashtable<String, String>());
+    Skeleton.getSkeleton(waiting).setReturnValue(getRegisteredServices, new ServiceReference[] {reg.getReference()});
+    
+    for (Thread t : lookups) { 
+      t.join();
+    }
+    
+    assertEquals (lookups.length, found.size());
+    for (Object o : found) { 
+      assertSame (stub.comp1, o);
+    }
+    
+    Skeleton skel = Skeleton.getSkeleton(waiting.getBundleContext());
+    skel.assertNotCalled(new MethodCall(BundleContext.class, "addServiceListener", ServiceListener.class, String.class));
+    skel.assertCalledExactNumberOfTimes(new MethodCall(BundleContext.class, "getService", reg.getReference()), 1);
+    
+    reg.unregister();
+  }
+  
+  /**
+   * Check that a lookup giving up its wait does not wake the lookups that are still within
+   * their grace period. The early lookup is interrupted, which ends its wait the same way a
+   * timeout does without depending on how long the threads take to start.
+   */
+  @Test
+  public void testTimedOutLookupDoesNotReleaseOtherLookups() throws Exception { 
+    Hashtable<String, String> headers = new Hashtable<String, String>();
+    headers.put(Constants.BUNDLE_SYMBOLICNAME, "timing.out.bundle;blueprint.timeout:=60000");
+    final Bundle waiting = Skeleton.newMock(new BundleMock("timing.out.bundle", headers), Bundle.class);
+    MethodCall getRegisteredServices = new MethodCall(Bundle.class, "getRegisteredServices");
+    Skeleton.getSkeleton(waiting).setReturnValue(getRegisteredServices, null);
+    
+    final List<Object> first = Collections.synchronizedList(new ArrayList<Object>());
+    final List<Object> second = Collections.synchronizedList(new ArrayList<Object>());
+    Thread early = lookupIn(waiting, first);
+    Thread late = lookupIn(waiting, second);
+    early.start();
+    late.start();
+    awaitWaiting(early);
+    awaitWaiting(late);
+    
+    // the early lookup gives up, the late one is still waiting when the container comes
+    early.interrupt();
+    early.join(5000);
+    assertEquals(1, first.size());
+    assertTrue (first.get(0) instanceof NamingException);
+    assertEquals(Thread.State.TIMED_WAITING, late.getState());
+    assertTrue (second.isEmpty());
+    
+    BlueprintContainerStub stub = new BlueprintContainerStub();
+    ServiceRegistration reg = waiting.getBundleContext().registerService(BlueprintContainer.class.getName(), 
+        Skeleton.newMock(stub, BlueprintContainer.class), new Hashtable<String, String>());
+    Skeleton.getSkeleton(waiting).setReturnValue(getRegisteredServices, new ServiceReference[] {reg.getReference()});
+    late.join(5000);
+    
+    assertSame (stub.comp1, second.get(0));
+    
+    reg.unregister();
+  }
+  
+  private static void awaitWaiting(Thread t) throws InterruptedException { 
+    long deadline = System.currentTimeMillis() + 5000;
+    while (t.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) { 
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.TIMED_WAITING, t.getState());
+  }
+  
+  private static Thread lookupIn(final Bundle b, final List<Object> found) { 
+    return new Thread() { 
+      public void run() { 
+        try { 
+          found.add(new BlueprintURLContext(b, new Hashtable<String, String>()).lookup("blueprint:comp/comp1"));
+        } catch (NamingException e) { 
+          found.add(e);
+        }
+      }
+    };
+  }
+  
   /**
    * Validate that we can create an InitialContext at blueprint:comp scope, and then 
    * look components up within it
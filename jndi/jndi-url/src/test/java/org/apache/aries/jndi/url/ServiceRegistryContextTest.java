@@ -28,9 +28,11 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
 
@@ -45,6 +47,7 @@ import javax.naming.spi.ObjectFactory;
 import javax.sql.DataSource;
 
 import org.apache.aries.jndi.api.JNDIConstants;
+import org.apache.aries.jndi.statistics.JNDIStatisticsRecorder;
 import org.apache.aries.mocks.BundleContextMock;
 import org.apache.aries.mocks.BundleMock;
 import org.apache.aries.proxy.ProxyManager;
@@ -181,6 +184,64 @@ public class ServiceRegistryContextTest
      assertTrue("expected non-proxied service class", r2 == service);
   }
   
+  @Test
+  public void testRepeatedLookupUsesCachedReferences() throws NamingException
+  {
+     BundleMock mock = new BundleMock("scooby.doo", new Properties());
+        
+     Thread.currentThread().setContextClassLoader(mock.getClassLoader());
+
+     InitialContext ctx = new InitialContext();
+     
+     assertTrue(ctx.lookup("aries:services/java.lang.Runnable") == service);
+     assertTrue(ctx.lookup("aries:services/java.lang.Runnable") == service);
+     
+     MethodCall query = new MethodCall(BundleContext.class, "getServiceReferences", "java.lang.Runnable", null);
+     Skeleton.getSkeleton(mock.getBundleContext()).assertCalledExactNumberOfTimes(query, 1);
+     
+     //A service of another interface must not discard the lookup
+     bc.registerService(Comparable.class.getName(), Skeleton.newMock(Comparable.class), null).unregister();
+     assertTrue(ctx.lookup("aries:services/java.lang.Runnable") == service);
+     Skeleton.getSkeleton(mock.getBundleContext()).assertCalledExactNumberOfTimes(query, 1);
+     
+     //A better service must be found straight away
+     Runnable better = Skeleton.newMock(Runnable.class);
+     Hashtable<String, Object> props = new Hashtable<String, Object>();
+     props.put(Constants.SERVICE_RANKING, 10);
+     ServiceRegistration betterReg = bc.registerService(Runnable.class.getName(), better, props);
+     assertTrue(ctx.lookup("aries:services/java.lang.Runnable") == better);
+     
+     betterReg.unregister();
+     assertTrue(ctx.lookup("aries:services/java.lang.Runnable") == service);
+     Skeleton.getSkeleton(mock.getBundleContext()).assertCalledExactNumberOfTimes(query, 3);
+  }
+  
+  @Test
+  public void testServiceFetchesAreRecorded() throws NamingException
+  {
+     JNDIStatisticsRecorder recorder = Skeleton.newMock(JNDIStatisticsRecorder.class);
+     bc.registerService(JNDIStatisticsRecorder.class.getName(), recorder, null);
+     
+     BundleMock mock = new BundleMock("scooby.doo", new Properties());
+        
+     Thread.currentThread().setContextClassLoader(mock.getClassLoader());
+
+     InitialContext ctx = new InitialContext();
+     
+     assertTrue(ctx.lookup("aries:services/java.lang.Runnable") == service);
+     assertTrue(ctx.lookup("aries:services/java.lang.Runnable") == service);
+     assertNotNull(ctx.lookup("osgi:service/java.lang.Runnable"));
+     
+     Skeleton skel = Skeleton.getSkeleton(recorder);
+     skel.assertCalledExactNumberOfTimes(new MethodCall(JNDIStatisticsRecorder.class, "recordTime", 
+         "aries", JNDIStatisticsRecorder.SERVICE_FETCH, Long.class), 2);
+     skel.assertCalledExactNumberOfTimes(new MethodCall(JNDIStatisticsRecorder.class, "recordTime", 
+         "osgi", JNDIStatisticsRecorder.SERVICE_FETCH, Long.class), 1);
+     // only the first lookup has to ask the registry for the service
+     skel.assertCalledExactNumberOfTimes(new MethodCall(JNDIStatisticsRecorder.class, "recordRegistryQuery"), 1);
+     skel.assertCalledExactNumberOfTimes(new MethodCall(JNDIStatisticsRecorder.class, "recordCacheHit"), 2);
+  }
+  
   @Test
   public void testLookupWithPause() throws NamingException
   {
@@ -513,16 +574,58 @@ public class ServiceRegistryContextTest
     NameClassPair ncp = ne.nextElement();
     
     assertEquals(String.valueOf(reg.getReference().getProperty(Constants.SERVICE_ID)), ncp.getName());
-    assertTrue("Class name not correct. Was: " + ncp.getClassName(), ncp.getClassName().contains("Proxy"));
+    assertEquals("Class name not correct.", className, ncp.getClassName());
     
     assertTrue(ne.hasMoreElements());
     
     ncp = ne.nextElement();
     
     assertEquals(String.valueOf(reg2.getReference().getProperty(Constants.SERVICE_ID)), ncp.getName());
-    assertEquals("Class name not correct.", Thread.class.getName(), ncp.getClassName());
+    assertEquals("Class name not correct.", className, ncp.getClassName());
     
     assertFalse(ne.hasMoreElements());
+    
+    // listing must not cause the services to be created
+    Skeleton skel = Skeleton.getSkeleton(mock.getBundleContext());
+    skel.assertNotCalled(new MethodCall(BundleContext.class, "getService", reg.getReference()));
+    skel.assertNotCalled(new MethodCall(BundleContext.class, "getService", reg2.getReference()));
+  }
+
+  @Test
+  public void checkServiceListBindingsStopEarly() throws NamingException
+  {
+    BundleMock mock = new BundleMock("scooby.doo", new Properties());
+    
+    Thread.currentThread().setContextClassLoader(mock.getClassLoader());
+
+    InitialContext ctx = new InitialContext();
+    
+    String className = Runnable.class.getName();
+    
+    // we don't want the default service
+    reg.unregister();
+    
+    ServiceRegistration first = bc.registerService(className, Skeleton.newMock(Runnable.class), null);
+    List<ServiceRegistration> others = new ArrayList<ServiceRegistration>();
+    for (int i = 0; i < 10; i++) {
+      others.add(bc.registerService(className, Skeleton.newMock(Runnable.class), null));
+    }
+    
+    NamingEnumeration<Binding> ne = ctx.listBindings("osgi:servicelist/" + className);
+    
+    Binding bnd = ne.next();
+    assertEquals(String.valueOf(first.getReference().getProperty(Constants.SERVICE_ID)), bnd.getName());
+    
+    ne.close();
+    assertFalse(ne.hasMore());
+    
+    // only the service we looked at was got, and it was released by close
+    Skeleton skel = Skeleton.getSkeleton(mock.getBundleContext());
+    skel.assertCalledExactNumberOfTimes(new MethodCall(BundleContext.class, "getService", first.getReference()), 1);
+    skel.assertCalledExactNumberOfTimes(new MethodCall(BundleContext.class, "ungetService", first.getReference()), 1);
+    for (ServiceRegistration other : others) {
+      skel.assertNotCalled(new MethodCall(BundleContext.class, "getService", other.getReference()));
+    }
   }
 
   @Test
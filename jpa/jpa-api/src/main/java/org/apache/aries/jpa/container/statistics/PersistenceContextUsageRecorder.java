@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.statistics;
+
+/**
+ * Implemented by the EntityManagerFactory services of container managed persistence
+ * units so that managed persistence contexts can report how they are used. The usage
+ * is published through the {@link PersistenceUnitStatisticsMBean} of the unit.
+ */
+public interface PersistenceContextUsageRecorder {
+
+  /**
+   * Record an operation on a managed persistence context that used the persistence
+   * context of the current transaction
+   */
+  public void recordTransactionalUse();
+
+  /**
+   * Record an operation on a managed persistence context that ran outside a transaction
+   */
+  public void recordDetachedUse();
+}
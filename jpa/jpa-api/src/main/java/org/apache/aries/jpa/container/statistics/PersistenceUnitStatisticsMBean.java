@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.statistics;
+
+/**
+ * Runtime statistics of one container managed persistence unit. An instance of this 
+ * interface is registered as an OSGi service for each registered persistence unit, with
+ * the same <code>osgi.unit.name</code> and <code>osgi.unit.version</code> properties as
+ * its EntityManagerFactory and a <code>jmx.objectname</code> property so that it is also
+ * exposed as an MBean if a JMX whiteboard is present. The object name is {@link #OBJECTNAME}
+ * with <code>bundle</code> and <code>name</code> keys identifying the persistence unit.
+ * <p>
+ * Counts are totals since the persistence unit was created or since the last call to 
+ * {@link #reset()}, times are in milliseconds.
+ */
+public interface PersistenceUnitStatisticsMBean {
+
+  /** The domain and type of the object names used for persistence units */
+  String OBJECTNAME = "org.apache.aries.jpa:type=PersistenceUnitStatistics";
+
+  String getPersistenceUnitName();
+
+  /**
+   * @return the time the persistence provider took to create the EntityManagerFactory,
+   *         or -1 if it has not been created yet
+   */
+  long getBootstrapTime();
+
+  long getCreatedCount();
+
+  long getClosedCount();
+
+  /**
+   * @return the number of EntityManagers that have been created and not yet closed,
+   *         a value that keeps growing suggests that EntityManagers are being leaked
+   */
+  long getOpenCount();
+
+  /**
+   * @return the highest number of EntityManagers that were open at the same time
+   */
+  long getPeakOpenCount();
+
+  long getAverageLifetime();
+
+  long getMaxLifetime();
+
+  /**
+   * @return the upper bounds, in milliseconds, of the buckets of {@link #getLifetimeHistogram()},
+   *         the last bucket has no upper bound
+   */
+  long[] getLifetimeHistogramBounds();
+
+  /**
+   * @return the number of closed EntityManagers whose lifetime fell in each bucket
+   */
+  long[] getLifetimeHistogram();
+
+  /**
+   * @return the number of managed persistence context operations that used the 
+   *         persistence context of a transaction
+   */
+  long getTransactionalUseCount();
+
+  /**
+   * @return the number of managed persistence context operations that ran outside
+   *         a transaction and used a detached persistence context
+   */
+  long getDetachedUseCount();
+
+  /**
+   * @return the number of prepared statements served from the statement cache of a
+   *         transaction, 0 unless <code>org.apache.aries.jpa.statement.cache.size</code> is set
+   */
+  long getStatementCacheHitCount();
+
+  /**
+   * @return the number of prepared statements that had to be prepared by the driver
+   *         while statement caching was enabled
+   */
+  long getStatementCacheMissCount();
+
+  /**
+   * @return the number of idle cached statements closed to make room for another
+   */
+  long getStatementCacheEvictionCount();
+
+  /**
+   * @return the fraction of cacheable statement requests served from a cache, or 0 if
+   *         there have been none
+   */
+  double getStatementCacheHitRatio();
+
+  /**
+   * Reset all counters and timers, the open count and bootstrap time are not reset.
+   */
+  void reset();
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * An {@link EntityManagerFactory} whose {@link EntityManager}s do a fixed amount of CPU work
+ * on <code>find</code> and nothing otherwise, so that a benchmark only measures the container.
+ */
+public class BenchmarkEntityManagerFactory implements InvocationHandler {
+
+  private final int work;
+  
+  private final AtomicLong created = new AtomicLong();
+
+  private BenchmarkEntityManagerFactory(int work) {
+    this.work = work;
+  }
+
+  /**
+   * @param work the number of iterations of busy work done by every <code>find</code>
+   */
+  public static EntityManagerFactory create(int work) {
+    return (EntityManagerFactory) Proxy.newProxyInstance(BenchmarkEntityManagerFactory.class.getClassLoader(),
+        new Class<?>[] {EntityManagerFactory.class}, new BenchmarkEntityManagerFactory(work));
+  }
+
+  /**
+   * @return the number of EntityManagers created by a factory returned by {@link #create(int)}
+   */
+  public static long getCreatedCount(EntityManagerFactory emf) {
+    return ((BenchmarkEntityManagerFactory) Proxy.getInvocationHandler(emf)).created.get();
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if ("createEntityManager".equals(method.getName())) {
+      created.incrementAndGet();
+      return Proxy.newProxyInstance(BenchmarkEntityManagerFactory.class.getClassLoader(),
+          new Class<?>[] {EntityManager.class}, new EntityManagerHandler());
+    }
+    return defaultValue(proxy, method, args);
+  }
+
+  private static Object defaultValue(Object proxy, Method method, Object[] args) {
+    String name = method.getName();
+    if ("equals".equals(name))
+      return proxy == args[0];
+    if ("hashCode".equals(name))
+      return System.identityHashCode(proxy);
+    if ("toString".equals(name))
+      return "benchmark@" + Integer.toHexString(System.identityHashCode(proxy));
+    if (method.getReturnType() == boolean.class)
+      return Boolean.TRUE;
+    return null;
+  }
+
+  private final class EntityManagerHandler implements InvocationHandler {
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("find".equals(method.getName())) {
+        long acc = args[1].hashCode();
+        for (int i = 0; i < work; i++) {
+          acc = acc * 31 + i;
+        }
+        return acc == 42 ? null : args[1];
+      }
+      return defaultValue(proxy, method, args);
+    }
+  }
+}
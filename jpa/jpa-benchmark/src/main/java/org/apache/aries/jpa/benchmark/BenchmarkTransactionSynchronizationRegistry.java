@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * A {@link TransactionSynchronizationRegistry} for transactions that only exist on the 
+ * thread which began them, costing about as much as a real TSR lookup.
+ */
+public class BenchmarkTransactionSynchronizationRegistry implements TransactionSynchronizationRegistry {
+
+  private static final class Transaction {
+    private final Map<Object, Object> resources = new HashMap<Object, Object>();
+    private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+  }
+  
+  private final ThreadLocal<Transaction> current = new ThreadLocal<Transaction>();
+
+  public void begin() {
+    current.set(new Transaction());
+  }
+
+  public void commit() {
+    Transaction tx = current.get();
+    current.remove();
+    for (Synchronization sync : tx.synchronizations) {
+      sync.afterCompletion(Status.STATUS_COMMITTED);
+    }
+  }
+
+  public Object getTransactionKey() {
+    return current.get();
+  }
+
+  public void putResource(Object key, Object value) {
+    active().resources.put(key, value);
+  }
+
+  public Object getResource(Object key) {
+    return active().resources.get(key);
+  }
+
+  public void registerInterposedSynchronization(Synchronization sync) {
+    active().synchronizations.add(sync);
+  }
+
+  public int getTransactionStatus() {
+    return current.get() == null ? Status.STATUS_NO_TRANSACTION : Status.STATUS_ACTIVE;
+  }
+
+  public void setRollbackOnly() {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean getRollbackOnly() {
+    return false;
+  }
+
+  private Transaction active() {
+    Transaction tx = current.get();
+    if (tx == null) {
+      throw new IllegalStateException("No transaction");
+    }
+    return tx;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.aries.jpa.container.context.transaction.impl.DestroyCallback;
+import org.apache.aries.jpa.container.context.transaction.impl.DetachedPersistenceContext;
+import org.apache.aries.jpa.container.context.transaction.impl.JTAEntityManager;
+import org.apache.aries.jpa.container.context.transaction.impl.JTAPersistenceContextRegistry;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures the throughput of non-transactional <code>find</code> calls made by many threads
+ * through one managed persistence context, for each {@link DetachedPersistenceContext} mode.
+ * <p>
+ * Arguments are given as <code>name=value[,value...]</code>:
+ * <ul>
+ * <li><code>mode</code> the detached modes to compare (default shared,thread)</li>
+ * <li><code>threads</code> number of calling threads (default 1,4,16)</li>
+ * <li><code>calls</code> measured calls per thread (default 100000)</li>
+ * <li><code>warmup</code> calls per thread made before measuring (default 10000)</li>
+ * <li><code>work</code> iterations of busy work done by the provider on each call (default 200)</li>
+ * </ul>
+ * For example:
+ * <pre>
+ * mvn exec:java -Dexec.args="threads=1,8,32 work=0,1000"
+ * </pre>
+ * One line is printed per combination with the call rate and the 50th and 99th percentile
+ * call latency in microseconds.
+ */
+public class DetachedEntityManagerBenchmark {
+
+  private final Map<String, String[]> options = new LinkedHashMap<String, String[]>();
+
+  public DetachedEntityManagerBenchmark(String[] args) {
+    options.put("mode", new String[] {DetachedPersistenceContext.SHARED, DetachedPersistenceContext.THREAD});
+    options.put("threads", new String[] {"1", "4", "16"});
+    options.put("calls", new String[] {"100000"});
+    options.put("warmup", new String[] {"10000"});
+    options.put("work", new String[] {"200"});
+    for (String arg : args) {
+      int idx = arg.indexOf('=');
+      if (idx <= 0 || !options.containsKey(arg.substring(0, idx))) {
+        throw new IllegalArgumentException("Unknown argument " + arg + ", expected one of " + options.keySet());
+      }
+      options.put(arg.substring(0, idx), arg.substring(idx + 1).split(","));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("org.slf4j.simplelogger.defaultlog", "error");
+    new DetachedEntityManagerBenchmark(args).run();
+  }
+
+  public void run() throws Exception {
+    int calls = Integer.parseInt(options.get("calls")[0]);
+    int warmup = Integer.parseInt(options.get("warmup")[0]);
+    JTAPersistenceContextRegistry registry = new JTAPersistenceContextRegistry(noServicesContext());
+    try {
+      System.out.println(String.format("%8s %8s %14s %10s %10s %10s  %s", "threads", "work", "calls/s", "p50 us", "p99 us", "managers", "mode"));
+      for (String work : options.get("work")) {
+        for (String threads : options.get("threads")) {
+          for (String mode : options.get("mode")) {
+            EntityManagerFactory emf = BenchmarkEntityManagerFactory.create(Integer.parseInt(work.trim()));
+            JTAEntityManager em = new JTAEntityManager(emf, new HashMap<String, Object>(), registry,
+                new AtomicLong(), new DestroyCallback() {
+                  public void callback() {
+                  }
+                }, mode.trim());
+            try {
+              int nbThreads = Integer.parseInt(threads.trim());
+              Result result = run(em, nbThreads, calls, warmup);
+              System.out.println(String.format("%8d %8s %14.1f %10.3f %10.3f %10d  %s%s",
+                  nbThreads, work.trim(), result.callsPerSecond, result.p50, result.p99,
+                  BenchmarkEntityManagerFactory.getCreatedCount(emf), mode.trim(),
+                  result.failures > 0 ? " (" + result.failures + " threads failed)" : ""));
+            } finally {
+              em.internalClose();
+            }
+          }
+        }
+      }
+    } finally {
+      registry.close();
+    }
+  }
+
+  private Result run(final EntityManager em, int nbThreads, final int nbCallsPerThread, final int nbWarmupPerThread) throws Exception {
+    final long[][] latencies = new long[nbThreads][nbCallsPerThread];
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch warmedUp = new CountDownLatch(nbThreads);
+    final CountDownLatch go = new CountDownLatch(1);
+    Thread[] threads = new Thread[nbThreads];
+    for (int thIdx = 0; thIdx < nbThreads; thIdx++) {
+      final long[] threadLatencies = latencies[thIdx];
+      final Integer key = thIdx;
+      threads[thIdx] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int idx = 0; idx < nbWarmupPerThread; idx++) {
+              em.find(Object.class, key);
+            }
+            warmedUp.countDown();
+            go.await();
+            for (int idx = 0; idx < nbCallsPerThread; idx++) {
+              long t0 = System.nanoTime();
+              em.find(Object.class, key);
+              threadLatencies[idx] = System.nanoTime() - t0;
+            }
+          } catch (Throwable t) {
+            failures.incrementAndGet();
+            t.printStackTrace();
+          }
+        }
+      };
+      threads[thIdx].start();
+    }
+    warmedUp.await();
+    long t0 = System.nanoTime();
+    go.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - t0;
+
+    long[] all = new long[nbThreads * nbCallsPerThread];
+    for (int thIdx = 0; thIdx < nbThreads; thIdx++) {
+      System.arraycopy(latencies[thIdx], 0, all, thIdx * nbCallsPerThread, nbCallsPerThread);
+    }
+    Arrays.sort(all);
+    Result result = new Result();
+    result.failures = failures.get();
+    result.callsPerSecond = all.length / (elapsed / 1000000000.0);
+    result.p50 = percentile(all, 0.50);
+    result.p99 = percentile(all, 0.99);
+    return result;
+  }
+
+  private static double percentile(long[] sorted, double percentile) {
+    int idx = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1000.0;
+  }
+
+  /**
+   * A BundleContext without any services, so there is never a transaction
+   */
+  static BundleContext noServicesContext() {
+    return (BundleContext) Proxy.newProxyInstance(DetachedEntityManagerBenchmark.class.getClassLoader(),
+        new Class<?>[] {BundleContext.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            return null;
+          }
+        });
+  }
+
+  private static class Result {
+    int failures;
+    double callsPerSecond;
+    double p50;
+    double p99;
+  }
+}
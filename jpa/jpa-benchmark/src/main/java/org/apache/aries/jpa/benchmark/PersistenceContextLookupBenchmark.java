@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.aries.jpa.container.context.transaction.impl.DestroyCallback;
+import org.apache.aries.jpa.container.context.transaction.impl.JTAEntityManager;
+import org.apache.aries.jpa.container.context.transaction.impl.JTAPersistenceContextRegistry;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures the cost of a managed persistence context looking up the EntityManager of the
+ * current transaction, by comparing <code>find</code> calls made through a {@link JTAEntityManager}
+ * with the same calls made directly on the transaction's EntityManager.
+ * <p>
+ * Arguments are given as <code>name=value[,value...]</code>:
+ * <ul>
+ * <li><code>threads</code> number of calling threads (default 1,4)</li>
+ * <li><code>finds</code> find calls per transaction (default 1,10,100)</li>
+ * <li><code>calls</code> measured find calls per thread (default 1000000)</li>
+ * <li><code>warmup</code> find calls per thread made before measuring (default 100000)</li>
+ * </ul>
+ * For example:
+ * <pre>
+ * mvn exec:java -Dbenchmark=org.apache.aries.jpa.benchmark.PersistenceContextLookupBenchmark -Dexec.args="finds=10,1000"
+ * </pre>
+ * One line is printed per combination with the find rate and the average time of a find in
+ * nanoseconds, for the direct calls and for the managed persistence context.
+ */
+public class PersistenceContextLookupBenchmark {
+
+  private final Map<String, String[]> options = new LinkedHashMap<String, String[]>();
+
+  public PersistenceContextLookupBenchmark(String[] args) {
+    options.put("threads", new String[] {"1", "4"});
+    options.put("finds", new String[] {"1", "10", "100"});
+    options.put("calls", new String[] {"1000000"});
+    options.put("warmup", new String[] {"100000"});
+    for (String arg : args) {
+      int idx = arg.indexOf('=');
+      if (idx <= 0 || !options.containsKey(arg.substring(0, idx))) {
+        throw new IllegalArgumentException("Unknown argument " + arg + ", expected one of " + options.keySet());
+      }
+      options.put(arg.substring(0, idx), arg.substring(idx + 1).split(","));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("org.slf4j.simplelogger.defaultlog", "error");
+    new PersistenceContextLookupBenchmark(args).run();
+  }
+
+  public void run() throws Exception {
+    int calls = Integer.parseInt(options.get("calls")[0]);
+    int warmup = Integer.parseInt(options.get("warmup")[0]);
+    BenchmarkTransactionSynchronizationRegistry tsr = new BenchmarkTransactionSynchronizationRegistry();
+    JTAPersistenceContextRegistry registry = new JTAPersistenceContextRegistry(serviceContext(tsr));
+    registry.addingService(serviceReference());
+    EntityManagerFactory emf = BenchmarkEntityManagerFactory.create(0);
+    JTAEntityManager managed = new JTAEntityManager(emf, new HashMap<String, Object>(), registry,
+        new AtomicLong(), new DestroyCallback() {
+          public void callback() {
+          }
+        });
+    try {
+      System.out.println(String.format("%8s %8s %14s %10s  %s", "threads", "finds/tx", "finds/s", "ns/find", "target"));
+      for (String threads : options.get("threads")) {
+        for (String finds : options.get("finds")) {
+          int nbThreads = Integer.parseInt(threads.trim());
+          int nbFinds = Integer.parseInt(finds.trim());
+          print(nbThreads, nbFinds, "direct", run(tsr, emf, null, nbThreads, nbFinds, calls, warmup));
+          print(nbThreads, nbFinds, "managed", run(tsr, emf, managed, nbThreads, nbFinds, calls, warmup));
+        }
+      }
+    } finally {
+      managed.internalClose();
+      registry.close();
+    }
+  }
+
+  /**
+   * @param managed the managed persistence context to call, or null to call the transaction's
+   *                EntityManager directly
+   */
+  private Result run(final BenchmarkTransactionSynchronizationRegistry tsr, final EntityManagerFactory emf,
+      final EntityManager managed, int nbThreads, final int nbFindsPerTx, final int nbCallsPerThread,
+      final int nbWarmupPerThread) throws Exception {
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch warmedUp = new CountDownLatch(nbThreads);
+    final CountDownLatch go = new CountDownLatch(1);
+    Thread[] threads = new Thread[nbThreads];
+    for (int thIdx = 0; thIdx < nbThreads; thIdx++) {
+      final Integer key = thIdx;
+      threads[thIdx] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            calls(nbWarmupPerThread);
+            warmedUp.countDown();
+            go.await();
+            calls(nbCallsPerThread);
+          } catch (Throwable t) {
+            failures.incrementAndGet();
+            t.printStackTrace();
+          }
+        }
+
+        private void calls(int nbCalls) {
+          for (int idx = 0; idx < nbCalls; idx += nbFindsPerTx) {
+            tsr.begin();
+            try {
+              EntityManager em = managed;
+              if (em == null) {
+                em = emf.createEntityManager();
+              }
+              for (int find = 0; find < nbFindsPerTx; find++) {
+                em.find(Object.class, key);
+              }
+            } finally {
+              tsr.commit();
+            }
+          }
+        }
+      };
+      threads[thIdx].start();
+    }
+    warmedUp.await();
+    long t0 = System.nanoTime();
+    go.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - t0;
+
+    long finds = (long) nbThreads * ((nbCallsPerThread + nbFindsPerTx - 1) / nbFindsPerTx) * nbFindsPerTx;
+    Result result = new Result();
+    result.failures = failures.get();
+    result.findsPerSecond = finds / (elapsed / 1000000000.0);
+    result.nanosPerFind = (double) elapsed * nbThreads / finds;
+    return result;
+  }
+
+  private static void print(int nbThreads, int nbFinds, String target, Result result) {
+    System.out.println(String.format("%8d %8d %14.1f %10.1f  %s%s",
+        nbThreads, nbFinds, result.findsPerSecond, result.nanosPerFind, target,
+        result.failures > 0 ? " (" + result.failures + " threads failed)" : ""));
+  }
+
+  /**
+   * A BundleContext returning the given service for every reference
+   */
+  private static BundleContext serviceContext(final Object service) {
+    return (BundleContext) Proxy.newProxyInstance(PersistenceContextLookupBenchmark.class.getClassLoader(),
+        new Class<?>[] {BundleContext.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            return "getService".equals(method.getName()) ? service : null;
+          }
+        });
+  }
+
+  private static ServiceReference serviceReference() {
+    return (ServiceReference) Proxy.newProxyInstance(PersistenceContextLookupBenchmark.class.getClassLoader(),
+        new Class<?>[] {ServiceReference.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("equals".equals(method.getName()))
+              return proxy == args[0];
+            if ("hashCode".equals(method.getName()))
+              return System.identityHashCode(proxy);
+            return "toString".equals(method.getName()) ? "benchmark TSR" : null;
+          }
+        });
+  }
+
+  private static class Result {
+    int failures;
+    double findsPerSecond;
+    double nanosPerFind;
+  }
+}
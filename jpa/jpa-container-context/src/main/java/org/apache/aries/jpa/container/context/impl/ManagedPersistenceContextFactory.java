@@ -37,6 +37,7 @@ import javax.persistence.metamodel.Metamodel;
 import org.apache.aries.jpa.container.context.PersistenceContextProvider;
 import org.apache.aries.jpa.container.context.impl.PersistenceContextManager.QuiesceTidyUp;
 import org.apache.aries.jpa.container.context.transaction.impl.DestroyCallback;
+import org.apache.aries.jpa.container.context.transaction.impl.DetachedPersistenceContext;
 import org.apache.aries.jpa.container.context.transaction.impl.JTAEntityManager;
 import org.apache.aries.jpa.container.context.transaction.impl.JTAPersistenceContextRegistry;
 import org.osgi.framework.ServiceReference;
@@ -58,6 +59,7 @@ public class ManagedPersistenceContextFactory implements EntityManagerFactory, D
   private final Map<String, Object> properties;
   private final JTAPersistenceContextRegistry registry;
   private final PersistenceContextType type;
+  private final Object detachedMode;
   private final AtomicLong activeCount = new AtomicLong(0);
   private final String unitName;
   
@@ -72,6 +74,7 @@ public class ManagedPersistenceContextFactory implements EntityManagerFactory, D
       registry = contextRegistry;
       //Remove our internal property so that it doesn't get passed on the createEntityManager call
       type = (PersistenceContextType) properties.remove(PersistenceContextProvider.PERSISTENCE_CONTEXT_TYPE);
+      detachedMode = properties.remove(DetachedPersistenceContext.MODE_PROPERTY);
   }
 
   public EntityManager createEntityManager() {
@@ -89,7 +92,7 @@ public class ManagedPersistenceContextFactory implements EntityManagerFactory, D
         });
     
     if(type == PersistenceContextType.TRANSACTION || type == null)
-      return new JTAEntityManager(factory, properties, registry, activeCount, this);
+      return new JTAEntityManager(factory, properties, registry, activeCount, this, detachedMode);
     else {
       _logger.error(NLS.MESSAGES.getMessage("extended.em.not.supported"));
       return null;
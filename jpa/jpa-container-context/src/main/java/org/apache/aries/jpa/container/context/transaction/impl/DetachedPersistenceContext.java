@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.context.transaction.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.aries.jpa.container.context.impl.NLS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Supplies the {@link EntityManager} a {@link JTAEntityManager} uses when there is
+ * no transaction. Entities returned by such a manager must always be detached, so
+ * the manager is cleared after every call.
+ * <p>
+ * The mode is chosen per persistence context with the {@link #MODE_PROPERTY} property:
+ * <ul>
+ * <li>{@link #SHARED} (the default) uses one synchronized EntityManager per injection site</li>
+ * <li>{@link #THREAD} uses one EntityManager per thread and injection site, so that
+ *     concurrent callers do not contend on a single monitor</li>
+ * </ul>
+ */
+public abstract class DetachedPersistenceContext {
+  /** Logger */
+  private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container.context");
+
+  /** The persistence context property selecting the detached mode */
+  public static final String MODE_PROPERTY = "org.apache.aries.jpa.context.detached.mode";
+  /** One synchronized EntityManager shared by all threads */
+  public static final String SHARED = "shared";
+  /** One EntityManager per thread */
+  public static final String THREAD = "thread";
+
+  /** The {@link EntityManagerFactory} that can create new {@link EntityManager} instances */
+  protected final EntityManagerFactory emf;
+  /** The map of properties to pass when creating EntityManagers */
+  protected final Map<String, Object> props;
+
+  protected DetachedPersistenceContext(EntityManagerFactory factory, Map<String, Object> properties) {
+    emf = factory;
+    props = properties;
+  }
+
+  /**
+   * Create the detached persistence context for the given mode
+   * @param mode {@link #SHARED}, {@link #THREAD} or null for the default
+   * @param factory
+   * @param properties
+   * @return
+   */
+  public static DetachedPersistenceContext create(Object mode, EntityManagerFactory factory, 
+      Map<String, Object> properties) {
+    if(THREAD.equals(mode))
+      return new PerThread(factory, properties);
+    
+    if(mode != null && !!!SHARED.equals(mode))
+      _logger.warn(NLS.MESSAGES.getMessage("unknown.detached.mode", mode, MODE_PROPERTY, SHARED));
+    return new Shared(factory, properties);
+  }
+
+  /**
+   * @return the EntityManager to use for the calling thread
+   */
+  public abstract EntityManager get();
+
+  /**
+   * @param em
+   * @return true if the EntityManager was supplied by this detached context, and so must
+   *         be cleared after use
+   */
+  public abstract boolean isDetached(EntityManager em);
+
+  /**
+   * Close all the EntityManagers created by this detached context. A later call to
+   * {@link #get()} creates new ones.
+   */
+  public abstract void close();
+
+  /**
+   * A single EntityManager, synchronized because it is used by all threads
+   */
+  private static final class Shared extends DetachedPersistenceContext {
+
+    private volatile EntityManager detachedManager;
+
+    public Shared(EntityManagerFactory factory, Map<String, Object> properties) {
+      super(factory, properties);
+    }
+
+    @Override
+    public EntityManager get() {
+      EntityManager result = detachedManager;
+      if (result == null) {
+        EntityManager temp = emf.createEntityManager(props);
+        
+        synchronized (this) {
+          if (detachedManager == null) {
+            detachedManager = new SynchronizedEntityManagerWrapper(temp);
+            temp = null;
+          }
+          result = detachedManager;
+        }
+        
+        if (temp != null)
+          temp.close();
+      }
+      return result;
+    }
+
+    @Override
+    public boolean isDetached(EntityManager em) {
+      return em == detachedManager;
+    }
+
+    @Override
+    public void close() {
+      EntityManager temp = null;
+      
+      synchronized (this) {
+        temp = detachedManager;
+        detachedManager = null;
+      }
+      
+      if (temp != null)
+        temp.close();
+    }
+  }
+
+  /**
+   * An EntityManager per thread. Every EntityManager is also remembered, together with its
+   * thread, so that it can be closed when the context is closed or the thread has died.
+   * <p>
+   * The EntityManagers are synchronized so that closing the context waits for a call still
+   * running on another thread, the monitor is not contended otherwise. Threads only hold a
+   * weak reference to their manager, so a pool thread does not keep it once it is closed.
+   */
+  private static final class PerThread extends DetachedPersistenceContext {
+
+    private final ThreadLocal<WeakReference<ThreadManager>> local = new ThreadLocal<WeakReference<ThreadManager>>();
+
+    private final ConcurrentLinkedQueue<ThreadManager> managers = new ConcurrentLinkedQueue<ThreadManager>();
+
+    public PerThread(EntityManagerFactory factory, Map<String, Object> properties) {
+      super(factory, properties);
+    }
+
+    @Override
+    public EntityManager get() {
+      ThreadManager tm = getThreadManager();
+      if (tm == null || tm.closed) {
+        closeDeadThreadManagers();
+        tm = new ThreadManager(new ThreadEntityManager(emf.createEntityManager(props)));
+        managers.add(tm);
+        local.set(new WeakReference<ThreadManager>(tm));
+      }
+      return tm.em;
+    }
+
+    @Override
+    public boolean isDetached(EntityManager em) {
+      ThreadManager tm = getThreadManager();
+      return tm != null && tm.em == em;
+    }
+
+    private ThreadManager getThreadManager() {
+      WeakReference<ThreadManager> ref = local.get();
+      return (ref == null) ? null : ref.get();
+    }
+
+    @Override
+    public void close() {
+      local.remove();
+      ThreadManager tm;
+      while ((tm = managers.poll()) != null) {
+        tm.close();
+      }
+    }
+
+    /**
+     * Threads from a pool come and go, do not keep their EntityManagers open forever
+     */
+    private void closeDeadThreadManagers() {
+      for (Iterator<ThreadManager> it = managers.iterator(); it.hasNext();) {
+        ThreadManager tm = it.next();
+        Thread t = tm.thread.get();
+        if (t == null || !!!t.isAlive()) {
+          it.remove();
+          tm.close();
+        }
+      }
+    }
+
+    private final class ThreadManager {
+      private final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+      private final EntityManager em;
+      private volatile boolean closed;
+
+      public ThreadManager(EntityManager em) {
+        this.em = em;
+      }
+
+      public synchronized void close() {
+        if (!!!closed) {
+          closed = true;
+          try {
+            em.close();
+          } catch (RuntimeException e) {
+            _logger.warn(NLS.MESSAGES.getMessage("error.closing.entity.manager", props), e);
+          }
+        }
+      }
+    }
+
+    /**
+     * A call that was running when the context closed still clears the manager afterwards,
+     * there is nothing left to detach then so the clear must not fail.
+     */
+    private static final class ThreadEntityManager extends SynchronizedEntityManagerWrapper {
+      private boolean closed;
+
+      public ThreadEntityManager(EntityManager em) {
+        super(em);
+      }
+
+      @Override
+      public synchronized void clear() {
+        if (!!!closed)
+          super.clear();
+      }
+
+      @Override
+      public synchronized void close() {
+        closed = true;
+        super.close();
+      }
+    }
+  }
+}
@@ -34,6 +34,7 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.metamodel.Metamodel;
 
 import org.apache.aries.jpa.container.context.impl.NLS;
+import org.apache.aries.jpa.container.statistics.PersistenceContextUsageRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,19 +58,34 @@ public class JTAEntityManager implements EntityManager {
   
   
   /** 
-   * The entity manager to use when there is no transaction. Note that there is one of these
+   * The entity managers to use when there is no transaction. Note that there is one of these
    * per injection site.
    */
-  private EntityManager detachedManager = null;
+  private final DetachedPersistenceContext detached;
+  /** Where to report the use of the persistence contexts, null if the factory doesn't record usage */
+  private final PersistenceContextUsageRecorder usage;
   
   public JTAEntityManager(EntityManagerFactory factory,
       Map<String, Object> properties, JTAPersistenceContextRegistry registry, AtomicLong activeCount,
       DestroyCallback onDestroy) {
+    this(factory, properties, registry, activeCount, onDestroy, null);
+  }
+
+  /**
+   * @param detachedMode the {@link DetachedPersistenceContext} mode to use when there is no
+   *                     transaction, or null for the default
+   */
+  public JTAEntityManager(EntityManagerFactory factory,
+      Map<String, Object> properties, JTAPersistenceContextRegistry registry, AtomicLong activeCount,
+      DestroyCallback onDestroy, Object detachedMode) {
     emf = factory;
     props = properties;
     reg = registry;
     instanceCount = activeCount;
     callback = onDestroy;
+    detached = DetachedPersistenceContext.create(detachedMode, factory, properties);
+    usage = (factory instanceof PersistenceContextUsageRecorder) ? 
+        (PersistenceContextUsageRecorder) factory : null;
   }
 
   /**
@@ -80,30 +96,18 @@ public class JTAEntityManager implements EntityManager {
    */
   private EntityManager getPersistenceContext(boolean forceTransaction) 
   {
-    if (forceTransaction) {
-      return reg.getCurrentPersistenceContext(emf, props, instanceCount, callback);
+    if (forceTransaction || reg.isTransactionActive()) {
+      EntityManager em = reg.getCurrentPersistenceContext(emf, props, instanceCount, callback);
+      if(usage != null)
+        usage.recordTransactionalUse();
+      return em;
     } else {
-      if (reg.isTransactionActive()) {
-        return reg.getCurrentPersistenceContext(emf, props, instanceCount, callback);
-      } else {
-        if(!!!reg.jtaIntegrationAvailable() && _logger.isDebugEnabled())
-          _logger.debug("No integration with JTA transactions is available. No transaction context is active.");
-        
-        if (detachedManager == null) {
-          EntityManager temp = emf.createEntityManager(props);
-          
-          synchronized (this) {
-            if (detachedManager == null) {
-              detachedManager = new SynchronizedEntityManagerWrapper(temp);
-              temp = null;
-            }
-          }
-          
-          if (temp != null)
-            temp.close();
-        }
-        return detachedManager;
-      }
+      if(!!!reg.jtaIntegrationAvailable() && _logger.isDebugEnabled())
+        _logger.debug("No integration with JTA transactions is available. No transaction context is active.");
+      
+      if(usage != null)
+        usage.recordDetachedUse();
+      return detached.get();
     }
   }
   
@@ -111,15 +115,7 @@ public class JTAEntityManager implements EntityManager {
    * Called reflectively by blueprint
    */
   public void internalClose() {
-    EntityManager temp = null;
-    
-    synchronized (this) {
-      temp = detachedManager;
-      detachedManager = null;
-    }
-    
-    if (temp != null)
-      temp.close();
+    detached.close();
   }
   
   public void clear()
@@ -138,7 +134,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.contains(arg0);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -149,7 +145,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createNamedQuery(arg0);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -160,7 +156,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createNativeQuery(arg0);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -172,7 +168,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createNativeQuery(arg0, arg1);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -183,7 +179,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createNativeQuery(arg0, arg1);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -194,7 +190,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createQuery(arg0);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -205,7 +201,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.find(arg0, arg1);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -234,7 +230,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.getReference(arg0, arg1);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -300,7 +296,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       em.setFlushMode(arg0);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -311,7 +307,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createNamedQuery(arg0, arg1);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -322,7 +318,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createQuery(arg0);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -333,7 +329,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.createQuery(arg0, arg1);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -343,7 +339,7 @@ public class JTAEntityManager implements EntityManager {
     EntityManager em = getPersistenceContext(false);
     //The detatched manager auto-detaches everything, so only
     //detach from a "real" entity manager
-    if(em != detachedManager)
+    if(!!!detached.isDetached(em))
       em.detach(arg0);
   }
 
@@ -353,7 +349,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.find(arg0, arg1, arg2);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -367,7 +363,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.find(arg0, arg1, arg2);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -381,7 +377,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.find(arg0, arg1, arg2, arg3);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -452,7 +448,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       em.setProperty(arg0, arg1);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
@@ -463,7 +459,7 @@ public class JTAEntityManager implements EntityManager {
     try {
       return em.unwrap(arg0);
     } finally {
-      if(em == detachedManager)
+      if(detached.isDetached(em))
         em.clear();
     }
   }
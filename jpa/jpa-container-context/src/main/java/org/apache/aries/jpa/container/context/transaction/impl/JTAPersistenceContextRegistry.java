@@ -71,6 +71,48 @@ public final class JTAPersistenceContextRegistry extends ServiceTracker implemen
   
   /** The reference for our TSR service */
   private AtomicReference<ServiceReference> tranRegistryRef = new AtomicReference<ServiceReference>();
+  
+  /** 
+   * The persistence contexts of the last transaction seen by each thread, so that repeated
+   * lookups in a transaction do not have to go back to the TSR
+   */
+  private final ThreadLocal<TransactionContexts> currentContexts = new ThreadLocal<TransactionContexts>();
+  
+  /**
+   * The persistence contexts of one transaction, and the last one used
+   */
+  private final static class TransactionContexts {
+    private final TransactionSynchronizationRegistry tsr;
+    private final Object transactionKey;
+    private final Map<EntityManagerFactory, EntityManager> contexts;
+    private EntityManagerFactory lastFactory;
+    private EntityManager lastContext;
+    
+    public TransactionContexts(TransactionSynchronizationRegistry tsr, Object transactionKey,
+        Map<EntityManagerFactory, EntityManager> contexts) {
+      this.tsr = tsr;
+      this.transactionKey = transactionKey;
+      this.contexts = contexts;
+    }
+    
+    /**
+     * @return true if these are the contexts of the current transaction
+     */
+    public final boolean isCurrent(TransactionSynchronizationRegistry registry, Object key) {
+      return tsr == registry && transactionKey.equals(key);
+    }
+    
+    public final EntityManager get(EntityManagerFactory emf) {
+      if(lastFactory != emf) {
+        EntityManager em = contexts.get(emf);
+        if(em == null)
+          return null;
+        lastFactory = emf;
+        lastContext = em;
+      }
+      return lastContext;
+    }
+  }
 
   public JTAPersistenceContextRegistry(BundleContext context) {
     super(context, TransactionSynchronizationRegistry.class.getName(), null);
@@ -136,6 +178,17 @@ public final class JTAPersistenceContextRegistry extends ServiceTracker implemen
       DestroyCallback cbk) throws TransactionRequiredException
   {
     
+    TransactionSynchronizationRegistry tsr = tranRegistry.get();
+    Object key = (tsr == null) ? null : tsr.getTransactionKey();
+    
+    //The fast path, when this thread already looked up a context in this transaction
+    TransactionContexts current = currentContexts.get();
+    if(key != null && current != null && current.isCurrent(tsr, key)) {
+      EntityManager toReturn = current.get(persistenceUnit);
+      if(toReturn != null)
+        return toReturn;
+    }
+    
     EntityManager toReturn = getExistingPersistenceContext(persistenceUnit);
     
     if(toReturn != null) {
@@ -144,7 +197,7 @@ public final class JTAPersistenceContextRegistry extends ServiceTracker implemen
       return toReturn;
     }
     
-    TransactionSynchronizationRegistry tsr = tranRegistry.get();
+    tsr = tranRegistry.get();
     
     Map<EntityManagerFactory, EntityManager> contextsForTransaction = getContextsForTransaction(tsr);
     
@@ -155,7 +208,8 @@ public final class JTAPersistenceContextRegistry extends ServiceTracker implemen
       _logger.debug("Created a new persistence context {} for transaction {}.", new Object[] {toReturn, tsr.getTransactionKey()});
     
     try {
-      tsr.registerInterposedSynchronization(new EntityManagerClearUp(toReturn, activeCount, cbk));
+      tsr.registerInterposedSynchronization(new EntityManagerClearUp(toReturn, activeCount, cbk,
+          contextsForTransaction, currentContexts));
     } catch (IllegalStateException e) {
       String message = NLS.MESSAGES.getMessage("unable.to.register.synchronization", tsr.getTransactionKey());
       _logger.warn(message);
@@ -193,6 +247,13 @@ public final class JTAPersistenceContextRegistry extends ServiceTracker implemen
         throw new TransactionRequiredException(message);
       }
     }
+    
+    TransactionContexts current = currentContexts.get();
+    if(current == null || current.contexts != contextsForTransaction) {
+      Object key = tsr.getTransactionKey();
+      if(key != null)
+        currentContexts.set(new TransactionContexts(tsr, key, contextsForTransaction));
+    }
     return contextsForTransaction;
   }
   
@@ -299,15 +360,24 @@ public final class JTAPersistenceContextRegistry extends ServiceTracker implemen
     
     private final DestroyCallback callback;
     
+    private final Map<EntityManagerFactory, EntityManager> transactionContexts;
+    
+    private final ThreadLocal<TransactionContexts> currentContexts;
+    
     /**
      * Create a Synchronization to clear up our EntityManagers
      * @param em
+     * @param contexts the persistence contexts of the transaction
+     * @param current the contexts cached for the current thread, forgotten when the transaction completes
      */
-    public EntityManagerClearUp(EntityManager em, AtomicLong instanceCount, DestroyCallback cbk)
+    public EntityManagerClearUp(EntityManager em, AtomicLong instanceCount, DestroyCallback cbk,
+        Map<EntityManagerFactory, EntityManager> contexts, ThreadLocal<TransactionContexts> current)
     {
       context = em;
       activeCount = instanceCount;
       callback = cbk;
+      transactionContexts = contexts;
+      currentContexts = current;
     }
     
     public final void beforeCompletion() {
@@ -318,6 +388,11 @@ public final class JTAPersistenceContextRegistry extends ServiceTracker implemen
     public final void afterCompletion(int arg0) {
       if(_logger.isDebugEnabled())
         _logger.debug("Clearing up EntityManager {} as the transaction has completed.", new Object[] {context});
+      //Completion usually happens on the thread that used the transaction, other threads 
+      //notice the transaction key has changed
+      TransactionContexts current = currentContexts.get();
+      if(current != null && current.contexts == transactionContexts)
+        currentContexts.remove();
       try {
         activeCount.decrementAndGet();
         callback.callback();
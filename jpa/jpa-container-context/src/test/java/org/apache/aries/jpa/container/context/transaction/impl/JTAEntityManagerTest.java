@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.context.transaction.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.aries.jpa.container.statistics.PersistenceContextUsageRecorder;
+import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.MethodCallHandler;
+import org.apache.aries.unittest.mocks.Skeleton;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+public class JTAEntityManagerTest {
+
+  /** Creates a new mock EntityManager on every call */
+  public static class EntityManagerFactoryMock {
+    private final List<EntityManager> created = new ArrayList<EntityManager>();
+    /** Handles find on the created managers, if set */
+    private MethodCallHandler findHandler;
+    
+    public synchronized EntityManager createEntityManager(Map<?, ?> props) {
+      EntityManager em = Skeleton.newMock(EntityManager.class);
+      if(findHandler != null)
+        Skeleton.getSkeleton(em).registerMethodCallHandler(
+            new MethodCall(EntityManager.class, "find", Class.class, Object.class), findHandler);
+      created.add(em);
+      return em;
+    }
+  }
+  
+  private EntityManagerFactoryMock factory;
+  private EntityManagerFactory emf;
+  private Map<String, Object> props;
+  private JTAPersistenceContextRegistry contexts;
+  
+  @Before
+  public void setup() 
+  {
+    factory = new EntityManagerFactoryMock();
+    emf = Skeleton.newMock(factory, EntityManagerFactory.class);
+    props = new HashMap<String, Object>();
+    contexts = new JTAPersistenceContextRegistry(Skeleton.newMock(BundleContext.class));
+  }
+  
+  @Test
+  public void testSharedDetachedManager() throws Exception
+  {
+    JTAEntityManager em = createEntityManager(null);
+    em.find(Object.class, "a");
+    runInThread(em);
+    
+    assertEquals("Expected a single detached manager", 1, factory.created.size());
+    Skeleton.getSkeleton(factory.created.get(0)).assertCalledExactNumberOfTimes(
+        new MethodCall(EntityManager.class, "clear"), 2);
+    
+    em.internalClose();
+    Skeleton.getSkeleton(factory.created.get(0)).assertCalled(new MethodCall(EntityManager.class, "close"));
+  }
+  
+  @Test
+  public void testPerThreadDetachedManager() throws Exception
+  {
+    JTAEntityManager em = createEntityManager(DetachedPersistenceContext.THREAD);
+    em.find(Object.class, "a");
+    em.find(Object.class, "b");
+    runInThread(em);
+    
+    assertEquals("Expected a detached manager per thread", 2, factory.created.size());
+    EntityManager mine = factory.created.get(0);
+    EntityManager other = factory.created.get(1);
+    assertNotSame(mine, other);
+    Skeleton.getSkeleton(mine).assertCalledExactNumberOfTimes(new MethodCall(EntityManager.class, "clear"), 2);
+    Skeleton.getSkeleton(other).assertCalledExactNumberOfTimes(new MethodCall(EntityManager.class, "clear"), 1);
+    
+    //The other thread is dead, so its manager is closed when a new thread needs one
+    runInThread(em);
+    assertEquals(3, factory.created.size());
+    Skeleton.getSkeleton(other).assertCalled(new MethodCall(EntityManager.class, "close"));
+    Skeleton.getSkeleton(mine).assertNotCalled(new MethodCall(EntityManager.class, "close"));
+    
+    em.internalClose();
+    Skeleton.getSkeleton(mine).assertCalled(new MethodCall(EntityManager.class, "close"));
+    Skeleton.getSkeleton(factory.created.get(2)).assertCalled(new MethodCall(EntityManager.class, "close"));
+    
+    //A closed context opens a new manager
+    em.find(Object.class, "c");
+    assertEquals(4, factory.created.size());
+  }
+  
+  @Test
+  public void testPerThreadCloseWaitsForCallInProgress() throws Exception
+  {
+    final CountDownLatch finding = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    factory.findHandler = new MethodCallHandler() {
+      public Object handle(MethodCall methodCall, Skeleton skeleton) throws Exception {
+        finding.countDown();
+        release.await(5, TimeUnit.SECONDS);
+        return null;
+      }
+    };
+    
+    final JTAEntityManager em = createEntityManager(DetachedPersistenceContext.THREAD);
+    Thread caller = new Thread() {
+      public void run() {
+        em.find(Object.class, "a");
+      }
+    };
+    caller.start();
+    assertTrue(finding.await(5, TimeUnit.SECONDS));
+    
+    Thread closer = new Thread() {
+      public void run() {
+        em.internalClose();
+      }
+    };
+    closer.start();
+    
+    //The close must wait until the call has returned
+    long deadline = System.currentTimeMillis() + 5000;
+    while (closer.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.BLOCKED, closer.getState());
+    EntityManager inUse = factory.created.get(0);
+    Skeleton.getSkeleton(inUse).assertNotCalled(new MethodCall(EntityManager.class, "close"));
+    
+    release.countDown();
+    caller.join(5000);
+    closer.join(5000);
+    Skeleton.getSkeleton(inUse).assertCalled(new MethodCall(EntityManager.class, "close"));
+  }
+  
+  @Test
+  public void testDetachedUseIsRecorded() throws Exception
+  {
+    emf = (EntityManagerFactory) Skeleton.getSkeleton(emf).createMock(
+        EntityManagerFactory.class, PersistenceContextUsageRecorder.class);
+    
+    JTAEntityManager em = createEntityManager(null);
+    em.find(Object.class, "a");
+    em.contains("a");
+    
+    Skeleton.getSkeleton(emf).assertCalledExactNumberOfTimes(
+        new MethodCall(PersistenceContextUsageRecorder.class, "recordDetachedUse"), 2);
+    Skeleton.getSkeleton(emf).assertNotCalled(
+        new MethodCall(PersistenceContextUsageRecorder.class, "recordTransactionalUse"));
+  }
+  
+  private JTAEntityManager createEntityManager(String mode) 
+  {
+    return new JTAEntityManager(emf, props, contexts, new AtomicLong(), 
+        Skeleton.newMock(DestroyCallback.class), mode);
+  }
+  
+  private void runInThread(final JTAEntityManager em) throws InterruptedException 
+  {
+    Thread t = new Thread() {
+      public void run() {
+        em.find(Object.class, "other");
+      }
+    };
+    t.start();
+    t.join();
+  }
+}
@@ -339,4 +339,38 @@ public class JTAPersistenceContextRegistryTest {
     Skeleton.getSkeleton(em2a).assertNotCalled(new MethodCall(EntityManager.class, "close"));
   }
   
+  @Test
+  public void testRepeatedGetsDoNotUseRegistry()
+  {
+    AtomicLong useCount = new AtomicLong(0);
+    DestroyCallback cbk = Skeleton.newMock(DestroyCallback.class);
+    reg.setTransactionKey("a");
+    
+    EntityManager em1 = contexts.getCurrentPersistenceContext(emf1, props1, useCount, cbk);
+    EntityManager em2 = contexts.getCurrentPersistenceContext(emf2, props1, useCount, cbk);
+    
+    Skeleton.getSkeleton(tsr).clearMethodCalls();
+    
+    assertSame(em1, contexts.getCurrentPersistenceContext(emf1, props1, useCount, cbk));
+    assertSame(em1, contexts.getCurrentPersistenceContext(emf1, props1, useCount, cbk));
+    assertSame(em2, contexts.getCurrentPersistenceContext(emf2, props1, useCount, cbk));
+    
+    Skeleton.getSkeleton(tsr).assertNotCalled(new MethodCall(TransactionSynchronizationRegistry.class,
+        "getResource", Object.class));
+    
+    //A different transaction must not see the cached contexts
+    reg.setTransactionKey("b");
+    contexts.getCurrentPersistenceContext(emf1, props1, useCount, cbk);
+    Skeleton.getSkeleton(emf1).assertCalledExactNumberOfTimes(new MethodCall(EntityManagerFactory.class, 
+        "createEntityManager", props1), 2);
+    
+    reg.afterCompletion("a");
+    reg.afterCompletion("b");
+    
+    //Nor a new transaction on the thread which completed the old one
+    reg.setTransactionKey("a");
+    contexts.getCurrentPersistenceContext(emf1, props1, useCount, cbk);
+    Skeleton.getSkeleton(emf1).assertCalledExactNumberOfTimes(new MethodCall(EntityManagerFactory.class, 
+        "createEntityManager", props1), 3);
+  }
 }
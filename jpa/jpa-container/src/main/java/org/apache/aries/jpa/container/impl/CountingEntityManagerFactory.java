@@ -31,14 +31,16 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.metamodel.Metamodel;
 
 import org.apache.aries.jpa.container.impl.EntityManagerFactoryManager.NamedCallback;
+import org.apache.aries.jpa.container.statistics.PersistenceContextUsageRecorder;
 import org.apache.aries.util.AriesFrameworkUtil;
 import org.osgi.framework.ServiceRegistration;
 
 /**
  * An {@link EntityManagerFactory} that keeps track of the number of active instances
- * so that it can be quiesced
+ * so that it can be quiesced, and of the {@link PersistenceUnitStatistics} of the unit
  */
-public class CountingEntityManagerFactory implements EntityManagerFactory, DestroyCallback {
+public class CountingEntityManagerFactory implements EntityManagerFactory, DestroyCallback,
+    PersistenceContextUsageRecorder {
   /** Number of open EntityManagers */
   private final AtomicLong count = new AtomicLong(0);
   /** The real EMF */
@@ -49,6 +51,10 @@ public class CountingEntityManagerFactory implements EntityManagerFactory, Destr
   private final AtomicReference<NamedCallback> callback = new AtomicReference<NamedCallback>();
   /** The service registration to unregister if we can quiesce */
   private final AtomicReference<ServiceRegistration> reg = new AtomicReference<ServiceRegistration>();
+  /** The time the provider took to create the real EMF */
+  private volatile long bootstrapTime = -1;
+  /** The runtime statistics of this unit */
+  private final PersistenceUnitStatistics statistics = new PersistenceUnitStatistics(this);
   
   
   public CountingEntityManagerFactory(
@@ -57,20 +63,55 @@ public class CountingEntityManagerFactory implements EntityManagerFactory, Destr
     this.name = name;
   }
 
+  /**
+   * @return the number of milliseconds the provider took to create this persistence unit,
+   *         or -1 if it has not been created yet
+   */
+  public long getBootstrapTime() {
+    return bootstrapTime;
+  }
+
+  public void setBootstrapTime(long millis) {
+    bootstrapTime = millis;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the number of EntityManagers that have not been closed
+   */
+  public long getOpenCount() {
+    return count.get();
+  }
+
+  public PersistenceUnitStatistics getStatistics() {
+    return statistics;
+  }
+
+  public void recordTransactionalUse() {
+    statistics.transactionalUse();
+  }
+
+  public void recordDetachedUse() {
+    statistics.detachedUse();
+  }
+
   public void close() {
     delegate.close();
   }
 
   public EntityManager createEntityManager() {
     EntityManager em = delegate.createEntityManager();
-    count.incrementAndGet();
-    return new EntityManagerWrapper(em, this);
+    statistics.entityManagerCreated(count.incrementAndGet());
+    return new EntityManagerWrapper(em, this, statistics);
   }
 
   public EntityManager createEntityManager(Map arg0) {
     EntityManager em = delegate.createEntityManager(arg0);
-    count.incrementAndGet();
-    return new EntityManagerWrapper(em, this);
+    statistics.entityManagerCreated(count.incrementAndGet());
+    return new EntityManagerWrapper(em, this, statistics);
   }
 
   public Cache getCache() {
@@ -29,7 +29,10 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.management.ObjectName;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.spi.PersistenceProvider;
 import javax.persistence.spi.PersistenceUnitInfo;
@@ -37,7 +40,10 @@ import javax.persistence.spi.PersistenceUnitInfo;
 import org.apache.aries.jpa.container.ManagedPersistenceUnitInfo;
 import org.apache.aries.jpa.container.PersistenceUnitConstants;
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.jpa.container.statistics.PersistenceUnitStatisticsMBean;
+import org.apache.aries.jpa.container.unit.impl.PersistenceUnitInfoImpl;
 import org.apache.aries.util.AriesFrameworkUtil;
+import org.apache.aries.util.service.registry.MBeanServices;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -52,6 +58,28 @@ import org.slf4j.LoggerFactory;
  */
 public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
 
+  /** 
+   * The container configuration property choosing when {@link EntityManagerFactory} objects
+   * are created, one of {@link #SYNCHRONOUS}, {@link #ASYNCHRONOUS} or {@link #LAZY}
+   */
+  public static final String EMF_CREATION_MODE = "org.apache.aries.jpa.container.emf.creation";
+  /** The container configuration property giving the number of threads for {@link #ASYNCHRONOUS} creation */
+  public static final String EMF_CREATION_THREADS = "org.apache.aries.jpa.container.emf.creation.threads";
+  /** Create all the units of a bundle on the thread that notices the bundle, the default */
+  public static final String SYNCHRONOUS = "synchronous";
+  /** 
+   * Start creating the units on container threads when the bundle resolves, and register
+   * each one as soon as it has been created and the bundle has started. The bundle event
+   * thread never waits for the provider, so entity classes that the bundle loads before
+   * its unit has been created are not woven by the provider's transformers.
+   */
+  public static final String ASYNCHRONOUS = "asynchronous";
+  /** 
+   * Only create the units when the bundle starts, rather than when it resolves, so that 
+   * bundles that are never started do not pay for them
+   */
+  public static final String LAZY = "lazy";
+
   /**
    * A callback for a named persistence units
    */
@@ -87,11 +115,24 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
   private Map<String, CountingEntityManagerFactory> emfs = null;
   /** The {@link ServiceRegistration} objects for the {@link EntityManagerFactory}s */
   private ConcurrentMap<String, ServiceRegistration> registrations = null;
+  /** The {@link ServiceRegistration} objects for the {@link PersistenceUnitStatisticsMBean}s */
+  private final ConcurrentMap<String, ServiceRegistration> statisticsRegistrations = 
+      new ConcurrentHashMap<String, ServiceRegistration>();
   /** Quiesce this Manager */
   private boolean quiesce = false;
   
   private volatile ServiceTracker tracker; 
   
+  /** How EntityManagerFactory objects are created */
+  private final String creationMode;
+  /** The executor for {@link #ASYNCHRONOUS} creation */
+  private final Executor executor;
+  /** 
+   * Incremented whenever the EntityManagerFactories are destroyed, so that an asynchronous 
+   * creation can tell that its result is no longer wanted
+   */
+  private int generation = 0;
+  
   /** DataSourceFactories in use by persistence units in this bundle - class name key to collection of unit values */
   private final ConcurrentMap<String, Collection<String>> dataSourceFactories = 
          new ConcurrentHashMap<String, Collection<String>>();
@@ -114,11 +155,26 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
    * @param parsedUnits 
    */
   public EntityManagerFactoryManager(BundleContext containerCtx, Bundle b, Collection<ParsedPersistenceUnit> parsedUnits, ServiceReference ref, Collection<? extends ManagedPersistenceUnitInfo> infos) {
+    this(containerCtx, b, parsedUnits, ref, infos, SYNCHRONOUS, null);
+  }
+
+  /**
+   * Create an {@link EntityManagerFactoryManager} for
+   * the supplied persistence bundle, that creates the {@link EntityManagerFactory}
+   * objects using the supplied mode.
+   * 
+   * @param mode {@link #SYNCHRONOUS}, {@link #ASYNCHRONOUS} or {@link #LAZY}
+   * @param exec the executor to use in {@link #ASYNCHRONOUS} mode
+   */
+  public EntityManagerFactoryManager(BundleContext containerCtx, Bundle b, Collection<ParsedPersistenceUnit> parsedUnits, 
+      ServiceReference ref, Collection<? extends ManagedPersistenceUnitInfo> infos, String mode, Executor exec) {
     containerContext = containerCtx;
     bundle = b;
     provider = ref;
     persistenceUnits = getInfoMap(infos);
     parsedData = parsedUnits;
+    creationMode = (ASYNCHRONOUS.equals(mode) && exec == null) ? SYNCHRONOUS : mode;
+    executor = exec;
   }
 
   private Map<String, ? extends ManagedPersistenceUnitInfo> getInfoMap(
@@ -171,8 +227,9 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
         //If we are Resolved as a result of having stopped
         //and missed the STOPPING event we need to unregister
         unregisterEntityManagerFactories();
-      //Create the EMF objects if necessary
-        createEntityManagerFactories();
+      //Create the EMF objects if necessary, lazy units wait for the bundle to start
+        if(!!!LAZY.equals(creationMode))
+          createEntityManagerFactories();
         break;
         //Starting and active both require EMFs to be registered
       case Bundle.STARTING :
@@ -208,6 +265,7 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
     if(registrations != null) {
       for(Entry<String, ServiceRegistration> entry : registrations.entrySet()) {
         AriesFrameworkUtil.safeUnregisterService(entry.getValue());
+        AriesFrameworkUtil.safeUnregisterService(statisticsRegistrations.remove(entry.getKey()));
         emfs.get(entry.getKey()).clearQuiesce();
         persistenceUnits.get(entry.getKey()).unregistered();
       }
@@ -219,6 +277,7 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
   private void unregisterEntityManagerFactory(String unit) {
     if(registrations != null) {
       AriesFrameworkUtil.safeUnregisterService(registrations.remove(unit));
+      AriesFrameworkUtil.safeUnregisterService(statisticsRegistrations.remove(unit));
       emfs.get(unit).clearQuiesce();
       persistenceUnits.get(unit).unregistered();
     }
@@ -238,8 +297,11 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
     }
     
     if(provider != null && !quiesce) {
-      //Make sure the EntityManagerFactories are instantiated
+      //Make sure the EntityManagerFactories are instantiated, units still being 
+      //created asynchronously are registered when they are ready
       createEntityManagerFactories();
+      if(emfs == null || provider == null)
+        return;
       
       String providerName = (String) provider.getProperty("javax.persistence.provider");
       if(providerName == null) {
@@ -248,33 +310,61 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
                       PersistenceUnitConstants.OSGI_UNIT_PROVIDER, provider));
       }
       //Register each EMF
-      for(Entry<String, ? extends EntityManagerFactory> entry : emfs.entrySet())
-      {
-        
-        Hashtable<String,Object> props = new Hashtable<String, Object>();
-        String unitName = entry.getKey();
-        
-        if(registrations.containsKey(unitName) || !!!availableDataSourceFactory(unitName))
-          continue;
-        
-        props.put(PersistenceUnitConstants.OSGI_UNIT_NAME, unitName);
-        if(providerName != null)
-          props.put(PersistenceUnitConstants.OSGI_UNIT_PROVIDER, providerName);
-        
-        props.put(PersistenceUnitConstants.OSGI_UNIT_VERSION, bundle.getVersion());
-        props.put(PersistenceUnitConstants.CONTAINER_MANAGED_PERSISTENCE_UNIT, Boolean.TRUE);
-        props.put(PersistenceUnitConstants.EMPTY_PERSISTENCE_UNIT_NAME, "".equals(unitName));
-        try {
-          registrations.put(unitName, bundle.getBundleContext().registerService(EntityManagerFactory.class.getCanonicalName(), entry.getValue(), props));
-          persistenceUnits.get(unitName).registered();
-        } catch (Exception e) {
-          _logger.error(NLS.MESSAGES.getMessage("cannot.register.persistence.unit", unitName, bundle.getSymbolicName() + '/' + bundle.getVersion()));
-          throw new InvalidPersistenceUnitException(e);
-        }
-      }
+      for(Entry<String, CountingEntityManagerFactory> entry : emfs.entrySet())
+        registerEntityManagerFactory(entry.getKey(), entry.getValue(), providerName);
     }
   }
 
+  /**
+   * Register the {@link EntityManagerFactory} service of one persistence unit, unless it
+   * is already registered or is waiting for a DataSourceFactory
+   * 
+   * @throws InvalidPersistenceUnitException if the service could not be registered
+   */
+  private void registerEntityManagerFactory(String unitName, CountingEntityManagerFactory emf, 
+      String providerName) throws InvalidPersistenceUnitException {
+    if(registrations.containsKey(unitName) || !!!availableDataSourceFactory(unitName))
+      return;
+    
+    Hashtable<String,Object> props = new Hashtable<String, Object>();
+    props.put(PersistenceUnitConstants.OSGI_UNIT_NAME, unitName);
+    if(providerName != null)
+      props.put(PersistenceUnitConstants.OSGI_UNIT_PROVIDER, providerName);
+    
+    props.put(PersistenceUnitConstants.OSGI_UNIT_VERSION, bundle.getVersion());
+    props.put(PersistenceUnitConstants.CONTAINER_MANAGED_PERSISTENCE_UNIT, Boolean.TRUE);
+    props.put(PersistenceUnitConstants.EMPTY_PERSISTENCE_UNIT_NAME, "".equals(unitName));
+    try {
+      registrations.put(unitName, bundle.getBundleContext().registerService(EntityManagerFactory.class.getCanonicalName(), emf, props));
+      registerStatistics(unitName, emf);
+      persistenceUnits.get(unitName).registered();
+    } catch (Exception e) {
+      _logger.error(NLS.MESSAGES.getMessage("cannot.register.persistence.unit", unitName, bundle.getSymbolicName() + '/' + bundle.getVersion()));
+      throw new InvalidPersistenceUnitException(e);
+    }
+  }
+
+  /**
+   * Register the statistics of a persistence unit so that a JMX whiteboard can expose them
+   */
+  private void registerStatistics(String unitName, CountingEntityManagerFactory emf) {
+    Hashtable<String,Object> props = new Hashtable<String, Object>();
+    props.put(PersistenceUnitConstants.OSGI_UNIT_NAME, unitName);
+    props.put(PersistenceUnitConstants.OSGI_UNIT_VERSION, bundle.getVersion());
+    String objectName = PersistenceUnitStatisticsMBean.OBJECTNAME 
+        + ",bundle=" + ObjectName.quote(bundle.getSymbolicName() + '/' + bundle.getVersion()) 
+        + ",name=" + ObjectName.quote(unitName);
+    
+    PersistenceUnitInfo info = persistenceUnits.get(unitName).getPersistenceUnitInfo();
+    if(info instanceof PersistenceUnitInfoImpl)
+      emf.getStatistics().setStatementCacheStatistics(
+          ((PersistenceUnitInfoImpl) info).getStatementCacheStatistics());
+    
+    AriesFrameworkUtil.safeUnregisterService(statisticsRegistrations.put(unitName, 
+        MBeanServices.register(bundle.getBundleContext(), 
+            new String[] {PersistenceUnitStatisticsMBean.class.getName()}, emf.getStatistics(), objectName, props)));
+  }
+
   private boolean availableDataSourceFactory(String unitName) {
     ManagedPersistenceUnitInfo mpui = persistenceUnits.get(unitName);
         
@@ -312,9 +402,14 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
     //Only try if we have a provider and EMFs
     if(provider != null) {
       if(emfs == null && !quiesce) {
-        try {
-          emfs = new HashMap<String, CountingEntityManagerFactory>();
+        emfs = new HashMap<String, CountingEntityManagerFactory>();
         
+        if(ASYNCHRONOUS.equals(creationMode)) {
+          createEntityManagerFactoriesAsynchronously();
+          return;
+        }
+        
+        try {
           //Get hold of the provider
           PersistenceProvider providerService = (PersistenceProvider) containerContext.getService(provider);
 
@@ -326,9 +421,12 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
           for(Entry<String, ? extends ManagedPersistenceUnitInfo> entry : 
                persistenceUnits.entrySet()){
             ManagedPersistenceUnitInfo mpui = entry.getValue();
-            emfs.put(entry.getKey(), new CountingEntityManagerFactory(
+            long start = System.nanoTime();
+            CountingEntityManagerFactory emf = new CountingEntityManagerFactory(
                 providerService.createContainerEntityManagerFactory(
-                    mpui.getPersistenceUnitInfo(), mpui.getContainerProperties()), entry.getKey()));
+                    mpui.getPersistenceUnitInfo(), mpui.getContainerProperties()), entry.getKey());
+            emf.setBootstrapTime(bootstrapTime(bundle, entry.getKey(), start));
+            emfs.put(entry.getKey(), emf);
           }
         } finally {
           //Remember to unget the provider
@@ -338,6 +436,102 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
     }
   }
 
+  /**
+   * Create each persistence unit on the executor, each one is registered when it has
+   * been created if its services are registered by then, otherwise by
+   * {@link #registerEntityManagerFactories()}. Must be called when synchronized on this manager.
+   */
+  private void createEntityManagerFactoriesAsynchronously() {
+    final int gen = generation;
+    final ServiceReference ref = provider;
+    Map<String, ManagedPersistenceUnitInfo> units = new HashMap<String, ManagedPersistenceUnitInfo>(persistenceUnits);
+    for(final Entry<String, ManagedPersistenceUnitInfo> entry : units.entrySet()) {
+      Runnable task = new Runnable() {
+        public void run() {
+          createEntityManagerFactoryAsynchronously(gen, ref, entry.getKey(), entry.getValue());
+        }
+      };
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        //The container is stopping, there is no point in waiting
+        task.run();
+      }
+    }
+  }
+
+  private void createEntityManagerFactoryAsynchronously(int gen, ServiceReference ref, String unitName,
+      ManagedPersistenceUnitInfo mpui) {
+    long start = System.nanoTime();
+    CountingEntityManagerFactory emf = null;
+    try {
+      emf = new CountingEntityManagerFactory(createEntityManagerFactory(containerContext, ref, mpui, 
+          bundle, unitName), unitName);
+      emf.setBootstrapTime(bootstrapTime(bundle, unitName, start));
+    } catch (Exception e) {
+      _logger.error(NLS.MESSAGES.getMessage("persistence.unit.creation.failed", unitName, 
+          bundle.getSymbolicName() + '/' + bundle.getVersion()), e);
+    } finally {
+      synchronized (this) {
+        if(emf != null && gen == generation && emfs != null && ref.equals(provider)) {
+          emfs.put(unitName, emf);
+          //The bundle has already started, so register the unit now
+          if(registrations != null && !quiesce) {
+            try {
+              registerEntityManagerFactory(unitName, emf, (String) ref.getProperty("javax.persistence.provider"));
+            } catch (InvalidPersistenceUnitException e) {
+              //Already logged, the unit stays unregistered until the bundle restarts
+            }
+          }
+          emf = null;
+        }
+      }
+    }
+    //The units were destroyed while we were creating this one
+    if(emf != null) {
+      try {
+        emf.close();
+      } catch (Exception e) {
+        _logger.error(NLS.MESSAGES.getMessage("could.not.close.persistence.unit", unitName, bundle.getSymbolicName() + '/' + bundle.getVersion()), e);
+      }
+    }
+  }
+
+  /**
+   * Create the {@link EntityManagerFactory} of a persistence unit, getting and releasing the provider
+   * 
+   * @throws InvalidPersistenceUnitException if the provider is no longer available
+   */
+  private static EntityManagerFactory createEntityManagerFactory(BundleContext containerContext, ServiceReference provider,
+      ManagedPersistenceUnitInfo mpui, Bundle bundle, String unitName) throws InvalidPersistenceUnitException {
+    try {
+      PersistenceProvider providerService = (PersistenceProvider) containerContext.getService(provider);
+
+      if(providerService == null) {
+        _logger.warn(NLS.MESSAGES.getMessage("persistence.provider.gone.awol", bundle.getSymbolicName() + '/' + bundle.getVersion()));
+        throw new InvalidPersistenceUnitException();
+      }
+      return providerService.createContainerEntityManagerFactory(
+          mpui.getPersistenceUnitInfo(), mpui.getContainerProperties());
+    } finally {
+      containerContext.ungetService(provider);
+    }
+  }
+
+  /**
+   * Log how long the provider took to create a persistence unit
+   * 
+   * @param start the {@link System#nanoTime()} when the creation started
+   * @return the creation time in milliseconds
+   */
+  private static long bootstrapTime(Bundle bundle, String unitName, long start) {
+    long millis = (System.nanoTime() - start) / 1000000;
+    if(_logger.isInfoEnabled())
+      _logger.info(NLS.MESSAGES.getMessage("persistence.unit.created", unitName, 
+          bundle.getSymbolicName() + '/' + bundle.getVersion(), millis));
+    return millis;
+  }
+
   /**
    * Manage the EntityManagerFactories for the following
    * provider and {@link PersistenceUnitInfo}s
@@ -390,6 +584,8 @@ public class EntityManagerFactoryManager implements ServiceTrackerCustomizer {
    * S
    */
   private void destroyEntityManagerFactories() {
+    //Any asynchronous creation still running is no longer wanted
+    generation++;
     if(registrations != null)
       unregisterEntityManagerFactories();
     if(emfs != null) {
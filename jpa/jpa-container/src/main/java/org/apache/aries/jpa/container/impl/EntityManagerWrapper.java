@@ -32,17 +32,27 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.metamodel.Metamodel;
 
 /**
- * Wrapper an EntityManager so that we know when it has been closed
+ * Wrapper an EntityManager so that we know when it has been closed, and how long it was open
  */
 public class EntityManagerWrapper implements EntityManager {
   
   private final EntityManager delegate;
   /** Call this when the EntityManager is closed */
   private final DestroyCallback callback;
+  /** The statistics to record the lifetime in, may be null */
+  private final PersistenceUnitStatistics statistics;
+  /** When this EntityManager was created, from {@link System#nanoTime()} */
+  private final long created = System.nanoTime();
 
   public EntityManagerWrapper(EntityManager em, DestroyCallback callback) {
+    this(em, callback, null);
+  }
+
+  public EntityManagerWrapper(EntityManager em, DestroyCallback callback, 
+      PersistenceUnitStatistics statistics) {
     delegate = em;
     this.callback = callback;
+    this.statistics = statistics;
   }
 
   public void clear() {
@@ -53,6 +63,8 @@ public class EntityManagerWrapper implements EntityManager {
     delegate.close();
     //This will only ever be called once, the second time there
     //will be an IllegalStateException from the line above
+    if(statistics != null)
+      statistics.entityManagerClosed(System.nanoTime() - created);
     callback.callback();
   }
 
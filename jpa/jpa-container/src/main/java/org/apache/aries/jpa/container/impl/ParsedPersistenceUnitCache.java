@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * A cache of the persistence units parsed from each persistence descriptor. Entries
+ * are keyed by the bundle id, the bundle's last modified time and the location of the
+ * descriptor, so an update to the bundle always causes the descriptor to be parsed again.
+ *
+ * Bundles that do not report a last modified time are never cached.
+ */
+public class ParsedPersistenceUnitCache
+{
+  private final ConcurrentMap<Key, Collection<ParsedPersistenceUnit>> cache =
+    new ConcurrentHashMap<Key, Collection<ParsedPersistenceUnit>>();
+
+  /**
+   * @param b The bundle defining the descriptor
+   * @param location The location of the descriptor
+   * @return The units parsed from the descriptor, or null if it has not been parsed
+   *         since the bundle was last modified
+   */
+  public Collection<ParsedPersistenceUnit> get(Bundle b, String location)
+  {
+    long lastModified = b.getLastModified();
+    if(lastModified == 0)
+      return null;
+
+    return cache.get(new Key(b.getBundleId(), lastModified, location));
+  }
+
+  /**
+   * Cache the units parsed from a descriptor, discarding anything cached
+   * for an earlier revision of the bundle
+   * @param b The bundle defining the descriptor
+   * @param location The location of the descriptor
+   * @param units The parsed units
+   */
+  public void put(Bundle b, String location, Collection<? extends ParsedPersistenceUnit> units)
+  {
+    long lastModified = b.getLastModified();
+    if(lastModified == 0)
+      return;
+
+    long bundleId = b.getBundleId();
+    for(Iterator<Key> it = cache.keySet().iterator(); it.hasNext();) {
+      Key key = it.next();
+      if(key.bundleId == bundleId && key.lastModified != lastModified)
+        it.remove();
+    }
+
+    cache.put(new Key(bundleId, lastModified, location),
+        Collections.unmodifiableCollection(new ArrayList<ParsedPersistenceUnit>(units)));
+  }
+
+  /**
+   * Discard everything cached for a bundle
+   * @param bundleId
+   */
+  public void remove(long bundleId)
+  {
+    for(Iterator<Key> it = cache.keySet().iterator(); it.hasNext();) {
+      if(it.next().bundleId == bundleId)
+        it.remove();
+    }
+  }
+
+  /**
+   * Discard everything cached for bundles that are no longer installed
+   * @param ctx A context to look the bundles up in
+   */
+  public void removeUninstalled(BundleContext ctx)
+  {
+    for(Iterator<Key> it = cache.keySet().iterator(); it.hasNext();) {
+      Bundle b = ctx.getBundle(it.next().bundleId);
+      if(b == null || b.getState() == Bundle.UNINSTALLED)
+        it.remove();
+    }
+  }
+
+  private static final class Key
+  {
+    private final long bundleId;
+    private final long lastModified;
+    private final String location;
+
+    public Key(long bundleId, long lastModified, String location)
+    {
+      this.bundleId = bundleId;
+      this.lastModified = lastModified;
+      this.location = location;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int result = (int) (bundleId ^ (bundleId >>> 32));
+      result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+      result = 31 * result + location.hashCode();
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if(this == obj)
+        return true;
+      if(!!!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return bundleId == other.bundleId && lastModified == other.lastModified
+          && location.equals(other.location);
+    }
+  }
+}
@@ -33,7 +33,16 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.spi.PersistenceProvider;
 
@@ -112,6 +121,15 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Servic
   private DestroyCallback quiesceParticipant;
   /** Are we quiescing */
   private AtomicBoolean quiesce = new AtomicBoolean(false);
+  /** How EntityManagerFactory objects are created */
+  private String emfCreationMode = EntityManagerFactoryManager.SYNCHRONOUS;
+  /** The threads creating EntityManagerFactory objects in asynchronous mode */
+  private ExecutorService emfCreationExecutor;
+  /** 
+   * Persistence units from descriptors that have already been parsed. This is static
+   * so that restarting the extender does not parse unchanged bundles again.
+   */
+  private static final ParsedPersistenceUnitCache parsedUnitCache = new ParsedPersistenceUnitCache();
   
   @SuppressWarnings("unchecked")
   private void open() {
@@ -130,6 +148,9 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Servic
     
     if(persistenceUnitFactory == null)
       persistenceUnitFactory = new ManagedPersistenceUnitInfoFactoryImpl();
+    
+    initEntityManagerFactoryCreation();
+    preParseBundles();
      serviceTracker.open();
      tracker.open();
   }
@@ -144,6 +165,11 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Servic
       serviceTracker.close();
     }
     
+    if (emfCreationExecutor != null) {
+      emfCreationExecutor.shutdownNow();
+      emfCreationExecutor = null;
+    }
+    
     OSGiTransactionManager otm = OSGiTransactionManager.get();
     if(otm != null)
       otm.destroy();
@@ -240,6 +266,97 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Servic
     }
   }
   
+  /**
+   * Work out how EntityManagerFactory objects should be created from the config
+   */
+  private void initEntityManagerFactoryCreation() {
+    String mode = config.getProperty(EntityManagerFactoryManager.EMF_CREATION_MODE, 
+        EntityManagerFactoryManager.SYNCHRONOUS).trim();
+    
+    if(EntityManagerFactoryManager.ASYNCHRONOUS.equals(mode)) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      String threadsProp = config.getProperty(EntityManagerFactoryManager.EMF_CREATION_THREADS);
+      if(threadsProp != null) {
+        try {
+          threads = Math.max(1, Integer.parseInt(threadsProp.trim()));
+        } catch (NumberFormatException e) {
+          _logger.warn(NLS.MESSAGES.getMessage("invalid.emf.creation.threads", threadsProp, 
+              EntityManagerFactoryManager.EMF_CREATION_THREADS, threads));
+        }
+      }
+      emfCreationExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "Aries JPA EntityManagerFactory creation-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    } else if (!!!EntityManagerFactoryManager.LAZY.equals(mode) && 
+        !!!EntityManagerFactoryManager.SYNCHRONOUS.equals(mode)) {
+      _logger.warn(NLS.MESSAGES.getMessage("unknown.emf.creation.mode", mode, 
+          EntityManagerFactoryManager.EMF_CREATION_MODE, EntityManagerFactoryManager.SYNCHRONOUS));
+      mode = EntityManagerFactoryManager.SYNCHRONOUS;
+    }
+    emfCreationMode = mode;
+  }
+  
+  /**
+   * Forget about any bundles uninstalled while we were stopped, and parse the
+   * descriptors of the installed bundles in parallel before the tracker sees
+   * them, so that it finds their units in the cache
+   */
+  private void preParseBundles() {
+    parsedUnitCache.removeUninstalled(ctx);
+    
+    int threads = Runtime.getRuntime().availableProcessors();
+    Bundle[] bundles = ctx.getBundles();
+    if(threads < 2 || bundles == null || bundles.length < 2)
+      return;
+    
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, bundles.length), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Aries JPA persistence descriptor parser-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    try {
+      List<Future<?>> parsed = new ArrayList<Future<?>>();
+      for(final Bundle b : bundles) {
+        if(b.getState() == Bundle.UNINSTALLED)
+          continue;
+        parsed.add(executor.submit(new Runnable() {
+          public void run() {
+            getPersistenceUnits(b, PersistenceBundleHelper.findPersistenceXmlFiles(b));
+          }
+        }));
+      }
+      
+      boolean interrupted = false;
+      for(int i = 0; i < parsed.size(); i++) {
+        try {
+          parsed.get(i).get();
+        } catch (InterruptedException e) {
+          //Parsing doesn't take long, so wait for it and remember the interrupt
+          interrupted = true;
+          i--;
+        } catch (ExecutionException e) {
+          //The tracker will parse the bundle again and report the problem
+          _logger.debug("Unable to parse the persistence descriptors of a bundle in advance", e.getCause());
+        }
+      }
+      if(interrupted)
+        Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
   /**
    * Add config properties, making sure to read in the properties file
    * and override the supplied properties
@@ -315,6 +432,9 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Servic
     synchronized (this) {
       bundleToManagerMap.remove(bundle);
     }
+    //The parsed units can never be used again
+    if(bundle.getState() == Bundle.UNINSTALLED)
+      parsedUnitCache.remove(bundle.getBundleId());
   }
   
   private Collection<ParsedPersistenceUnit> parseBundle(Bundle b) {
@@ -335,17 +455,54 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Servic
       
       
       
-      //Parse each descriptor
-      for(PersistenceDescriptor descriptor : persistenceXmls) {
+      pUnits.addAll(getPersistenceUnits(b, persistenceXmls));
+    }
+    return pUnits;
+  }
+  
+  /**
+   * Get the units defined by some persistence descriptors, using the cached units 
+   * for any descriptor that hasn't changed
+   * @param b The bundle defining the descriptors
+   * @param persistenceXmls The descriptors
+   * @return The units defined
+   */
+  private Collection<ParsedPersistenceUnit> getPersistenceUnits(Bundle b, Collection<PersistenceDescriptor> persistenceXmls) {
+    Collection<ParsedPersistenceUnit> pUnits = new ArrayList<ParsedPersistenceUnit>();
+    for(PersistenceDescriptor descriptor : persistenceXmls) {
+      Collection<ParsedPersistenceUnit> cached = parsedUnitCache.get(b, descriptor.getLocation());
+      if(cached == null) {
+        pUnits.addAll(parseDescriptor(b, descriptor));
+      } else {
+        if(_logger.isDebugEnabled())
+          _logger.debug("Using previously parsed descriptor {} in bundle {}", new Object[] {descriptor, b.getSymbolicName() + "_" + b.getVersion()});
+        pUnits.addAll(cached);
         try {
-          pUnits.addAll(parser.parse(b, descriptor));
-        } catch (PersistenceDescriptorParserException e) {
-          _logger.error(NLS.MESSAGES.getMessage("persistence.description.parse.error", descriptor.getLocation(), b.getSymbolicName(), b.getVersion()), e);
+          descriptor.getInputStream().close();
+        } catch (IOException e) {
+          //We don't care about this exception, so swallow it
         }
       }
     }
     return pUnits;
   }
+  
+  /**
+   * Parse a single persistence descriptor, caching the result
+   * @param b The bundle defining the descriptor
+   * @param descriptor The descriptor
+   * @return The units defined, or an empty collection if the descriptor could not be parsed
+   */
+  private Collection<? extends ParsedPersistenceUnit> parseDescriptor(Bundle b, PersistenceDescriptor descriptor) {
+    try {
+      Collection<? extends ParsedPersistenceUnit> units = parser.parse(b, descriptor);
+      parsedUnitCache.put(b, descriptor.getLocation(), units);
+      return units;
+    } catch (PersistenceDescriptorParserException e) {
+      _logger.error(NLS.MESSAGES.getMessage("persistence.description.parse.error", descriptor.getLocation(), b.getSymbolicName(), b.getVersion()), e);
+      return Collections.emptySet();
+    }
+  }
   /**
    * Set up an {@link EntityManagerFactoryManager} for the supplied bundle
    * 
@@ -378,7 +535,8 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Servic
         if(mgr != null)
           mgr.manage(pUnits, ref, infos);
         else 
-          mgr = new EntityManagerFactoryManager(ctx, bundle, pUnits, ref, infos);
+          mgr = new EntityManagerFactoryManager(ctx, bundle, pUnits, ref, infos, 
+              emfCreationMode, emfCreationExecutor);
           
         //Register the manager (this may re-add, but who cares)
         synchronized (this) {
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.aries.jpa.container.statistics.PersistenceUnitStatisticsMBean;
+import org.apache.aries.jpa.container.tx.impl.StatementCacheStatistics;
+import org.apache.aries.util.concurrent.StripedCounters;
+
+/**
+ * The statistics of one {@link CountingEntityManagerFactory}
+ */
+public class PersistenceUnitStatistics implements PersistenceUnitStatisticsMBean {
+  /** The upper bounds of the lifetime histogram buckets in milliseconds */
+  private static final long[] LIFETIME_BOUNDS = {1, 10, 100, 1000, 10000, 60000};
+  /** The indexes of the {@link #uses} counters */
+  private static final int TRANSACTIONAL_USE = 0;
+  private static final int DETACHED_USE = 1;
+  
+  private final CountingEntityManagerFactory emf;
+  
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong closed = new AtomicLong();
+  private final AtomicLong peakOpen = new AtomicLong();
+  /** Total lifetime of the closed EntityManagers in microseconds */
+  private final AtomicLong totalLifetime = new AtomicLong();
+  private final AtomicLong maxLifetime = new AtomicLong();
+  private final AtomicLongArray lifetimes = new AtomicLongArray(LIFETIME_BOUNDS.length + 1);
+  /** 
+   * Managed persistence contexts record every operation, from any number of threads,
+   * so these counters are striped rather than a single contended AtomicLong
+   */
+  private final StripedCounters uses = new StripedCounters(2);
+  /** The counters of the JTA data source's statement caches, if the container created it */
+  private volatile StatementCacheStatistics statementCache = new StatementCacheStatistics();
+  
+  public PersistenceUnitStatistics(CountingEntityManagerFactory emf) {
+    this.emf = emf;
+  }
+  
+  void setStatementCacheStatistics(StatementCacheStatistics statementCache) {
+    this.statementCache = statementCache;
+  }
+
+  /**
+   * @param open The number of open EntityManagers including the new one
+   */
+  void entityManagerCreated(long open) {
+    created.incrementAndGet();
+    for(;;) {
+      long peak = peakOpen.get();
+      if(open <= peak || peakOpen.compareAndSet(peak, open))
+        break;
+    }
+  }
+  
+  void entityManagerClosed(long lifetimeNanos) {
+    closed.incrementAndGet();
+    long micros = TimeUnit.NANOSECONDS.toMicros(lifetimeNanos);
+    totalLifetime.addAndGet(micros);
+    for(;;) {
+      long max = maxLifetime.get();
+      if(micros <= max || maxLifetime.compareAndSet(max, micros))
+        break;
+    }
+    long millis = micros / 1000;
+    int bucket = 0;
+    while(bucket < LIFETIME_BOUNDS.length && millis >= LIFETIME_BOUNDS[bucket])
+      bucket++;
+    lifetimes.incrementAndGet(bucket);
+  }
+  
+  void transactionalUse() {
+    uses.increment(TRANSACTIONAL_USE);
+  }
+  
+  void detachedUse() {
+    uses.increment(DETACHED_USE);
+  }
+  
+  public String getPersistenceUnitName() {
+    return emf.getName();
+  }
+
+  public long getBootstrapTime() {
+    return emf.getBootstrapTime();
+  }
+
+  public long getCreatedCount() {
+    return created.get();
+  }
+
+  public long getClosedCount() {
+    return closed.get();
+  }
+
+  public long getOpenCount() {
+    return emf.getOpenCount();
+  }
+
+  public long getPeakOpenCount() {
+    return peakOpen.get();
+  }
+
+  public long getAverageLifetime() {
+    long count = closed.get();
+    return count == 0 ? 0 : totalLifetime.get() / count / 1000;
+  }
+
+  public long getMaxLifetime() {
+    return maxLifetime.get() / 1000;
+  }
+
+  public long[] getLifetimeHistogramBounds() {
+    return LIFETIME_BOUNDS.clone();
+  }
+
+  public long[] getLifetimeHistogram() {
+    long[] result = new long[lifetimes.length()];
+    for(int i = 0; i < result.length; i++)
+      result[i] = lifetimes.get(i);
+    return result;
+  }
+
+  public long getTransactionalUseCount() {
+    return uses.sum(TRANSACTIONAL_USE);
+  }
+
+  public long getDetachedUseCount() {
+    return uses.sum(DETACHED_USE);
+  }
+
+  public long getStatementCacheHitCount() {
+    return statementCache.getHitCount();
+  }
+
+  public long getStatementCacheMissCount() {
+    return statementCache.getMissCount();
+  }
+
+  public long getStatementCacheEvictionCount() {
+    return statementCache.getEvictionCount();
+  }
+
+  public double getStatementCacheHitRatio() {
+    return statementCache.getHitRatio();
+  }
+
+  public void reset() {
+    created.set(0);
+    closed.set(0);
+    peakOpen.set(emf.getOpenCount());
+    totalLifetime.set(0);
+    maxLifetime.set(0);
+    for(int i = 0; i < lifetimes.length(); i++)
+      lifetimes.set(i, 0);
+    uses.reset();
+    statementCache.reset();
+  }
+}
@@ -43,6 +43,8 @@ import org.apache.aries.jpa.container.impl.NLS;
 /**
  * This class is a wrapper around a {@link Connection} that performs
  * enlistment/delistment of an {@link XAResource} from a transaction.
+ * While enlisted the prepared statements may be kept in a {@link StatementCache}
+ * until the transaction completes.
  * 
  * @see XADatasourceEnlistingWrapper
  */
@@ -54,9 +56,20 @@ public class ConnectionWrapper implements Connection {
     
     private boolean enlisted;
     
+    private final StatementCache statementCache;
+    
     public ConnectionWrapper(Connection connection, boolean enlisted) {
+        this(connection, enlisted, null);
+    }
+    
+    /**
+     * @param statementCache The cache of the enlisted connection's prepared
+     *                       statements, or null if they are not cached
+     */
+    public ConnectionWrapper(Connection connection, boolean enlisted, StatementCache statementCache) {
         this.enlisted = enlisted;
         this.connection = connection;
+        this.statementCache = statementCache;
     }
             
     public void close() throws SQLException {
@@ -233,32 +246,55 @@ public class ConnectionWrapper implements Connection {
     public PreparedStatement prepareStatement(String sql, int resultSetType,
             int resultSetConcurrency, int resultSetHoldability)
             throws SQLException {
+        if (statementCache != null) {
+            return statementCache.prepareStatement(this, StatementCache.Key.forResultSet(sql,
+                    resultSetType, resultSetConcurrency, resultSetHoldability));
+        }
         return connection.prepareStatement(sql, resultSetType,
                 resultSetConcurrency, resultSetHoldability);
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType,
             int resultSetConcurrency) throws SQLException {
+        if (statementCache != null) {
+            return statementCache.prepareStatement(this, StatementCache.Key.forResultSet(sql,
+                    resultSetType, resultSetConcurrency));
+        }
         return connection.prepareStatement(sql, resultSetType,
                 resultSetConcurrency);
     }
 
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
             throws SQLException {
+        if (statementCache != null) {
+            return statementCache.prepareStatement(this, 
+                    StatementCache.Key.forGeneratedKeys(sql, autoGeneratedKeys));
+        }
         return connection.prepareStatement(sql, autoGeneratedKeys);
     }
 
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
             throws SQLException {
+        if (statementCache != null) {
+            return statementCache.prepareStatement(this, 
+                    StatementCache.Key.forGeneratedKeys(sql, columnIndexes));
+        }
         return connection.prepareStatement(sql, columnIndexes);
     }
 
     public PreparedStatement prepareStatement(String sql, String[] columnNames)
             throws SQLException {
+        if (statementCache != null) {
+            return statementCache.prepareStatement(this, 
+                    StatementCache.Key.forGeneratedKeys(sql, columnNames));
+        }
         return connection.prepareStatement(sql, columnNames);
     }
 
     public PreparedStatement prepareStatement(String sql) throws SQLException {
+        if (statementCache != null) {
+            return statementCache.prepareStatement(this, StatementCache.Key.forSql(sql));
+        }
         return connection.prepareStatement(sql);
     }
 
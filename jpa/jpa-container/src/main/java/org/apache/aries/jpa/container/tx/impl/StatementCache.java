@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.tx.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.aries.jpa.container.impl.NLS;
+
+/**
+ * A bounded, least recently used cache of the {@link PreparedStatement} objects
+ * created on one physical connection while it is enlisted in a transaction.
+ * Closing a statement handed out by the cache returns it to the cache once its
+ * parameters, pending batch and result sets are cleared. A statement whose settings,
+ * such as the fetch size or query timeout, were changed is closed instead so that
+ * the next user gets the driver defaults. The cached statements are closed when the
+ * transaction completes.
+ *
+ * @see ConnectionWrapper
+ */
+public class StatementCache {
+
+    /**
+     * The persistence unit property giving the number of statements to cache for
+     * each transaction. Statements are not cached if it is not set or is 0.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "org.apache.aries.jpa.statement.cache.size";
+
+    private static final Class<?>[] INTERFACES = new Class<?>[] {PreparedStatement.class};
+
+    /**
+     * Methods changing settings that outlive one use of the statement, a statement
+     * whose settings were changed is closed rather than cached
+     */
+    private static final Set<String> SETTINGS = new HashSet<String>(Arrays.asList(
+        "setMaxRows", "setLargeMaxRows", "setMaxFieldSize", "setFetchSize", "setFetchDirection",
+        "setQueryTimeout", "setEscapeProcessing", "setCursorName", "setPoolable", "closeOnCompletion"));
+
+    private final Connection connection;
+
+    private final StatementCacheStatistics statistics;
+
+    /** Statements that are not in use, in least recently used order */
+    private final Map<Key, PreparedStatement> idle;
+
+    private boolean closed;
+
+    public StatementCache(Connection connection, final int size,
+            final StatementCacheStatistics statistics) {
+        this.connection = connection;
+        this.statistics = statistics;
+        idle = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+                if (size() > size) {
+                    closeQuietly(eldest.getValue());
+                    statistics.evicted();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a statement from the cache, or prepare a new one if there is no idle
+     * statement for the key
+     *
+     * @param owner The connection that the statement should report it came from
+     * @param key   The SQL and options of the statement
+     */
+    public PreparedStatement prepareStatement(Connection owner, Key key) throws SQLException {
+        PreparedStatement statement;
+        synchronized (this) {
+            statement = idle.remove(key);
+        }
+        if (statement != null && statement.isClosed()) {
+            statement = null;
+        }
+        if (statement == null) {
+            statistics.miss();
+            statement = key.prepare(connection);
+        } else {
+            statistics.hit();
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                INTERFACES, new CachedStatement(owner, key, statement));
+    }
+
+    /**
+     * Close all the idle statements, statements that are in use will be
+     * closed when they are released.
+     */
+    public void close() {
+        List<PreparedStatement> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<PreparedStatement>(idle.values());
+            idle.clear();
+        }
+        for (PreparedStatement statement : toClose) {
+            closeQuietly(statement);
+        }
+    }
+
+    private void release(Key key, PreparedStatement statement, CachedStatement handle) {
+        if (handle.settingsChanged) {
+            closeQuietly(statement);
+            return;
+        }
+        try {
+            for (ResultSet resultSet : handle.resultSets) {
+                resultSet.close();
+            }
+            if (handle.batched) {
+                statement.clearBatch();
+            }
+            statement.clearParameters();
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return;
+        }
+        synchronized (this) {
+            //Only keep one idle statement for each key
+            if (!closed && !idle.containsKey(key)) {
+                idle.put(key, statement);
+                return;
+            }
+        }
+        closeQuietly(statement);
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * The handle given to the application, it only gives up the statement once
+     */
+    private class CachedStatement implements InvocationHandler {
+
+        private final Connection owner;
+
+        private final Key key;
+
+        private final PreparedStatement statement;
+
+        private volatile boolean released;
+
+        /** Whether the application changed a setting that the next user would inherit */
+        private boolean settingsChanged;
+
+        /** Whether there is a batch that was neither executed nor cleared */
+        private boolean batched;
+
+        /** The result sets handed out, they are closed before the statement is reused */
+        private final List<ResultSet> resultSets = new ArrayList<ResultSet>();
+
+        public CachedStatement(Connection owner, Key key, PreparedStatement statement) {
+            this.owner = owner;
+            this.key = key;
+            this.statement = statement;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            boolean noArgs = (args == null || args.length == 0);
+
+            if ("close".equals(name) && noArgs) {
+                if (!released) {
+                    released = true;
+                    release(key, statement, this);
+                }
+                return null;
+            } else if ("isClosed".equals(name) && noArgs) {
+                return released || statement.isClosed();
+            } else if ("equals".equals(name) && args != null && args.length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && noArgs) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name) && noArgs) {
+                return "Cached " + statement;
+            }
+
+            if (released) {
+                throw new SQLException(NLS.MESSAGES.getMessage("statement.closed"));
+            }
+            if ("getConnection".equals(name) && noArgs) {
+                return owner;
+            }
+            if (SETTINGS.contains(name)) {
+                settingsChanged = true;
+            } else if ("addBatch".equals(name)) {
+                batched = true;
+            } else if ("clearBatch".equals(name) || name.startsWith("execute") && name.endsWith("Batch")) {
+                batched = false;
+            }
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet) {
+                resultSets.add((ResultSet) result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The SQL and creation options of a statement, statements can only be reused
+     * for the same combination.
+     */
+    public static final class Key {
+
+        private static final int SQL = 0;
+        private static final int RESULT_SET = 1;
+        private static final int HOLDABILITY = 2;
+        private static final int GENERATED_KEYS = 3;
+        private static final int COLUMN_INDEXES = 4;
+        private static final int COLUMN_NAMES = 5;
+
+        private final String sql;
+        private final int variant;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+        private final int option;
+        private final int[] columnIndexes;
+        private final String[] columnNames;
+        private final int hashCode;
+
+        private Key(String sql, int variant, int resultSetType, int resultSetConcurrency,
+                int option, int[] columnIndexes, String[] columnNames) {
+            this.sql = sql;
+            this.variant = variant;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.option = option;
+            this.columnIndexes = (columnIndexes == null) ? null : columnIndexes.clone();
+            this.columnNames = (columnNames == null) ? null : columnNames.clone();
+
+            int result = sql.hashCode();
+            result = 31 * result + variant;
+            result = 31 * result + resultSetType;
+            result = 31 * result + resultSetConcurrency;
+            result = 31 * result + option;
+            result = 31 * result + Arrays.hashCode(columnIndexes);
+            result = 31 * result + Arrays.hashCode(columnNames);
+            hashCode = result;
+        }
+
+        public static Key forSql(String sql) {
+            return new Key(sql, SQL, 0, 0, 0, null, null);
+        }
+
+        public static Key forResultSet(String sql, int resultSetType, int resultSetConcurrency) {
+            return new Key(sql, RESULT_SET, resultSetType, resultSetConcurrency, 0, null, null);
+        }
+
+        public static Key forResultSet(String sql, int resultSetType, int resultSetConcurrency,
+                int resultSetHoldability) {
+            return new Key(sql, HOLDABILITY, resultSetType, resultSetConcurrency,
+                    resultSetHoldability, null, null);
+        }
+
+        public static Key forGeneratedKeys(String sql, int autoGeneratedKeys) {
+            return new Key(sql, GENERATED_KEYS, 0, 0, autoGeneratedKeys, null, null);
+        }
+
+        public static Key forGeneratedKeys(String sql, int[] columnIndexes) {
+            return new Key(sql, COLUMN_INDEXES, 0, 0, 0, columnIndexes, null);
+        }
+
+        public static Key forGeneratedKeys(String sql, String[] columnNames) {
+            return new Key(sql, COLUMN_NAMES, 0, 0, 0, null, columnNames);
+        }
+
+        PreparedStatement prepare(Connection connection) throws SQLException {
+            switch (variant) {
+                case RESULT_SET :
+                    return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+                case HOLDABILITY :
+                    return connection.prepareStatement(sql, resultSetType, resultSetConcurrency, option);
+                case GENERATED_KEYS :
+                    return connection.prepareStatement(sql, option);
+                case COLUMN_INDEXES :
+                    return connection.prepareStatement(sql, columnIndexes);
+                case COLUMN_NAMES :
+                    return connection.prepareStatement(sql, columnNames);
+                default :
+                    return connection.prepareStatement(sql);
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && variant == other.variant
+                && resultSetType == other.resultSetType
+                && resultSetConcurrency == other.resultSetConcurrency
+                && option == other.option && sql.equals(other.sql)
+                && Arrays.equals(columnIndexes, other.columnIndexes)
+                && Arrays.equals(columnNames, other.columnNames);
+        }
+    }
+}
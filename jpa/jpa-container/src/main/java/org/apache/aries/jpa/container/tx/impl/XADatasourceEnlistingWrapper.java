@@ -43,7 +43,8 @@ import org.osgi.framework.FrameworkUtil;
  * via the {@link ConnectionWrapper} that is returned. The only service provided
  * is enlistment/delistment of the associated {@link XAResource} in transactions.
  * Important consideration such as connection pooling and error handling are
- * completely ignored.
+ * completely ignored. Prepared statements can be cached for the life of each
+ * transaction's connection, see {@link StatementCache}.
  *
  */
 public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
@@ -52,11 +53,27 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
 
     private final XADataSource wrappedDS;
     
-    private transient Map<Object, Connection> connectionMap = 
-        new ConcurrentHashMap<Object, Connection>();
+    private transient Map<Object, EnlistedConnection> connectionMap = 
+        new ConcurrentHashMap<Object, EnlistedConnection>();
+    
+    /** The number of statements to cache for each transaction, 0 to disable caching */
+    private final int statementCacheSize;
+    
+    private final StatementCacheStatistics statementCacheStatistics;
     
     public XADatasourceEnlistingWrapper(XADataSource toWrap) {
+      this(toWrap, 0, new StatementCacheStatistics());
+    }
+    
+    /**
+     * @param statementCacheStatistics the counters to update, usually shared by all the
+     *        data sources of a persistence unit
+     */
+    public XADatasourceEnlistingWrapper(XADataSource toWrap, int statementCacheSize,
+        StatementCacheStatistics statementCacheStatistics) {
       wrappedDS = toWrap;
+      this.statementCacheSize = statementCacheSize;
+      this.statementCacheStatistics = statementCacheStatistics;
       OSGiTransactionManager.init(FrameworkUtil.getBundle(
           XADatasourceEnlistingWrapper.class).getBundleContext());
     }
@@ -65,14 +82,14 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
         Transaction transaction = getTransaction();
         if (transaction != null) {
             Object key = transaction;
-            Connection connection = connectionMap.get(key);
+            EnlistedConnection connection = connectionMap.get(key);
             if (connection == null) {
                 XAConnection xaConnection = wrappedDS.getXAConnection();                                
-                connection = xaConnection.getConnection();
+                connection = new EnlistedConnection(xaConnection.getConnection());
                 enlist(transaction, xaConnection.getXAResource(), key);
                 connectionMap.put(key, connection);                
             }
-            return getEnlistedConnection(connection, true);
+            return connection.getHandle();
         } else {
             return getEnlistedConnection(wrappedDS.getXAConnection().getConnection(), false);
         }
@@ -82,14 +99,14 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
         Transaction transaction = getTransaction();
         if (transaction != null) {
             Object key = new ConnectionKey(username, password, transaction);
-            Connection connection = connectionMap.get(key);
+            EnlistedConnection connection = connectionMap.get(key);
             if (connection == null) {
                 XAConnection xaConnection = wrappedDS.getXAConnection(username, password);
-                connection = xaConnection.getConnection();
+                connection = new EnlistedConnection(xaConnection.getConnection());
                 enlist(transaction, xaConnection.getXAResource(), key);               
                 connectionMap.put(key, connection);
             }
-            return getEnlistedConnection(connection, true);
+            return connection.getHandle();
         } else {
             return getEnlistedConnection(wrappedDS.getXAConnection(username, password).getConnection(), false);
         }
@@ -128,13 +145,9 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
         }
         
         public void afterCompletion(int status) {
-            Connection connection = connectionMap.remove(key);
+            EnlistedConnection connection = connectionMap.remove(key);
             if (connection != null) {
-                try {
-                    connection.close();
-                } catch (SQLException e) {
-                    // ignore
-                }
+                connection.close();
             }
         }
 
@@ -143,6 +156,45 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
         
     }
     
+    /**
+     * The physical connection used for a transaction and its statement cache
+     */
+    private class EnlistedConnection {
+        
+        private final Connection connection;
+        
+        private final StatementCache statementCache;
+        
+        public EnlistedConnection(Connection connection) {
+            this.connection = connection;
+            statementCache = (statementCacheSize > 0) ? 
+                new StatementCache(connection, statementCacheSize, statementCacheStatistics) : null;
+        }
+        
+        public Connection getHandle() {
+            return new ConnectionWrapper(connection, true, statementCache);
+        }
+        
+        public void close() {
+            if (statementCache != null) {
+                statementCache.close();
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+    }
+    
+    /**
+     * @return the prepared statement cache counters of all the transactions
+     *         that used this data source
+     */
+    public StatementCacheStatistics getStatementCacheStatistics() {
+        return statementCacheStatistics;
+    }
+    
     public PrintWriter getLogWriter() throws SQLException
     {
       return wrappedDS.getLogWriter();
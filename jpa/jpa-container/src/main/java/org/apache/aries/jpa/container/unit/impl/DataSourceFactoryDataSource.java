@@ -25,6 +25,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import javax.sql.DataSource;
 
 import org.apache.aries.jpa.container.impl.NLS;
+import org.apache.aries.jpa.container.tx.impl.StatementCacheStatistics;
 import org.apache.aries.util.tracker.SingleServiceTracker;
 import org.apache.aries.util.tracker.SingleServiceTracker.SingleServiceListener;
 import org.osgi.framework.Bundle;
@@ -49,6 +50,13 @@ public class DataSourceFactoryDataSource extends DelayedLookupDataSource impleme
   
   public DataSourceFactoryDataSource(Bundle bundle, String driverName, String dbURL, 
       String dbUserName, String dbPassword, boolean jta) {
+    this(bundle, driverName, dbURL, dbUserName, dbPassword, jta, 0, new StatementCacheStatistics());
+  }
+  
+  public DataSourceFactoryDataSource(Bundle bundle, String driverName, String dbURL, 
+      String dbUserName, String dbPassword, boolean jta, int statementCacheSize,
+      StatementCacheStatistics statementCacheStatistics) {
+    super(statementCacheSize, statementCacheStatistics);
     this.persistenceBundle = bundle;
     this.driverName = driverName;
     props = new Properties();
@@ -26,10 +26,26 @@ import javax.sql.DataSource;
 import javax.sql.XADataSource;
 
 import org.apache.aries.jpa.container.impl.NLS;
+import org.apache.aries.jpa.container.tx.impl.StatementCacheStatistics;
 import org.apache.aries.jpa.container.tx.impl.XADatasourceEnlistingWrapper;
 
 public abstract class DelayedLookupDataSource implements DataSource {
 
+  /** The number of prepared statements to cache per transaction, if the data source is wrapped */
+  private final int statementCacheSize;
+  
+  /** The counters of the statement caches, shared by the whole persistence unit */
+  private final StatementCacheStatistics statementCacheStatistics;
+  
+  protected DelayedLookupDataSource() {
+    this(0, new StatementCacheStatistics());
+  }
+  
+  protected DelayedLookupDataSource(int statementCacheSize, StatementCacheStatistics statementCacheStatistics) {
+    this.statementCacheSize = statementCacheSize;
+    this.statementCacheStatistics = statementCacheStatistics;
+  }
+  
   protected abstract DataSource getDs();
 
   public Connection getConnection() throws SQLException {
@@ -77,6 +93,6 @@ public abstract class DelayedLookupDataSource implements DataSource {
     if(!b)
       throw new IllegalStateException(NLS.MESSAGES.getMessage("no.xa.wrapping"));
     
-    return new XADatasourceEnlistingWrapper(xaDs);
+    return new XADatasourceEnlistingWrapper(xaDs, statementCacheSize, statementCacheStatistics);
   }
 }
@@ -27,6 +27,7 @@ import javax.sql.DataSource;
 import javax.sql.XADataSource;
 
 import org.apache.aries.jpa.container.impl.NLS;
+import org.apache.aries.jpa.container.tx.impl.StatementCacheStatistics;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
@@ -44,6 +45,12 @@ public class JndiDataSource extends DelayedLookupDataSource {
   private final boolean jta;
   
   public JndiDataSource (String jndi, String unit, Bundle persistenceBundle, boolean jta) {
+    this(jndi, unit, persistenceBundle, jta, 0, new StatementCacheStatistics());
+  }
+  
+  public JndiDataSource (String jndi, String unit, Bundle persistenceBundle, boolean jta,
+      int statementCacheSize, StatementCacheStatistics statementCacheStatistics) {
+    super(statementCacheSize, statementCacheStatistics);
     jndiName = jndi;
     unitName = unit;
     this.persistenceBundle = persistenceBundle;
@@ -20,6 +20,7 @@ package org.apache.aries.jpa.container.unit.impl;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
@@ -37,6 +38,8 @@ import org.apache.aries.jpa.container.annotation.impl.AnnotationScanner;
 import org.apache.aries.jpa.container.annotation.impl.AnnotationScannerFactory;
 import org.apache.aries.jpa.container.impl.NLS;
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.jpa.container.tx.impl.StatementCache;
+import org.apache.aries.jpa.container.tx.impl.StatementCacheStatistics;
 import org.apache.aries.jpa.container.weaving.impl.TransformerRegistry;
 import org.apache.aries.jpa.container.weaving.impl.TransformerRegistryFactory;
 import org.apache.aries.util.AriesFrameworkUtil;
@@ -47,6 +50,9 @@ import org.slf4j.LoggerFactory;
 
 public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
   
+  /** The mapping file a provider reads even if the unit doesn't list it */
+  private static final String DEFAULT_MAPPING_FILE = "META-INF/orm.xml";
+  
   private final Bundle bundle;
 
   private final ParsedPersistenceUnit unit;
@@ -63,6 +69,9 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
   private final AtomicReference<DataSourceFactoryDataSource> nonJtaDSFDS = 
     new AtomicReference<DataSourceFactoryDataSource>();
   
+  /** The prepared statement cache counters of all the JTA data sources of this unit */
+  private final StatementCacheStatistics statementCacheStatistics = new StatementCacheStatistics();
+  
   // initialize it lazily because we create a PersistenceUnitInfoImpl when the bundle is INSTALLED state
   private final AtomicReference<ClassLoader> cl = new AtomicReference<ClassLoader>();
   
@@ -85,11 +94,29 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
   public synchronized void addTransformer(ClassTransformer arg0) {
     TransformerRegistry reg = TransformerRegistryFactory.getTransformerRegistry();
     if(reg != null) {
-      reg.addTransformer(bundle, arg0, providerRef);
+      reg.addTransformer(bundle, arg0, providerRef, getTransformableClassNames());
       transformer = arg0;
     }
   }
 
+  /**
+   * A transformer should only change the classes managed by this unit. We can
+   * only be sure what they are if no jar files or mapping files could add more.
+   * 
+   * @return The classes a transformer for this unit may change, or null if
+   *         it may change any class in the bundle
+   */
+  @SuppressWarnings("unchecked")
+  private Collection<String> getTransformableClassNames() {
+    List<String> jarFiles = (List<String>) unit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.JAR_FILES);
+    
+    if((jarFiles != null && !!!jarFiles.isEmpty()) || !!!getMappingFileNames().isEmpty() 
+        || bundle.getResource(DEFAULT_MAPPING_FILE) != null)
+      return null;
+    
+    return getManagedClassNames();
+  }
+
   public boolean internalExcludeUnlistedClasses() {
     Boolean result = (Boolean) unit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.EXCLUDE_UNLISTED_CLASSES);
     return (result == null) ? false : result;
@@ -130,7 +157,8 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
     DataSource toReturn = null;
     if(jndiString != null) {
       toReturn = new JndiDataSource(jndiString, getPersistenceUnitName(), bundle, 
-          getTransactionType() == PersistenceUnitTransactionType.JTA);
+          getTransactionType() == PersistenceUnitTransactionType.JTA, getStatementCacheSize(),
+          statementCacheStatistics);
     } else if(useDataSourceFactory) {
       toReturn = jtaDSFDS.get();
       if(toReturn == null) {
@@ -145,7 +173,8 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
               props.getProperty("javax.persistence.jdbc.url"), 
               props.getProperty("javax.persistence.jdbc.user"), 
               props.getProperty("javax.persistence.jdbc.password"),
-              getTransactionType() == PersistenceUnitTransactionType.JTA));
+              getTransactionType() == PersistenceUnitTransactionType.JTA, getStatementCacheSize(),
+              statementCacheStatistics));
           toReturn = jtaDSFDS.get();
         }
       }
@@ -155,9 +184,9 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
 
   @SuppressWarnings("unchecked")
   public List<String> getManagedClassNames() {
-    List<String> classes = (List<String>) unit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.MANAGED_CLASSES);
-    if(classes == null)
-      classes = new ArrayList<String>();
+    List<String> listed = (List<String>) unit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.MANAGED_CLASSES);
+    //Copy the parsed list, we must not add scanned classes to it more than once
+    List<String> classes = (listed == null) ? new ArrayList<String>() : new ArrayList<String>(listed);
     if(!!!internalExcludeUnlistedClasses()) {
       AnnotationScanner scanner = AnnotationScannerFactory.getAnnotationScanner();
       if(scanner != null)
@@ -181,6 +210,30 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
     return new TempBundleDelegatingClassLoader(bundle, cl);
   }
 
+  /**
+   * @return the prepared statement cache counters of the JTA data source
+   */
+  public StatementCacheStatistics getStatementCacheStatistics() {
+    return statementCacheStatistics;
+  }
+
+  /**
+   * @return the number of prepared statements to cache for each transaction
+   *         using the JTA data source
+   */
+  private int getStatementCacheSize() {
+    String size = getInternalProperties().getProperty(StatementCache.CACHE_SIZE_PROPERTY);
+    if(size == null)
+      return 0;
+    try {
+      return Math.max(0, Integer.parseInt(size.trim()));
+    } catch (NumberFormatException nfe) {
+      _logger.warn(NLS.MESSAGES.getMessage("invalid.statement.cache.size", size, StatementCache.CACHE_SIZE_PROPERTY,
+          getPersistenceUnitName(), bundle.getSymbolicName(), bundle.getVersion()));
+      return 0;
+    }
+  }
+
   public DataSource getNonJtaDataSource() {
     
     String jndiString = (String) unit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.NON_JTA_DATASOURCE);
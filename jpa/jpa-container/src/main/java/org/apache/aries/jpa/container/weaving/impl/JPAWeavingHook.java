@@ -18,11 +18,10 @@
  */
 package org.apache.aries.jpa.container.weaving.impl;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedHashSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.persistence.spi.ClassTransformer;
 
@@ -49,10 +48,11 @@ public class JPAWeavingHook implements WeavingHook, TransformerRegistry {
   /** 
    * With luck we will only have one persistence unit per bundle, but
    * if we don't we'll need to call them until one of them does a transform
-   * or we run out.
+   * or we run out. Transformers are added and removed rarely, but the set is
+   * read for every class the bundle defines, so it is copied on write.
    */
-  private final ConcurrentMap<Bundle, LinkedHashSet<WrappingTransformer>> registeredTransformers
-      = new ConcurrentHashMap<Bundle, LinkedHashSet<WrappingTransformer>>();
+  private final ConcurrentMap<Bundle, CopyOnWriteArraySet<WrappingTransformer>> registeredTransformers
+      = new ConcurrentHashMap<Bundle, CopyOnWriteArraySet<WrappingTransformer>>();
   
   public void weave(WovenClass wovenClass) {
     
@@ -62,14 +62,14 @@ public class JPAWeavingHook implements WeavingHook, TransformerRegistry {
         wiring.getBundle());
     
     if(transformers != null) {
-      Collection<WrappingTransformer> transformersToTry;
-      synchronized (transformers) {
-        transformersToTry = new ArrayList<WrappingTransformer>(transformers);
-      }
-      for(WrappingTransformer transformer : transformersToTry) {
+      String className = wovenClass.getClassName();
+      for(WrappingTransformer transformer : transformers) {
+        //Don't make the provider parse classes that it doesn't manage
+        if(!!!transformer.isInterestedIn(className))
+          continue;
         try {
           byte[] result = transformer.transform(wiring.getClassLoader(), 
-              wovenClass.getClassName(), wovenClass.getDefinedClass(), 
+              className, wovenClass.getDefinedClass(), 
               wovenClass.getProtectionDomain(), wovenClass.getBytes());
           if(result != null) {
             wovenClass.setBytes(result);
@@ -83,7 +83,7 @@ public class JPAWeavingHook implements WeavingHook, TransformerRegistry {
             throw (OutOfMemoryError) t;
           else {
             Bundle b = wovenClass.getBundleWiring().getBundle();
-            throw new WeavingException(NLS.MESSAGES.getMessage("jpa.weaving.failure", wovenClass.getClassName(), b.getSymbolicName(), b.getVersion(), transformer), t);
+            throw new WeavingException(NLS.MESSAGES.getMessage("jpa.weaving.failure", className, b.getSymbolicName(), b.getVersion(), transformer), t);
           }
         }
       }
@@ -91,41 +91,34 @@ public class JPAWeavingHook implements WeavingHook, TransformerRegistry {
   }
   
   public void addTransformer(Bundle pBundle, ClassTransformer transformer, ServiceReference<?> provider) {
+    addTransformer(pBundle, transformer, provider, null);
+  }
+  
+  /**
+   * Adds and removes are rare and synchronized so that an empty set can be 
+   * dropped from the map safely, weaving never locks
+   */
+  public synchronized void addTransformer(Bundle pBundle, ClassTransformer transformer, 
+      ServiceReference<?> provider, Collection<String> managedClasses) {
     
-    //Optimised for single adds
-    
-    LinkedHashSet<WrappingTransformer> set = new LinkedHashSet<WrappingTransformer>();
-    WrappingTransformer wt = new WrappingTransformer(transformer, provider);
-    set.add(wt);
+    WrappingTransformer wt = new WrappingTransformer(transformer, provider, managedClasses);
     
-    LinkedHashSet<WrappingTransformer> existingSet = registeredTransformers.putIfAbsent(pBundle, set);
+    CopyOnWriteArraySet<WrappingTransformer> set = registeredTransformers.get(pBundle);
     
-    if(existingSet != null) {
-      synchronized (existingSet) {
-        existingSet.add(wt);
-      }
+    if(set == null) {
+      set = new CopyOnWriteArraySet<WrappingTransformer>();
+      registeredTransformers.put(pBundle, set);
     }
+    set.add(wt);
   }
    
-  public void removeTransformer(Bundle pBundle, ClassTransformer transformer) {
-    LinkedHashSet<WrappingTransformer> set = registeredTransformers.get(pBundle);
+  public synchronized void removeTransformer(Bundle pBundle, ClassTransformer transformer) {
+    CopyOnWriteArraySet<WrappingTransformer> set = registeredTransformers.get(pBundle);
     
-    if(set == null || !!!safeRemove(set, transformer))
+    if(set == null || !!!set.remove(new WrappingTransformer(transformer)))
       throw new IllegalStateException(NLS.MESSAGES.getMessage("jpa.weaving.transformer.not.registered", transformer));
     
     if(set.isEmpty())
       registeredTransformers.remove(pBundle);
   }
-
-  /**
-   * Perform a remove on the collection while synchronized on it
-   * @param set
-   * @param t
-   * @return
-   */
-  private boolean safeRemove(Collection<WrappingTransformer> set, ClassTransformer t) {
-    synchronized(set) {
-        return set.remove(new WrappingTransformer(t));
-      }
-  }
 }
@@ -18,6 +18,8 @@
  */
 package org.apache.aries.jpa.container.weaving.impl;
 
+import java.util.Collection;
+
 import javax.persistence.spi.ClassTransformer;
 
 import org.osgi.framework.Bundle;
@@ -38,6 +40,19 @@ public interface TransformerRegistry {
    */
   public void addTransformer(Bundle pBundle, ClassTransformer transformer, ServiceReference<?> provider);
   
+  /**
+   * Register a new transformer with the WeavingHook that will only be called
+   * for the named classes
+   * 
+   * @param pBundle  The persistence bundle to weave
+   * @param transformer  The transformer to weave with
+   * @param provider The provider to provide packages from
+   * @param managedClasses The fully qualified names of the only classes the transformer
+   *                       can change, or null if any class in the bundle may be changed
+   */
+  public void addTransformer(Bundle pBundle, ClassTransformer transformer, ServiceReference<?> provider,
+      Collection<String> managedClasses);
+  
   
   /**
    * Remove a given transformer from this weaving hook. This must be 
@@ -22,6 +22,7 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Set;
 
 import javax.persistence.spi.ClassTransformer;
 
@@ -36,9 +37,16 @@ import org.osgi.framework.wiring.BundleWiring;
 class WrappingTransformer implements ClassTransformer {
   private final ClassTransformer delegate;
   private final Collection<String> packageImportsToAdd = new HashSet<String>();
+  /** The classes this transformer may change, or null if it may change any class */
+  private final Set<String> managedClasses;
   
   public WrappingTransformer(ClassTransformer delegate,
       ServiceReference<?> persistenceProvider) {
+    this(delegate, persistenceProvider, null);
+  }
+  
+  public WrappingTransformer(ClassTransformer delegate,
+      ServiceReference<?> persistenceProvider, Collection<String> managedClasses) {
 
     if(delegate == null) 
       throw new NullPointerException(NLS.MESSAGES.getMessage("jpa.weaving.null.transformer"));
@@ -48,6 +56,7 @@ class WrappingTransformer implements ClassTransformer {
     }
     
     this.delegate = delegate;
+    this.managedClasses = (managedClasses == null) ? null : new HashSet<String>(managedClasses);
     
     Object packages = persistenceProvider.getProperty("org.apache.aries.jpa.container.weaving.packages");
     
@@ -70,6 +79,15 @@ class WrappingTransformer implements ClassTransformer {
 
   public WrappingTransformer(ClassTransformer transformer) {
     delegate = transformer;
+    managedClasses = null;
+  }
+
+  /**
+   * @param className The fully qualified name of a class being defined
+   * @return false if the transformer cannot possibly change the named class
+   */
+  public boolean isInterestedIn(String className) {
+    return managedClasses == null || managedClasses.contains(className);
   }
 
   public byte[] transform(ClassLoader arg0, String arg1, Class<?> arg2,
@@ -36,10 +36,14 @@ import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 
@@ -51,11 +55,15 @@ import javax.persistence.spi.PersistenceUnitInfo;
 import org.apache.aries.jpa.container.impl.CountingEntityManagerFactory;
 import org.apache.aries.jpa.container.impl.EntityManagerFactoryManager;
 import org.apache.aries.jpa.container.impl.PersistenceBundleManager;
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.jpa.container.statistics.PersistenceContextUsageRecorder;
+import org.apache.aries.jpa.container.statistics.PersistenceUnitStatisticsMBean;
 import org.apache.aries.mocks.BundleContextMock;
 import org.apache.aries.mocks.BundleMock;
 import org.apache.aries.quiesce.manager.QuiesceCallback;
 import org.apache.aries.quiesce.participant.QuiesceParticipant;
 import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.MethodCallHandler;
 import org.apache.aries.unittest.mocks.Skeleton;
 import org.junit.After;
 import org.junit.Before;
@@ -273,7 +281,153 @@ public class PersistenceBundleLifecycleTest
     testSuccessfulCreationEvent(ref, extenderContext, 1);
     testSuccessfulRegistrationEvent(ref, extenderContext, 1);
   }
-  
+
+  @Test
+  public void testManager_PersistenceUnitStatistics() throws Exception
+  {
+    BundleContext extenderContext = preExistingBundleSetup();
+    
+    Hashtable<String,String> hash1 = new Hashtable<String, String>();
+    hash1.put("javax.persistence.provider", "no.such.Provider");
+    persistenceBundle.getBundleContext().registerService(new String[] {PersistenceProvider.class.getName()} ,
+        pp, hash1 );
+    
+    setupPersistenceBundle("file4", "");
+    
+    mgr.start(extenderContext);
+    
+    ServiceReference[] refs = extenderContext.getServiceReferences(PersistenceUnitStatisticsMBean.class.getName(), null);
+    assertEquals("Wrong number of statistics services", 1, refs.length);
+    assertEquals("alpha", refs[0].getProperty(PersistenceUnitConstants.OSGI_UNIT_NAME));
+    assertEquals(PersistenceUnitStatisticsMBean.OBJECTNAME + ",bundle=\"scooby.doo/0.0.0\",name=\"alpha\"", 
+        refs[0].getProperty("jmx.objectname"));
+    
+    PersistenceUnitStatisticsMBean stats = (PersistenceUnitStatisticsMBean) extenderContext.getService(refs[0]);
+    assertEquals("alpha", stats.getPersistenceUnitName());
+    assertTrue("No bootstrap time recorded", stats.getBootstrapTime() >= 0);
+    
+    EntityManagerFactory emf = (EntityManagerFactory) extenderContext.getService(
+        extenderContext.getServiceReferences(EntityManagerFactory.class.getName(), null)[0]);
+    
+    emf.createEntityManager();
+    emf.createEntityManager().close();
+    ((PersistenceContextUsageRecorder) emf).recordDetachedUse();
+    
+    assertEquals(2, stats.getCreatedCount());
+    assertEquals(1, stats.getClosedCount());
+    assertEquals(1, stats.getOpenCount());
+    assertEquals(2, stats.getPeakOpenCount());
+    assertEquals(1, stats.getDetachedUseCount());
+    assertEquals(0, stats.getTransactionalUseCount());
+    
+    long closed = 0;
+    for(long l : stats.getLifetimeHistogram())
+      closed += l;
+    assertEquals(1, closed);
+    
+    stats.reset();
+    assertEquals(0, stats.getCreatedCount());
+    assertEquals(1, stats.getPeakOpenCount());
+    
+    mgr.stop(extenderContext);
+    BundleContextMock.assertNoServiceExists(PersistenceUnitStatisticsMBean.class.getName());
+  }
+
+  @Test
+  public void testManager_AsynchronousEntityManagerFactoryCreation() throws Exception
+  {
+    BundleContext extenderContext = extenderBundle.getBundleContext();
+    setupContainerConfig(EntityManagerFactoryManager.ASYNCHRONOUS);
+
+    mgr = new PersistenceBundleManager();
+    mgr.start(extenderContext);
+
+    Hashtable<String,String> hash1 = new Hashtable<String, String>();
+    hash1.put("javax.persistence.provider", "no.such.Provider");
+    ServiceRegistration reg = persistenceBundle.getBundleContext().registerService(new String[] {PersistenceProvider.class.getName()} ,
+        pp, hash1 );
+    ServiceReference ref = reg.getReference();
+
+    //A provider held up until the bundle has started
+    final CountDownLatch creating = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Skeleton.getSkeleton(pp).registerMethodCallHandler(new MethodCall(PersistenceProvider.class, 
+        "createContainerEntityManagerFactory", PersistenceUnitInfo.class, Map.class), new MethodCallHandler() {
+          public Object handle(MethodCall methodCall, Skeleton skeleton) throws Exception {
+            creating.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return Skeleton.newMock(EntityManagerFactory.class);
+          }
+        });
+
+    setupPersistenceBundle("file4", "");
+
+    Skeleton.getSkeleton(persistenceBundle).setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.INSTALLED);
+    Object o = mgr.addingBundle(persistenceBundle, new BundleEvent(BundleEvent.INSTALLED, persistenceBundle));
+
+    //Resolving starts the creation off the calling thread
+    Skeleton.getSkeleton(persistenceBundle).setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.RESOLVED);
+    mgr.modifiedBundle(persistenceBundle, new BundleEvent(BundleEvent.RESOLVED, persistenceBundle), o);
+    assertTrue(creating.await(5, TimeUnit.SECONDS));
+    BundleContextMock.assertNoServiceExists(EntityManagerFactory.class.getName());
+
+    //Starting does not wait for the unit
+    Skeleton.getSkeleton(persistenceBundle).setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.STARTING);
+    mgr.modifiedBundle(persistenceBundle, new BundleEvent(BundleEvent.STARTING, persistenceBundle), o);
+    BundleContextMock.assertNoServiceExists(EntityManagerFactory.class.getName());
+
+    //The unit is registered as soon as it has been created
+    release.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while(persistenceBundle.getBundleContext().getServiceReference(EntityManagerFactory.class.getName()) == null 
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    Skeleton.getSkeleton(pp).assertCalledExactNumberOfTimes(new MethodCall(PersistenceProvider.class, "createContainerEntityManagerFactory", PersistenceUnitInfo.class, Map.class), 1);
+    testSuccessfulRegistrationEvent(ref, extenderContext, 1);
+
+    mgr.stop(extenderContext);
+  }
+
+  @Test
+  public void testManager_LazyEntityManagerFactoryCreation() throws Exception
+  {
+    BundleContext extenderContext = extenderBundle.getBundleContext();
+    setupContainerConfig(EntityManagerFactoryManager.LAZY);
+
+    mgr = new PersistenceBundleManager();
+    mgr.start(extenderContext);
+
+    Hashtable<String,String> hash1 = new Hashtable<String, String>();
+    hash1.put("javax.persistence.provider", "no.such.Provider");
+    ServiceRegistration reg = persistenceBundle.getBundleContext().registerService(new String[] {PersistenceProvider.class.getName()} ,
+        pp, hash1 );
+    ServiceReference ref = reg.getReference();
+
+    setupPersistenceBundle("file4", "");
+
+    Skeleton.getSkeleton(persistenceBundle).setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.INSTALLED);
+    Object o = mgr.addingBundle(persistenceBundle, new BundleEvent(BundleEvent.INSTALLED, persistenceBundle));
+
+    //A resolved bundle does not pay for its units
+    Skeleton.getSkeleton(persistenceBundle).setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.RESOLVED);
+    mgr.modifiedBundle(persistenceBundle, new BundleEvent(BundleEvent.RESOLVED, persistenceBundle), o);
+    Skeleton.getSkeleton(pp).assertNotCalled(new MethodCall(PersistenceProvider.class, "createContainerEntityManagerFactory", PersistenceUnitInfo.class, Map.class));
+    BundleContextMock.assertNoServiceExists(EntityManagerFactory.class.getName());
+
+    //The units are created, before anything is registered, when the bundle starts
+    Skeleton.getSkeleton(persistenceBundle).setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.STARTING);
+    mgr.modifiedBundle(persistenceBundle, new BundleEvent(BundleEvent.STARTING, persistenceBundle), o);
+
+    testSuccessfulCreationEvent(ref, extenderContext, 1);
+    testSuccessfulRegistrationEvent(ref, extenderContext, 1);
+
+    ServiceReference[] refs = extenderContext.getServiceReferences(EntityManagerFactory.class.getName(), null);
+    CountingEntityManagerFactory emf = (CountingEntityManagerFactory) extenderContext.getService(refs[0]);
+    assertTrue("No bootstrap time recorded", emf.getBootstrapTime() >= 0);
+  }
+
   @Test
   public void testManager_OnePreExistingPersistenceBundle_OneProviderLater() throws Exception
   {
@@ -492,6 +646,46 @@ public class PersistenceBundleLifecycleTest
     BundleContextMock.assertNoServiceExists(EntityManagerFactory.class.getName());
   }
   
+  @Test
+  public void testUnchangedDescriptorNotReparsed() throws Exception
+  {
+    setupPersistenceBundle("file4", "");
+    long lastModified = System.currentTimeMillis();
+    Skeleton skel = Skeleton.getSkeleton(persistenceBundle);
+    skel.setReturnValue(new MethodCall(Bundle.class, "getBundleId"), 42L);
+    skel.setReturnValue(new MethodCall(Bundle.class, "getLastModified"), lastModified);
+    BundleContext extenderContext = preExistingBundleSetup();
+    
+    Hashtable<String,String> hash1 = new Hashtable<String, String>();
+    hash1.put("javax.persistence.provider", "no.such.Provider");
+    persistenceBundle.getBundleContext().registerService(new String[] {PersistenceProvider.class.getName(), "no.such.Provider"} ,
+        pp, hash1 );
+
+    mgr.start(extenderContext);
+    assertUnitNames("alpha");
+
+    //Change the descriptor without changing the bundle, the cached units should be used
+    skel.setReturnValue(new MethodCall(Bundle.class, "getEntry", "META-INF/persistence.xml"),
+        getClass().getClassLoader().getResource("file6/META-INF/persistence.xml"));
+    skel.setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.INSTALLED);
+    mgr.modifiedBundle(persistenceBundle, new BundleEvent(BundleEvent.UPDATED, persistenceBundle), getTrackedObject());
+    assertUnitNames("alpha");
+
+    //A real update changes the last modified time
+    skel.setReturnValue(new MethodCall(Bundle.class, "getLastModified"), lastModified + 1);
+    mgr.modifiedBundle(persistenceBundle, new BundleEvent(BundleEvent.UPDATED, persistenceBundle), getTrackedObject());
+    assertUnitNames("alpha", "bravo");
+  }
+
+  private void assertUnitNames(String... names) throws Exception
+  {
+    Collection<ParsedPersistenceUnit> units = getTrackedObject().getParsedPersistenceUnits();
+    assertEquals(names.length, units.size());
+    int i = 0;
+    for(ParsedPersistenceUnit unit : units)
+      assertEquals(names[i++], unit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME));
+  }
+
   @Test
   public void testBundleChangedUnresolved() throws Exception
   {
@@ -1314,6 +1508,24 @@ public class PersistenceBundleLifecycleTest
     
   }
 
+  private void setupContainerConfig(String creationMode) throws IOException {
+    File f = File.createTempFile("jpaContainer", ".properties");
+    f.deleteOnExit();
+
+    Properties props = new Properties();
+    props.setProperty(EntityManagerFactoryManager.EMF_CREATION_MODE, creationMode);
+    props.setProperty(EntityManagerFactoryManager.EMF_CREATION_THREADS, "2");
+    FileOutputStream fos = new FileOutputStream(f);
+    try {
+      props.store(fos, null);
+    } finally {
+      fos.close();
+    }
+
+    Skeleton.getSkeleton(extenderBundle).setReturnValue(new MethodCall(Bundle.class, "getResource",
+        ManagedPersistenceUnitInfoFactory.ARIES_JPA_CONTAINER_PROPERTIES), f.toURI().toURL());
+  }
+
   private void setupWABBundle() throws Exception {
     
     persistenceBundle.getHeaders().put("Web-ContextPath", "/test2");
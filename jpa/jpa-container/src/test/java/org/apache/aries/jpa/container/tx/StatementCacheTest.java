@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.tx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.aries.jpa.container.tx.impl.ConnectionWrapper;
+import org.apache.aries.jpa.container.tx.impl.StatementCache;
+import org.apache.aries.jpa.container.tx.impl.StatementCacheStatistics;
+import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.Skeleton;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatementCacheTest {
+
+  private Connection physical;
+
+  private StatementCacheStatistics stats;
+
+  @Before
+  public void setup() {
+    physical = Skeleton.newMock(Connection.class);
+    stats = new StatementCacheStatistics();
+  }
+
+  private PreparedStatement statementFor(String sql) {
+    PreparedStatement ps = Skeleton.newMock(PreparedStatement.class);
+    Skeleton.getSkeleton(physical).setReturnValue(
+        new MethodCall(Connection.class, "prepareStatement", sql), ps);
+    return ps;
+  }
+
+  @Test
+  public void testClosedStatementIsReused() throws Exception {
+    Connection conn = new ConnectionWrapper(physical, true, new StatementCache(physical, 2, stats));
+
+    PreparedStatement ps = conn.prepareStatement("select 1");
+    assertSame(conn, ps.getConnection());
+    ps.close();
+    assertTrue(ps.isClosed());
+    try {
+      ps.executeQuery();
+      fail("A closed statement should not be usable");
+    } catch (SQLException sqle) {
+      //Expected
+    }
+
+    PreparedStatement ps2 = conn.prepareStatement("select 1");
+    assertFalse(ps2.isClosed());
+    //A different key is a different statement
+    conn.prepareStatement("select 1", new String[] {"ID"});
+
+    Skeleton.getSkeleton(physical).assertCalledExactNumberOfTimes(
+        new MethodCall(Connection.class, "prepareStatement", "select 1"), 1);
+    Skeleton.getSkeleton(physical).assertCalledExactNumberOfTimes(
+        new MethodCall(Connection.class, "prepareStatement", "select 1", String[].class), 1);
+
+    assertEquals(1, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+    assertEquals(1d/3, stats.getHitRatio(), 0.001d);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    PreparedStatement a = statementFor("a");
+    PreparedStatement b = statementFor("b");
+    StatementCache cache = new StatementCache(physical, 1, stats);
+
+    cache.prepareStatement(physical, StatementCache.Key.forSql("a")).close();
+    cache.prepareStatement(physical, StatementCache.Key.forSql("b")).close();
+
+    Skeleton.getSkeleton(a).assertCalled(new MethodCall(PreparedStatement.class, "close"));
+    Skeleton.getSkeleton(b).assertNotCalled(new MethodCall(PreparedStatement.class, "close"));
+    Skeleton.getSkeleton(b).assertCalled(new MethodCall(PreparedStatement.class, "clearParameters"));
+    assertEquals(1, stats.getEvictionCount());
+  }
+
+  @Test
+  public void testCloseReleasesStatements() throws Exception {
+    PreparedStatement physicalIdle = statementFor("idle");
+    PreparedStatement physicalInUse = statementFor("in use");
+    StatementCache cache = new StatementCache(physical, 2, stats);
+
+    cache.prepareStatement(physical, StatementCache.Key.forSql("idle")).close();
+    PreparedStatement inUse = cache.prepareStatement(physical, StatementCache.Key.forSql("in use"));
+
+    cache.close();
+
+    Skeleton.getSkeleton(physicalIdle).assertCalled(new MethodCall(PreparedStatement.class, "close"));
+
+    Skeleton.getSkeleton(physicalInUse).assertNotCalled(new MethodCall(PreparedStatement.class, "close"));
+    //Once the transaction is over a released statement must not be kept
+    inUse.close();
+    Skeleton.getSkeleton(physicalInUse).assertCalled(new MethodCall(PreparedStatement.class, "close"));
+  }
+
+  @Test
+  public void testStatementIsResetBeforeReuse() throws Exception {
+    PreparedStatement physicalPs = statementFor("reset");
+    ResultSet rs = Skeleton.newMock(ResultSet.class);
+    Skeleton.getSkeleton(physicalPs).setReturnValue(
+        new MethodCall(PreparedStatement.class, "executeQuery"), rs);
+    StatementCache cache = new StatementCache(physical, 2, stats);
+
+    PreparedStatement ps = cache.prepareStatement(physical, StatementCache.Key.forSql("reset"));
+    assertSame(rs, ps.executeQuery());
+    ps.addBatch();
+    ps.close();
+
+    Skeleton.getSkeleton(rs).assertCalled(new MethodCall(ResultSet.class, "close"));
+    Skeleton.getSkeleton(physicalPs).assertCalled(new MethodCall(PreparedStatement.class, "clearBatch"));
+    Skeleton.getSkeleton(physicalPs).assertNotCalled(new MethodCall(PreparedStatement.class, "close"));
+
+    cache.prepareStatement(physical, StatementCache.Key.forSql("reset")).close();
+    assertEquals(1, stats.getHitCount());
+  }
+
+  @Test
+  public void testStatementWithChangedSettingsIsNotCached() throws Exception {
+    PreparedStatement physicalPs = statementFor("settings");
+    StatementCache cache = new StatementCache(physical, 2, stats);
+
+    PreparedStatement ps = cache.prepareStatement(physical, StatementCache.Key.forSql("settings"));
+    ps.setFetchSize(500);
+    ps.close();
+
+    Skeleton.getSkeleton(physicalPs).assertCalled(new MethodCall(PreparedStatement.class, "close"));
+
+    cache.prepareStatement(physical, StatementCache.Key.forSql("settings"));
+    assertEquals(0, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+  }
+}
@@ -300,6 +300,43 @@ public class JPAWeavingHookTest {
     assertCalled(wc, returnedBytes, b1, "specifiedPackage1", "specifiedPackage2;attribute=value");
   }
   
+  @Test
+  public void testUnmanagedClassesNotWoven() {
+    ServiceReference provider1 = basicProviderSetup(null);
+    JPAWeavingHook tr = (JPAWeavingHook) TransformerRegistryFactory.getTransformerRegistry();
+    
+    //Add a transformer that only manages one class
+    tr.addTransformer(b1, ct1a, provider1, Collections.singletonList("test6"));
+    
+    ProtectionDomain pd = new ProtectionDomain(null, null);
+    byte[] bytes = new byte[] {(byte) 0xBE, (byte)0xAD};
+    
+    byte[] returnedBytes = new byte[] {(byte) 0xBA, (byte)0xDE};
+    
+    Skeleton.getSkeleton(ct1a).setReturnValue(new MethodCall(ClassTransformer.class, "transform",
+        this.getClass().getClassLoader(), "test6", this.getClass(), pd, bytes), returnedBytes);
+    
+    WovenClass wc = getWovenClass(b1, "test7", bytes, this.getClass().getClassLoader(),
+        this.getClass(), pd);
+    
+    tr.weave(wc);
+    
+    Skeleton.getSkeleton(ct1a).assertNotCalled(new MethodCall(ClassTransformer.class, "transform",
+        ClassLoader.class, String.class, Class.class, ProtectionDomain.class, byte[].class));
+    assertNotCalled(wc);
+    
+    wc = getWovenClass(b1, "test6", bytes, this.getClass().getClassLoader(),
+        this.getClass(), pd);
+    
+    tr.weave(wc);
+    
+    Skeleton.getSkeleton(ct1a).assertCalled(new MethodCall(ClassTransformer.class, "transform",
+        this.getClass().getClassLoader(), "test6", this.getClass(), pd, bytes));
+    
+    assertCalled(wc, returnedBytes, b1, "foundPackage;" + Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE + "=bundle1;" + 
+        Constants.BUNDLE_VERSION_ATTRIBUTE + "=0.0.0");
+  }
+  
   private void assertCalled(WovenClass wc, byte[] returnedBytes, Bundle b,
       String... string) {
     Skeleton.getSkeleton(wc).assertCalledExactNumberOfTimes(new MethodCall(WovenClass.class, 
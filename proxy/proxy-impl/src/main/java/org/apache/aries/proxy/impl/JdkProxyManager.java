@@ -33,7 +33,9 @@ public final class JdkProxyManager extends AbstractProxyManager implements Proxy
   public Object createNewProxy(Bundle clientBundle, Collection<Class<?>> classes, 
       Callable<Object> dispatcher, InvocationListener listener) throws UnableToProxyException 
   {
-    return Proxy.newProxyInstance(getClassLoader(clientBundle, classes), getInterfaces(classes), new ProxyHandler(this, dispatcher, listener));
+    Object proxy = Proxy.newProxyInstance(getClassLoader(clientBundle, classes), getInterfaces(classes), new ProxyHandler(this, dispatcher, listener));
+    ProxyStatistics.getInstance().jdkProxyCreated();
+    return proxy;
   }
 
   private static final Class<?>[] getInterfaces(Collection<Class<?>> classes) throws UnableToProxyException
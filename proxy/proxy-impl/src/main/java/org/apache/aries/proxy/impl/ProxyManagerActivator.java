@@ -22,6 +22,8 @@ import java.util.Dictionary;
 import java.util.Hashtable;
 
 import org.apache.aries.proxy.ProxyManager;
+import org.apache.aries.proxy.impl.interfaces.InterfaceProxyGenerator;
+import org.apache.aries.proxy.statistics.ProxyStatisticsMBean;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
@@ -49,6 +51,9 @@ public class ProxyManagerActivator implements BundleActivator
     if (ASM_PROXY_SUPPORTED) {
       managerService = new AsmProxyManager();
       
+      InterfaceProxyGenerator.setSharedClassLoaders(
+          Boolean.valueOf(context.getProperty(InterfaceProxyGenerator.SHARED_CLASS_LOADERS)));
+      
       try {
         //if ASM is available then we should also try weaving
         Class<?> cls = Class.forName("org.apache.aries.proxy.impl.weaving.ProxyWeavingHook");
@@ -69,6 +74,12 @@ public class ProxyManagerActivator implements BundleActivator
     }
     
     context.registerService(ProxyManager.class.getName(), managerService, null);
+    
+    // The statistics are also published as an MBean if a JMX whiteboard is available
+    Dictionary<String,String> statsProps = new Hashtable<String,String>();
+    statsProps.put("jmx.objectname", ProxyStatisticsMBean.OBJECTNAME);
+    context.registerService(ProxyStatisticsMBean.class.getName(), 
+        ProxyStatistics.getInstance(), statsProps);
   }
 
   public void stop(BundleContext context)
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.proxy.impl;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.aries.proxy.statistics.ProxyStatisticsMBean;
+import org.osgi.framework.Bundle;
+
+/**
+ * Collects the statistics published by the {@link ProxyStatisticsMBean} service.
+ * The proxy generators are static, so there is a single shared instance.
+ */
+public final class ProxyStatistics implements ProxyStatisticsMBean
+{
+  private static final ProxyStatistics INSTANCE = new ProxyStatistics();
+
+  private final AtomicLong subclassClasses = new AtomicLong();
+  private final AtomicLong subclassNanos = new AtomicLong();
+  private final AtomicLong subclassHits = new AtomicLong();
+  private final AtomicLong subclassMisses = new AtomicLong();
+
+  private final AtomicLong interfaceClasses = new AtomicLong();
+  private final AtomicLong interfaceNanos = new AtomicLong();
+  private final AtomicLong interfaceHits = new AtomicLong();
+  private final AtomicLong interfaceMisses = new AtomicLong();
+
+  private final AtomicLong jdkProxies = new AtomicLong();
+
+  private final AtomicLong wovenClasses = new AtomicLong();
+  private final AtomicLong weavingNanos = new AtomicLong();
+  private final AtomicLong weavingFailures = new AtomicLong();
+  private final AtomicLong unwovenClasses = new AtomicLong();
+
+  private final AtomicLong classLoaders = new AtomicLong();
+  /** The live proxy class loaders, mapped to the id of their client bundle */
+  private final Map<ClassLoader, Long> liveClassLoaders = new WeakHashMap<ClassLoader, Long>();
+
+  private ProxyStatistics()
+  {
+  }
+
+  public static ProxyStatistics getInstance()
+  {
+    return INSTANCE;
+  }
+
+  public void subclassCacheHit()
+  {
+    subclassHits.incrementAndGet();
+  }
+
+  public void subclassGenerated(long nanos, boolean success)
+  {
+    subclassMisses.incrementAndGet();
+    subclassNanos.addAndGet(nanos);
+    if (success) subclassClasses.incrementAndGet();
+  }
+
+  public void interfaceCacheHit()
+  {
+    interfaceHits.incrementAndGet();
+  }
+
+  public void interfaceGenerated(long nanos, boolean success)
+  {
+    interfaceMisses.incrementAndGet();
+    interfaceNanos.addAndGet(nanos);
+    if (success) interfaceClasses.incrementAndGet();
+  }
+
+  public void jdkProxyCreated()
+  {
+    jdkProxies.incrementAndGet();
+  }
+
+  public void classWoven(long nanos, boolean success)
+  {
+    weavingNanos.addAndGet(nanos);
+    if (success) {
+      wovenClasses.incrementAndGet();
+    } else {
+      weavingFailures.incrementAndGet();
+    }
+  }
+
+  public void classNotWoven(long nanos)
+  {
+    weavingNanos.addAndGet(nanos);
+    unwovenClasses.incrementAndGet();
+  }
+
+  public void proxyClassLoaderCreated(ClassLoader loader, Bundle client)
+  {
+    classLoaders.incrementAndGet();
+    Long bundleId = (client == null) ? null : client.getBundleId();
+    synchronized (liveClassLoaders) {
+      liveClassLoaders.put(loader, bundleId);
+    }
+  }
+
+  public long getSubclassProxyClassCount()
+  {
+    return subclassClasses.get();
+  }
+
+  public long getSubclassGenerationTime()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(subclassNanos.get());
+  }
+
+  public long getSubclassCacheHitCount()
+  {
+    return subclassHits.get();
+  }
+
+  public long getSubclassCacheMissCount()
+  {
+    return subclassMisses.get();
+  }
+
+  public long getInterfaceProxyClassCount()
+  {
+    return interfaceClasses.get();
+  }
+
+  public long getInterfaceGenerationTime()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(interfaceNanos.get());
+  }
+
+  public long getInterfaceCacheHitCount()
+  {
+    return interfaceHits.get();
+  }
+
+  public long getInterfaceCacheMissCount()
+  {
+    return interfaceMisses.get();
+  }
+
+  public long getJdkProxyCount()
+  {
+    return jdkProxies.get();
+  }
+
+  public long getWovenClassCount()
+  {
+    return wovenClasses.get();
+  }
+
+  public long getWeavingTime()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(weavingNanos.get());
+  }
+
+  public long getWeavingFailureCount()
+  {
+    return weavingFailures.get();
+  }
+
+  public long getUnwovenClassCount()
+  {
+    return unwovenClasses.get();
+  }
+
+  public long getProxyClassLoaderCount()
+  {
+    return classLoaders.get();
+  }
+
+  public int getLiveProxyClassLoaderCount()
+  {
+    synchronized (liveClassLoaders) {
+      return liveClassLoaders.size();
+    }
+  }
+
+  public int getLiveProxyClassLoaderCount(long bundleId)
+  {
+    int count = 0;
+    synchronized (liveClassLoaders) {
+      for (Long id : liveClassLoaders.values()) {
+        if (id != null && id.longValue() == bundleId) count++;
+      }
+    }
+    return count;
+  }
+
+  public void reset()
+  {
+    subclassClasses.set(0);
+    subclassNanos.set(0);
+    subclassHits.set(0);
+    subclassMisses.set(0);
+    interfaceClasses.set(0);
+    interfaceNanos.set(0);
+    interfaceHits.set(0);
+    interfaceMisses.set(0);
+    jdkProxies.set(0);
+    wovenClasses.set(0);
+    weavingNanos.set(0);
+    weavingFailures.set(0);
+    unwovenClasses.set(0);
+    classLoaders.set(0);
+  }
+}
@@ -26,18 +26,23 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.apache.aries.proxy.FinalModifierException;
 import org.apache.aries.proxy.UnableToProxyException;
 import org.apache.aries.proxy.impl.NLS;
+import org.apache.aries.proxy.impl.ProxyStatistics;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
@@ -56,6 +61,11 @@ public class ProxySubclassGenerator
   // the map of
   // Class names to sub-Class names)
   private static final Map<ClassLoader, ConcurrentMap<String, String>> proxyClassesByClassLoader;
+
+  // Generations that are currently in progress, keyed in the same way as
+  // proxyClassesByClassLoader. Entries are removed as soon as the generation
+  // completes, so this only ever holds work that is in flight
+  private static final Map<ClassLoader, ConcurrentMap<String, FutureTask<Class<?>>>> pendingGenerationsByClassLoader;
   
   private static final ClassLoader defaultClassLoader = new ClassLoader() {};
 
@@ -65,90 +75,183 @@ public class ProxySubclassGenerator
     //
     proxyClassesByClassLoader = Collections
         .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, String>>());
+    pendingGenerationsByClassLoader = Collections
+        .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, FutureTask<Class<?>>>>());
   }
 
   private static final char FINAL_MODIFIER = '!';
   private static final char UNABLE_TO_PROXY = '#';
 
-  public static Class<?> getProxySubclass(Class<?> aClass) throws UnableToProxyException
+  public static Class<?> getProxySubclass(final Class<?> aClass) throws UnableToProxyException
   {
     LOGGER.debug(Constants.LOG_ENTRY, "getProxySubclass", new Object[] { aClass });
 
-    ClassLoader loader = aClass.getClassLoader();
+    ClassLoader cl = aClass.getClassLoader();
     // in the special case where the loader is null we use a default classloader
     // this is for subclassing java.* or javax.* packages, so that one will do
-    if (loader == null) loader = defaultClassLoader;
+    final ClassLoader loader = (cl == null) ? defaultClassLoader : cl;
 
-    ConcurrentMap<String, String> proxyMap;
-    synchronized (loader) {
-      proxyMap = proxyClassesByClassLoader.get(loader);
-      if (proxyMap == null) {
-        proxyMap = new ConcurrentHashMap<String, String>();
-        proxyClassesByClassLoader.put(loader, proxyMap);
-      }
-    }
+    final ConcurrentMap<String, String> proxyMap = getProxyMap(loader);
+    String key = aClass.getName();
 
     // check the map to see if we have already generated a subclass for this
     // class
     // if we have return the mapped class object
     // if we haven't generate the subclass and return it
-    Class<?> classToReturn = null;
-    synchronized (aClass) {
-      String key = aClass.getName();
-      String className = proxyMap.get(key);
-      if (className != null) {
-
-        LOGGER.debug("Found proxy subclass with key {} and name {}.", key, className);
-
-        if (className.charAt(0) == FINAL_MODIFIER) {
-          String[] exceptionParts = className.substring(1).split(":");
-          if (exceptionParts.length == 1) {
-            throw new FinalModifierException(aClass);
-          } else {
-            throw new FinalModifierException(aClass, exceptionParts[1]);
-          }
-        } else if (className.charAt(0) == UNABLE_TO_PROXY) {
-          throw new UnableToProxyException(aClass);
+    Class<?> classToReturn;
+    String className = proxyMap.get(key);
+    if (className != null) {
+      ProxyStatistics.getInstance().subclassCacheHit();
+      classToReturn = loadProxySubclass(aClass, loader, key, className);
+    } else {
+      // Concurrent requests for the same class share a single generation,
+      // requests for different classes proceed in parallel
+      ConcurrentMap<String, FutureTask<Class<?>>> pending = getPendingGenerations(loader);
+      FutureTask<Class<?>> generation = new FutureTask<Class<?>>(new Callable<Class<?>>() {
+        public Class<?> call() throws UnableToProxyException
+        {
+          return findOrGenerateSubclass(aClass, loader, proxyMap);
         }
-
+      });
+      FutureTask<Class<?>> existing = pending.putIfAbsent(key, generation);
+      if (existing == null) {
         try {
-          classToReturn = loader.loadClass(className);
-        } catch (ClassNotFoundException cnfe) {
-          LOGGER.debug(Constants.LOG_EXCEPTION, cnfe);
-          throw new UnableToLoadProxyException(className, cnfe);
+          generation.run();
+        } finally {
+          pending.remove(key, generation);
         }
       } else {
+        LOGGER.debug("Waiting for the generation of subclass with key {}.", key);
+        generation = existing;
+      }
+      classToReturn = getGeneratedSubclass(generation);
+    }
 
-        LOGGER.debug("Need to generate subclass. Using key {}.", key);
-        try {
-          scanForFinalModifiers(aClass);
+    LOGGER.debug(Constants.LOG_EXIT, "getProxySubclass", classToReturn);
 
-          classToReturn = generateAndLoadSubclass(aClass, loader);
+    return classToReturn;
+  }
 
-          if (classToReturn != null) {
-            proxyMap.put(key, classToReturn.getName());
-          } else {
-            proxyMap.put(key, UNABLE_TO_PROXY + aClass.getName());
-            throw new UnableToProxyException(aClass);
-          }
-        } catch (FinalModifierException e) {
-          if (e.isFinalClass()) {
-            proxyMap.put(key, FINAL_MODIFIER + e.getClassName());
-            throw e;
+  private static ConcurrentMap<String, String> getProxyMap(ClassLoader loader)
+  {
+    // The compound get/put is guarded by the registry's own monitor, which is
+    // never visible outside this class
+    synchronized (proxyClassesByClassLoader) {
+      ConcurrentMap<String, String> proxyMap = proxyClassesByClassLoader.get(loader);
+      if (proxyMap == null) {
+        proxyMap = new ConcurrentHashMap<String, String>();
+        proxyClassesByClassLoader.put(loader, proxyMap);
+      }
+      return proxyMap;
+    }
+  }
+
+  private static ConcurrentMap<String, FutureTask<Class<?>>> getPendingGenerations(ClassLoader loader)
+  {
+    synchronized (pendingGenerationsByClassLoader) {
+      ConcurrentMap<String, FutureTask<Class<?>>> pending = pendingGenerationsByClassLoader.get(loader);
+      if (pending == null) {
+        pending = new ConcurrentHashMap<String, FutureTask<Class<?>>>();
+        pendingGenerationsByClassLoader.put(loader, pending);
+      }
+      return pending;
+    }
+  }
+
+  private static Class<?> getGeneratedSubclass(FutureTask<Class<?>> generation)
+      throws UnableToProxyException
+  {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return generation.get();
+        } catch (InterruptedException ie) {
+          // the generation is running on another thread, we must wait for it
+          interrupted = true;
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause instanceof UnableToProxyException) {
+            throw (UnableToProxyException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
           } else {
-            proxyMap.put(key, FINAL_MODIFIER + e.getClassName() + ':' + e.getFinalMethods());
-            throw e;
+            throw new UndeclaredThrowableException(cause);
           }
         }
-
       }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static Class<?> findOrGenerateSubclass(Class<?> aClass, ClassLoader loader,
+      ConcurrentMap<String, String> proxyMap) throws UnableToProxyException
+  {
+    String key = aClass.getName();
+    // another generation may have completed since we last looked
+    String className = proxyMap.get(key);
+    if (className != null) {
+      ProxyStatistics.getInstance().subclassCacheHit();
+      return loadProxySubclass(aClass, loader, key, className);
     }
 
-    LOGGER.debug(Constants.LOG_EXIT, "getProxySubclass", classToReturn);
+    LOGGER.debug("Need to generate subclass. Using key {}.", key);
+    Class<?> classToReturn = null;
+    long start = System.nanoTime();
+    try {
+      scanForFinalModifiers(aClass);
 
+      classToReturn = generateAndLoadSubclass(aClass, loader);
+
+      if (classToReturn != null) {
+        proxyMap.put(key, classToReturn.getName());
+      } else {
+        proxyMap.put(key, UNABLE_TO_PROXY + aClass.getName());
+        throw new UnableToProxyException(aClass);
+      }
+    } catch (FinalModifierException e) {
+      if (e.isFinalClass()) {
+        proxyMap.put(key, FINAL_MODIFIER + e.getClassName());
+        throw e;
+      } else {
+        proxyMap.put(key, FINAL_MODIFIER + e.getClassName() + ':' + e.getFinalMethods());
+        throw e;
+      }
+    } finally {
+      ProxyStatistics.getInstance().subclassGenerated(System.nanoTime() - start, classToReturn != null);
+    }
     return classToReturn;
   }
 
+  private static Class<?> loadProxySubclass(Class<?> aClass, ClassLoader loader, String key,
+      String className) throws UnableToProxyException
+  {
+    LOGGER.debug("Found proxy subclass with key {} and name {}.", key, className);
+
+    if (className.charAt(0) == FINAL_MODIFIER) {
+      String[] exceptionParts = className.substring(1).split(":");
+      if (exceptionParts.length == 1) {
+        throw new FinalModifierException(aClass);
+      } else {
+        throw new FinalModifierException(aClass, exceptionParts[1]);
+      }
+    } else if (className.charAt(0) == UNABLE_TO_PROXY) {
+      throw new UnableToProxyException(aClass);
+    }
+
+    try {
+      return loader.loadClass(className);
+    } catch (ClassNotFoundException cnfe) {
+      LOGGER.debug(Constants.LOG_EXCEPTION, cnfe);
+      throw new UnableToLoadProxyException(className, cnfe);
+    }
+  }
+
   public static Object newProxySubclassInstance(Class<?> classToProxy, InvocationHandler ih)
       throws UnableToProxyException
   {
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.proxy.impl.interfaces;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+
+/**
+ * A map key representing a set of class loaders, compared by identity. The class
+ * loaders are only weakly referenced so that the key does not prevent them being 
+ * garbage collected. A <code>null</code> entry represents the boot class loader.
+ */
+final class ClassLoaderSetKey {
+
+  private final WeakReference<ClassLoader>[] loaders;
+  
+  private final int hashCode;
+  
+  @SuppressWarnings("unchecked")
+  public ClassLoaderSetKey(Collection<ClassLoader> classLoaders) {
+    loaders = new WeakReference[classLoaders.size()];
+    int hash = 0;
+    int i = 0;
+    for (ClassLoader cl : classLoaders) {
+      loaders[i++] = (cl == null) ? null : new WeakReference<ClassLoader>(cl);
+      hash += System.identityHashCode(cl);
+    }
+    hashCode = hash;
+  }
+
+  /**
+   * @return true if any of the class loaders in this key has been garbage collected
+   */
+  public boolean isStale() {
+    for (WeakReference<ClassLoader> ref : loaders) {
+      if (ref != null && ref.get() == null) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!!!(o instanceof ClassLoaderSetKey)) return false;
+    
+    ClassLoaderSetKey other = (ClassLoaderSetKey) o;
+    if (other.hashCode != hashCode || other.loaders.length != loaders.length) return false;
+    
+    // A stale key is only ever equal to itself
+    if (isStale() || other.isStale()) return false;
+    
+    for (WeakReference<ClassLoader> ref : loaders) {
+      if (!!!other.contains(ref == null ? null : ref.get())) return false;
+    }
+    return true;
+  }
+  
+  private boolean contains(ClassLoader cl) {
+    for (WeakReference<ClassLoader> ref : loaders) {
+      ClassLoader loader = (ref == null) ? null : ref.get();
+      if (loader == cl) return true;
+    }
+    return false;
+  }
+}
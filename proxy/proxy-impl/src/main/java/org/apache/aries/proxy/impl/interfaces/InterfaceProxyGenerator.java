@@ -24,7 +24,11 @@ import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
@@ -33,6 +37,7 @@ import java.util.concurrent.Callable;
 import org.apache.aries.proxy.FinalModifierException;
 import org.apache.aries.proxy.InvocationListener;
 import org.apache.aries.proxy.UnableToProxyException;
+import org.apache.aries.proxy.impl.ProxyStatistics;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Opcodes;
 import org.osgi.framework.Bundle;
@@ -51,8 +56,33 @@ public final class InterfaceProxyGenerator extends ClassVisitor implements Opcod
     
   }
 
+  /**
+   * The framework property that enables sharing of interface proxy classes between all
+   * client bundles that see the same interface (and superclass) class objects
+   */
+  public static final String SHARED_CLASS_LOADERS = "org.apache.aries.proxy.interfaces.shared";
+
   private static final Map<Bundle, WeakReference<ProxyClassLoader>> cache = 
             new WeakHashMap<Bundle, WeakReference<ProxyClassLoader>>(128);
+
+  /**
+   * The shared class loaders, keyed by the defining class loaders of the types being proxied.
+   * Both the keys and the values are weakly held, so an entry is evicted once its proxy
+   * classes, or any of the class loaders it is keyed by, have been garbage collected.
+   */
+  private static final Map<ClassLoaderSetKey, WeakReference<ProxyClassLoader>> sharedCache = 
+            new HashMap<ClassLoaderSetKey, WeakReference<ProxyClassLoader>>(128);
+
+  private static volatile boolean sharedClassLoaders = false;
+
+  /**
+   * Switch between one proxy class loader per client bundle (the default) and proxy class
+   * loaders shared between all clients that see the same interface class objects
+   * @param shared
+   */
+  public static void setSharedClassLoaders(boolean shared) {
+    sharedClassLoaders = shared;
+  }
   
   /**
    * Generate a new proxy instance implementing the supplied interfaces and using the supplied
@@ -71,10 +101,25 @@ public final class InterfaceProxyGenerator extends ClassVisitor implements Opcod
     if(superclass != null && (superclass.getModifiers() & Modifier.FINAL) != 0)
       throw new FinalModifierException(superclass);
     
-    ProxyClassLoader pcl = null;
-    
     SortedSet<Class<?>> interfaces = createSet(ifaces);
     
+    ProxyClassLoader pcl = sharedClassLoaders ? getSharedClassLoader(superclass, interfaces)
+        : getClassLoader(client, interfaces);
+    
+    Class<?> c = pcl.createProxyClass(superclass, interfaces);
+        
+    try {
+      Constructor<?> con = c.getDeclaredConstructor(Callable.class, InvocationListener.class);
+      con.setAccessible(true);
+      return con.newInstance(dispatcher, listener);
+    } catch (Exception e) {
+      throw new UnableToProxyException(ifaces.iterator().next(), e);
+    }
+  }
+
+  private static ProxyClassLoader getClassLoader(Bundle client, SortedSet<Class<?>> interfaces) {
+    ProxyClassLoader pcl = null;
+    
     synchronized (cache) {
       WeakReference<ProxyClassLoader> ref = cache.get(client);
       
@@ -89,17 +134,55 @@ public final class InterfaceProxyGenerator extends ClassVisitor implements Opcod
       if(pcl == null) {
         pcl = new ProxyClassLoader(client);
         cache.put(client, new WeakReference<ProxyClassLoader>(pcl));
+        ProxyStatistics.getInstance().proxyClassLoaderCreated(pcl, client);
       }
     }
+    return pcl;
+  }
+
+  private static ProxyClassLoader getSharedClassLoader(Class<?> superclass, 
+      SortedSet<Class<?>> interfaces) {
+    Set<ClassLoader> loaders = new LinkedHashSet<ClassLoader>();
+    for (Class<?> iface : interfaces) {
+      loaders.add(iface.getClassLoader());
+    }
+    if (superclass != null) loaders.add(superclass.getClassLoader());
     
-    Class<?> c = pcl.createProxyClass(superclass, interfaces);
-        
-    try {
-      Constructor<?> con = c.getDeclaredConstructor(Callable.class, InvocationListener.class);
-      con.setAccessible(true);
-      return con.newInstance(dispatcher, listener);
-    } catch (Exception e) {
-      throw new UnableToProxyException(ifaces.iterator().next(), e);
+    ClassLoaderSetKey key = new ClassLoaderSetKey(loaders);
+    ProxyClassLoader pcl = null;
+    
+    synchronized (sharedCache) {
+      WeakReference<ProxyClassLoader> ref = sharedCache.get(key);
+      
+      if(ref != null)
+        pcl = ref.get();
+      
+      if (pcl != null && pcl.isInvalid(interfaces)) {
+          pcl = null;
+      }
+      
+      if(pcl == null) {
+        purgeSharedCache();
+        pcl = new ProxyClassLoader(null);
+        sharedCache.put(key, new WeakReference<ProxyClassLoader>(pcl));
+        ProxyStatistics.getInstance().proxyClassLoaderCreated(pcl, null);
+      }
+    }
+    return pcl;
+  }
+
+  /**
+   * Remove any shared cache entries whose class loaders have been garbage collected.
+   * Must be called while holding the sharedCache lock
+   */
+  private static void purgeSharedCache() {
+    Iterator<Map.Entry<ClassLoaderSetKey, WeakReference<ProxyClassLoader>>> it = 
+      sharedCache.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<ClassLoaderSetKey, WeakReference<ProxyClassLoader>> entry = it.next();
+      if (entry.getValue().get() == null || entry.getKey().isStale()) {
+        it.remove();
+      }
     }
   }
 
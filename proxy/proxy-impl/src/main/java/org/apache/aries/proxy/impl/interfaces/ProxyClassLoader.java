@@ -35,6 +35,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.aries.proxy.InvocationListener;
 import org.apache.aries.proxy.UnableToProxyException;
+import org.apache.aries.proxy.impl.ProxyStatistics;
 import org.apache.aries.proxy.impl.common.AbstractWovenProxyAdapter;
 import org.apache.aries.proxy.weaving.WovenProxy;
 import org.apache.aries.util.AriesFrameworkUtil;
@@ -62,6 +63,10 @@ final class ProxyClassLoader extends ClassLoader {
   
   private final ReadWriteLock ifacesLock = new ReentrantReadWriteLock();
   
+  /**
+   * @param bundle the client bundle whose class loader is used as the parent, or null
+   *               for a loader that only sees the classes it is asked to proxy
+   */
   public ProxyClassLoader(Bundle bundle) {
     super(AriesFrameworkUtil.getClassLoader(bundle));
   }
@@ -126,7 +131,9 @@ final class ProxyClassLoader extends ClassLoader {
     
     if(className != null) {
       try {
-        return Class.forName(className, false, this);
+        Class<?> c = Class.forName(className, false, this);
+        ProxyStatistics.getInstance().interfaceCacheHit();
+        return c;
       } catch (ClassNotFoundException cnfe) {
         //This is odd, but we should be able to recreate the class, continue
         classes.remove(createSet);
@@ -152,10 +159,13 @@ final class ProxyClassLoader extends ClassLoader {
     //object. This is important so that we never get in the way of any security
     //checks. This isn't unsafe because we only add simple dispatch/listener code
     
+    long start = System.nanoTime();
+    boolean generated = false;
     try {
       byte[] bytes = icca.generateBytes();
       Class<?> c = defineClass(className, bytes, 0, bytes.length, 
           PROXY_PROTECTION_DOMAIN);
+      generated = true;
       String old = classes.putIfAbsent(createSet, className);
       if(old != null) {
         c = Class.forName(className, false, this);
@@ -165,6 +175,8 @@ final class ProxyClassLoader extends ClassLoader {
       throw new UnableToProxyException(createSet.iterator().next(), cfe);
     } catch (ClassNotFoundException e) {
       throw new UnableToProxyException(createSet.iterator().next(), e);
+    } finally {
+      ProxyStatistics.getInstance().interfaceGenerated(System.nanoTime() - start, generated);
     }
   }
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ import java.util.regex.Pattern;
 
 import org.apache.aries.proxy.UnableToProxyException;
 import org.apache.aries.proxy.impl.NLS;
+import org.apache.aries.proxy.impl.ProxyStatistics;
 import org.apache.aries.proxy.weaving.WovenProxy;
 import org.apache.aries.proxy.weavinghook.ProxyWeavingController;
 import org.apache.aries.proxy.weavinghook.WeavingHelper;
@@ -82,17 +83,20 @@ public final class ProxyWeavingHook implements WeavingHook, WeavingHelper {
 
     if (shouldWeave(wovenClass)) {
       byte[] bytes = null;
+      long start = System.nanoTime();
       
       try {
         bytes = WovenProxyGenerator.getWovenProxy(wovenClass.getBytes(),
                 wovenClass.getBundleWiring().getClassLoader());
         
       } catch (Exception e) {
+        ProxyStatistics.getInstance().classWoven(System.nanoTime() - start, false);
         if(e instanceof RuntimeException && 
             e.getCause() instanceof UnableToProxyException){
           //This is a weaving failure that should be logged, but the class
           //can still be loaded
           LOGGER.trace(NLS.MESSAGES.getMessage("cannot.weave", wovenClass.getClassName()), e);
+          return;
         } else {
           String failureMessage = NLS.MESSAGES.getMessage("fatal.weaving.failure", wovenClass.getClassName());
           //This is a failure that should stop the class loading!
@@ -101,7 +105,11 @@ public final class ProxyWeavingHook implements WeavingHook, WeavingHelper {
         }
       }
       
-      if(bytes != null && bytes.length != 0) {
+      if(bytes == null || bytes.length == 0) {
+        //There was nothing to weave, the time spent finding out still counts
+        ProxyStatistics.getInstance().classNotWoven(System.nanoTime() - start);
+      } else {
+        ProxyStatistics.getInstance().classWoven(System.nanoTime() - start, true);
         wovenClass.setBytes(bytes);
         List<String> imports = wovenClass.getDynamicImports();
         imports.add(IMPORT_A);
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.proxy.statistics;
+
+/**
+ * Runtime statistics for the proxy service implementation. An instance of this
+ * interface is registered as an OSGi service with a <code>jmx.objectname</code>
+ * property of {@link #OBJECTNAME} so that it is also exposed as an MBean if a
+ * JMX whiteboard is present.
+ * <p>
+ * All times are reported in milliseconds and are totals since the service was
+ * started or since the last call to {@link #reset()}.
+ */
+public interface ProxyStatisticsMBean {
+
+  /** The object name used when this MBean is published through JMX */
+  public static final String OBJECTNAME = "org.apache.aries.proxy:type=ProxyStatistics";
+
+  /**
+   * @return the number of proxy subclasses generated by the subclassing strategy
+   */
+  public long getSubclassProxyClassCount();
+
+  /**
+   * @return the total time spent generating proxy subclasses
+   */
+  public long getSubclassGenerationTime();
+
+  /**
+   * @return the number of requests for a proxy subclass that were satisfied
+   *         by a previously generated class
+   */
+  public long getSubclassCacheHitCount();
+
+  /**
+   * @return the number of requests for a proxy subclass that required a new
+   *         class to be generated
+   */
+  public long getSubclassCacheMissCount();
+
+  /**
+   * @return the number of proxy classes generated by the interface strategy
+   */
+  public long getInterfaceProxyClassCount();
+
+  /**
+   * @return the total time spent generating interface proxy classes
+   */
+  public long getInterfaceGenerationTime();
+
+  /**
+   * @return the number of requests for an interface proxy class that were
+   *         satisfied by a previously generated class
+   */
+  public long getInterfaceCacheHitCount();
+
+  /**
+   * @return the number of requests for an interface proxy class that required
+   *         a new class to be generated
+   */
+  public long getInterfaceCacheMissCount();
+
+  /**
+   * @return the number of proxies created with java.lang.reflect.Proxy
+   */
+  public long getJdkProxyCount();
+
+  /**
+   * @return the number of classes woven to implement WovenProxy
+   */
+  public long getWovenClassCount();
+
+  /**
+   * @return the total time spent weaving classes, whatever the outcome
+   */
+  public long getWeavingTime();
+
+  /**
+   * @return the number of classes that could not be woven
+   */
+  public long getWeavingFailureCount();
+
+  /**
+   * @return the number of classes given to the weaver that it left unchanged
+   */
+  public long getUnwovenClassCount();
+
+  /**
+   * @return the number of proxy class loaders that have been created
+   */
+  public long getProxyClassLoaderCount();
+
+  /**
+   * @return the number of proxy class loaders that have not yet been garbage
+   *         collected
+   */
+  public int getLiveProxyClassLoaderCount();
+
+  /**
+   * @param bundleId the id of a client bundle
+   * @return the number of proxy class loaders created for the client bundle
+   *         that have not yet been garbage collected
+   */
+  public int getLiveProxyClassLoaderCount(long bundleId);
+
+  /**
+   * Reset all counters and timers. Live class loader counts are not affected.
+   */
+  public void reset();
+}
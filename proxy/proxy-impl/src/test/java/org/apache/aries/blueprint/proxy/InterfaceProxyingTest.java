@@ -173,6 +173,23 @@ public class InterfaceProxyingTest {
     assertSame(o1.getClass(), o2.getClass());
   }
   
+  @Test
+  public void testSharedCaching() throws Exception {
+    Collection<Class<?>> classes = new ArrayList<Class<?>>(Arrays.asList(Closeable.class));
+    Bundle otherBundle = Skeleton.newMock(new BundleMock("other", 
+        new Hashtable<Object, Object>()), Bundle.class);
+    
+    InterfaceProxyGenerator.setSharedClassLoaders(true);
+    try {
+      Object o1 = InterfaceProxyGenerator.getProxyInstance(testBundle, null, classes, constantly(null), null);
+      Object o2 = InterfaceProxyGenerator.getProxyInstance(otherBundle, null, classes, constantly(null), null);
+      
+      assertSame(o1.getClass(), o2.getClass());
+    } finally {
+      InterfaceProxyGenerator.setSharedClassLoaders(false);
+    }
+  }
+  
   @Test
   public void testComplexInterface() throws Exception {
     Collection<Class<?>> classes = new ArrayList<Class<?>>(Arrays.asList(ProxyTestInterface.class));
@@ -21,6 +21,7 @@ package org.apache.aries.blueprint.proxy;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.InvocationHandler;
@@ -30,6 +31,10 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.aries.proxy.FinalModifierException;
 import org.apache.aries.proxy.InvocationListener;
@@ -160,6 +165,38 @@ public class ProxySubclassGeneratorTest extends AbstractProxyTest
     }
   }
 
+  /**
+   * Test that concurrent requests for the same class all see the one
+   * generated subclass
+   */
+  @Test
+  public void testConcurrentGeneration() throws Exception
+  {
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Class<?>>> results = new ArrayList<Future<Class<?>>>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(new Callable<Class<?>>() {
+          public Class<?> call() throws Exception
+          {
+            start.await();
+            return ProxySubclassGenerator.getProxySubclass(ProxyTestClassSuper.class);
+          }
+        }));
+      }
+      start.countDown();
+      Class<?> expected = results.get(0).get();
+      assertNotNull("No proxy subclass was generated", expected);
+      for (Future<Class<?>> result : results) {
+        assertSame("A different proxy subclass was generated", expected, result.get());
+      }
+      assertTrue("Not recognised as a proxy subclass", ProxySubclassGenerator.isProxySubclass(expected));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   /**
    * Test a private constructor
    */
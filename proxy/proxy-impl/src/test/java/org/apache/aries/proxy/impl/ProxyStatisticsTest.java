@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+public class ProxyStatisticsTest {
+
+    @Test
+    public void testJdkProxyCount() throws Exception {
+        ProxyStatistics stats = ProxyStatistics.getInstance();
+        long before = stats.getJdkProxyCount();
+
+        Collection<Class<?>> classes = Collections.<Class<?>>singleton(Runnable.class);
+        new JdkProxyManager().createDelegatingProxy(null, classes, new Callable<Object>() {
+            public Object call() {
+                return null;
+            }
+        }, null);
+
+        assertEquals(before + 1, stats.getJdkProxyCount());
+    }
+
+    @Test
+    public void testLiveProxyClassLoaders() {
+        ProxyStatistics stats = ProxyStatistics.getInstance();
+        Bundle client = mockBundle(42);
+        ClassLoader loader = new ClassLoader() {};
+        int before = stats.getLiveProxyClassLoaderCount();
+
+        stats.proxyClassLoaderCreated(loader, client);
+
+        assertEquals(before + 1, stats.getLiveProxyClassLoaderCount());
+        assertEquals(1, stats.getLiveProxyClassLoaderCount(42));
+        assertEquals(0, stats.getLiveProxyClassLoaderCount(43));
+    }
+
+    @Test
+    public void testReset() {
+        ProxyStatistics stats = ProxyStatistics.getInstance();
+        stats.classWoven(1000000, true);
+        stats.classWoven(1000000, false);
+        stats.classNotWoven(1000000);
+        stats.subclassCacheHit();
+
+        stats.reset();
+
+        assertEquals(0, stats.getWovenClassCount());
+        assertEquals(0, stats.getWeavingFailureCount());
+        assertEquals(0, stats.getUnwovenClassCount());
+        assertEquals(0, stats.getWeavingTime());
+        assertEquals(0, stats.getSubclassCacheHitCount());
+    }
+
+    private Bundle mockBundle(final long id) {
+        return (Bundle) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Bundle.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getBundleId")) {
+                            return id;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
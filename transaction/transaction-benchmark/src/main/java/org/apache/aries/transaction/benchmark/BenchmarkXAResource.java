@@ -0,0 +1,97 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.transaction.benchmark;
+
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.NamedXAResource;
+import org.apache.geronimo.transaction.manager.NamedXAResourceFactory;
+
+/**
+ * A resource manager that votes OK on prepare and does nothing else, so that the
+ * measured commit cost is the transaction manager and its log.
+ */
+public class BenchmarkXAResource implements XAResource, NamedXAResource {
+
+    private final String name;
+
+    public BenchmarkXAResource(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void commit(Xid xid, boolean onePhase) throws XAException {
+    }
+
+    public void end(Xid xid, int flags) throws XAException {
+    }
+
+    public void forget(Xid xid) throws XAException {
+    }
+
+    public int getTransactionTimeout() throws XAException {
+        return 0;
+    }
+
+    public boolean isSameRM(XAResource xaResource) throws XAException {
+        return xaResource instanceof BenchmarkXAResource && ((BenchmarkXAResource) xaResource).name.equals(name);
+    }
+
+    public int prepare(Xid xid) throws XAException {
+        return XA_OK;
+    }
+
+    public Xid[] recover(int flag) throws XAException {
+        return new Xid[0];
+    }
+
+    public void rollback(Xid xid) throws XAException {
+    }
+
+    public boolean setTransactionTimeout(int seconds) throws XAException {
+        return false;
+    }
+
+    public void start(Xid xid, int flags) throws XAException {
+    }
+
+    public static class Factory implements NamedXAResourceFactory {
+
+        private final String name;
+
+        public Factory(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public NamedXAResource getNamedXAResource() throws SystemException {
+            return new BenchmarkXAResource(name);
+        }
+
+        public void returnNamedXAResource(NamedXAResource namedXAResource) {
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.transaction.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+import org.apache.aries.transaction.HOWLLog;
+import org.apache.aries.transaction.JournalLog;
+import org.apache.aries.transaction.XidFactoryImpl;
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.XidFactory;
+
+/**
+ * Measures two phase commit throughput and latency of the {@link GeronimoTransactionManager}
+ * writing to a {@link HOWLLog}, for every combination of the given HOWL settings.
+ * <p>
+ * Arguments are given as <code>name=value[,value...]</code>, each list being one axis of the
+ * matrix.  The HOWL settings use the names of the <code>aries.transaction.howl.*</code>
+ * configuration properties:
+ * <ul>
+ * <li><code>bufferSize</code> (default 4,32), <code>minBuffers</code> (default 4),
+ *     <code>maxBuffers</code> (default 0), <code>flushSleepTime</code> (default 10,50),
+ *     <code>flushPartialBuffers</code> (default true,false),
+ *     <code>threadsWaitingForceThreshold</code> (default -1)</li>
+ * <li><code>threads</code> number of committing threads (default 16)</li>
+ * <li><code>transactions</code> measured transactions per thread (default 1000)</li>
+ * <li><code>warmup</code> transactions per thread run before measuring (default 100)</li>
+ * <li><code>dir</code> directory on the disk to tune, each run writes its log files to a new
+ *     subdirectory of it which is deleted afterwards (default the temporary directory)</li>
+ * <li><code>journal</code> when true, also runs the journal log for comparison (default false)</li>
+ * </ul>
+ * For example:
+ * <pre>
+ * mvn exec:java -Dexec.args="threads=1,16,64 bufferSize=4,8,32 flushSleepTime=0,10,50"
+ * </pre>
+ * One line is printed per combination with the commit rate and the 50th, 99th and 99.9th
+ * percentile commit latency in milliseconds.
+ */
+public class TransactionLogBenchmark {
+
+    private static final String[] HOWL_SETTINGS = {
+            "bufferSize", "minBuffers", "maxBuffers", "flushSleepTime", "flushPartialBuffers", "threadsWaitingForceThreshold"
+    };
+
+    private final Map<String, String[]> options = new LinkedHashMap<String, String[]>();
+
+    public TransactionLogBenchmark(String[] args) {
+        options.put("threads", new String[] {"16"});
+        options.put("transactions", new String[] {"1000"});
+        options.put("warmup", new String[] {"100"});
+        options.put("dir", new String[] {System.getProperty("java.io.tmpdir")});
+        options.put("journal", new String[] {"false"});
+        options.put("bufferSize", new String[] {"4", "32"});
+        options.put("minBuffers", new String[] {"4"});
+        options.put("maxBuffers", new String[] {"0"});
+        options.put("flushSleepTime", new String[] {"10", "50"});
+        options.put("flushPartialBuffers", new String[] {"true", "false"});
+        options.put("threadsWaitingForceThreshold", new String[] {"-1"});
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx <= 0 || !options.containsKey(arg.substring(0, idx))) {
+                throw new IllegalArgumentException("Unknown argument " + arg + ", expected one of " + options.keySet());
+            }
+            options.put(arg.substring(0, idx), arg.substring(idx + 1).split(","));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simplelogger.defaultlog", "error");
+        new TransactionLogBenchmark(args).run();
+    }
+
+    public void run() throws Exception {
+        int transactions = Integer.parseInt(options.get("transactions")[0]);
+        int warmup = Integer.parseInt(options.get("warmup")[0]);
+        boolean journal = Boolean.parseBoolean(options.get("journal")[0]);
+
+        System.out.println(String.format("%8s %12s %10s %10s %10s  %s", "threads", "commits/s", "p50 ms", "p99 ms", "p999 ms", "log"));
+        for (String threads : options.get("threads")) {
+            int nbThreads = Integer.parseInt(threads);
+            for (Map<String, String> settings : combinations()) {
+                Result result = runHOWLLog(settings, nbThreads, transactions, warmup);
+                StringBuilder name = new StringBuilder("howl");
+                for (Map.Entry<String, String> setting : settings.entrySet()) {
+                    name.append(' ').append(setting.getKey()).append('=').append(setting.getValue());
+                }
+                print(name.toString(), nbThreads, result);
+            }
+            if (journal) {
+                File dir = createRunDir();
+                Result result = run(new JournalLog(dir.getAbsolutePath(), "benchmark", "journal", 10 * 1024 * 1024), dir, nbThreads, transactions, warmup);
+                print("journal", nbThreads, result);
+            }
+        }
+    }
+
+    private List<Map<String, String>> combinations() {
+        List<Map<String, String>> combinations = new ArrayList<Map<String, String>>();
+        combinations.add(new LinkedHashMap<String, String>());
+        for (String setting : HOWL_SETTINGS) {
+            List<Map<String, String>> expanded = new ArrayList<Map<String, String>>();
+            for (Map<String, String> combination : combinations) {
+                for (String value : options.get(setting)) {
+                    Map<String, String> copy = new LinkedHashMap<String, String>(combination);
+                    copy.put(setting, value.trim());
+                    expanded.add(copy);
+                }
+            }
+            combinations = expanded;
+        }
+        return combinations;
+    }
+
+    private Result runHOWLLog(Map<String, String> settings, int nbThreads, int nbTxPerThread, int nbWarmupPerThread) throws Exception {
+        File dir = createRunDir();
+        TransactionLog txLog;
+        try {
+            txLog = createHOWLLog(settings, dir);
+        } catch (Exception e) {
+            delete(dir);
+            throw e;
+        }
+        return run(txLog, dir, nbThreads, nbTxPerThread, nbWarmupPerThread);
+    }
+
+    private TransactionLog createHOWLLog(Map<String, String> settings, File dir) throws Exception {
+        return new HOWLLog("org.objectweb.howl.log.BlockLogBuffer",
+                Integer.parseInt(settings.get("bufferSize")),
+                true,
+                true,
+                Integer.parseInt(settings.get("flushSleepTime")),
+                dir.getAbsolutePath(),
+                "log",
+                "benchmark",
+                -1,
+                Integer.parseInt(settings.get("maxBuffers")),
+                2,
+                Integer.parseInt(settings.get("minBuffers")),
+                Integer.parseInt(settings.get("threadsWaitingForceThreshold")),
+                Boolean.parseBoolean(settings.get("flushPartialBuffers")),
+                new XidFactoryImpl("benchmark".getBytes()),
+                null);
+    }
+
+    private Result run(TransactionLog txLog, File dir, int nbThreads, int nbTxPerThread, int nbWarmupPerThread) throws Exception {
+        XidFactory xidFactory = new XidFactoryImpl("benchmark".getBytes());
+        try {
+            if (txLog instanceof HOWLLog) {
+                ((HOWLLog) txLog).doStart();
+            } else {
+                ((JournalLog) txLog).doStart();
+            }
+        } catch (Exception e) {
+            delete(dir);
+            throw e;
+        }
+        try {
+            GeronimoTransactionManager tm = new GeronimoTransactionManager(600, xidFactory, txLog);
+            tm.registerNamedXAResourceFactory(new BenchmarkXAResource.Factory("res1"));
+            tm.registerNamedXAResourceFactory(new BenchmarkXAResource.Factory("res2"));
+            return run(tm, nbThreads, nbTxPerThread, nbWarmupPerThread);
+        } finally {
+            if (txLog instanceof HOWLLog) {
+                ((HOWLLog) txLog).doStop();
+            } else {
+                ((JournalLog) txLog).doStop();
+            }
+            delete(dir);
+        }
+    }
+
+    private Result run(final TransactionManager tm, int nbThreads, final int nbTxPerThread, final int nbWarmupPerThread) throws Exception {
+        final XAResource xar1 = new BenchmarkXAResource("res1");
+        final XAResource xar2 = new BenchmarkXAResource("res2");
+        final long[][] latencies = new long[nbThreads][nbTxPerThread];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicReference<Throwable> warmupFailure = new AtomicReference<Throwable>();
+        final CountDownLatch warmedUp = new CountDownLatch(nbThreads);
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[nbThreads];
+        for (int thIdx = 0; thIdx < nbThreads; thIdx++) {
+            final long[] threadLatencies = latencies[thIdx];
+            threads[thIdx] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        try {
+                            for (int txIdx = 0; txIdx < nbWarmupPerThread; txIdx++) {
+                                commit(tm, xar1, xar2);
+                            }
+                        } catch (Throwable t) {
+                            warmupFailure.compareAndSet(null, t);
+                            return;
+                        } finally {
+                            warmedUp.countDown();
+                        }
+                        go.await();
+                        if (warmupFailure.get() != null) {
+                            return;
+                        }
+                        for (int txIdx = 0; txIdx < nbTxPerThread; txIdx++) {
+                            long t0 = System.nanoTime();
+                            commit(tm, xar1, xar2);
+                            threadLatencies[txIdx] = System.nanoTime() - t0;
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[thIdx].start();
+        }
+        warmedUp.await();
+        if (warmupFailure.get() != null) {
+            // release the threads that did warm up, they stop without measuring
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            throw new Exception("Warmup failed", warmupFailure.get());
+        }
+        long t0 = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - t0;
+        if (failure.get() != null) {
+            // the latencies of a thread that failed are incomplete, so the run measures nothing
+            throw new Exception("Benchmark failed", failure.get());
+        }
+
+        long[] all = new long[nbThreads * nbTxPerThread];
+        for (int thIdx = 0; thIdx < nbThreads; thIdx++) {
+            System.arraycopy(latencies[thIdx], 0, all, thIdx * nbTxPerThread, nbTxPerThread);
+        }
+        Arrays.sort(all);
+        Result result = new Result();
+        result.commitsPerSecond = all.length / (elapsed / 1000000000.0);
+        result.p50 = percentile(all, 0.50);
+        result.p99 = percentile(all, 0.99);
+        result.p999 = percentile(all, 0.999);
+        return result;
+    }
+
+    private static void commit(TransactionManager tm, XAResource xar1, XAResource xar2) throws Exception {
+        tm.begin();
+        Transaction tx = tm.getTransaction();
+        // two resources so that the transaction goes through prepare and is logged
+        tx.enlistResource(xar1);
+        tx.enlistResource(xar2);
+        tx.commit();
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int idx = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1000000.0;
+    }
+
+    private static void print(String name, int nbThreads, Result result) {
+        System.out.println(String.format("%8d %12.1f %10.3f %10.3f %10.3f  %s",
+                nbThreads, result.commitsPerSecond, result.p50, result.p99, result.p999, name));
+    }
+
+    /**
+     * Create an empty directory of our own for one run, so that deleting it afterwards can't
+     * touch anything else in the directory given by the user.
+     */
+    private File createRunDir() throws IOException {
+        File parent = new File(options.get("dir")[0]);
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        File dir = File.createTempFile("aries-tx-benchmark", "", parent);
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static class Result {
+        double commitsPerSecond;
+        double p50;
+        double p99;
+        double p999;
+    }
+}
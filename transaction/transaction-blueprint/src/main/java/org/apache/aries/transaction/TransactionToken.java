@@ -26,6 +26,7 @@ class TransactionToken
    private Transaction suspendedTransaction;
    private TransactionAttribute transactionAttribute;
    private boolean isCompletionAllowed;
+   private long preCallTime;
    
    public TransactionToken(Transaction activeTransaction, Transaction suspendedTransaction,
            TransactionAttribute transactionAttribute)
@@ -73,4 +74,15 @@ class TransactionToken
    public void setCompletionAllowed(boolean isCompletionAllowed) {
        this.isCompletionAllowed = isCompletionAllowed;
    }
+
+   /**
+    * @return the time in nanoseconds the interceptor spent to begin this token
+    */
+   public long getPreCallTime() {
+       return preCallTime;
+   }
+
+   public void setPreCallTime(long preCallTime) {
+       this.preCallTime = preCallTime;
+   }
 }
\ No newline at end of file
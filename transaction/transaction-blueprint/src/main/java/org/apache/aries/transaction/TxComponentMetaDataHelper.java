@@ -18,6 +18,8 @@
  */
 package org.apache.aries.transaction;
 
+import java.lang.reflect.Method;
+
 import org.apache.aries.blueprint.ComponentDefinitionRegistry;
 import org.osgi.service.blueprint.reflect.ComponentMetadata;
 
@@ -28,6 +30,14 @@ public interface TxComponentMetaDataHelper {
 
     public String getComponentMethodTxAttribute(
             ComponentMetadata component, String methodName);
+
+    /**
+     * Get the resolved transaction attribute for a method of a component. The result
+     * is computed once and then cached until the transaction metadata changes.
+     * @return the attribute, or null if the method is not transactional
+     */
+    public TransactionAttribute getComponentMethodTxAttribute(
+            ComponentMetadata component, Method method);
     
     public void populateBundleWideTransactionData(ComponentDefinitionRegistry cdr, String value,
         String method, String bean);
@@ -18,6 +18,7 @@
  */
 package org.apache.aries.transaction;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
@@ -51,6 +52,7 @@ public class TxComponentMetaDataHelperImpl implements TxComponentMetaDataHelper
       
       public void add(Pattern pattern, String txAttribute) {
           map.put(pattern, txAttribute);
+          cache.clear();
       }
       
       public String getAttribute(String name)
@@ -164,6 +166,25 @@ public class TxComponentMetaDataHelperImpl implements TxComponentMetaDataHelper
     private static final ConcurrentMap<ComponentDefinitionRegistry, Collection<ComponentMetadata>> dataForCDR = 
         new ConcurrentHashMap<ComponentDefinitionRegistry, Collection<ComponentMetadata>>();
     
+    // the attributes already resolved for a component method, this is what the interceptor
+    // uses on every call. The whole table is discarded whenever the transaction metadata changes
+    private static volatile ConcurrentMap<ComponentMetadata, ConcurrentMap<Method, ResolvedTxAttribute>> resolvedAttributes =
+        new ConcurrentHashMap<ComponentMetadata, ConcurrentMap<Method, ResolvedTxAttribute>>();
+    
+    // a resolved attribute, which may be null for a non transactional method
+    private static final class ResolvedTxAttribute
+    {
+        private final TransactionAttribute attribute;
+        
+        public ResolvedTxAttribute(TransactionAttribute attribute) {
+            this.attribute = attribute;
+        }
+    }
+    
+    private static void invalidateResolvedAttributes() {
+        resolvedAttributes = new ConcurrentHashMap<ComponentMetadata, ConcurrentMap<Method, ResolvedTxAttribute>>();
+    }
+    
     public void unregister(ComponentDefinitionRegistry registry) {
         Collection<ComponentMetadata> components = dataForCDR.remove(registry);
         bundleTransactionMap.remove(registry);
@@ -171,6 +192,7 @@ public class TxComponentMetaDataHelperImpl implements TxComponentMetaDataHelper
         if (components != null) {
             for (ComponentMetadata meta : components) data.remove(meta);
         }
+        invalidateResolvedAttributes();
     }
     
     public synchronized void setComponentTransactionData(ComponentDefinitionRegistry registry, ComponentMetadata component, String value, String method)
@@ -198,6 +220,33 @@ public class TxComponentMetaDataHelperImpl implements TxComponentMetaDataHelper
           Pattern pattern = Pattern.compile(names[i].replaceAll("\\*", ".*"));
           td.add(pattern, value);
       }
+      invalidateResolvedAttributes();
+    }
+
+    public TransactionAttribute getComponentMethodTxAttribute(ComponentMetadata component, Method method)
+    {
+        // keep hold of the table we read from, so that a result computed from stale
+        // metadata is never stored in a newer table
+        ConcurrentMap<ComponentMetadata, ConcurrentMap<Method, ResolvedTxAttribute>> table = resolvedAttributes;
+        ConcurrentMap<Method, ResolvedTxAttribute> methods = table.get(component);
+        
+        if (methods == null) {
+            methods = new ConcurrentHashMap<Method, ResolvedTxAttribute>();
+            ConcurrentMap<Method, ResolvedTxAttribute> existing = table.putIfAbsent(component, methods);
+            if (existing != null) {
+                methods = existing;
+            }
+        }
+        
+        ResolvedTxAttribute resolved = methods.get(method);
+        
+        if (resolved == null) {
+            String attribute = getComponentMethodTxAttribute(component, method.getName());
+            resolved = new ResolvedTxAttribute(attribute == null ? null : TransactionAttribute.fromValue(attribute));
+            methods.put(method, resolved);
+        }
+        
+        return resolved.attribute;
     }
 
     public String getComponentMethodTxAttribute(ComponentMetadata component, String methodName)
@@ -261,7 +310,7 @@ public class TxComponentMetaDataHelperImpl implements TxComponentMetaDataHelper
         } else {
             bundleData.add(bundleWideTxData);
         }
-        
+        invalidateResolvedAttributes();
     }
     
     private ComponentDefinitionRegistry getComponentDefinitionRegistry(ComponentMetadata metadata) {
@@ -35,6 +35,7 @@ public class TxInterceptorImpl implements Interceptor {
 
     private TransactionManager tm;
     private TxComponentMetaDataHelper metaDataHelper;
+    private TxInterceptorStatistics statistics;
 
     public int getRank()
     {
@@ -48,6 +49,7 @@ public class TxInterceptorImpl implements Interceptor {
        if (preCallToken instanceof TransactionToken)
        {
          final TransactionToken token = (TransactionToken)preCallToken;
+         final long start = System.nanoTime();
          try { 
              Transaction tran = token.getActiveTransaction();
              if (tran != null) {
@@ -65,6 +67,10 @@ public class TxInterceptorImpl implements Interceptor {
            // we do not throw the exception since there already is one, but we need to log it
            LOGGER.warn(Constants.MESSAGES.getMessage("exception.during.tx.cleanup"), e);
          }
+         finally
+         {
+           record(cm, token, start);
+         }
        } else {
          // TODO: what now?
        }
@@ -81,6 +87,7 @@ public class TxInterceptorImpl implements Interceptor {
       if (preCallToken instanceof TransactionToken)
       {
         final TransactionToken token = (TransactionToken)preCallToken;
+        final long start = System.nanoTime();
         try { 
            token.getTransactionAttribute().finish(tm, token);
         }
@@ -90,6 +97,10 @@ public class TxInterceptorImpl implements Interceptor {
           LOGGER.debug(Constants.MESSAGES.getMessage("exception.during.tx.finish"), e);
           throw new TransactionRollbackException(e);
         }
+        finally
+        {
+          record(cm, token, start);
+        }
       }
       else {
         // TODO: what now?
@@ -98,19 +109,27 @@ public class TxInterceptorImpl implements Interceptor {
 
     public Object preCall(ComponentMetadata cm, Method m,
         Object... parameters) throws Throwable  {
-      final String methodName = m.getName();
-      final String attribute = metaDataHelper.getComponentMethodTxAttribute(cm, methodName);
+      final long start = System.nanoTime();
+      final TransactionAttribute txAttribute = metaDataHelper.getComponentMethodTxAttribute(cm, m);
       
       // attribute could be null here which means no transaction
-      if (attribute == null) {
+      if (txAttribute == null) {
           return null;
       }
-      TransactionAttribute txAttribute = TransactionAttribute.fromValue(attribute);
       
       if (LOGGER.isDebugEnabled())
           LOGGER.debug("Method: " + m + ", has transaction strategy: " + txAttribute);
 
-      return txAttribute.begin(tm);
+      TransactionToken token = txAttribute.begin(tm);
+      token.setPreCallTime(System.nanoTime() - start);
+      return token;
+    }
+
+    private void record(ComponentMetadata cm, TransactionToken token, long postCallStart)
+    {
+      if (statistics != null && cm != null) {
+        statistics.record(cm.getId(), token.getPreCallTime(), System.nanoTime() - postCallStart);
+      }
     }
 
     public final void setTransactionManager(TransactionManager manager)
@@ -122,4 +141,9 @@ public class TxInterceptorImpl implements Interceptor {
     {
       this.metaDataHelper = transactionEnhancer;
     }
+
+    public final void setStatistics(TxInterceptorStatistics statistics)
+    {
+      this.statistics = statistics;
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.aries.transaction.interceptor.TxInterceptorStatisticsMBean;
+
+/**
+ * Collects the statistics published by the {@link TxInterceptorStatisticsMBean} service.
+ */
+public class TxInterceptorStatistics implements TxInterceptorStatisticsMBean {
+
+    private final ConcurrentMap<String, ComponentStatistics> components = new ConcurrentHashMap<String, ComponentStatistics>();
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong overhead = new AtomicLong();
+
+    public void record(String componentId, long preCallNanos, long postCallNanos) {
+        ComponentStatistics stats = components.get(componentId);
+        if (stats == null) {
+            ComponentStatistics newStats = new ComponentStatistics();
+            stats = components.putIfAbsent(componentId, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        long preCall = preCallNanos / 1000;
+        long postCall = postCallNanos / 1000;
+        stats.record(preCall, postCall);
+        invocations.incrementAndGet();
+        overhead.addAndGet(preCall + postCall);
+    }
+
+    public String[] getComponentIds() {
+        return components.keySet().toArray(new String[0]);
+    }
+
+    public long getInvocationCount() {
+        return invocations.get();
+    }
+
+    public long getAverageOverhead() {
+        long count = invocations.get();
+        return count == 0 ? 0 : overhead.get() / count;
+    }
+
+    public long getInvocationCount(String componentId) {
+        ComponentStatistics stats = components.get(componentId);
+        return stats == null ? 0 : stats.invocations.get();
+    }
+
+    public long getAveragePreCallTime(String componentId) {
+        ComponentStatistics stats = components.get(componentId);
+        return stats == null ? 0 : average(stats.preCallTime, stats.invocations);
+    }
+
+    public long getAveragePostCallTime(String componentId) {
+        ComponentStatistics stats = components.get(componentId);
+        return stats == null ? 0 : average(stats.postCallTime, stats.invocations);
+    }
+
+    public long getMaxOverhead(String componentId) {
+        ComponentStatistics stats = components.get(componentId);
+        return stats == null ? 0 : stats.maxOverhead.get();
+    }
+
+    public void reset() {
+        components.clear();
+        invocations.set(0);
+        overhead.set(0);
+    }
+
+    private static long average(AtomicLong total, AtomicLong count) {
+        long c = count.get();
+        return c == 0 ? 0 : total.get() / c;
+    }
+
+    private static class ComponentStatistics {
+
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong preCallTime = new AtomicLong();
+        private final AtomicLong postCallTime = new AtomicLong();
+        private final AtomicLong maxOverhead = new AtomicLong();
+
+        void record(long preCall, long postCall) {
+            invocations.incrementAndGet();
+            preCallTime.addAndGet(preCall);
+            postCallTime.addAndGet(postCall);
+            long total = preCall + postCall;
+            for (;;) {
+                long max = maxOverhead.get();
+                if (total <= max || maxOverhead.compareAndSet(max, total)) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.interceptor;
+
+/**
+ * Time spent by the transaction interceptor around the methods of the blueprint
+ * components it is registered with. An instance of this interface is registered as
+ * an OSGi service with a <code>jmx.objectname</code> property of {@link #OBJECTNAME}
+ * so that it is also exposed as an MBean if a JMX whiteboard is present.
+ * <p>
+ * The pre call time covers the lookup of the transaction attribute and the begin of
+ * the transaction strategy, the post call time covers its finish, which includes the
+ * commit or rollback. Times are reported in microseconds and are totals since the
+ * bundle was started or since the last call to {@link #reset()}. Components are
+ * identified by their id, components with the same id in different blueprint
+ * containers are reported together.
+ */
+public interface TxInterceptorStatisticsMBean {
+
+    /** The object name used when this MBean is published through JMX */
+    String OBJECTNAME = "org.apache.aries.transaction:type=TxInterceptorStatistics";
+
+    /**
+     * @return the ids of the components intercepted so far
+     */
+    String[] getComponentIds();
+
+    /**
+     * @return the number of transactional method calls intercepted
+     */
+    long getInvocationCount();
+
+    /**
+     * @return the average time spent in the interceptor per call
+     */
+    long getAverageOverhead();
+
+    long getInvocationCount(String componentId);
+
+    long getAveragePreCallTime(String componentId);
+
+    long getAveragePostCallTime(String componentId);
+
+    long getMaxOverhead(String componentId);
+
+    /**
+     * Reset all counters and timers.
+     */
+    void reset();
+}
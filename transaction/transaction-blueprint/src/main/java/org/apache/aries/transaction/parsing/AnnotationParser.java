@@ -19,6 +19,11 @@
 package org.apache.aries.transaction.parsing;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.aries.blueprint.BeanProcessor;
 import org.apache.aries.blueprint.ComponentDefinitionRegistry;
@@ -34,6 +39,10 @@ public class AnnotationParser implements BeanProcessor {
 	private final ComponentDefinitionRegistry cdr;
 	private final Interceptor interceptor;
 	private final TxComponentMetaDataHelper helper;
+	private final ConcurrentMap<Class<?>, List<Method>> annotatedMethods = 
+	    new ConcurrentHashMap<Class<?>, List<Method>>();
+	private final ConcurrentMap<BeanKey, Boolean> processedBeans = 
+	    new ConcurrentHashMap<BeanKey, Boolean>();
 	
 	public AnnotationParser(ComponentDefinitionRegistry cdr, Interceptor i, TxComponentMetaDataHelper helper) {
 		this.cdr = cdr;
@@ -60,32 +69,84 @@ public class AnnotationParser implements BeanProcessor {
 	public Object beforeInit(Object arg0, String arg1, BeanCreator arg2,
 			BeanMetadata arg3) {
         Class<?> c = arg0.getClass();
+        BeanKey key = new BeanKey(c, arg3);
+        // every instance of a prototype bean passes through here, but the 
+        // interceptor only needs registering once per class and bean definition
+        if (processedBeans.containsKey(key)) {
+            return arg0;
+        }
+        
         boolean interceptorAssigned = false; 
+        for (Method m : getAnnotatedMethods(c)) {
+            Transaction t = m.getAnnotation(Transaction.class);
+            if(helper.getComponentMethodTxAttribute(arg3, m.getName()) == null) {
+            	helper.setComponentTransactionData(cdr, arg3, t.value().toString(), m.getName());
+            	
+            	outer: if(!!!interceptorAssigned) {
+            		for(Interceptor i : cdr.getInterceptors(arg3)) {
+            			if(i == interceptor) {
+            				interceptorAssigned = true;
+            				break outer;
+            			}
+            		}
+                    cdr.registerInterceptorWithComponent(arg3, interceptor);
+                    interceptorAssigned = true;
+            	}
+            }
+        }
+        processedBeans.put(key, Boolean.TRUE);
+		return arg0;
+	}
+
+	/**
+	 * Find the methods in the class hierarchy annotated with {@link Transaction}. The
+	 * result is cached, as the hierarchy is walked using reflection
+	 */
+	private List<Method> getAnnotatedMethods(Class<?> clazz) {
+	    List<Method> methods = annotatedMethods.get(clazz);
+	    if (methods != null) {
+	        return methods;
+	    }
+	    
+	    methods = new ArrayList<Method>();
+	    Class<?> c = clazz;
         while(c != Object.class) {
             for(Method m : c.getDeclaredMethods()) {
                 int modifiers = m.getModifiers();
                 if((modifiers & Constants.BANNED_MODIFIERS) != 0)
                     throw new IllegalArgumentException(Constants.MESSAGES.getMessage("private.or.static.method", m));
-			    Transaction t = m.getAnnotation(Transaction.class);
-			    if(t != null && helper.getComponentMethodTxAttribute(arg3, m.getName()) == null) {
-			    	helper.setComponentTransactionData(cdr, arg3, t.value().toString(), m.getName());
-			    	
-			    	outer: if(!!!interceptorAssigned) {
-			    		for(Interceptor i : cdr.getInterceptors(arg3)) {
-			    			if(i == interceptor) {
-			    				interceptorAssigned = true;
-			    				break outer;
-			    			}
-			    		}
-			            cdr.registerInterceptorWithComponent(arg3, interceptor);
-			            interceptorAssigned = true;
-			    	}
+			    if(m.getAnnotation(Transaction.class) != null) {
+			        methods.add(m);
 			    }
-			    
 		    }
             c = c.getSuperclass();
 		}
-		return arg0;
+        methods = Collections.unmodifiableList(methods);
+        annotatedMethods.putIfAbsent(clazz, methods);
+        return methods;
+	}
+
+	private static final class BeanKey {
+	    private final Class<?> clazz;
+	    private final BeanMetadata metadata;
+	    
+	    public BeanKey(Class<?> clazz, BeanMetadata metadata) {
+	        this.clazz = clazz;
+	        this.metadata = metadata;
+	    }
+	    
+	    @Override
+	    public int hashCode() {
+	        return clazz.hashCode() * 31 + metadata.hashCode();
+	    }
+	    
+	    @Override
+	    public boolean equals(Object o) {
+	        if (o == this) return true;
+	        if (!!!(o instanceof BeanKey)) return false;
+	        BeanKey other = (BeanKey) o;
+	        return clazz == other.clazz && metadata.equals(other.metadata);
+	    }
 	}
 
 }
@@ -73,6 +73,20 @@ public class AnnotationParserTest {
 	    		"registerInterceptorWithComponent", mbm, i), 1);
 	}
 	
+	@Test
+	public void testSecondInstanceUsesCachedScan() {
+		MutableBeanMetadata mbm = new BeanMetadataImpl();
+		mbm.setId("testPojo");
+		mbm.setClassName(AnnotatedPojo.class.getName());
+	    parser.beforeInit(new AnnotatedPojo(), "testPojo", null, mbm);
+	    parser.beforeInit(new AnnotatedPojo(), "testPojo", null, mbm);
+	    
+	    Skeleton.getSkeleton(helper).assertCalledExactNumberOfTimes(new MethodCall(TxComponentMetaDataHelper.class,
+	    		"getComponentMethodTxAttribute", mbm, String.class), 3);
+	    Skeleton.getSkeleton(cdr).assertCalledExactNumberOfTimes(new MethodCall(ComponentDefinitionRegistry.class,
+	    		"registerInterceptorWithComponent", mbm, i), 1);
+	}
+	
 	@Test
 	public void testAnnotationsOverridenByXML() {
 		
@@ -26,6 +26,10 @@ import javax.transaction.TransactionManager;
 import org.apache.aries.unittest.mocks.MethodCall;
 import org.apache.aries.unittest.mocks.Skeleton;
 import org.junit.Test;
+import org.osgi.service.blueprint.reflect.ComponentMetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class InterceptorTest {
     private Transaction t;
@@ -46,6 +50,29 @@ public class InterceptorTest {
         assertNotRolledBack();
     }
     
+    @Test
+    public void testStatistics() throws Exception {
+        TxInterceptorStatistics statistics = new TxInterceptorStatistics();
+        TxInterceptorImpl sut = new TxInterceptorImpl();
+        sut.setTransactionManager(Skeleton.newMock(TransactionManager.class));
+        sut.setStatistics(statistics);
+        ComponentMetadata cm = Skeleton.newMock(ComponentMetadata.class);
+        Skeleton.getSkeleton(cm).setReturnValue(new MethodCall(ComponentMetadata.class, "getId"), "txBean");
+
+        sut.postCallWithReturn(cm, null, null, newTranToken());
+        sut.postCallWithException(cm, null, new IllegalStateException(), newTranToken());
+        // no transaction attribute means nothing to record
+        sut.postCallWithReturn(cm, null, null, null);
+
+        assertArrayEquals(new String[] {"txBean"}, statistics.getComponentIds());
+        assertEquals(2, statistics.getInvocationCount());
+        assertEquals(2, statistics.getInvocationCount("txBean"));
+        assertEquals(0, statistics.getInvocationCount("otherBean"));
+
+        statistics.reset();
+        assertEquals(0, statistics.getInvocationCount());
+    }
+
     private void assertNotRolledBack() {
         Skeleton.getSkeleton(t).assertNotCalled(new MethodCall(Transaction.class, "setRollbackOnly"));
     }
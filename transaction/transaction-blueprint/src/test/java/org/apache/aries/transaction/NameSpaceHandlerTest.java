@@ -20,6 +20,8 @@ package org.apache.aries.transaction;
 
 import static org.junit.Assert.*;
 
+import java.lang.reflect.Method;
+
 import org.apache.aries.blueprint.ComponentDefinitionRegistry;
 import org.apache.aries.transaction.parsing.TxBlueprintListener;
 import org.apache.aries.unittest.mocks.Skeleton;
@@ -223,6 +225,35 @@ public class NameSpaceHandlerTest extends BaseNameSpaceHandlerSetup {
         assertNull(txenhancer.getComponentMethodTxAttribute(compAnotherBean, "getWhatever"));   
     }
     
+    private interface TxMethods {
+        void doSomething();
+        void getRows();
+    }
+    
+    @Test
+    public void testResolvedMethodAttributes() throws Exception
+    {
+        ComponentDefinitionRegistry cdr = parseCDR("mixed-aries.xml");
+        
+        BeanMetadata compNoTx = (BeanMetadata) cdr.getComponentDefinition("noTx");
+        BeanMetadata compSomeTx = (BeanMetadata) cdr.getComponentDefinition("someTx");
+        Method doSomething = TxMethods.class.getMethod("doSomething");
+        Method getRows = TxMethods.class.getMethod("getRows");
+
+        assertEquals(TransactionAttribute.NEVER, txenhancer.getComponentMethodTxAttribute(compNoTx, doSomething));
+        assertEquals(TransactionAttribute.REQUIRED, txenhancer.getComponentMethodTxAttribute(compSomeTx, doSomething));
+        assertEquals(TransactionAttribute.MANDATORY, txenhancer.getComponentMethodTxAttribute(compSomeTx, getRows));
+        // a second lookup is served from the resolved table
+        assertEquals(TransactionAttribute.MANDATORY, txenhancer.getComponentMethodTxAttribute(compSomeTx, getRows));
+        
+        new TxBlueprintListener(namespaceHandler).blueprintEvent(
+                new BlueprintEvent(BlueprintEvent.DESTROYED, b, Skeleton.newMock(Bundle.class)));
+        
+        // the table must be invalidated when the metadata goes away
+        assertNull(txenhancer.getComponentMethodTxAttribute(compSomeTx, doSomething));
+        assertNull(txenhancer.getComponentMethodTxAttribute(compSomeTx, getRows));
+    }
+    
     @Test
     public void testLifecycleMixed_110() throws Exception
     {
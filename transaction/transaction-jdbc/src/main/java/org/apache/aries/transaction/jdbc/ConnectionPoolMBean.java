@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+/**
+ * Statistics of the XA connection pool behind an enlisting data source.  Instances are
+ * registered as OSGi services with a <code>jmx.objectname</code> property so that a JMX
+ * whiteboard can expose them.
+ */
+public interface ConnectionPoolMBean {
+
+    /**
+     * The domain and type of the object names used for the pools, the data source name
+     * is added as the <code>name</code> key.
+     */
+    String OBJECTNAME = "org.apache.aries.transaction.jdbc:type=ConnectionPool";
+
+    int getPoolMinSize();
+
+    /**
+     * @return the maximum number of physical connections, or 0 if unbounded
+     */
+    int getPoolMaxSize();
+
+    /**
+     * @return the number of open physical connections, idle or in use
+     */
+    int getConnectionCount();
+
+    int getIdleConnectionCount();
+
+    int getActiveConnectionCount();
+
+    /**
+     * @return the number of connections currently bound to a transaction
+     */
+    int getTransactionConnectionCount();
+
+    int getWaitingThreadCount();
+
+    long getCreatedConnectionCount();
+
+    long getDestroyedConnectionCount();
+
+    long getEvictedConnectionCount();
+
+    long getValidationFailureCount();
+
+    long getBorrowCount();
+
+    /**
+     * @return the number of connection requests served by the connection already bound
+     * to the current transaction
+     */
+    long getTransactionReuseCount();
+
+    long getWaitTimeoutCount();
+
+    /**
+     * @return the average time in microseconds a borrower waited for a connection
+     */
+    long getAverageWaitTime();
+
+    void resetStatistics();
+}
@@ -25,8 +25,8 @@ import org.apache.aries.transaction.jdbc.internal.XADatasourceEnlistingWrapper;
  * Defines a JDBC DataSource that will auto-enlist into existing XA transactions.
  * The DataSource will also be registered with the Aries/Geronimo transaction
  * manager in order to provide proper transaction recovery at startup.
- * Other considerations such as connection pooling and error handling are
- * completely ignored.
+ * Physical connections are pooled, see the pool settings inherited from
+ * {@link XADatasourceEnlistingWrapper}.
  *
  * @org.apache.xbean.XBean
  */
@@ -54,4 +54,11 @@ public class RecoverableDataSource extends XADatasourceEnlistingWrapper {
     public void start() {
         new GenericResourceManager(getName(), getTransactionManager(), getDataSource()).recoverResource();
     }
+
+    /**
+     * @org.apache.xbean.DestroyMethod
+     */
+    public void stop() {
+        close();
+    }
 }
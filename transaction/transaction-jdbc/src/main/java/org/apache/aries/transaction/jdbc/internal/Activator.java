@@ -19,10 +19,13 @@
 package org.apache.aries.transaction.jdbc.internal;
 
 import java.util.Hashtable;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 import javax.sql.XADataSource;
 import javax.transaction.TransactionManager;
 
+import org.apache.aries.transaction.jdbc.ConnectionPoolMBean;
+import org.apache.aries.util.service.registry.MBeanServices;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -33,9 +36,20 @@ import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Activator implements BundleActivator, ServiceTrackerCustomizer, ServiceListener
 {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Activator.class);
+
+  /** XADataSource service properties configuring the pool of the enlisting DataSource */
+  public static final String POOL_MIN_SIZE = "aries.xa.poolMinSize";
+  public static final String POOL_MAX_SIZE = "aries.xa.poolMaxSize";
+  public static final String CONNECTION_MAX_IDLE_MINUTES = "aries.xa.connectionMaxIdleMinutes";
+  public static final String CONNECTION_MAX_WAIT_MILLISECONDS = "aries.xa.connectionMaxWaitMilliseconds";
+  public static final String VALIDATE_ON_MATCH = "aries.xa.validateOnMatch";
+
   private TransactionManager tm;
   private ServiceTracker t;
   private ServiceReference ref;
@@ -96,15 +110,21 @@ public class Activator implements BundleActivator, ServiceTrackerCustomizer, Ser
     XADatasourceEnlistingWrapper wrapper = new XADatasourceEnlistingWrapper();
     wrapper.setTransactionManager(tm);
     wrapper.setDataSource((XADataSource) ctx.getService(ref));
+    configurePool(wrapper, ref);
+
+    Registration reg = new Registration();
+    reg.wrapper = wrapper;
+    reg.dataSource = ctx.registerService(DataSource.class.getName(), wrapper, map); 
 
-    ServiceRegistration reg = ctx.registerService(DataSource.class.getName(), wrapper, map); 
+    reg.pool = MBeanServices.register(ctx, ConnectionPoolMBean.class.getName(), wrapper.getPool(), 
+        ConnectionPoolMBean.OBJECTNAME + ",name=" + ObjectName.quote(getName(ref)));
 
     return reg;
   }
  
   public void modifiedService(ServiceReference ref, Object service)
   {
-    ServiceRegistration reg = (ServiceRegistration) service;
+    ServiceRegistration reg = ((Registration) service).dataSource;
     
     Hashtable<String, Object> map = new Hashtable<String, Object>();
     for (String key : ref.getPropertyKeys()) {
@@ -117,7 +137,40 @@ public class Activator implements BundleActivator, ServiceTrackerCustomizer, Ser
 
   public void removedService(ServiceReference ref, Object service)
   {
-    safeUnregisterService((ServiceRegistration)service);
+    Registration reg = (Registration) service;
+    safeUnregisterService(reg.pool);
+    safeUnregisterService(reg.dataSource);
+    reg.wrapper.close();
+  }
+
+  private static void configurePool(XADatasourceEnlistingWrapper wrapper, ServiceReference ref)
+  {
+    wrapper.setPoolMinSize(getInt(ref, POOL_MIN_SIZE, wrapper.getPoolMinSize()));
+    wrapper.setPoolMaxSize(getInt(ref, POOL_MAX_SIZE, wrapper.getPoolMaxSize()));
+    wrapper.setConnectionMaxIdleMinutes(getInt(ref, CONNECTION_MAX_IDLE_MINUTES, wrapper.getConnectionMaxIdleMinutes()));
+    wrapper.setConnectionMaxWaitMilliseconds(getInt(ref, CONNECTION_MAX_WAIT_MILLISECONDS, wrapper.getConnectionMaxWaitMilliseconds()));
+    Object value = ref.getProperty(VALIDATE_ON_MATCH);
+    if (value != null) wrapper.setValidateOnMatch(Boolean.parseBoolean(value.toString()));
+  }
+
+  private static int getInt(ServiceReference ref, String property, int defaultValue)
+  {
+    Object value = ref.getProperty(property);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value.toString().trim());
+    } catch (NumberFormatException e) {
+      LOGGER.warn(NLS.MESSAGES.getMessage("invalid.pool.property", property, value));
+      return defaultValue;
+    }
+  }
+
+  private static String getName(ServiceReference ref)
+  {
+    Object name = ref.getProperty("osgi.jndi.service.name");
+    if (name == null) name = ref.getProperty("datasourceName");
+    if (name == null) name = ref.getProperty(Constants.SERVICE_ID);
+    return String.valueOf(name);
   }
 
   public void serviceChanged(ServiceEvent event)
@@ -137,6 +190,13 @@ public class Activator implements BundleActivator, ServiceTrackerCustomizer, Ser
     }
   }
 
+  private static class Registration
+  {
+    XADatasourceEnlistingWrapper wrapper;
+    ServiceRegistration dataSource;
+    ServiceRegistration pool;
+  }
+
   static void safeUnregisterService(ServiceRegistration reg)
   {
     if(reg != null) {
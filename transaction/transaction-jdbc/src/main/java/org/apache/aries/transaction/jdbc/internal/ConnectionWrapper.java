@@ -59,10 +59,21 @@ public class ConnectionWrapper implements Connection {
     private boolean closed;
     
     private boolean enlisted;
+
+    private XAConnectionPool.PooledXAConnection pooled;
     
     public ConnectionWrapper(Connection connection, boolean enlisted) {
+        this(connection, enlisted, null);
+    }
+
+    /**
+     * @param pooled the pooled connection to give back to the pool when this connection
+     *               is closed, if it is not enlisted
+     */
+    public ConnectionWrapper(Connection connection, boolean enlisted, XAConnectionPool.PooledXAConnection pooled) {
         this.enlisted = enlisted;
         this.connection = connection;
+        this.pooled = pooled;
     }
             
     public void close() throws SQLException {
@@ -71,7 +82,11 @@ public class ConnectionWrapper implements Connection {
                 // don't close connection if enlisted in a transaction
                 // the connection will be closed in once the transaction completes
                 if (!enlisted) {
-                    connection.close();
+                    if (pooled != null) {
+                        pooled.release();
+                    } else {
+                        connection.close();
+                    }
                 }
             } finally {
                 closed = true;
@@ -0,0 +1,566 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+
+import org.apache.aries.transaction.jdbc.ConnectionPoolMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of physical {@link XAConnection}s, keyed by the credentials they were opened with.
+ * <p>
+ * Idle connections sit in lock free queues and the pool size is bounded by a {@link Semaphore},
+ * whose uncontended acquire and release are a single compare and set, so borrowing and
+ * returning a connection only takes a lock when a thread has to wait for room.  A background task closes connections that
+ * stayed idle too long and tops the pool up to its minimum size.
+ */
+public class XAConnectionPool implements ConnectionPoolMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionPool.class);
+
+    private static final Object DEFAULT_KEY = new ConnectionKey(null, null, null);
+
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    private final XADataSource dataSource;
+    private final Map<?, ?> transactionConnections;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxIdleMillis;
+    private final long maxWaitMillis;
+    private final boolean validateOnMatch;
+
+    private final ConcurrentMap<Object, Queue<PooledXAConnection>> idle = new ConcurrentHashMap<Object, Queue<PooledXAConnection>>();
+    private final Semaphore permits;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    // threads waiting for a connection to be destroyed or handed back, see awaitRoom
+    private final Object room = new Object();
+    private final AtomicInteger roomWaiters = new AtomicInteger();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong transactionReuses = new AtomicLong();
+    private final AtomicLong waitTimeouts = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /**
+     * @param dataSource the data source creating the physical connections
+     * @param transactionConnections the connections currently bound to transactions, only used for statistics
+     * @param minSize the number of connections kept open even when idle
+     * @param maxSize the maximum number of connections, 0 for no limit
+     * @param maxIdleMillis the time after which an idle connection is closed, 0 to never close idle connections
+     * @param maxWaitMillis how long to wait for a connection when the pool is exhausted
+     * @param validateOnMatch whether idle connections are checked before being handed out
+     */
+    public XAConnectionPool(XADataSource dataSource, Map<?, ?> transactionConnections,
+                            int minSize, int maxSize, long maxIdleMillis, long maxWaitMillis, boolean validateOnMatch) {
+        this.dataSource = dataSource;
+        this.transactionConnections = transactionConnections;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.validateOnMatch = validateOnMatch;
+        this.permits = maxSize > 0 ? new Semaphore(maxSize) : null;
+        if (maxIdleMillis > 0 || minSize > 0) {
+            long period = maxIdleMillis > 0 ? Math.max(1000L, Math.min(60000L, maxIdleMillis / 2)) : 60000L;
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Aries transaction JDBC pool evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evict();
+                }
+            }, 0, period, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Borrow a connection opened with the given credentials, or the default credentials
+     * if <code>username</code> is null.
+     */
+    public PooledXAConnection borrow(String username, String password) throws SQLException {
+        if (closed) {
+            throw new SQLException(NLS.MESSAGES.getMessage("pool.closed"));
+        }
+        Object key = username == null ? DEFAULT_KEY : new ConnectionKey(username, password, null);
+        long t0 = System.nanoTime();
+        acquirePermit();
+        try {
+            PooledXAConnection connection = take(key, username, password, t0);
+            borrowed.incrementAndGet();
+            return connection;
+        } catch (SQLException e) {
+            releasePermit();
+            throw e;
+        } catch (RuntimeException e) {
+            releasePermit();
+            throw e;
+        }
+    }
+
+    /**
+     * Record that a connection request was served by the connection bound to the transaction.
+     */
+    public void transactionReuse() {
+        transactionReuses.incrementAndGet();
+    }
+
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (Queue<PooledXAConnection> queue : idle.values()) {
+            PooledXAConnection connection;
+            while ((connection = queue.poll()) != null) {
+                idleCount.decrementAndGet();
+                destroy(connection);
+            }
+        }
+        signalRoom();
+    }
+
+    private PooledXAConnection take(Object key, String username, String password, long t0) throws SQLException {
+        while (true) {
+            PooledXAConnection connection = poll(key);
+            if (connection != null) {
+                if (connection.activate() && (!validateOnMatch || connection.isValid())) {
+                    return connection;
+                }
+                validationFailures.incrementAndGet();
+                connection.close();
+                destroy(connection);
+                continue;
+            }
+            int size = total.get();
+            if (maxSize <= 0 || size < maxSize) {
+                if (total.compareAndSet(size, size + 1)) {
+                    connection = create(key, username, password);
+                    if (!connection.activate()) {
+                        destroy(connection);
+                        throw connection.failure;
+                    }
+                    return connection;
+                }
+            } else {
+                // every connection is idle under other credentials or being handed back, make room
+                connection = pollAny();
+                if (connection != null) {
+                    destroy(connection);
+                } else {
+                    awaitRoom(t0);
+                }
+            }
+        }
+    }
+
+    private PooledXAConnection create(Object key, String username, String password) throws SQLException {
+        XAConnection xaConnection;
+        try {
+            xaConnection = username == null ? dataSource.getXAConnection() : dataSource.getXAConnection(username, password);
+        } catch (SQLException e) {
+            total.decrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+        created.incrementAndGet();
+        return new PooledXAConnection(key, xaConnection);
+    }
+
+    private void destroy(PooledXAConnection connection) {
+        total.decrementAndGet();
+        destroyed.incrementAndGet();
+        try {
+            connection.xaConnection.close();
+        } catch (Exception e) {
+            LOGGER.debug("Error closing pooled connection", e);
+        }
+        signalRoom();
+    }
+
+    /**
+     * Wait until a connection is destroyed or goes back to the pool.  This only happens when
+     * the pool is full while other threads are still validating or handing back connections,
+     * so waiters are counted and the releasing threads only take the lock when somebody waits.
+     */
+    private void awaitRoom(long t0) throws SQLException {
+        roomWaiters.incrementAndGet();
+        try {
+            synchronized (room) {
+                if (closed) {
+                    throw new SQLException(NLS.MESSAGES.getMessage("pool.closed"));
+                }
+                if (total.get() < maxSize || idleCount.get() > 0) {
+                    return;
+                }
+                long remaining = maxWaitMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+                if (remaining <= 0) {
+                    waitTimeouts.incrementAndGet();
+                    throw new SQLException(NLS.MESSAGES.getMessage("pool.exhausted", String.valueOf(maxSize), String.valueOf(maxWaitMillis)));
+                }
+                long t1 = System.nanoTime();
+                try {
+                    room.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(NLS.MESSAGES.getMessage("pool.exhausted", String.valueOf(maxSize), String.valueOf(maxWaitMillis)));
+                } finally {
+                    waitTime.addAndGet(System.nanoTime() - t1);
+                }
+            }
+        } finally {
+            roomWaiters.decrementAndGet();
+        }
+    }
+
+    private void signalRoom() {
+        if (roomWaiters.get() > 0) {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+    }
+
+    private PooledXAConnection poll(Object key) {
+        Queue<PooledXAConnection> queue = idle.get(key);
+        PooledXAConnection connection = queue == null ? null : queue.poll();
+        if (connection != null) {
+            idleCount.decrementAndGet();
+        }
+        return connection;
+    }
+
+    private PooledXAConnection pollAny() {
+        for (Object key : idle.keySet()) {
+            PooledXAConnection connection = poll(key);
+            if (connection != null) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private void offer(PooledXAConnection connection) {
+        Queue<PooledXAConnection> queue = idle.get(connection.key);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<PooledXAConnection>();
+            Queue<PooledXAConnection> existing = idle.putIfAbsent(connection.key, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        idleCount.incrementAndGet();
+        queue.offer(connection);
+        // the pool may have been closed while the connection was in use
+        if (closed && queue.remove(connection)) {
+            idleCount.decrementAndGet();
+            destroy(connection);
+        } else {
+            signalRoom();
+        }
+    }
+
+    private void acquirePermit() throws SQLException {
+        if (permits == null) {
+            return;
+        }
+        if (permits.tryAcquire()) {
+            return;
+        }
+        long t0 = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waitTime.addAndGet(System.nanoTime() - t0);
+        }
+        if (!acquired) {
+            waitTimeouts.incrementAndGet();
+            throw new SQLException(NLS.MESSAGES.getMessage("pool.exhausted", String.valueOf(maxSize), String.valueOf(maxWaitMillis)));
+        }
+    }
+
+    private void releasePermit() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    void evict() {
+        long now = System.currentTimeMillis();
+        if (maxIdleMillis > 0) {
+            for (Queue<PooledXAConnection> queue : idle.values()) {
+                for (PooledXAConnection connection : queue) {
+                    if (total.get() <= minSize) {
+                        break;
+                    }
+                    if (now - connection.lastUsed > maxIdleMillis && queue.remove(connection)) {
+                        idleCount.decrementAndGet();
+                        evicted.incrementAndGet();
+                        destroy(connection);
+                    }
+                }
+            }
+        }
+        while (!closed) {
+            int size = total.get();
+            if (size >= minSize || (maxSize > 0 && size >= maxSize)) {
+                break;
+            }
+            if (total.compareAndSet(size, size + 1)) {
+                try {
+                    offer(create(DEFAULT_KEY, null, null));
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to create connection to fill the pool to its minimum size", e);
+                    break;
+                }
+            }
+        }
+    }
+
+    public int getPoolMinSize() {
+        return minSize;
+    }
+
+    public int getPoolMaxSize() {
+        return maxSize;
+    }
+
+    public int getConnectionCount() {
+        return total.get();
+    }
+
+    public int getIdleConnectionCount() {
+        return idleCount.get();
+    }
+
+    public int getActiveConnectionCount() {
+        return Math.max(0, total.get() - idleCount.get());
+    }
+
+    public int getTransactionConnectionCount() {
+        return transactionConnections.size();
+    }
+
+    public int getWaitingThreadCount() {
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    public long getCreatedConnectionCount() {
+        return created.get();
+    }
+
+    public long getDestroyedConnectionCount() {
+        return destroyed.get();
+    }
+
+    public long getEvictedConnectionCount() {
+        return evicted.get();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailures.get();
+    }
+
+    public long getBorrowCount() {
+        return borrowed.get();
+    }
+
+    public long getTransactionReuseCount() {
+        return transactionReuses.get();
+    }
+
+    public long getWaitTimeoutCount() {
+        return waitTimeouts.get();
+    }
+
+    public long getAverageWaitTime() {
+        long count = borrowed.get() + waitTimeouts.get();
+        return count == 0 ? 0 : waitTime.get() / count / 1000L;
+    }
+
+    public void resetStatistics() {
+        created.set(0);
+        destroyed.set(0);
+        evicted.set(0);
+        validationFailures.set(0);
+        borrowed.set(0);
+        transactionReuses.set(0);
+        waitTimeouts.set(0);
+        waitTime.set(0);
+    }
+
+    /**
+     * A physical connection of the pool.  While borrowed it hands out a single logical
+     * connection, which is closed when the physical connection goes back to the pool.
+     */
+    public class PooledXAConnection implements ConnectionEventListener {
+
+        private final Object key;
+        private final XAConnection xaConnection;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean broken;
+        private Connection connection;
+        private SQLException failure;
+
+        PooledXAConnection(Object key, XAConnection xaConnection) {
+            this.key = key;
+            this.xaConnection = xaConnection;
+            xaConnection.addConnectionEventListener(this);
+        }
+
+        public XAConnection getXAConnection() {
+            return xaConnection;
+        }
+
+        /**
+         * @return the logical connection handed out for this borrow
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Do not give this connection to anybody else, it will be closed when released.
+         */
+        public void discard() {
+            broken = true;
+        }
+
+        /**
+         * Close the logical connection and give the physical connection back to the pool.
+         */
+        public void release() {
+            lastUsed = System.currentTimeMillis();
+            close();
+            if (broken || closed) {
+                destroy(this);
+            } else {
+                offer(this);
+            }
+            releasePermit();
+        }
+
+        boolean activate() {
+            try {
+                connection = xaConnection.getConnection();
+                return true;
+            } catch (SQLException e) {
+                LOGGER.debug("Unable to get a connection from a pooled connection", e);
+                failure = e;
+                broken = true;
+                return false;
+            }
+        }
+
+        /**
+         * Close the logical connection, and the physical one too if it is broken.  This
+         * does not give the connection back to the pool.
+         */
+        void close() {
+            Connection c = connection;
+            connection = null;
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                    LOGGER.debug("Error closing logical connection", e);
+                    broken = true;
+                }
+            }
+        }
+
+        boolean isValid() {
+            if (broken) {
+                return false;
+            }
+            try {
+                // Connection.isValid is not part of Java 5
+                Method method = connection.getClass().getMethod("isValid", int.class);
+                return (Boolean) method.invoke(connection, VALIDATION_TIMEOUT);
+            } catch (NoSuchMethodException e) {
+                return isOpen();
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof AbstractMethodError) {
+                    // driver compiled against an older JDBC version
+                    return isOpen();
+                }
+                LOGGER.debug("Pooled connection failed validation", e.getCause());
+                return false;
+            } catch (Exception e) {
+                LOGGER.debug("Pooled connection failed validation", e);
+                return false;
+            }
+        }
+
+        private boolean isOpen() {
+            try {
+                return !connection.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        public void connectionClosed(ConnectionEvent event) {
+        }
+
+        public void connectionErrorOccurred(ConnectionEvent event) {
+            broken = true;
+        }
+    }
+}
@@ -37,14 +37,15 @@ import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAResource;
 
+import org.apache.aries.transaction.jdbc.internal.XAConnectionPool.PooledXAConnection;
 import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
 
 /**
  * This class allows JDBC XA data sources to participate in global transactions,
- * via the {@link org.apache.aries.transaction.jdbc.internal.ConnectionWrapper} that is returned. The only service provided
- * is enlistment/delistment of the associated {@link XAResource} in transactions.
- * Important consideration such as connection pooling and error handling are
- * completely ignored.
+ * via the {@link org.apache.aries.transaction.jdbc.internal.ConnectionWrapper} that is returned. The
+ * associated {@link XAResource} is enlisted in the current transaction and the physical
+ * {@link XAConnection}s are pooled: a transaction keeps using the same physical connection
+ * until it completes, at which point the connection goes back to the pool.
  *
  */
 public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
@@ -55,40 +56,64 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
     
     private transient TransactionManager tm;
     
-    private transient Map<Object, Connection> connectionMap = 
-        new ConcurrentHashMap<Object, Connection>();
+    private transient Map<Object, PooledXAConnection> connectionMap = 
+        new ConcurrentHashMap<Object, PooledXAConnection>();
+
+    private transient volatile XAConnectionPool pool;
+
+    private transient volatile boolean closed;
+
+    private int poolMinSize = 0;
+
+    private int poolMaxSize = 0;
+
+    private int connectionMaxIdleMinutes = 15;
+
+    private int connectionMaxWaitMilliseconds = 5000;
+
+    private boolean validateOnMatch = true;
     
     public Connection getConnection() throws SQLException {
         Transaction transaction = getTransaction();
-        if (transaction != null) {
-            Object key = transaction;
-            Connection connection = connectionMap.get(key);
-            if (connection == null) {
-                XAConnection xaConnection = wrappedDS.getXAConnection();                                
-                connection = xaConnection.getConnection();
-                enlist(transaction, xaConnection.getXAResource(), key);
-                connectionMap.put(key, connection);                
-            }
-            return getEnlistedConnection(connection, true);
-        } else {
-            return getEnlistedConnection(wrappedDS.getXAConnection().getConnection(), false);
-        }
+        return getConnection(transaction, transaction, null, null);
     }
 
     public Connection getConnection(String username, String password) throws SQLException {
         Transaction transaction = getTransaction();
+        Object key = transaction == null ? null : new ConnectionKey(username, password, transaction);
+        return getConnection(transaction, key, username, password);
+    }
+
+    private Connection getConnection(Transaction transaction, Object key, String username, String password) throws SQLException {
+        XAConnectionPool pool = closed ? null : pool();
+        if (pool == null) {
+            throw new SQLException(NLS.MESSAGES.getMessage("datasource.closed"));
+        }
         if (transaction != null) {
-            Object key = new ConnectionKey(username, password, transaction);
-            Connection connection = connectionMap.get(key);
-            if (connection == null) {
-                XAConnection xaConnection = wrappedDS.getXAConnection(username, password);
-                connection = xaConnection.getConnection();
-                enlist(transaction, xaConnection.getXAResource(), key);               
+            PooledXAConnection connection = connectionMap.get(key);
+            if (connection != null) {
+                pool.transactionReuse();
+            } else {
+                connection = pool.borrow(username, password);
+                XAResource xaResource;
+                try {
+                    xaResource = connection.getXAConnection().getXAResource();
+                } catch (SQLException e) {
+                    connection.discard();
+                    connection.release();
+                    throw e;
+                }
+                if (!enlist(transaction, xaResource, key)) {
+                    // the transaction is marked for rollback, the connection is not reused
+                    connection.discard();
+                    return getEnlistedConnection(connection.getConnection(), false, connection);
+                }
                 connectionMap.put(key, connection);
             }
-            return getEnlistedConnection(connection, true);
+            return getEnlistedConnection(connection.getConnection(), true, null);
         } else {
-            return getEnlistedConnection(wrappedDS.getXAConnection(username, password).getConnection(), false);
+            PooledXAConnection connection = pool.borrow(username, password);
+            return getEnlistedConnection(connection.getConnection(), false, connection);
         }
     }
 
@@ -101,10 +126,11 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
         }
     }
     
-    private void enlist(Transaction transaction, XAResource xaResource, Object key) throws SQLException {
+    private boolean enlist(Transaction transaction, XAResource xaResource, Object key) throws SQLException {
         try {
             transaction.enlistResource(xaResource);            
             transaction.registerSynchronization(new TransactionListener(key));
+            return true;
         } catch (Exception e) {
             try {
                 tm.setRollbackOnly();
@@ -113,6 +139,7 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
             } catch (SystemException e1) {
                 e1.printStackTrace();
             }
+            return false;
         } 
     }
     
@@ -125,13 +152,9 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
         }
         
         public void afterCompletion(int status) {
-            Connection connection = connectionMap.remove(key);
+            PooledXAConnection connection = connectionMap.remove(key);
             if (connection != null) {
-                try {
-                    connection.close();
-                } catch (SQLException e) {
-                    // ignore
-                }
+                connection.release();
             }
         }
 
@@ -140,6 +163,121 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
         
     }
 
+    /**
+     * @return the connection pool, created on first use with the current pool settings
+     * @throws IllegalStateException if this data source was closed before the pool was created
+     */
+    public XAConnectionPool getPool()
+    {
+      XAConnectionPool p = pool();
+      if (p == null) {
+        throw new IllegalStateException(NLS.MESSAGES.getMessage("datasource.closed"));
+      }
+      return p;
+    }
+
+    private XAConnectionPool pool()
+    {
+      XAConnectionPool p = pool;
+      if (p == null) {
+        synchronized (this) {
+          if (pool == null) {
+            if (closed) {
+              return null;
+            }
+            int minSize = poolMaxSize > 0 ? Math.min(poolMinSize, poolMaxSize) : poolMinSize;
+            pool = new XAConnectionPool(wrappedDS, connectionMap, minSize, poolMaxSize,
+                connectionMaxIdleMinutes * 60000L, connectionMaxWaitMilliseconds, validateOnMatch);
+          }
+          p = pool;
+        }
+      }
+      return p;
+    }
+
+    /**
+     * Close the idle pooled connections.  Connections still bound to a transaction are
+     * closed when the transaction completes.  Once closed this data source does not hand
+     * out connections any more.
+     */
+    public void close()
+    {
+      XAConnectionPool p;
+      synchronized (this) {
+        closed = true;
+        p = pool;
+      }
+      if (p != null) {
+        p.close();
+      }
+    }
+
+    public int getPoolMinSize()
+    {
+      return poolMinSize;
+    }
+
+    /**
+     * The number of physical connections kept open even when they are not used.
+     */
+    public void setPoolMinSize(int poolMinSize)
+    {
+      this.poolMinSize = poolMinSize;
+    }
+
+    public int getPoolMaxSize()
+    {
+      return poolMaxSize;
+    }
+
+    /**
+     * The maximum number of physical connections, or 0 for no limit.
+     */
+    public void setPoolMaxSize(int poolMaxSize)
+    {
+      this.poolMaxSize = poolMaxSize;
+    }
+
+    public int getConnectionMaxIdleMinutes()
+    {
+      return connectionMaxIdleMinutes;
+    }
+
+    /**
+     * The number of minutes after which an idle physical connection is closed, or 0 to
+     * keep idle connections open.
+     */
+    public void setConnectionMaxIdleMinutes(int connectionMaxIdleMinutes)
+    {
+      this.connectionMaxIdleMinutes = connectionMaxIdleMinutes;
+    }
+
+    public int getConnectionMaxWaitMilliseconds()
+    {
+      return connectionMaxWaitMilliseconds;
+    }
+
+    /**
+     * How long to wait for a connection when the pool is exhausted before failing.
+     */
+    public void setConnectionMaxWaitMilliseconds(int connectionMaxWaitMilliseconds)
+    {
+      this.connectionMaxWaitMilliseconds = connectionMaxWaitMilliseconds;
+    }
+
+    public boolean isValidateOnMatch()
+    {
+      return validateOnMatch;
+    }
+
+    /**
+     * Whether idle connections are checked before being handed out.
+     */
+    public void setValidateOnMatch(boolean validateOnMatch)
+    {
+      this.validateOnMatch = validateOnMatch;
+    }
+
     public PrintWriter getLogWriter() throws SQLException
     {
       return wrappedDS.getLogWriter();
@@ -166,9 +304,9 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
       wrappedDS.setLoginTimeout(seconds);
     }
 
-    private Connection getEnlistedConnection(Connection connection, boolean enlisted) throws SQLException
+    private Connection getEnlistedConnection(Connection connection, boolean enlisted, PooledXAConnection pooled) throws SQLException
     {
-        return new ConnectionWrapper(connection, enlisted);
+        return new ConnectionWrapper(connection, enlisted, pooled);
     }
 
     public XADataSource getDataSource()
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import org.apache.aries.transaction.jdbc.internal.XAConnectionPool.PooledXAConnection;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class XAConnectionPoolTest {
+
+    private final FakeDataSource dataSource = new FakeDataSource();
+
+    private XAConnectionPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testBorrowAndReturn() throws Exception {
+        pool = newPool(0, 1000);
+
+        PooledXAConnection first = pool.borrow(null, null);
+        XAConnection physical = first.getXAConnection();
+        assertNotNull(first.getConnection());
+        assertEquals(1, pool.getActiveConnectionCount());
+        first.release();
+        assertEquals(1, pool.getIdleConnectionCount());
+
+        PooledXAConnection second = pool.borrow(null, null);
+        assertSame("The idle connection should be reused", physical, second.getXAConnection());
+        second.release();
+
+        PooledXAConnection other = pool.borrow("user", "password");
+        assertFalse("Connections are keyed on their credentials", physical == other.getXAConnection());
+        other.release();
+
+        assertEquals(2, pool.getCreatedConnectionCount());
+        assertEquals(3, pool.getBorrowCount());
+        assertEquals(0, dataSource.closed.size());
+    }
+
+    @Test
+    public void testBorrowWaitsWhenPoolIsFull() throws Exception {
+        pool = newPool(1, 5000);
+
+        final PooledXAConnection first = pool.borrow(null, null);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    result.set(pool.borrow(null, null));
+                } catch (SQLException e) {
+                    result.set(e);
+                }
+                done.countDown();
+            }
+        };
+        waiter.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getWaitingThreadCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getWaitingThreadCount());
+        assertEquals(1, done.getCount());
+
+        first.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        PooledXAConnection second = (PooledXAConnection) result.get();
+        assertSame(first.getXAConnection(), second.getXAConnection());
+        assertEquals(1, pool.getCreatedConnectionCount());
+        second.release();
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenPoolIsFull() throws Exception {
+        pool = newPool(1, 100);
+
+        PooledXAConnection first = pool.borrow(null, null);
+        long t0 = System.currentTimeMillis();
+        try {
+            pool.borrow(null, null);
+            fail("The pool should be exhausted");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - t0 >= 90);
+        assertEquals(1, pool.getWaitTimeoutCount());
+        first.release();
+
+        pool.borrow(null, null).release();
+        assertEquals(1, pool.getCreatedConnectionCount());
+    }
+
+    @Test
+    public void testFullPoolMakesRoomForOtherCredentials() throws Exception {
+        pool = newPool(1, 100);
+
+        PooledXAConnection first = pool.borrow("user", "password");
+        first.release();
+        PooledXAConnection second = pool.borrow(null, null);
+        assertTrue(dataSource.closed.contains(first.getXAConnection()));
+        second.release();
+        assertEquals(1, pool.getConnectionCount());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        pool = newPool(0, 1000);
+
+        PooledXAConnection idle = pool.borrow(null, null);
+        PooledXAConnection inUse = pool.borrow(null, null);
+        idle.release();
+
+        pool.close();
+        assertTrue(dataSource.closed.contains(idle.getXAConnection()));
+        assertFalse(dataSource.closed.contains(inUse.getXAConnection()));
+        try {
+            pool.borrow(null, null);
+            fail("The pool is closed");
+        } catch (SQLException e) {
+            // expected
+        }
+
+        inUse.release();
+        assertTrue("Connections returned after close are closed", dataSource.closed.contains(inUse.getXAConnection()));
+        assertEquals(0, pool.getConnectionCount());
+    }
+
+    @Test
+    public void testDataSourceCloseIsFinal() throws Exception {
+        XADatasourceEnlistingWrapper wrapper = new XADatasourceEnlistingWrapper();
+        wrapper.setDataSource(dataSource.proxy);
+        wrapper.setTransactionManager(proxy(TransactionManager.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getStatus".equals(method.getName())) {
+                    return Status.STATUS_NO_TRANSACTION;
+                }
+                return null;
+            }
+        }));
+        assertEquals("The pool is unbounded by default", 0, wrapper.getPoolMaxSize());
+
+        pool = wrapper.getPool();
+        wrapper.getConnection().close();
+        wrapper.close();
+
+        try {
+            wrapper.getConnection();
+            fail("The data source is closed");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertSame("Closing must not replace the pool", pool, wrapper.getPool());
+        assertEquals(1, dataSource.connections.size());
+    }
+
+    private XAConnectionPool newPool(int maxSize, long maxWaitMillis) {
+        return new XAConnectionPool(dataSource.proxy, new HashMap<Object, Object>(), 0, maxSize, 0, maxWaitMillis, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(XAConnectionPoolTest.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static class FakeDataSource implements InvocationHandler {
+
+        final XADataSource proxy = proxy(XADataSource.class, this);
+        final List<XAConnection> connections = new ArrayList<XAConnection>();
+        final List<XAConnection> closed = new ArrayList<XAConnection>();
+
+        public synchronized Object invoke(Object p, Method method, Object[] args) {
+            if ("getXAConnection".equals(method.getName())) {
+                XAConnection connection = newXAConnection();
+                connections.add(connection);
+                return connection;
+            }
+            return null;
+        }
+
+        private XAConnection newXAConnection() {
+            return proxy(XAConnection.class, new InvocationHandler() {
+                public Object invoke(Object p, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getConnection".equals(name)) {
+                        return newConnection();
+                    } else if ("close".equals(name)) {
+                        synchronized (FakeDataSource.this) {
+                            closed.add((XAConnection) p);
+                        }
+                    } else if ("equals".equals(name)) {
+                        return p == args[0];
+                    } else if ("hashCode".equals(name)) {
+                        return System.identityHashCode(p);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        private Connection newConnection() {
+            return proxy(Connection.class, new InvocationHandler() {
+                private boolean closed;
+
+                public Object invoke(Object p, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("close".equals(name)) {
+                        closed = true;
+                    } else if ("isClosed".equals(name)) {
+                        return closed;
+                    } else if ("isValid".equals(name)) {
+                        return !closed;
+                    } else if ("getAutoCommit".equals(name)) {
+                        return true;
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+}
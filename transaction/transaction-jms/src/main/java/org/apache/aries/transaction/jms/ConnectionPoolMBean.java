@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction.jms;
+
+/**
+ * Statistics of a {@link PooledConnectionFactory}.  A pooled connection factory defined
+ * in a blueprint can be exported as a service under this interface with a
+ * <code>jmx.objectname</code> property so that a JMX whiteboard exposes it.
+ */
+public interface ConnectionPoolMBean {
+
+    /**
+     * The domain and type of the object names used for the pools, the factory name
+     * is added as the <code>name</code> key.
+     */
+    String OBJECTNAME = "org.apache.aries.transaction.jms:type=ConnectionPool";
+
+    int getMaxConnections();
+
+    /**
+     * @return the maximum number of active sessions per connection
+     */
+    int getMaximumActive();
+
+    /**
+     * @return the number of open JMS connections
+     */
+    int getConnectionCount();
+
+    int getActiveSessionCount();
+
+    int getIdleSessionCount();
+
+    long getCreatedConnectionCount();
+
+    long getExpiredConnectionCount();
+
+    long getCreatedSessionCount();
+
+    long getSessionBorrowCount();
+
+    /**
+     * @return the number of session requests which had to wait for a session to be returned
+     */
+    long getSessionWaitCount();
+
+    /**
+     * @return the average time in microseconds a borrower waited for a session
+     */
+    long getAverageSessionWaitTime();
+
+    /**
+     * @return the longest time in microseconds a borrower waited for a session
+     */
+    long getMaxSessionWaitTime();
+
+    /**
+     * @return the number of session requests which failed because the session pool was full
+     */
+    long getSessionPoolExhaustedCount();
+
+    long getProducerCacheHitCount();
+
+    long getProducerCacheMissCount();
+
+    void resetStatistics();
+}
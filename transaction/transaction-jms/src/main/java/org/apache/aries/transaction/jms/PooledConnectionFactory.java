@@ -16,11 +16,11 @@
  */
 package org.apache.aries.transaction.jms;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
@@ -28,6 +28,7 @@ import javax.jms.JMSException;
 import org.apache.aries.transaction.jms.internal.ConnectionKey;
 import org.apache.aries.transaction.jms.internal.ConnectionPool;
 import org.apache.aries.transaction.jms.internal.IOExceptionSupport;
+import org.apache.aries.transaction.jms.internal.PoolStatistics;
 import org.apache.aries.transaction.jms.internal.PooledConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,16 +56,23 @@ import org.apache.commons.pool.impl.GenericObjectPoolFactory;
  * all messages don't end up going to just one of the consumers. See this FAQ entry for more detail:
  * http://activemq.apache.org/i-do-not-receive-messages-in-my-second-consumer.html
  *
+ * Each user name and password pair gets a ring of up to maxConnections connections which are
+ * handed out round robin.  Getting a connection, a session or a cached producer does not take
+ * a lock once the pool is warm; a lock is only taken while a connection of the ring is replaced.
+ * The factory implements {@link ConnectionPoolMBean} so that it can be exported for monitoring.
+ *
  * @org.apache.xbean.XBean element="pooledConnectionFactory"
  */
-public class PooledConnectionFactory implements ConnectionFactory {
+public class PooledConnectionFactory implements ConnectionFactory, ConnectionPoolMBean {
 
     private static final transient Logger LOG = LoggerFactory.getLogger(PooledConnectionFactory.class);
     private ConnectionFactory connectionFactory;
-    private Map<ConnectionKey, LinkedList<ConnectionPool>> cache = new HashMap<ConnectionKey, LinkedList<ConnectionPool>>();
+    private ConcurrentMap<ConnectionKey, ConnectionRing> cache = new ConcurrentHashMap<ConnectionKey, ConnectionRing>();
+    private final PoolStatistics statistics = new PoolStatistics();
     private ObjectPoolFactory poolFactory;
     private int maximumActive = 500;
     private int maxConnections = 1;
+    private int maxCachedProducers = 10;
     private int idleTimeout = 30 * 1000;
     private boolean blockIfSessionPoolIsFull = true;
     private AtomicBoolean stopped = new AtomicBoolean(false);
@@ -88,44 +96,60 @@ public class PooledConnectionFactory implements ConnectionFactory {
         return createConnection(null, null);
     }
 
-    public synchronized Connection createConnection(String userName, String password) throws JMSException {
-        if (stopped.get()) {
-            LOG.debug("PooledConnectionFactory is stopped, skip create new connection.");
-            return null;
-        }
-
+    public Connection createConnection(String userName, String password) throws JMSException {
         ConnectionKey key = new ConnectionKey(userName, password);
-        LinkedList<ConnectionPool> pools = cache.get(key);
-
-        if (pools == null) {
-            pools = new LinkedList<ConnectionPool>();
-            cache.put(key, pools);
+        ConnectionRing ring = getConnectionRing(key);
+        for (;;) {
+            if (stopped.get()) {
+                LOG.debug("PooledConnectionFactory is stopped, skip create new connection.");
+                return null;
+            }
+            ConnectionPool connection = getConnectionPool(ring, ring.next(), key);
+            // the connection may have expired and been closed since we got it,
+            // in which case the next slot is tried
+            if (connection.incrementReferenceCount()) {
+                return new PooledConnection(connection);
+            }
         }
+    }
 
-        ConnectionPool connection = null;
-        if (pools.size() == maxConnections) {
-            connection = pools.removeFirst();
+    private ConnectionRing getConnectionRing(ConnectionKey key) {
+        ConnectionRing ring = cache.get(key);
+        if (ring == null) {
+            ConnectionRing newRing = new ConnectionRing(Math.max(1, maxConnections));
+            ring = cache.putIfAbsent(key, newRing);
+            if (ring == null) {
+                ring = newRing;
+            }
         }
+        return ring;
+    }
 
+    private ConnectionPool getConnectionPool(ConnectionRing ring, int slot, ConnectionKey key) throws JMSException {
+        ConnectionPool connection = ring.get(slot);
         // Now.. we might get a connection, but it might be that we need to
         // dump it..
-        if (connection != null && connection.expiredCheck()) {
-            connection = null;
-        }
-
-        if (connection == null) {
-            Connection delegate = createConnection(key);
-            connection = createConnectionPool(delegate);
+        if (connection == null || connection.expiredCheck()) {
+            synchronized (ring) {
+                connection = ring.get(slot);
+                if (connection == null || connection.expiredCheck()) {
+                    connection = createConnectionPool(createConnection(key));
+                    connection.setIdleTimeout(getIdleTimeout());
+                    connection.setExpiryTimeout(getExpiryTimeout());
+                    connection.setMaximumActive(getMaximumActive());
+                    connection.setBlockIfSessionPoolIsFull(blockIfSessionPoolIsFull);
+                    connection.setMaxCachedProducers(getMaxCachedProducers());
+                    connection.setStatistics(statistics);
+                    statistics.connectionCreated();
+                    ring.set(slot, connection);
+                }
+            }
         }
-        pools.add(connection);
-        return new PooledConnection(connection);
+        return connection;
     }
 
     protected ConnectionPool createConnectionPool(Connection connection) throws JMSException {
-        ConnectionPool result =  new ConnectionPool(connection, getPoolFactory());
-        result.setIdleTimeout(getIdleTimeout());
-        result.setExpiryTimeout(getExpiryTimeout());
-        return result;
+        return new ConnectionPool(connection);
     }
 
     protected Connection createConnection(ConnectionKey key) throws JMSException {
@@ -136,10 +160,19 @@ public class PooledConnectionFactory implements ConnectionFactory {
         }
     }
 
+    /**
+     * Opens all the connections of the default ring so that the first
+     * users of the factory do not pay for it.  These connections do not
+     * expire for being idle until they have been used once.
+     */
     public void start() {
         try {
             stopped.set(false);
-            createConnection();
+            ConnectionKey key = new ConnectionKey(null, null);
+            ConnectionRing ring = getConnectionRing(key);
+            for (int slot = 0; slot < ring.length(); slot++) {
+                getConnectionPool(ring, slot, key);
+            }
         } catch (JMSException e) {
             LOG.warn("Create pooled connection during start failed.", e);
             IOExceptionSupport.create(e);
@@ -149,18 +182,28 @@ public class PooledConnectionFactory implements ConnectionFactory {
     public void stop() {
         LOG.debug("Stop the PooledConnectionFactory, number of connections in cache: "+cache.size());
         stopped.set(true);
-        for (Iterator<LinkedList<ConnectionPool>> iter = cache.values().iterator(); iter.hasNext();) {
-            for (ConnectionPool connection : iter.next()) {
-                try {
-                    connection.close();
-                }catch(Exception e) {
-                    LOG.warn("Close connection failed",e);
+        for (ConnectionRing ring : cache.values()) {
+            synchronized (ring) {
+                for (int slot = 0; slot < ring.length(); slot++) {
+                    ConnectionPool connection = ring.getAndSet(slot, null);
+                    if (connection == null) {
+                        continue;
+                    }
+                    try {
+                        connection.close();
+                    }catch(Exception e) {
+                        LOG.warn("Close connection failed",e);
+                    }
                 }
             }
         }
         cache.clear();
     }
 
+    /**
+     * @deprecated sessions are no longer pooled with commons-pool, the session pools
+     * are configured with {@link #setMaximumActive(int)} and {@link #setBlockIfSessionPoolIsFull(boolean)}
+     */
     public ObjectPoolFactory getPoolFactory() {
         if (poolFactory == null) {
             poolFactory = createPoolFactory();
@@ -171,6 +214,9 @@ public class PooledConnectionFactory implements ConnectionFactory {
     /**
      * Sets the object pool factory used to create individual session pools for
      * each connection
+     *
+     * @deprecated the factory is ignored, sessions are pooled with a lock free pool
+     * configured with {@link #setMaximumActive(int)} and {@link #setBlockIfSessionPoolIsFull(boolean)}
      */
     public void setPoolFactory(ObjectPoolFactory poolFactory) {
         this.poolFactory = poolFactory;
@@ -226,6 +272,7 @@ public class PooledConnectionFactory implements ConnectionFactory {
      * properties @see #maximumActive and @see #blockIfSessionPoolIsFull.
      *
      * @return the newly created but empty ObjectPoolFactory
+     * @deprecated see {@link #getPoolFactory()}
      */
     protected ObjectPoolFactory createPoolFactory() {
          if (blockIfSessionPoolIsFull) {
@@ -238,6 +285,22 @@ public class PooledConnectionFactory implements ConnectionFactory {
         }
     }
 
+    public int getMaxCachedProducers() {
+        return maxCachedProducers;
+    }
+
+    /**
+     * Number of message producers bound to a destination which each pooled session
+     * keeps open so that they can be reused by later sends to the same destination.
+     * Producers for other destinations go through a single anonymous producer.
+     * Defaults to 10, 0 disables the cache.
+     *
+     * @param maxCachedProducers the maximum number of cached producers per session
+     */
+    public void setMaxCachedProducers(int maxCachedProducers) {
+        this.maxCachedProducers = maxCachedProducers;
+    }
+
     public int getIdleTimeout() {
         return idleTimeout;
     }
@@ -265,4 +328,105 @@ public class PooledConnectionFactory implements ConnectionFactory {
     public long getExpiryTimeout() {
         return expiryTimeout;
     }
+
+    // ConnectionPoolMBean
+    // -------------------------------------------------------------------------
+    public int getConnectionCount() {
+        int count = 0;
+        for (ConnectionRing ring : cache.values()) {
+            for (int slot = 0; slot < ring.length(); slot++) {
+                ConnectionPool connection = ring.get(slot);
+                if (connection != null && connection.getConnection() != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getActiveSessionCount() {
+        int count = 0;
+        for (ConnectionRing ring : cache.values()) {
+            for (int slot = 0; slot < ring.length(); slot++) {
+                ConnectionPool connection = ring.get(slot);
+                if (connection != null) {
+                    count += connection.getActiveSessionCount();
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getIdleSessionCount() {
+        int count = 0;
+        for (ConnectionRing ring : cache.values()) {
+            for (int slot = 0; slot < ring.length(); slot++) {
+                ConnectionPool connection = ring.get(slot);
+                if (connection != null) {
+                    count += connection.getIdleSessionCount();
+                }
+            }
+        }
+        return count;
+    }
+
+    public long getCreatedConnectionCount() {
+        return statistics.getCreatedConnectionCount();
+    }
+
+    public long getExpiredConnectionCount() {
+        return statistics.getExpiredConnectionCount();
+    }
+
+    public long getCreatedSessionCount() {
+        return statistics.getCreatedSessionCount();
+    }
+
+    public long getSessionBorrowCount() {
+        return statistics.getSessionBorrowCount();
+    }
+
+    public long getSessionWaitCount() {
+        return statistics.getSessionWaitCount();
+    }
+
+    public long getAverageSessionWaitTime() {
+        return statistics.getAverageSessionWaitTime();
+    }
+
+    public long getMaxSessionWaitTime() {
+        return statistics.getMaxSessionWaitTime();
+    }
+
+    public long getSessionPoolExhaustedCount() {
+        return statistics.getSessionPoolExhaustedCount();
+    }
+
+    public long getProducerCacheHitCount() {
+        return statistics.getProducerCacheHitCount();
+    }
+
+    public long getProducerCacheMissCount() {
+        return statistics.getProducerCacheMissCount();
+    }
+
+    public void resetStatistics() {
+        statistics.reset();
+    }
+
+    /**
+     * The connections opened for a given user, handed out round robin.
+     */
+    private static class ConnectionRing extends AtomicReferenceArray<ConnectionPool> {
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        ConnectionRing(int size) {
+            super(size);
+        }
+
+        int next() {
+            return (next.getAndIncrement() & Integer.MAX_VALUE) % length();
+        }
+    }
 }
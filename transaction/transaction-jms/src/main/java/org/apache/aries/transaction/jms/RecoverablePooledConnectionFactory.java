@@ -58,7 +58,7 @@ public class RecoverablePooledConnectionFactory extends XaPooledConnectionFactor
     	if (!(connection instanceof XAConnection)) {
     		throw new JMSException("Require an instance of javax.jms.XAConnection for creating the ConnectionPool");
     	}
-        return new RecoverableConnectionPool((XAConnection)connection, getPoolFactory(), getTransactionManager(), getName());
+        return new RecoverableConnectionPool((XAConnection)connection, getTransactionManager(), getName());
     }
 
     /**
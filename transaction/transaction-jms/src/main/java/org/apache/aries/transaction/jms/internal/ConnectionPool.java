@@ -20,35 +20,54 @@ import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.jms.Connection;
 import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Session;
 
-import org.apache.commons.pool.ObjectPoolFactory;
-
 /**
  * Holds a real JMS connection along with the session pools associated with it.
  *
+ * The reference count is updated without locking.  Once the connection has expired
+ * and is no longer referenced, the count is swapped to a negative value so that
+ * no new reference can be taken on a connection which is being closed.  The count
+ * is also held at a negative value while the sessions left open by the last user
+ * are returned to the pool, new users block until that is complete.
  *
+ * A connection which has never been used, such as one opened by
+ * {@link org.apache.aries.transaction.jms.PooledConnectionFactory#start()}, is not
+ * discarded for being idle.
  */
 public class ConnectionPool {
 
-    private Connection connection;
+    private static final int CLOSED = Integer.MIN_VALUE / 2;
+    private static final int RELEASING = -1;
+
+    private volatile Connection connection;
     private ConcurrentHashMap<SessionKey, SessionPool> cache;
     private ConcurrentLinkedQueue<PooledSession> loanedSessions = new ConcurrentLinkedQueue<PooledSession>();
     private AtomicBoolean started = new AtomicBoolean(false);
-    private int referenceCount;
-    private ObjectPoolFactory poolFactory;
-    private long lastUsed = System.currentTimeMillis();
+    private AtomicBoolean closed = new AtomicBoolean(false);
+    private AtomicInteger referenceCount = new AtomicInteger();
+    private PoolStatistics statistics = new PoolStatistics();
+    private volatile long lastUsed = System.currentTimeMillis();
     private long firstUsed = lastUsed;
-    private boolean hasFailed;
-    private boolean hasExpired;
+    private volatile boolean hasFailed;
+    private volatile boolean hasExpired;
+    // set by the first user, until then a pre-warmed connection does not expire for being idle
+    private volatile boolean used;
+    // threads waiting for the last user's sessions to be returned, see awaitReleased
+    private final Object released = new Object();
+    private final AtomicInteger releaseWaiters = new AtomicInteger();
     private int idleTimeout = 30 * 1000;
     private long expiryTimeout = 0l;
+    private int maximumActive = 500;
+    private boolean blockIfSessionPoolIsFull = true;
+    private int maxCachedProducers = 0;
 
-    public ConnectionPool(Connection connection, ObjectPoolFactory poolFactory) throws JMSException {
-        this(connection, new ConcurrentHashMap<SessionKey, SessionPool>(), poolFactory);
+    public ConnectionPool(Connection connection) throws JMSException {
+        this(connection, new ConcurrentHashMap<SessionKey, SessionPool>());
         /*
         TODO: activemq specific
         // Add a transport Listener so that we can notice if this connection
@@ -78,17 +97,14 @@ public class ConnectionPool {
         */
         connection.setExceptionListener(new ExceptionListener() {
             public void onException(JMSException exception) {
-                synchronized (ConnectionPool.this) {
-                    hasFailed = true;
-                }
+                hasFailed = true;
             }
         });
     }
 
-    public ConnectionPool(Connection connection, ConcurrentHashMap<SessionKey, SessionPool> cache, ObjectPoolFactory poolFactory) {
+    public ConnectionPool(Connection connection, ConcurrentHashMap<SessionKey, SessionPool> cache) {
         this.connection = connection;
         this.cache = cache;
-        this.poolFactory = poolFactory;
     }
 
     public void start() throws JMSException {
@@ -102,60 +118,39 @@ public class ConnectionPool {
         }
     }
 
-    public synchronized javax.jms.Connection getConnection() {
+    public javax.jms.Connection getConnection() {
         return connection;
     }
 
     public Session createSession(boolean transacted, int ackMode) throws JMSException {
-        SessionKey key = new SessionKey(transacted, ackMode);
-        SessionPool pool = null;
-        pool = cache.get(key);
-        if (pool == null) {
-            SessionPool newPool = createSessionPool(key);
-            SessionPool prevPool = cache.putIfAbsent(key, newPool);
-            if (prevPool != null && prevPool != newPool) {
-                // newPool was not the first one to be associated with this
-                // key... close created session pool
-                try {
-                    newPool.close();
-                } catch (Exception e) {
-                    throw new JMSException(e.getMessage());
-                }
-            }
-            pool = cache.get(key); // this will return a non-null value...
-        }
-        PooledSession session = pool.borrowSession();
+        PooledSession session = getSessionPool(new SessionKey(transacted, ackMode)).borrowSession();
         this.loanedSessions.add(session);
         return session;
     }
     
     
     public Session createXaSession(boolean transacted, int ackMode) throws JMSException {
-        SessionKey key = new SessionKey(transacted, ackMode);
-        SessionPool pool = null;
-        pool = cache.get(key);
+        PooledSession session = getSessionPool(new SessionKey(transacted, ackMode)).borrowSession();
+        this.loanedSessions.add(session);
+        return session;
+    }
+    
+    private SessionPool getSessionPool(SessionKey key) {
+        SessionPool pool = cache.get(key);
         if (pool == null) {
             SessionPool newPool = createSessionPool(key);
-            SessionPool prevPool = cache.putIfAbsent(key, newPool);
-            if (prevPool != null && prevPool != newPool) {
-                // newPool was not the first one to be associated with this
-                // key... close created session pool
-                try {
-                    newPool.close();
-                } catch (Exception e) {
-                    throw new JMSException(e.getMessage());
-                }
+            pool = cache.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
             }
-            pool = cache.get(key); // this will return a non-null value...
         }
-        PooledSession session = pool.borrowSession();
-        this.loanedSessions.add(session);
-        return session;
+        return pool;
     }
-    
 
-    public synchronized void close() {
-        if (connection != null) {
+    public void close() {
+        referenceCount.set(CLOSED);
+        signalReleased();
+        if (closed.compareAndSet(false, true)) {
             try {
                 Iterator<SessionPool> i = cache.values().iterator();
                 while (i.hasNext()) {
@@ -177,24 +172,79 @@ public class ConnectionPool {
         }
     }
 
-    public synchronized void incrementReferenceCount() {
-        referenceCount++;
-        lastUsed = System.currentTimeMillis();
+    /**
+     * @return false if the connection has already been closed, in which case no
+     *         reference has been taken
+     */
+    public boolean incrementReferenceCount() {
+        for (;;) {
+            int count = referenceCount.get();
+            if (count == RELEASING) {
+                awaitReleased();
+                continue;
+            }
+            if (count < 0) {
+                return false;
+            }
+            if (referenceCount.compareAndSet(count, count + 1)) {
+                lastUsed = System.currentTimeMillis();
+                used = true;
+                return true;
+            }
+        }
     }
 
-    public synchronized void decrementReferenceCount() {
-        referenceCount--;
-        lastUsed = System.currentTimeMillis();
-        if (referenceCount == 0) {
-            expiredCheck();
+    /**
+     * Wait until the last user's sessions have been returned to the pool.  Only new
+     * users racing with the last close wait, so the closing thread only takes the lock
+     * when somebody is waiting.
+     */
+    private void awaitReleased() {
+        releaseWaiters.incrementAndGet();
+        try {
+            boolean interrupted = false;
+            synchronized (released) {
+                while (referenceCount.get() == RELEASING) {
+                    try {
+                        released.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            releaseWaiters.decrementAndGet();
+        }
+    }
 
-            for (PooledSession session : this.loanedSessions) {
-                try {
-                    session.close();
-                } catch (Exception e) {
+    private void signalReleased() {
+        if (releaseWaiters.get() > 0) {
+            synchronized (released) {
+                released.notifyAll();
+            }
+        }
+    }
+
+    public void decrementReferenceCount() {
+        int count = referenceCount.decrementAndGet();
+        lastUsed = System.currentTimeMillis();
+        if (count == 0 && referenceCount.compareAndSet(0, RELEASING)) {
+            try {
+                for (PooledSession session : this.loanedSessions) {
+                    try {
+                        session.close();
+                    } catch (Exception e) {
+                    }
                 }
+                this.loanedSessions.clear();
+            } finally {
+                referenceCount.compareAndSet(RELEASING, 0);
+                signalReleased();
             }
-            this.loanedSessions.clear();
+            expiredCheck();
 
             // only clean up temp destinations when all users
             // of this connection have called close
@@ -210,21 +260,21 @@ public class ConnectionPool {
     /**
      * @return true if this connection has expired.
      */
-    public synchronized boolean expiredCheck() {
-        if (connection == null) {
+    public boolean expiredCheck() {
+        if (connection == null || closed.get()) {
             return true;
         }
-        if (hasExpired) {
-            if (referenceCount == 0) {
-                close();
+        if (!hasExpired) {
+            long now = System.currentTimeMillis();
+            if (hasFailed
+                    || (used && idleTimeout > 0 && now > lastUsed + idleTimeout)
+                    || expiryTimeout > 0 && now > firstUsed + expiryTimeout) {
+                hasExpired = true;
+                statistics.connectionExpired();
             }
-            return true;
         }
-        if (hasFailed
-                || (idleTimeout > 0 && System.currentTimeMillis() > lastUsed + idleTimeout)
-                || expiryTimeout > 0 && System.currentTimeMillis() > firstUsed + expiryTimeout) {
-            hasExpired = true;
-            if (referenceCount == 0) {
+        if (hasExpired) {
+            if (referenceCount.compareAndSet(0, CLOSED)) {
                 close();
             }
             return true;
@@ -241,7 +291,55 @@ public class ConnectionPool {
     }
 
     protected SessionPool createSessionPool(SessionKey key) {
-        return new SessionPool(this, key, poolFactory.createPool());
+        return new SessionPool(this, key);
+    }
+
+    public int getMaximumActive() {
+        return maximumActive;
+    }
+
+    public void setMaximumActive(int maximumActive) {
+        this.maximumActive = maximumActive;
+    }
+
+    public boolean isBlockIfSessionPoolIsFull() {
+        return blockIfSessionPoolIsFull;
+    }
+
+    public void setBlockIfSessionPoolIsFull(boolean blockIfSessionPoolIsFull) {
+        this.blockIfSessionPoolIsFull = blockIfSessionPoolIsFull;
+    }
+
+    public int getMaxCachedProducers() {
+        return maxCachedProducers;
+    }
+
+    public void setMaxCachedProducers(int maxCachedProducers) {
+        this.maxCachedProducers = maxCachedProducers;
+    }
+
+    public PoolStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(PoolStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public int getActiveSessionCount() {
+        int count = 0;
+        for (SessionPool pool : cache.values()) {
+            count += pool.getActiveCount();
+        }
+        return count;
+    }
+
+    public int getIdleSessionCount() {
+        int count = 0;
+        for (SessionPool pool : cache.values()) {
+            count += pool.getIdleCount();
+        }
+        return count;
     }
 
     public void setExpiryTimeout(long expiryTimeout) {
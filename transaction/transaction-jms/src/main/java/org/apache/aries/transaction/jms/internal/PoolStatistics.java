@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction.jms.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by all the connection and session pools of a pooled connection factory.
+ */
+public class PoolStatistics {
+
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong expiredConnections = new AtomicLong();
+    private final AtomicLong createdSessions = new AtomicLong();
+    private final AtomicLong borrowedSessions = new AtomicLong();
+    private final AtomicLong sessionWaits = new AtomicLong();
+    private final AtomicLong sessionWaitTime = new AtomicLong();
+    private final AtomicLong maxSessionWaitTime = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong producerHits = new AtomicLong();
+    private final AtomicLong producerMisses = new AtomicLong();
+
+    public void connectionCreated() {
+        createdConnections.incrementAndGet();
+    }
+
+    public void connectionExpired() {
+        expiredConnections.incrementAndGet();
+    }
+
+    public void sessionCreated() {
+        createdSessions.incrementAndGet();
+    }
+
+    public void sessionBorrowed() {
+        borrowedSessions.incrementAndGet();
+    }
+
+    public void sessionWaited(long nanos) {
+        long micros = nanos / 1000;
+        sessionWaits.incrementAndGet();
+        sessionWaitTime.addAndGet(micros);
+        for (;;) {
+            long max = maxSessionWaitTime.get();
+            if (micros <= max || maxSessionWaitTime.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    public void sessionPoolExhausted() {
+        exhausted.incrementAndGet();
+    }
+
+    public void producerCacheHit() {
+        producerHits.incrementAndGet();
+    }
+
+    public void producerCacheMiss() {
+        producerMisses.incrementAndGet();
+    }
+
+    public long getCreatedConnectionCount() {
+        return createdConnections.get();
+    }
+
+    public long getExpiredConnectionCount() {
+        return expiredConnections.get();
+    }
+
+    public long getCreatedSessionCount() {
+        return createdSessions.get();
+    }
+
+    public long getSessionBorrowCount() {
+        return borrowedSessions.get();
+    }
+
+    public long getSessionWaitCount() {
+        return sessionWaits.get();
+    }
+
+    public long getAverageSessionWaitTime() {
+        long waits = sessionWaits.get();
+        return waits == 0 ? 0 : sessionWaitTime.get() / waits;
+    }
+
+    public long getMaxSessionWaitTime() {
+        return maxSessionWaitTime.get();
+    }
+
+    public long getSessionPoolExhaustedCount() {
+        return exhausted.get();
+    }
+
+    public long getProducerCacheHitCount() {
+        return producerHits.get();
+    }
+
+    public long getProducerCacheMissCount() {
+        return producerMisses.get();
+    }
+
+    public void reset() {
+        createdConnections.set(0);
+        expiredConnections.set(0);
+        createdSessions.set(0);
+        borrowedSessions.set(0);
+        sessionWaits.set(0);
+        sessionWaitTime.set(0);
+        maxSessionWaitTime.set(0);
+        exhausted.set(0);
+        producerHits.set(0);
+        producerMisses.set(0);
+    }
+}
@@ -57,15 +57,23 @@ public class PooledConnection implements TopicConnection, QueueConnection {
     private final CopyOnWriteArrayList<TemporaryQueue> connTempQueues = new CopyOnWriteArrayList<TemporaryQueue>();
     private final CopyOnWriteArrayList<TemporaryTopic> connTempTopics = new CopyOnWriteArrayList<TemporaryTopic>();
 
+    /**
+     * Creates a proxy for a pool on which the caller already took a reference,
+     * the reference is released when this connection is closed.
+     */
     public PooledConnection(ConnectionPool pool) {
         this.pool = pool;
-        this.pool.incrementReferenceCount();
     }
 
     /**
      * Factory method to create a new instance.
+     *
+     * @throws JMSException if this connection or the pooled connection has been closed
      */
-    public PooledConnection newInstance() {
+    public PooledConnection newInstance() throws JMSException {
+        if (pool == null || !pool.incrementReferenceCount()) {
+            throw new JMSException("Already closed");
+        }
         return new PooledConnection(pool);
     }
 
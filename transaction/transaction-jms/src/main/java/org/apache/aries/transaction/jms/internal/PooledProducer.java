@@ -24,10 +24,12 @@ import javax.jms.MessageProducer;
 /**
  * A pooled {@link MessageProducer}
  * 
- * 
+ * Messages are sent through the producer the session cached for the destination
+ * when there is one, and through the session's anonymous producer otherwise.
  */
 public class PooledProducer implements MessageProducer {
     private MessageProducer messageProducer;
+    private MessageProducer destinationProducer;
     private Destination destination;
     private int deliveryMode;
     private boolean disableMessageID;
@@ -36,7 +38,12 @@ public class PooledProducer implements MessageProducer {
     private long timeToLive;
 
     public PooledProducer(MessageProducer messageProducer, Destination destination) throws JMSException {
+        this(messageProducer, null, destination);
+    }
+
+    public PooledProducer(MessageProducer messageProducer, MessageProducer destinationProducer, Destination destination) throws JMSException {
         this.messageProducer = messageProducer;
+        this.destinationProducer = destinationProducer;
         this.destination = destination;
 
         this.deliveryMode = messageProducer.getDeliveryMode();
@@ -65,6 +72,12 @@ public class PooledProducer implements MessageProducer {
         if (destination == null) {
             destination = this.destination;
         }
+        if (destinationProducer != null && this.destination.equals(destination)) {
+            synchronized (destinationProducer) {
+                destinationProducer.send(message, deliveryMode, priority, timeToLive);
+            }
+            return;
+        }
         MessageProducer messageProducer = getMessageProducer();
 
         // just in case let only one thread send at once
@@ -19,6 +19,7 @@ package org.apache.aries.transaction.jms.internal;
 import java.io.Serializable;
 import java.lang.IllegalStateException;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import javax.jms.*;
 import javax.transaction.xa.XAResource;
@@ -34,6 +35,7 @@ public class PooledSession implements Session, TopicSession, QueueSession {
     private MessageProducer messageProducer;
     private QueueSender queueSender;
     private TopicPublisher topicPublisher;
+    private final ConcurrentHashMap<Destination, MessageProducer> producers = new ConcurrentHashMap<Destination, MessageProducer>();
     private boolean transactional = true;
     private boolean ignoreClose;
 
@@ -100,6 +102,7 @@ public class PooledSession implements Session, TopicSession, QueueSession {
             if (invalidate) {
                 // lets close the session and not put the session back into
                 // the pool
+                closeCachedProducers();
                 if (session != null) {
                     try {
                         session.close();
@@ -279,7 +282,7 @@ public class PooledSession implements Session, TopicSession, QueueSession {
     // Producer related methods
     // -------------------------------------------------------------------------
     public MessageProducer createProducer(Destination destination) throws JMSException {
-        return new PooledProducer(getMessageProducer(), destination);
+        return new PooledProducer(getMessageProducer(), getDestinationProducer(destination), destination);
     }
 
     public QueueSender createSender(Queue queue) throws JMSException {
@@ -318,6 +321,51 @@ public class PooledSession implements Session, TopicSession, QueueSession {
         return messageProducer;
     }
 
+    /**
+     * Returns the producer cached for the given destination, creating it if the cache
+     * is not full yet.  Temporary destinations are not cached as they do not outlive
+     * the connection which created them.
+     *
+     * @return the cached producer, or null if messages have to go through the anonymous producer
+     */
+    protected MessageProducer getDestinationProducer(Destination destination) throws JMSException {
+        if (destination == null || destination instanceof TemporaryQueue || destination instanceof TemporaryTopic
+                || sessionPool.getMaxCachedProducers() <= 0) {
+            return null;
+        }
+        MessageProducer producer = producers.get(destination);
+        if (producer != null) {
+            sessionPool.getStatistics().producerCacheHit();
+            return producer;
+        }
+        sessionPool.getStatistics().producerCacheMiss();
+        if (producers.size() >= sessionPool.getMaxCachedProducers()) {
+            return null;
+        }
+        producer = getInternalSession().createProducer(destination);
+        MessageProducer previous = producers.putIfAbsent(destination, producer);
+        if (previous != null) {
+            producer.close();
+            producer = previous;
+        }
+        return producer;
+    }
+
+    /**
+     * Close the producers cached for destinations, before the session is discarded.
+     */
+    void closeCachedProducers() {
+        for (Iterator<MessageProducer> iter = producers.values().iterator(); iter.hasNext();) {
+            MessageProducer producer = iter.next();
+            iter.remove();
+            try {
+                producer.close();
+            } catch (JMSException e) {
+                LOG.trace("Ignoring exception on close as discarding producer: " + e, e);
+            }
+        }
+    }
+
     public QueueSender getQueueSender() throws JMSException {
         if (queueSender == null) {
             queueSender = ((QueueSession) getInternalSession()).createSender(null);
@@ -22,15 +22,14 @@ import javax.jms.XASession;
 import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAResource;
 
-import org.apache.commons.pool.ObjectPoolFactory;
 import org.apache.geronimo.transaction.manager.WrapperNamedXAResource;
 
 public class RecoverableConnectionPool extends XaConnectionPool {
 
     private String name;
 
-    public RecoverableConnectionPool(XAConnection connection, ObjectPoolFactory poolFactory, TransactionManager transactionManager, String name) throws JMSException {
-        super(connection, poolFactory, transactionManager);
+    public RecoverableConnectionPool(XAConnection connection, TransactionManager transactionManager, String name) throws JMSException {
+        super(connection, transactionManager);
         this.name = name;
     }
 
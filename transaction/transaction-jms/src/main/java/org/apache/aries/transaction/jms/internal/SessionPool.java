@@ -16,114 +16,223 @@
  */
 package org.apache.aries.transaction.jms.internal;
 
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.jms.Connection;
 import javax.jms.JMSException;
 import javax.jms.Session;
 import javax.jms.XAConnection;
 import javax.jms.XASession;
 
-import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.PoolableObjectFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Represents the session pool for a given JMS connection.
  *
- *
+ * Idle sessions are kept on a lock free stack so that the most recently used session,
+ * and the producers it caches, is handed out first.  The number of active sessions is
+ * bounded by a semaphore, so borrowing and returning a session never take a lock.
  */
-public class SessionPool implements PoolableObjectFactory {
-    private ConnectionPool connectionPool;
-    private SessionKey key;
-    private ObjectPool sessionPool;
-
-    public SessionPool(ConnectionPool connectionPool, SessionKey key, ObjectPool sessionPool) {
+public class SessionPool {
+    private static final transient Logger LOG = LoggerFactory.getLogger(SessionPool.class);
+
+    private final ConnectionPool connectionPool;
+    private final SessionKey key;
+    private final PoolStatistics statistics;
+    private final Semaphore permits;
+    private final boolean blockIfSessionPoolIsFull;
+    private final AtomicReference<Node> idle = new AtomicReference<Node>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    public SessionPool(ConnectionPool connectionPool, SessionKey key) {
         this.connectionPool = connectionPool;
         this.key = key;
-        this.sessionPool = sessionPool;
-        sessionPool.setFactory(this);
+        this.statistics = connectionPool.getStatistics();
+        this.blockIfSessionPoolIsFull = connectionPool.isBlockIfSessionPoolIsFull();
+        int maximumActive = connectionPool.getMaximumActive();
+        this.permits = maximumActive > 0 ? new Semaphore(maximumActive) : null;
     }
 
-    public void close() throws Exception {
-        if (sessionPool != null) {
-            sessionPool.close();
-        }
-        sessionPool = null;
+    public void close() {
+        closed = true;
+        destroyIdleSessions();
     }
 
     public PooledSession borrowSession() throws JMSException {
+        checkClosed();
+        acquire();
         try {
-            Object object = getSessionPool().borrowObject();
-            return (PooledSession)object;
+            PooledSession session = pop();
+            if (session == null) {
+                session = makeSession();
+                statistics.sessionCreated();
+            }
+            activeCount.incrementAndGet();
+            statistics.sessionBorrowed();
+            return session;
         } catch (JMSException e) {
+            release();
+            throw e;
+        } catch (RuntimeException e) {
+            release();
             throw e;
-        } catch (Exception e) {
-            throw JMSExceptionSupport.create(e);
         }
     }
 
     public void returnSession(PooledSession session) throws JMSException {
-        // lets check if we are already closed
-        getConnection();
+        connectionPool.onSessionReturned(session);
+        activeCount.decrementAndGet();
         try {
-            connectionPool.onSessionReturned(session);
-            getSessionPool().returnObject(session);
-        } catch (Exception e) {
-            throw JMSExceptionSupport.create("Failed to return session to pool: " + e, e);
+            if (closed) {
+                destroySession(session);
+            } else {
+                push(session);
+                // the pool may have been closed while the session was pushed
+                if (closed) {
+                    destroyIdleSessions();
+                }
+            }
+        } finally {
+            release();
         }
     }
 
     public void invalidateSession(PooledSession session) throws JMSException {
+        connectionPool.onSessionInvalidated(session);
+        activeCount.decrementAndGet();
         try {
-            connectionPool.onSessionInvalidated(session);
-            getSessionPool().invalidateObject(session);
-        } catch (Exception e) {
-            throw JMSExceptionSupport.create("Failed to invalidate session: " + e, e);
+            destroySession(session);
+        } finally {
+            release();
         }
     }
 
-    // PoolableObjectFactory methods
-    // -------------------------------------------------------------------------
-    public Object makeObject() throws Exception {
-    	if (getConnection() instanceof XAConnection) {
-    		return new PooledSession(createXaSession(), this, key.isTransacted());
-    	} else {
-    		return new PooledSession(createSession(), this, key.isTransacted());
-    	}
+    public int getActiveCount() {
+        return activeCount.get();
     }
 
-    public void destroyObject(Object o) throws Exception {
-        PooledSession session = (PooledSession)o;
-        session.getInternalSession().close();
+    public int getIdleCount() {
+        return idleCount.get();
     }
 
-    public boolean validateObject(Object o) {
-        return true;
+    PoolStatistics getStatistics() {
+        return statistics;
     }
 
-    public void activateObject(Object o) throws Exception {
-    }
-
-    public void passivateObject(Object o) throws Exception {
+    int getMaxCachedProducers() {
+        return connectionPool.getMaxCachedProducers();
     }
 
     // Implemention methods
     // -------------------------------------------------------------------------
-    protected ObjectPool getSessionPool() throws JMSException {
-        if (sessionPool == null) {
-            throw new JMSException("Already closed");
+    protected PooledSession makeSession() throws JMSException {
+        if (getConnection() instanceof XAConnection) {
+            return new PooledSession(createXaSession(), this, key.isTransacted());
+        } else {
+            return new PooledSession(createSession(), this, key.isTransacted());
+        }
+    }
+
+    protected void destroySession(PooledSession session) {
+        session.closeCachedProducers();
+        try {
+            Session internal = session.getInternalSession();
+            internal.close();
+        } catch (JMSException e) {
+            LOG.trace("Ignoring exception on close as discarding session: " + e, e);
         }
-        return sessionPool;
     }
 
     protected Connection getConnection() throws JMSException {
-        return connectionPool.getConnection();
+        Connection connection = connectionPool.getConnection();
+        if (connection == null) {
+            throw new JMSException("Already closed");
+        }
+        return connection;
     }
 
     protected Session createSession() throws JMSException {
         return getConnection().createSession(key.isTransacted(), key.getAckMode());
     }
-    
+
     protected XASession createXaSession() throws JMSException {
         return ((XAConnection)getConnection()).createXASession();
     }
 
+    private void checkClosed() throws JMSException {
+        if (closed) {
+            throw new JMSException("Already closed");
+        }
+    }
+
+    private void acquire() throws JMSException {
+        if (permits == null || permits.tryAcquire()) {
+            return;
+        }
+        if (!blockIfSessionPoolIsFull) {
+            statistics.sessionPoolExhausted();
+            throw new JMSException("Pool exhausted");
+        }
+        long start = System.nanoTime();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            statistics.sessionPoolExhausted();
+            throw JMSExceptionSupport.create("Interrupted while waiting for a session", e);
+        }
+        statistics.sessionWaited(System.nanoTime() - start);
+    }
+
+    private void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    private void push(PooledSession session) {
+        Node node = new Node(session);
+        for (;;) {
+            Node head = idle.get();
+            node.next = head;
+            if (idle.compareAndSet(head, node)) {
+                idleCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private PooledSession pop() {
+        for (;;) {
+            Node head = idle.get();
+            if (head == null) {
+                return null;
+            }
+            if (idle.compareAndSet(head, head.next)) {
+                idleCount.decrementAndGet();
+                return head.session;
+            }
+        }
+    }
+
+    private void destroyIdleSessions() {
+        PooledSession session;
+        while ((session = pop()) != null) {
+            destroySession(session);
+        }
+    }
+
+    private static final class Node {
+        private final PooledSession session;
+        private Node next;
+
+        private Node(PooledSession session) {
+            this.session = session;
+        }
+    }
+
 }
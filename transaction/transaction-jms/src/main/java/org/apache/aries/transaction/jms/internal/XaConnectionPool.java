@@ -25,8 +25,6 @@ import javax.transaction.SystemException;
 import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAResource;
 
-import org.apache.commons.pool.ObjectPoolFactory;
-
 /**
  * An XA-aware connection pool.  When a session is created and an xa transaction is active,
  * the session will automatically be enlisted in the current transaction.
@@ -37,8 +35,8 @@ public class XaConnectionPool extends ConnectionPool {
 
     private TransactionManager transactionManager;
 
-    public XaConnectionPool(XAConnection connection, ObjectPoolFactory poolFactory, TransactionManager transactionManager) throws JMSException {
-        super(connection, poolFactory);
+    public XaConnectionPool(XAConnection connection, TransactionManager transactionManager) throws JMSException {
+        super(connection);
         this.transactionManager = transactionManager;
     }
 
@@ -68,6 +68,6 @@ public class XaPooledConnectionFactory extends PooledConnectionFactory {
     }
 
     protected ConnectionPool createConnectionPool(Connection connection) throws JMSException {
-        return new XaConnectionPool((XAConnection) connection, getPoolFactory(), getTransactionManager());
+        return new XaConnectionPool((XAConnection) connection, getTransactionManager());
     }
 }
@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jms;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.apache.aries.transaction.jms.internal.PooledConnection;
+import org.apache.aries.transaction.jms.internal.PooledSession;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledConnectionFactoryTest {
+
+    private final FakeConnectionFactory connectionFactory = new FakeConnectionFactory();
+
+    private final PooledConnectionFactory factory = new PooledConnectionFactory();
+
+    {
+        factory.setConnectionFactory(connectionFactory.proxy);
+    }
+
+    @After
+    public void tearDown() {
+        factory.stop();
+    }
+
+    @Test
+    public void testConnectionAndSessionAreReused() throws Exception {
+        Connection first = factory.createConnection();
+        Session session = first.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Session internal = ((PooledSession) session).getInternalSession();
+        session.close();
+        first.close();
+
+        Connection second = factory.createConnection();
+        session = second.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        assertSame("The idle session should be reused", internal, ((PooledSession) session).getInternalSession());
+        session.close();
+        second.close();
+
+        assertEquals(1, connectionFactory.connections.size());
+        assertEquals(1, connectionFactory.sessions.size());
+        assertEquals(1, factory.getCreatedSessionCount());
+        assertEquals(2, factory.getSessionBorrowCount());
+    }
+
+    @Test
+    public void testNewInstanceOfClosedConnectionFails() throws Exception {
+        PooledConnection connection = (PooledConnection) factory.createConnection();
+        PooledConnection other = connection.newInstance();
+        assertNotNull(other.getConnection());
+        other.close();
+
+        connection.close();
+        try {
+            connection.newInstance();
+            fail("A closed connection should not hand out new references");
+        } catch (JMSException e) {
+            // expected
+        }
+
+        connection = (PooledConnection) factory.createConnection();
+        // closing the factory closes the pooled connection under its users
+        factory.stop();
+        try {
+            connection.newInstance();
+            fail("A connection whose pool has been closed should not hand out new references");
+        } catch (JMSException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPreWarmedConnectionDoesNotExpireWhileIdle() throws Exception {
+        factory.setIdleTimeout(1);
+        factory.start();
+        assertEquals(1, connectionFactory.connections.size());
+
+        Thread.sleep(50);
+        Connection connection = factory.createConnection();
+        assertEquals("The pre-warmed connection should still be in use", 1, connectionFactory.connections.size());
+        connection.close();
+
+        Thread.sleep(50);
+        connection = factory.createConnection();
+        assertEquals("A used connection should expire when idle", 2, connectionFactory.connections.size());
+        assertEquals(1, connectionFactory.closedConnections.size());
+        connection.close();
+    }
+
+    @Test
+    public void testInvalidatedSessionClosesCachedProducers() throws Exception {
+        factory.setMaxCachedProducers(10);
+        Connection connection = factory.createConnection();
+        Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+        session.createProducer(connectionFactory.queue);
+        assertEquals(1, connectionFactory.producers.size());
+
+        // the rollback done when the session is returned fails, so it is discarded
+        connectionFactory.failRollback = true;
+        session.close();
+
+        assertEquals(1, connectionFactory.closedProducers.size());
+        assertSame(connectionFactory.producers.get(0), connectionFactory.closedProducers.get(0));
+        assertEquals(1, connectionFactory.closedSessions.size());
+        connection.close();
+    }
+
+    @Test
+    public void testNewUserWaitsForLastUserToRelease() throws Exception {
+        final Connection first = factory.createConnection();
+        first.createSession(true, Session.SESSION_TRANSACTED);
+
+        // the last close rolls the loaned session back, keep it there
+        connectionFactory.rollbackEntered = new CountDownLatch(1);
+        connectionFactory.rollbackReleased = new CountDownLatch(1);
+        Thread closer = new Thread() {
+            public void run() {
+                try {
+                    first.close();
+                } catch (JMSException e) {
+                    // ignore
+                }
+            }
+        };
+        closer.start();
+        assertTrue(connectionFactory.rollbackEntered.await(5, TimeUnit.SECONDS));
+
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread user = new Thread() {
+            public void run() {
+                try {
+                    result.set(factory.createConnection());
+                } catch (JMSException e) {
+                    result.set(e);
+                }
+                done.countDown();
+            }
+        };
+        user.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (user.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, user.getState());
+        assertEquals(1, done.getCount());
+
+        connectionFactory.rollbackReleased.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        closer.join(5000);
+
+        Connection second = (Connection) result.get();
+        assertEquals(1, connectionFactory.connections.size());
+        assertEquals(0, connectionFactory.closedConnections.size());
+        second.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(PooledConnectionFactoryTest.class.getClassLoader(), new Class[] { type }, handler);
+    }
+
+    private static Object identity(Object p, Method method, Object[] args) {
+        if ("equals".equals(method.getName())) {
+            return p == args[0];
+        } else if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(p);
+        } else if (method.getReturnType() == boolean.class) {
+            return false;
+        } else if (method.getReturnType() == int.class) {
+            return 0;
+        } else if (method.getReturnType() == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static class FakeConnectionFactory implements InvocationHandler {
+
+        final ConnectionFactory proxy = proxy(ConnectionFactory.class, this);
+        final Queue queue = proxy(Queue.class, new InvocationHandler() {
+            public Object invoke(Object p, Method method, Object[] args) {
+                return identity(p, method, args);
+            }
+        });
+        final List<Connection> connections = new ArrayList<Connection>();
+        final List<Connection> closedConnections = new ArrayList<Connection>();
+        final List<Session> sessions = new ArrayList<Session>();
+        final List<Session> closedSessions = new ArrayList<Session>();
+        // producers created for a destination, the anonymous producers are not recorded
+        final List<MessageProducer> producers = new ArrayList<MessageProducer>();
+        final List<MessageProducer> closedProducers = new ArrayList<MessageProducer>();
+        volatile boolean failRollback;
+        volatile CountDownLatch rollbackEntered;
+        volatile CountDownLatch rollbackReleased;
+
+        public synchronized Object invoke(Object p, Method method, Object[] args) {
+            if ("createConnection".equals(method.getName())) {
+                Connection connection = newConnection();
+                connections.add(connection);
+                return connection;
+            }
+            return null;
+        }
+
+        private Connection newConnection() {
+            return proxy(Connection.class, new InvocationHandler() {
+                public Object invoke(Object p, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("createSession".equals(name)) {
+                        return newSession();
+                    } else if ("close".equals(name)) {
+                        synchronized (FakeConnectionFactory.this) {
+                            closedConnections.add((Connection) p);
+                        }
+                        return null;
+                    }
+                    return identity(p, method, args);
+                }
+            });
+        }
+
+        private synchronized Session newSession() {
+            Session session = proxy(Session.class, new InvocationHandler() {
+                public Object invoke(Object p, Method method, Object[] args) throws Exception {
+                    String name = method.getName();
+                    if ("createProducer".equals(name)) {
+                        return newProducer(args[0] != null);
+                    } else if ("rollback".equals(name)) {
+                        rollback();
+                        return null;
+                    } else if ("close".equals(name)) {
+                        synchronized (FakeConnectionFactory.this) {
+                            closedSessions.add((Session) p);
+                        }
+                        return null;
+                    }
+                    return identity(p, method, args);
+                }
+            });
+            sessions.add(session);
+            return session;
+        }
+
+        private void rollback() throws Exception {
+            if (failRollback) {
+                throw new JMSException("rollback failed");
+            }
+            CountDownLatch entered = rollbackEntered;
+            CountDownLatch released = rollbackReleased;
+            if (entered != null) {
+                entered.countDown();
+                released.await(5, TimeUnit.SECONDS);
+            }
+        }
+
+        private synchronized MessageProducer newProducer(boolean forDestination) {
+            MessageProducer producer = proxy(MessageProducer.class, new InvocationHandler() {
+                public Object invoke(Object p, Method method, Object[] args) {
+                    if ("close".equals(method.getName())) {
+                        synchronized (FakeConnectionFactory.this) {
+                            closedProducers.add((MessageProducer) p);
+                        }
+                        return null;
+                    }
+                    return identity(p, method, args);
+                }
+            });
+            if (forDestination) {
+                producers.add(producer);
+            }
+            return producer;
+        }
+    }
+}
@@ -26,7 +26,6 @@ import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.xa.XAException;
 
-import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
 import org.apache.geronimo.transaction.manager.TransactionLog;
 import org.apache.geronimo.transaction.manager.XidFactory;
 import org.apache.geronimo.transaction.manager.TransactionManagerMonitor;
@@ -40,7 +39,7 @@ import org.springframework.transaction.jta.JtaTransactionManager;
 
 /**
  */
-public class GeronimoPlatformTransactionManager extends GeronimoTransactionManager implements PlatformTransactionManager {
+public class GeronimoPlatformTransactionManager extends MonitoredTransactionManager implements PlatformTransactionManager {
 
     private final PlatformTransactionManager platformTransactionManager;
     private final Map<Transaction, SuspendedResourcesHolder> suspendedResources = new ConcurrentHashMap<Transaction, SuspendedResourcesHolder>();
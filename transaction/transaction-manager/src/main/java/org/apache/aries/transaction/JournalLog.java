@@ -0,0 +1,655 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.LogException;
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfoImpl;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TransactionLog} writing to an append-only journal through a {@link FileChannel}.
+ * <p>
+ * Prepare records are group committed: the first thread needing a force writes every record
+ * pending at that time and forces the channel once, while threads arriving meanwhile queue up
+ * for the next force.  Commit and rollback records are never forced on their own; they are
+ * written along with the next batch, or by a timer once the journal has been idle for the
+ * flush interval, much as HOWL flushes its buffers periodically.
+ * <p>
+ * The journal is split in segments.  When the current segment grows beyond the maximum size,
+ * a new one is started with the prepare records of the transactions still in doubt and the
+ * old segment is deleted, so the journal never holds more than one segment once rolled.
+ * Each record carries a CRC32 so that a torn write at the tail is ignored on replay.
+ */
+public class JournalLog implements TransactionLog {
+
+    private static final byte PREPARE = 1;
+    private static final byte COMMIT = 2;
+    private static final byte ROLLBACK = 3;
+
+    private static final int SEGMENT_MAGIC = 0x41524a4c;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** Default time in milliseconds that commit and rollback records may wait for a force */
+    public static final long DEFAULT_FLUSH_INTERVAL = 50;
+
+    private static final Logger log = LoggerFactory.getLogger(JournalLog.class);
+
+    private final File logFileDir;
+    private final String logFileName;
+    private final String logFileExt;
+    private final long maxFileSize;
+    private final long flushInterval;
+
+    /** prepare records of the transactions not yet completed, used for recovery and segment roll over */
+    private final ConcurrentMap<XidKey, byte[]> active = new ConcurrentHashMap<XidKey, byte[]>();
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private long appendedSeq;
+    private long forcedSeq;
+    private boolean flushing;
+    private boolean started;
+    private IOException failure;
+    private Timer flushTimer;
+
+    // only accessed by the flushing thread, or while stopped
+    private FileChannel channel;
+    private long segment;
+    private long forceCount;
+    private long forceTime;
+    private long forcedBytes;
+    private long maxBatchSize;
+    private long recordCount;
+
+    public JournalLog(String logFileDir, String logFileName, String logFileExt, long maxFileSize) {
+        this(logFileDir, logFileName, logFileExt, maxFileSize, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @param flushInterval the time in milliseconds after which commit and rollback records
+     *                      still waiting for a batch are forced to disk
+     */
+    public JournalLog(String logFileDir, String logFileName, String logFileExt, long maxFileSize, long flushInterval) {
+        this.logFileDir = new File(logFileDir);
+        this.logFileName = logFileName;
+        this.logFileExt = logFileExt;
+        this.maxFileSize = maxFileSize;
+        this.flushInterval = flushInterval;
+    }
+
+    public String getLogFileDir() {
+        return logFileDir.getAbsolutePath();
+    }
+
+    public String getLogFileName() {
+        return logFileName;
+    }
+
+    public String getLogFileExt() {
+        return logFileExt;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void doStart() throws Exception {
+        synchronized (lock) {
+            if (started) {
+                return;
+            }
+            if (!logFileDir.isDirectory() && !logFileDir.mkdirs()) {
+                throw new IOException("Unable to create transaction log directory " + logFileDir);
+            }
+            log.debug("Replaying transaction journal in " + logFileDir);
+            TreeMap<Long, File> segments = listSegments();
+            for (File file : segments.values()) {
+                replay(file);
+            }
+            segment = segments.isEmpty() ? 0 : segments.lastKey();
+            rollOver();
+            failure = null;
+            started = true;
+            flushTimer = new Timer("Transaction journal flusher", true);
+            flushTimer.schedule(new TimerTask() {
+                public void run() {
+                    flushPending();
+                }
+            }, flushInterval, flushInterval);
+            log.debug("In doubt transactions recovered from journal: " + active.size());
+        }
+    }
+
+    public void doStop() throws Exception {
+        synchronized (lock) {
+            if (!started) {
+                return;
+            }
+            started = false;
+            flushTimer.cancel();
+            flushTimer = null;
+            while (flushing) {
+                lock.wait();
+            }
+            // the records are only reported forced once they are on disk, waiters otherwise see the failure
+            try {
+                if (failure == null) {
+                    if (!pending.isEmpty()) {
+                        writeBatch(pending);
+                    }
+                    forcedSeq = appendedSeq;
+                }
+            } catch (IOException e) {
+                log.error("Unable to write to transaction journal", e);
+                failure = e;
+                throw e;
+            } catch (RuntimeException e) {
+                log.error("Unable to write to transaction journal", e);
+                failure = new IOException(e.toString());
+                failure.initCause(e);
+                throw e;
+            } finally {
+                pending = new ArrayList<ByteBuffer>();
+                channel.close();
+                channel = null;
+                active.clear();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public void begin(Xid xid) throws LogException {
+    }
+
+    public Object prepare(Xid xid, List<? extends TransactionBranchInfo> branches) throws LogException {
+        byte[][] branchData = new byte[2 * branches.size()][];
+        int size = 1 + xidSize(xid) + 2;
+        int i = 0;
+        for (TransactionBranchInfo branch : branches) {
+            branchData[i] = branch.getBranchXid().getBranchQualifier();
+            branchData[i + 1] = toBytes(branch.getResourceName());
+            size += 2 + branchData[i].length + 2 + branchData[i + 1].length;
+            i += 2;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.put(PREPARE);
+        putXid(payload, xid);
+        payload.putShort((short) branches.size());
+        for (byte[] data : branchData) {
+            putBytes(payload, data);
+        }
+        byte[] record = frame(payload.array());
+        XidKey key = new XidKey(xid);
+        active.put(key, record);
+        boolean appended = false;
+        try {
+            append(ByteBuffer.wrap(record), true);
+            appended = true;
+        } finally {
+            if (!appended) {
+                active.remove(key);
+            }
+        }
+        return key;
+    }
+
+    public void commit(Xid xid, Object logMark) throws LogException {
+        done(COMMIT, xid, logMark);
+    }
+
+    public void rollback(Xid xid, Object logMark) throws LogException {
+        done(ROLLBACK, xid, logMark);
+    }
+
+    public Collection<Recovery.XidBranchesPair> recover(XidFactory xidFactory) throws LogException {
+        log.debug("Initiating transaction manager recovery");
+        List<Recovery.XidBranchesPair> recovered = new ArrayList<Recovery.XidBranchesPair>();
+        for (Map.Entry<XidKey, byte[]> entry : active.entrySet()) {
+            ByteBuffer payload = ByteBuffer.wrap(entry.getValue(), RECORD_HEADER_SIZE, entry.getValue().length - RECORD_HEADER_SIZE);
+            payload.get();
+            int formatId = payload.getInt();
+            byte[] globalId = getBytes(payload);
+            byte[] branchId = getBytes(payload);
+            Xid masterXid = xidFactory.recover(formatId, globalId, branchId);
+            Recovery.XidBranchesPair xidBranchesPair = new Recovery.XidBranchesPair(masterXid, entry.getKey());
+            int branchCount = payload.getShort();
+            for (int i = 0; i < branchCount; i++) {
+                byte[] branchBranchId = getBytes(payload);
+                String name = fromBytes(getBytes(payload));
+                Xid branchXid = xidFactory.recover(formatId, globalId, branchBranchId);
+                xidBranchesPair.addBranch(new TransactionBranchInfoImpl(branchXid, name));
+                log.debug("recovered branch for resource manager, branchId " + name + ", " + branchXid);
+            }
+            recovered.add(xidBranchesPair);
+            log.debug("recovered prepare record for master xid: " + masterXid);
+        }
+        log.debug("In doubt transactions recovered from log");
+        return recovered;
+    }
+
+    public String getXMLStats() {
+        synchronized (lock) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("<JournalLog>");
+            sb.append("<segment>").append(segment).append("</segment>");
+            sb.append("<records>").append(recordCount).append("</records>");
+            sb.append("<forces>").append(forceCount).append("</forces>");
+            sb.append("<maxRecordsPerForce>").append(maxBatchSize).append("</maxRecordsPerForce>");
+            sb.append("<averageForceTime>").append(getAverageForceTime()).append("</averageForceTime>");
+            sb.append("<averageBytesPerForce>").append(getAverageBytesPerForce()).append("</averageBytesPerForce>");
+            sb.append("<activeTransactions>").append(active.size()).append("</activeTransactions>");
+            sb.append("</JournalLog>");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * @return the average time in milliseconds spent forcing the journal to disk
+     */
+    public int getAverageForceTime() {
+        synchronized (lock) {
+            return forceCount == 0 ? 0 : (int) (forceTime / forceCount / 1000000L);
+        }
+    }
+
+    public int getAverageBytesPerForce() {
+        synchronized (lock) {
+            return forceCount == 0 ? 0 : (int) (forcedBytes / forceCount);
+        }
+    }
+
+    /**
+     * @return the number of times the journal has been forced to disk since it was started
+     */
+    public long getForceCount() {
+        synchronized (lock) {
+            return forceCount;
+        }
+    }
+
+    private void done(byte type, Xid xid, Object logMark) throws LogException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + xidSize(xid));
+        payload.put(type);
+        putXid(payload, xid);
+        XidKey key = logMark instanceof XidKey ? (XidKey) logMark : new XidKey(xid);
+        active.remove(key);
+        append(ByteBuffer.wrap(frame(payload.array())), false);
+    }
+
+    /**
+     * Queue a record and, when a force is requested, wait until it is on disk.  The thread that
+     * finds nobody flushing becomes the flusher for everything queued so far, so the number of
+     * records per force adapts to the number of concurrent committers.
+     */
+    private void append(ByteBuffer record, boolean force) throws LogException {
+        long seq;
+        synchronized (lock) {
+            checkState();
+            pending.add(record);
+            seq = ++appendedSeq;
+            if (!force) {
+                return;
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                List<ByteBuffer> batch;
+                long batchSeq;
+                synchronized (lock) {
+                    while (flushing && forcedSeq < seq) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (forcedSeq >= seq) {
+                        return;
+                    }
+                    checkState();
+                    flushing = true;
+                    batch = pending;
+                    batchSeq = appendedSeq;
+                    pending = new ArrayList<ByteBuffer>();
+                }
+                IOException error = flush(batch, batchSeq);
+                if (error != null) {
+                    throw new LogException(error);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Force the records left waiting by commits and rollbacks when no prepare came along to
+     * carry them.  Called by the flush timer; does nothing if a batch is already being written.
+     */
+    private void flushPending() {
+        List<ByteBuffer> batch;
+        long batchSeq;
+        synchronized (lock) {
+            if (!started || flushing || failure != null || pending.isEmpty()) {
+                return;
+            }
+            flushing = true;
+            batch = pending;
+            batchSeq = appendedSeq;
+            pending = new ArrayList<ByteBuffer>();
+        }
+        flush(batch, batchSeq);
+    }
+
+    /**
+     * Write a batch taken by the thread that set the flushing flag, then release the flag.
+     *
+     * @return the error that made the journal unusable, or null if the batch is on disk
+     */
+    private IOException flush(List<ByteBuffer> batch, long batchSeq) {
+        IOException error = null;
+        try {
+            writeBatch(batch);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            // the batch is lost either way, so the journal can't be trusted any more
+            error = new IOException(e.toString());
+            error.initCause(e);
+        }
+        synchronized (lock) {
+            flushing = false;
+            if (error == null) {
+                forcedSeq = batchSeq;
+            } else {
+                log.error("Unable to write to transaction journal", error);
+                failure = error;
+            }
+            lock.notifyAll();
+        }
+        return error;
+    }
+
+    private void checkState() throws LogException {
+        if (failure != null) {
+            throw new LogException("Transaction journal is unusable after a previous write failure", failure);
+        }
+        if (!started) {
+            throw new IllegalStateException("Transaction journal is not started");
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch) throws IOException {
+        if (channel.position() >= maxFileSize) {
+            rollOver();
+        }
+        long bytes = 0;
+        for (ByteBuffer buffer : batch) {
+            bytes += buffer.remaining();
+        }
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+        long written = 0;
+        while (written < bytes) {
+            written += channel.write(buffers);
+        }
+        long t0 = System.nanoTime();
+        channel.force(false);
+        long t1 = System.nanoTime();
+        synchronized (lock) {
+            forceCount++;
+            forceTime += t1 - t0;
+            forcedBytes += bytes;
+            recordCount += batch.size();
+            maxBatchSize = Math.max(maxBatchSize, batch.size());
+        }
+    }
+
+    /**
+     * Start a new segment holding the prepare records of all in doubt transactions, then
+     * drop the previous segments.
+     */
+    private void rollOver() throws IOException {
+        long next = segment + 1;
+        File file = segmentFile(next);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel newChannel = raf.getChannel();
+        try {
+            newChannel.truncate(0);
+            List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(SEGMENT_MAGIC).flip();
+            buffers.add(header);
+            for (byte[] record : active.values()) {
+                buffers.add(ByteBuffer.wrap(record));
+            }
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    newChannel.write(buffer);
+                }
+            }
+            newChannel.force(true);
+        } catch (IOException e) {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        channel = newChannel;
+        segment = next;
+        for (Map.Entry<Long, File> entry : listSegments().entrySet()) {
+            if (entry.getKey() < next && !entry.getValue().delete()) {
+                log.warn("Unable to delete transaction journal segment " + entry.getValue());
+            }
+        }
+        log.debug("Transaction journal rolled over to " + file + " with " + active.size() + " in doubt transactions");
+    }
+
+    private void replay(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel in = raf.getChannel();
+            ByteBuffer data = ByteBuffer.allocate((int) in.size());
+            while (data.hasRemaining() && in.read(data) >= 0) {
+            }
+            data.flip();
+            if (data.remaining() < 4 || data.getInt() != SEGMENT_MAGIC) {
+                log.warn("Ignoring transaction journal segment with an invalid header: " + file);
+                return;
+            }
+            while (data.remaining() >= RECORD_HEADER_SIZE) {
+                int start = data.position();
+                int length = data.getInt();
+                int crc = data.getInt();
+                if (length <= 0 || length > data.remaining() || crc != checksum(data.array(), data.position(), length)) {
+                    // torn write at the tail of the journal
+                    log.warn("Ignoring incomplete record at offset " + start + " of transaction journal segment " + file);
+                    break;
+                }
+                byte[] record = new byte[RECORD_HEADER_SIZE + length];
+                System.arraycopy(data.array(), start, record, 0, record.length);
+                ByteBuffer payload = ByteBuffer.wrap(data.array(), data.position(), length);
+                data.position(data.position() + length);
+                byte type = payload.get();
+                XidKey key = new XidKey(payload.getInt(), getBytes(payload), getBytes(payload));
+                if (type == PREPARE) {
+                    active.put(key, record);
+                } else if (type == COMMIT || type == ROLLBACK) {
+                    active.remove(key);
+                } else {
+                    log.warn("Received unexpected log record type " + type + " in " + file);
+                }
+            }
+        } catch (EOFException e) {
+            log.warn("Unexpected end of transaction journal segment " + file);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        String prefix = logFileName + "_";
+        String suffix = "." + logFileExt;
+        File[] files = logFileDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (file.isFile() && name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+                    } catch (NumberFormatException e) {
+                        // not one of our segments
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(long index) {
+        return new File(logFileDir, logFileName + "_" + index + "." + logFileExt);
+    }
+
+    private static byte[] frame(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(payload, 0, payload.length));
+        record.put(payload);
+        return record.array();
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static int xidSize(Xid xid) {
+        return 4 + 2 + xid.getGlobalTransactionId().length + 2 + xid.getBranchQualifier().length;
+    }
+
+    private static void putXid(ByteBuffer buffer, Xid xid) {
+        buffer.putInt(xid.getFormatId());
+        putBytes(buffer, xid.getGlobalTransactionId());
+        putBytes(buffer, xid.getBranchQualifier());
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] data) {
+        buffer.putShort((short) data.length);
+        buffer.put(data);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.getShort()];
+        buffer.get(data);
+        return data;
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fromBytes(byte[] data) {
+        try {
+            return new String(data, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Value based identity of a transaction, independent of the {@link Xid} implementation.
+     * Instances are also used as the log mark handed to the transaction manager.
+     */
+    private static final class XidKey {
+        private final int formatId;
+        private final byte[] globalId;
+        private final byte[] branchId;
+        private final int hash;
+
+        XidKey(Xid xid) {
+            this(xid.getFormatId(), xid.getGlobalTransactionId(), xid.getBranchQualifier());
+        }
+
+        XidKey(int formatId, byte[] globalId, byte[] branchId) {
+            this.formatId = formatId;
+            this.globalId = globalId;
+            this.branchId = branchId;
+            this.hash = 31 * (31 * formatId + Arrays.hashCode(globalId)) + Arrays.hashCode(branchId);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof XidKey)) {
+                return false;
+            }
+            XidKey other = (XidKey) o;
+            return formatId == other.formatId
+                    && Arrays.equals(globalId, other.globalId)
+                    && Arrays.equals(branchId, other.branchId);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.util.Collection;
+import java.util.List;
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.LogException;
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.XidFactory;
+
+/**
+ * A {@link TransactionLog} which records in the {@link TransactionStatistics} how long
+ * the committing threads wait for their prepare record to be forced to the log, and
+ * hands the transactions replayed from the log to the {@link ResourceRecovery}.
+ */
+public class MonitoredTransactionLog implements TransactionLog {
+
+    private final TransactionLog delegate;
+    private final TransactionStatistics statistics;
+    private final ResourceRecovery recovery;
+
+    public MonitoredTransactionLog(TransactionLog delegate, TransactionStatistics statistics) {
+        this(delegate, statistics, null);
+    }
+
+    public MonitoredTransactionLog(TransactionLog delegate, TransactionStatistics statistics, ResourceRecovery recovery) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+        this.recovery = recovery;
+    }
+
+    public void begin(Xid xid) throws LogException {
+        delegate.begin(xid);
+    }
+
+    public Object prepare(Xid xid, List<? extends TransactionBranchInfo> branches) throws LogException {
+        long start = System.nanoTime();
+        Object mark = delegate.prepare(xid, branches);
+        statistics.logForced(System.nanoTime() - start);
+        return mark;
+    }
+
+    public void commit(Xid xid, Object logMark) throws LogException {
+        delegate.commit(xid, logMark);
+    }
+
+    public void rollback(Xid xid, Object logMark) throws LogException {
+        delegate.rollback(xid, logMark);
+    }
+
+    public Collection<Recovery.XidBranchesPair> recover(XidFactory xidFactory) throws LogException {
+        long start = System.nanoTime();
+        Collection<Recovery.XidBranchesPair> pairs = delegate.recover(xidFactory);
+        if (recovery != null) {
+            recovery.logRecovered(pairs, System.nanoTime() - start);
+        }
+        return pairs;
+    }
+
+    public String getXMLStats() {
+        return delegate.getXMLStats();
+    }
+
+    public int getAverageForceTime() {
+        return delegate.getAverageForceTime();
+    }
+
+    public int getAverageBytesPerForce() {
+        return delegate.getAverageBytesPerForce();
+    }
+}
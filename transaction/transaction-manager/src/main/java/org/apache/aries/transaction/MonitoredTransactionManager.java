@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.apache.geronimo.transaction.manager.NamedXAResourceFactory;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.XidFactory;
+
+/**
+ * A transaction manager which counts and times the transactions begun through it
+ * and their completion, and which can recover the resources registered with it in
+ * the background.
+ */
+public class MonitoredTransactionManager extends GeronimoTransactionManager {
+
+    private volatile TransactionStatistics statistics = new TransactionStatistics();
+    private volatile ResourceRecovery resourceRecovery;
+
+    public MonitoredTransactionManager() throws XAException {
+    }
+
+    public MonitoredTransactionManager(int defaultTransactionTimeoutSeconds) throws XAException {
+        super(defaultTransactionTimeoutSeconds);
+    }
+
+    public MonitoredTransactionManager(int defaultTransactionTimeoutSeconds, TransactionLog transactionLog) throws XAException {
+        super(defaultTransactionTimeoutSeconds, transactionLog);
+    }
+
+    public MonitoredTransactionManager(int defaultTransactionTimeoutSeconds, XidFactory xidFactory, TransactionLog transactionLog) throws XAException {
+        super(defaultTransactionTimeoutSeconds, xidFactory, transactionLog);
+    }
+
+    public TransactionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Use the given statistics, typically because they are shared with a
+     * {@link MonitoredTransactionLog}.
+     */
+    public void setStatistics(TransactionStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public ResourceRecovery getResourceRecovery() {
+        return resourceRecovery;
+    }
+
+    /**
+     * Recover the resources registered from now on with the given recovery,
+     * or in the registering thread if null.
+     */
+    public void setResourceRecovery(ResourceRecovery resourceRecovery) {
+        this.resourceRecovery = resourceRecovery;
+    }
+
+    public void registerNamedXAResourceFactory(NamedXAResourceFactory namedXAResourceFactory) {
+        ResourceRecovery recovery = resourceRecovery;
+        if (recovery != null) {
+            recovery.recover(this, namedXAResourceFactory);
+        } else {
+            super.registerNamedXAResourceFactory(namedXAResourceFactory);
+        }
+    }
+
+    public void unregisterNamedXAResourceFactory(String namedXAResourceFactoryName) {
+        ResourceRecovery recovery = resourceRecovery;
+        if (recovery != null) {
+            recovery.cancel(namedXAResourceFactoryName);
+        }
+        super.unregisterNamedXAResourceFactory(namedXAResourceFactoryName);
+    }
+
+    void doRegisterNamedXAResourceFactory(NamedXAResourceFactory namedXAResourceFactory) {
+        super.registerNamedXAResourceFactory(namedXAResourceFactory);
+    }
+
+    public Transaction begin(long transactionTimeoutMilliseconds) throws NotSupportedException, SystemException {
+        long start = System.nanoTime();
+        Transaction transaction = super.begin(transactionTimeoutMilliseconds);
+        statistics.transactionBegun(transaction, transactionTimeoutMilliseconds, System.nanoTime() - start);
+        return transaction;
+    }
+
+    public void commit() throws HeuristicMixedException, HeuristicRollbackException, IllegalStateException, RollbackException, SecurityException, SystemException {
+        statistics.completionStarted(getTransaction());
+        try {
+            super.commit();
+        } catch (HeuristicMixedException e) {
+            statistics.heuristicOutcome();
+            throw e;
+        } catch (HeuristicRollbackException e) {
+            statistics.heuristicOutcome();
+            throw e;
+        }
+    }
+
+    public void rollback() throws IllegalStateException, SecurityException, SystemException {
+        statistics.completionStarted(getTransaction());
+        super.rollback();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.apache.aries.transaction.statistics.RecoveryStatisticsMBean;
+import org.apache.geronimo.transaction.manager.NamedXAResource;
+import org.apache.geronimo.transaction.manager.NamedXAResourceFactory;
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+
+/**
+ * Recovers the resources registered with a {@link MonitoredTransactionManager}, either
+ * synchronously in the registering thread or on a pool of background threads.
+ * <p>
+ * Geronimo recovers a resource while holding the lock of its recovery, so resources
+ * would be recovered one at a time even from different threads. The slow part of
+ * the recovery, the scan of the resource, is therefore done before handing the
+ * resource to Geronimo, which then only has to match the scanned Xids with the log
+ * and complete the in-doubt branches.
+ * <p>
+ * The branches found in the log are indexed by resource name so that the ones not
+ * completed yet can be reported.  A resource only counts as recovered once Geronimo
+ * has consumed its scan without failing, otherwise it is scanned again on retry.
+ */
+public class ResourceRecovery implements RecoveryStatisticsMBean {
+
+    private static final int SCAN_FLAGS = XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN;
+
+    private final int threads;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Set<String>> inDoubt = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<String, Runnable> pending = new ConcurrentHashMap<String, Runnable>();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong recoveryTime = new AtomicLong();
+    private final AtomicLong maxRecoveryTime = new AtomicLong();
+    private volatile long logRecoveryTime;
+
+    /**
+     * @param threads the number of background recovery threads, 0 to recover synchronously
+     */
+    public ResourceRecovery(int threads) {
+        this.threads = threads;
+        if (threads > 0) {
+            // recovery mostly happens at startup, do not keep the threads afterwards
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(), new RecoveryThreadFactory());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        } else {
+            executor = null;
+        }
+    }
+
+    public void close() {
+        pending.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Index the branches replayed from the transaction log by resource name.
+     */
+    public void logRecovered(Collection<Recovery.XidBranchesPair> pairs, long nanos) {
+        logRecoveryTime = TimeUnit.NANOSECONDS.toMillis(nanos);
+        for (Recovery.XidBranchesPair pair : pairs) {
+            for (TransactionBranchInfo branch : pair.getBranches()) {
+                getInDoubt(branch.getResourceName()).add(toString(branch.getBranchXid()));
+            }
+        }
+    }
+
+    /**
+     * Recover the resources of the given factory, in the background if this recovery has threads.
+     */
+    public void recover(final MonitoredTransactionManager transactionManager, final NamedXAResourceFactory factory) {
+        final String name = factory.getName();
+        Runnable task = new Runnable() {
+            public void run() {
+                // the factory may have been unregistered while the task was queued
+                if (pending.remove(name, this)) {
+                    transactionManager.doRegisterNamedXAResourceFactory(new ScanningXAResourceFactory(factory));
+                }
+            }
+        };
+        pending.put(name, task);
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    public void cancel(String name) {
+        pending.remove(name);
+    }
+
+    public int getRecoveryThreads() {
+        return threads;
+    }
+
+    public long getLogRecoveryTime() {
+        return logRecoveryTime;
+    }
+
+    public int getInDoubtCount() {
+        int count = 0;
+        for (Set<String> xids : inDoubt.values()) {
+            count += xids.size();
+        }
+        return count;
+    }
+
+    public String[] getInDoubtTransactions() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Set<String>> entry : inDoubt.entrySet()) {
+            synchronized (entry.getValue()) {
+                for (String xid : entry.getValue()) {
+                    result.add(entry.getKey() + ": " + xid);
+                }
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public int getPendingResourceCount() {
+        return pending.size();
+    }
+
+    public long getRecoveredResourceCount() {
+        return recovered.get();
+    }
+
+    public long getFailedRecoveryCount() {
+        return failed.get();
+    }
+
+    public long getAverageResourceRecoveryTime() {
+        long count = recovered.get();
+        return count == 0 ? 0 : recoveryTime.get() / count;
+    }
+
+    public long getMaxResourceRecoveryTime() {
+        return maxRecoveryTime.get();
+    }
+
+    private Set<String> getInDoubt(String name) {
+        Set<String> xids = inDoubt.get(name);
+        if (xids == null) {
+            Set<String> newXids = Collections.synchronizedSet(new HashSet<String>());
+            xids = inDoubt.putIfAbsent(name, newXids);
+            if (xids == null) {
+                xids = newXids;
+            }
+        }
+        return xids;
+    }
+
+    private void recovered(String name, long started, Set<String> uncompleted) {
+        Set<String> xids = inDoubt.get(name);
+        if (xids != null) {
+            xids.retainAll(uncompleted);
+            if (xids.isEmpty()) {
+                inDoubt.remove(name, xids);
+            }
+        }
+        long time = System.currentTimeMillis() - started;
+        recovered.incrementAndGet();
+        recoveryTime.addAndGet(time);
+        for (;;) {
+            long max = maxRecoveryTime.get();
+            if (time <= max || maxRecoveryTime.compareAndSet(max, time)) {
+                break;
+            }
+        }
+    }
+
+    static String toString(Xid xid) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(xid.getFormatId()).append(':');
+        appendHex(sb, xid.getGlobalTransactionId());
+        sb.append(':');
+        appendHex(sb, xid.getBranchQualifier());
+        return sb.toString();
+    }
+
+    private static void appendHex(StringBuilder sb, byte[] bytes) {
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+    }
+
+    /**
+     * Scans the resource before Geronimo recovers it.  Once a recovery has used a scan,
+     * the resources are handed out unchanged, for recovery retries as well as for the
+     * completion of transactions.
+     */
+    private class ScanningXAResourceFactory implements NamedXAResourceFactory {
+
+        private final NamedXAResourceFactory delegate;
+        private final long started = System.currentTimeMillis();
+        private volatile boolean scanned;
+
+        ScanningXAResourceFactory(NamedXAResourceFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        public String getName() {
+            return delegate.getName();
+        }
+
+        public NamedXAResource getNamedXAResource() throws SystemException {
+            NamedXAResource resource = delegate.getNamedXAResource();
+            if (scanned || resource == null) {
+                return resource;
+            }
+            try {
+                return new ScannedXAResource(resource, resource.recover(SCAN_FLAGS));
+            } catch (XAException e) {
+                failed.incrementAndGet();
+                delegate.returnNamedXAResource(resource);
+                SystemException se = new SystemException("Unable to scan resource " + getName() + " for recovery");
+                se.initCause(e);
+                throw se;
+            }
+        }
+
+        public void returnNamedXAResource(NamedXAResource resource) {
+            // Geronimo returns the resource whether or not its recovery failed
+            if (resource instanceof ScannedXAResource) {
+                ScannedXAResource scannedResource = (ScannedXAResource) resource;
+                if (scannedResource.isRecovered()) {
+                    scanned = true;
+                    recovered(getName(), started, scannedResource.uncompleted);
+                } else {
+                    failed.incrementAndGet();
+                }
+                resource = scannedResource.delegate;
+            }
+            delegate.returnNamedXAResource(resource);
+        }
+    }
+
+    /**
+     * Returns the result of an earlier scan and records the branches Geronimo fails to complete.
+     * Geronimo handles the XAExceptions of the completions, any other failure aborts the recovery.
+     */
+    private static class ScannedXAResource implements NamedXAResource {
+
+        private final NamedXAResource delegate;
+        private Xid[] xids;
+        private final Set<String> uncompleted = new HashSet<String>();
+        private boolean aborted;
+
+        ScannedXAResource(NamedXAResource delegate, Xid[] xids) {
+            this.delegate = delegate;
+            this.xids = xids;
+        }
+
+        public String getName() {
+            return delegate.getName();
+        }
+
+        boolean isRecovered() {
+            return xids == null && !aborted;
+        }
+
+        public Xid[] recover(int flag) throws XAException {
+            if ((flag & XAResource.TMSTARTRSCAN) != 0 && xids != null) {
+                Xid[] result = xids;
+                xids = null;
+                return result;
+            }
+            return new Xid[0];
+        }
+
+        public void commit(Xid xid, boolean onePhase) throws XAException {
+            try {
+                delegate.commit(xid, onePhase);
+            } catch (XAException e) {
+                uncompleted.add(ResourceRecovery.toString(xid));
+                throw e;
+            } catch (RuntimeException e) {
+                aborted = true;
+                throw e;
+            }
+        }
+
+        public void rollback(Xid xid) throws XAException {
+            try {
+                delegate.rollback(xid);
+            } catch (XAException e) {
+                uncompleted.add(ResourceRecovery.toString(xid));
+                throw e;
+            } catch (RuntimeException e) {
+                aborted = true;
+                throw e;
+            }
+        }
+
+        public void end(Xid xid, int flags) throws XAException {
+            delegate.end(xid, flags);
+        }
+
+        public void forget(Xid xid) throws XAException {
+            delegate.forget(xid);
+        }
+
+        public int getTransactionTimeout() throws XAException {
+            return delegate.getTransactionTimeout();
+        }
+
+        public boolean isSameRM(XAResource xaResource) throws XAException {
+            return delegate.isSameRM(xaResource);
+        }
+
+        public int prepare(Xid xid) throws XAException {
+            return delegate.prepare(xid);
+        }
+
+        public boolean setTransactionTimeout(int seconds) throws XAException {
+            return delegate.setTransactionTimeout(seconds);
+        }
+
+        public void start(Xid xid, int flags) throws XAException {
+            delegate.start(xid, flags);
+        }
+    }
+
+    private static class RecoveryThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Aries Transaction Recovery-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
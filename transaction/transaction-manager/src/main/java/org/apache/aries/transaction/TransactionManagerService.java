@@ -26,9 +26,11 @@ import javax.transaction.TransactionSynchronizationRegistry;
 import javax.transaction.UserTransaction;
 import javax.transaction.xa.XAException;
 
+import org.apache.aries.transaction.statistics.RecoveryStatisticsMBean;
+import org.apache.aries.transaction.statistics.TransactionStatisticsMBean;
 import org.apache.aries.util.AriesFrameworkUtil;
+import org.apache.aries.util.service.registry.MBeanServices;
 import org.apache.geronimo.transaction.log.UnrecoverableLog;
-import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
 import org.apache.geronimo.transaction.manager.RecoverableTransactionManager;
 import org.apache.geronimo.transaction.manager.TransactionLog;
 import org.apache.geronimo.transaction.manager.XidFactory;
@@ -57,9 +59,21 @@ public class TransactionManagerService {
     public static final String HOWL_THREADS_WAITING_FORCE_THRESHOLD = "aries.transaction.howl.threadsWaitingForceThreshold";
     public static final String HOWL_LOG_FILE_DIR = "aries.transaction.howl.logFileDir";
     public static final String HOWL_FLUSH_PARTIAL_BUFFERS = "aries.transaction.flushPartialBuffers";
+    public static final String LOG_TYPE = "aries.transaction.log.type";
+    public static final String JOURNAL_LOG_FILE_DIR = "aries.transaction.journal.logFileDir";
+    public static final String JOURNAL_LOG_FILE_NAME = "aries.transaction.journal.logFileName";
+    public static final String JOURNAL_LOG_FILE_EXT = "aries.transaction.journal.logFileExt";
+    public static final String JOURNAL_MAX_FILE_SIZE = "aries.transaction.journal.maxFileSize";
+    public static final String JOURNAL_FLUSH_INTERVAL = "aries.transaction.journal.flushInterval";
+    public static final String RECOVERY_THREADS = "aries.transaction.recovery.threads";
+
+    public static final String LOG_TYPE_HOWL = "howl";
+    public static final String LOG_TYPE_JOURNAL = "journal";
 
     public static final int DEFAULT_TRANSACTION_TIMEOUT = 600; // 600 seconds -> 10 minutes
     public static final boolean DEFAULT_RECOVERABLE = false;   // not recoverable by default
+    public static final int DEFAULT_JOURNAL_MAX_FILE_SIZE = 10240; // 10 MB
+    public static final int DEFAULT_RECOVERY_THREADS = 0;      // recover synchronously by default
 
     private static final String PLATFORM_TRANSACTION_MANAGER_CLASS = "org.springframework.transaction.PlatformTransactionManager";
 
@@ -67,9 +81,13 @@ public class TransactionManagerService {
     private final Dictionary properties;
     private final BundleContext bundleContext;
     private boolean useSpring;
-    private GeronimoTransactionManager transactionManager;
+    private MonitoredTransactionManager transactionManager;
     private TransactionLog transactionLog;
+    private TransactionStatistics statistics = new TransactionStatistics();
+    private ResourceRecovery resourceRecovery;
     private ServiceRegistration serviceRegistration;
+    private ServiceRegistration statisticsRegistration;
+    private ServiceRegistration recoveryRegistration;
 
     public TransactionManagerService(String pid, Dictionary properties, BundleContext bundleContext) throws ConfigurationException {
         this.pid = pid;
@@ -84,8 +102,38 @@ public class TransactionManagerService {
         final String tmid = getString(TMID, pid);
         // the max length of the factory should be 64
         XidFactory xidFactory = new XidFactoryImpl(tmid.substring(0, Math.min(tmid.length(), 64)).getBytes());
+        // Recovery threads, checked before the log is started so that an invalid value does not leave it running
+        boolean recoverable = getBool(RECOVERABLE, DEFAULT_RECOVERABLE);
+        int recoveryThreads = getInt(RECOVERY_THREADS, DEFAULT_RECOVERY_THREADS);
+        if (recoverable && recoveryThreads < 0) {
+            throw new ConfigurationException(RECOVERY_THREADS, NLS.MESSAGES.getMessage("recovery.threads.not.negative"));
+        }
         // Transaction log
-        if (getBool(RECOVERABLE, DEFAULT_RECOVERABLE)) {
+        String logType = getString(LOG_TYPE, LOG_TYPE_HOWL);
+        if (!recoverable) {
+            transactionLog =  new UnrecoverableLog();
+        } else if (LOG_TYPE_JOURNAL.equals(logType)) {
+            String logFileDir = getString(JOURNAL_LOG_FILE_DIR, null);
+            if (logFileDir == null || logFileDir.length() == 0 || !new File(logFileDir).isAbsolute()) {
+                throw new ConfigurationException(JOURNAL_LOG_FILE_DIR, NLS.MESSAGES.getMessage("log.file.dir"));
+            }
+            String logFileName = getString(JOURNAL_LOG_FILE_NAME, "transaction");
+            String logFileExt = getString(JOURNAL_LOG_FILE_EXT, "journal");
+            int maxFileSizeKBytes = getInt(JOURNAL_MAX_FILE_SIZE, DEFAULT_JOURNAL_MAX_FILE_SIZE);
+            if (maxFileSizeKBytes <= 0) {
+                throw new ConfigurationException(JOURNAL_MAX_FILE_SIZE, NLS.MESSAGES.getMessage("max.file.size.greaterthan.zero"));
+            }
+            int flushInterval = getInt(JOURNAL_FLUSH_INTERVAL, (int) JournalLog.DEFAULT_FLUSH_INTERVAL);
+            if (flushInterval <= 0) {
+                throw new ConfigurationException(JOURNAL_FLUSH_INTERVAL, NLS.MESSAGES.getMessage("flush.interval.greaterthan.zero"));
+            }
+            try {
+                transactionLog = new JournalLog(logFileDir, logFileName, logFileExt, maxFileSizeKBytes * 1024L, flushInterval);
+                ((JournalLog) transactionLog).doStart();
+            } catch (Exception e) {
+                throw new ConfigurationException(JOURNAL_LOG_FILE_DIR, NLS.MESSAGES.getMessage("exception.tx.log.start"), e);
+            }
+        } else if (LOG_TYPE_HOWL.equals(logType)) {
             String bufferClassName = getString(HOWL_BUFFER_CLASS_NAME, "org.objectweb.howl.log.BlockLogBuffer");
             int bufferSizeKBytes = getInt(HOWL_BUFFER_SIZE, 4);
             if (bufferSizeKBytes < 1 || bufferSizeKBytes > 32) {
@@ -135,19 +183,32 @@ public class TransactionManagerService {
                 throw new ConfigurationException(null, null, e);
             }
         } else {
-            transactionLog =  new UnrecoverableLog();
+            throw new ConfigurationException(LOG_TYPE, NLS.MESSAGES.getMessage("log.type.unknown", logType));
+        }
+        // Time the forces of recoverable logs and recover their resources, in the background if configured
+        TransactionLog monitoredLog = transactionLog;
+        if (!(transactionLog instanceof UnrecoverableLog)) {
+            resourceRecovery = new ResourceRecovery(recoveryThreads);
+            monitoredLog = new MonitoredTransactionLog(transactionLog, statistics, resourceRecovery);
         }
         // Create transaction manager
         try {
             try {
-                transactionManager = new SpringTransactionManagerCreator().create(transactionTimeout, xidFactory, transactionLog);
+                transactionManager = new SpringTransactionManagerCreator().create(transactionTimeout, xidFactory, monitoredLog);
                 useSpring = true;
             } catch (NoClassDefFoundError e) {
-                transactionManager = new GeronimoTransactionManager(transactionTimeout, xidFactory, transactionLog);
+                transactionManager = new MonitoredTransactionManager(transactionTimeout, xidFactory, monitoredLog);
             }
         } catch (XAException e) {
+            try {
+                stopLog();
+            } catch (Exception ignore) {
+                // the recovery failure is the one reported
+            }
             throw new RuntimeException(NLS.MESSAGES.getMessage("tx.recovery.error"), e);
         }
+        transactionManager.setStatistics(statistics);
+        transactionManager.setResourceRecovery(resourceRecovery);
     }
 
     public void start() throws Exception {
@@ -160,13 +221,30 @@ public class TransactionManagerService {
             clazzes.add(PLATFORM_TRANSACTION_MANAGER_CLASS);
         }
         serviceRegistration = bundleContext.registerService(clazzes.toArray(new String[clazzes.size()]), transactionManager, new Properties());
+        statisticsRegistration = MBeanServices.register(bundleContext, TransactionStatisticsMBean.class.getName(), 
+                statistics, TransactionStatisticsMBean.OBJECTNAME);
+        if (resourceRecovery != null) {
+            recoveryRegistration = MBeanServices.register(bundleContext, RecoveryStatisticsMBean.class.getName(), 
+                    resourceRecovery, RecoveryStatisticsMBean.OBJECTNAME);
+        }
     }
 
     public void close() throws Exception {
+        AriesFrameworkUtil.safeUnregisterService(recoveryRegistration);
+        AriesFrameworkUtil.safeUnregisterService(statisticsRegistration);
         AriesFrameworkUtil.safeUnregisterService(serviceRegistration);
+        stopLog();
+    }
+
+    private void stopLog() throws Exception {
+        if (resourceRecovery != null) {
+            resourceRecovery.close();
+        }
       
         if (transactionLog instanceof HOWLLog) {
             ((HOWLLog) transactionLog).doStop();
+        } else if (transactionLog instanceof JournalLog) {
+            ((JournalLog) transactionLog).doStop();
         }
     }
 
@@ -208,7 +286,7 @@ public class TransactionManagerService {
      */
     public static class SpringTransactionManagerCreator {
 
-        public GeronimoTransactionManager create(int defaultTransactionTimeoutSeconds, XidFactory xidFactory, TransactionLog transactionLog) throws XAException {
+        public MonitoredTransactionManager create(int defaultTransactionTimeoutSeconds, XidFactory xidFactory, TransactionLog transactionLog) throws XAException {
             return new GeronimoPlatformTransactionManager(defaultTransactionTimeoutSeconds, xidFactory, transactionLog);
         }
 
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.apache.aries.transaction.statistics.TransactionStatisticsMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the statistics published by the {@link TransactionStatisticsMBean} service.
+ * The transactions in flight are tracked with a synchronization registered when they begin,
+ * which also times their completion so that a commit made directly on the transaction is
+ * timed like one made through the transaction manager.
+ */
+public class TransactionStatistics implements TransactionStatisticsMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionStatistics.class);
+
+    private final Map<Transaction, InFlight> active = new ConcurrentHashMap<Transaction, InFlight>();
+    private final AtomicLong begun = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong rolledBack = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+    private final AtomicLong heuristic = new AtomicLong();
+    private final Timer beginTimer = new Timer();
+    private final Timer commitTimer = new Timer();
+    private final Timer rollbackTimer = new Timer();
+    private final Timer forceTimer = new Timer();
+
+    public void transactionBegun(Transaction transaction, long timeoutMilliseconds, long nanos) {
+        beginTimer.record(nanos);
+        begun.incrementAndGet();
+        InFlight inFlight = new InFlight(transaction, timeoutMilliseconds);
+        active.put(transaction, inFlight);
+        try {
+            transaction.registerSynchronization(inFlight);
+        } catch (Exception e) {
+            active.remove(transaction);
+            log.debug("Unable to track the completion of transaction " + transaction, e);
+        }
+    }
+
+    /**
+     * Time the completion of the transaction from now rather than from its synchronization,
+     * as a rollback does not call the synchronizations before it completes.
+     */
+    public void completionStarted(Transaction transaction) {
+        InFlight inFlight = (transaction == null) ? null : active.get(transaction);
+        if (inFlight != null) {
+            inFlight.startCompletion();
+        }
+    }
+
+    public void heuristicOutcome() {
+        heuristic.incrementAndGet();
+    }
+
+    public void logForced(long nanos) {
+        forceTimer.record(nanos);
+    }
+
+    public long getBegunCount() {
+        return begun.get();
+    }
+
+    public long getCommittedCount() {
+        return committed.get();
+    }
+
+    public long getRolledBackCount() {
+        return rolledBack.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public long getUnknownOutcomeCount() {
+        return unknown.get();
+    }
+
+    public long getHeuristicOutcomeCount() {
+        return heuristic.get();
+    }
+
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    public long getOldestActiveTransactionAge() {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        for (InFlight inFlight : active.values()) {
+            oldest = Math.min(oldest, inFlight.started);
+        }
+        return now - oldest;
+    }
+
+    public long getAverageBeginTime() {
+        return beginTimer.getAverage();
+    }
+
+    public long getAverageCommitTime() {
+        return commitTimer.getAverage();
+    }
+
+    public long getMaxCommitTime() {
+        return commitTimer.getMax();
+    }
+
+    public long getAverageRollbackTime() {
+        return rollbackTimer.getAverage();
+    }
+
+    public long getLogForceCount() {
+        return forceTimer.getCount();
+    }
+
+    public long getAverageLogForceTime() {
+        return forceTimer.getAverage();
+    }
+
+    public long getMaxLogForceTime() {
+        return forceTimer.getMax();
+    }
+
+    public void reset() {
+        begun.set(0);
+        committed.set(0);
+        rolledBack.set(0);
+        timedOut.set(0);
+        unknown.set(0);
+        heuristic.set(0);
+        beginTimer.reset();
+        commitTimer.reset();
+        rollbackTimer.reset();
+        forceTimer.reset();
+    }
+
+    private class InFlight implements Synchronization {
+
+        private final Transaction transaction;
+        private final long started = System.currentTimeMillis();
+        private final long timeoutMilliseconds;
+        private volatile boolean completing;
+        private volatile long completionStart;
+
+        private InFlight(Transaction transaction, long timeoutMilliseconds) {
+            this.transaction = transaction;
+            this.timeoutMilliseconds = timeoutMilliseconds;
+        }
+
+        private synchronized void startCompletion() {
+            if (!completing) {
+                completionStart = System.nanoTime();
+                completing = true;
+            }
+        }
+
+        public void beforeCompletion() {
+            startCompletion();
+        }
+
+        public void afterCompletion(int status) {
+            active.remove(transaction);
+            long nanos = System.nanoTime() - completionStart;
+            if (status == Status.STATUS_COMMITTED) {
+                committed.incrementAndGet();
+                if (completing) {
+                    commitTimer.record(nanos);
+                }
+            } else if (status == Status.STATUS_ROLLEDBACK) {
+                rolledBack.incrementAndGet();
+                if (completing) {
+                    rollbackTimer.record(nanos);
+                }
+                if (timeoutMilliseconds > 0 && System.currentTimeMillis() - started >= timeoutMilliseconds) {
+                    timedOut.incrementAndGet();
+                }
+            } else {
+                unknown.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Count, total and maximum of a timed operation, kept in microseconds.
+     */
+    private static class Timer {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            count.incrementAndGet();
+            total.addAndGet(micros);
+            for (;;) {
+                long current = max.get();
+                if (micros <= current || max.compareAndSet(current, micros)) {
+                    break;
+                }
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getAverage() {
+            long c = count.get();
+            return c == 0 ? 0 : total.get() / c;
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        void reset() {
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.statistics;
+
+/**
+ * Progress of the recovery of the transactions found in the transaction log. An
+ * instance of this interface is registered as an OSGi service with a
+ * <code>jmx.objectname</code> property of {@link #OBJECTNAME} when the transaction
+ * manager is recoverable, so that it is also exposed as an MBean if a JMX
+ * whiteboard is present.
+ * <p>
+ * Resources are recovered in the background as they register with the transaction
+ * manager. Times are reported in milliseconds.
+ */
+public interface RecoveryStatisticsMBean {
+
+    /** The object name used when this MBean is published through JMX */
+    String OBJECTNAME = "org.apache.aries.transaction:type=RecoveryStatistics";
+
+    /**
+     * @return the number of threads recovering resources, 0 if resources are
+     *         recovered by the thread registering them
+     */
+    int getRecoveryThreads();
+
+    /**
+     * @return the time spent replaying the transaction log at startup
+     */
+    long getLogRecoveryTime();
+
+    /**
+     * @return the number of transaction branches found in the log which have not
+     *         been completed by their resource yet
+     */
+    int getInDoubtCount();
+
+    /**
+     * @return the transaction branches found in the log which have not been completed
+     *         by their resource yet, as <code>resource name: format id:global id:branch id</code>
+     */
+    String[] getInDoubtTransactions();
+
+    /**
+     * @return the number of registered resources waiting to be recovered
+     */
+    int getPendingResourceCount();
+
+    long getRecoveredResourceCount();
+
+    /**
+     * @return the number of recovery attempts which failed to scan their resource,
+     *         such attempts are retried later
+     */
+    long getFailedRecoveryCount();
+
+    long getAverageResourceRecoveryTime();
+
+    long getMaxResourceRecoveryTime();
+}
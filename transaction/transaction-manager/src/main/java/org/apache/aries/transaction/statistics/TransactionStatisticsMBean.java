@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.statistics;
+
+/**
+ * Runtime statistics of the transaction manager. An instance of this interface is
+ * registered as an OSGi service with a <code>jmx.objectname</code> property of
+ * {@link #OBJECTNAME} so that it is also exposed as an MBean if a JMX whiteboard
+ * is present.
+ * <p>
+ * Counts cover the transactions begun through the registered transaction manager.
+ * Times are reported in microseconds and are totals since the transaction manager
+ * was started or since the last call to {@link #reset()}.
+ */
+public interface TransactionStatisticsMBean {
+
+    /** The object name used when this MBean is published through JMX */
+    String OBJECTNAME = "org.apache.aries.transaction:type=TransactionStatistics";
+
+    /**
+     * @return the number of transactions begun
+     */
+    long getBegunCount();
+
+    /**
+     * @return the number of transactions which committed
+     */
+    long getCommittedCount();
+
+    /**
+     * @return the number of transactions which rolled back, including the ones which timed out
+     */
+    long getRolledBackCount();
+
+    /**
+     * @return the number of transactions which rolled back after their timeout had expired
+     */
+    long getTimedOutCount();
+
+    /**
+     * @return the number of transactions which completed with an unknown status
+     */
+    long getUnknownOutcomeCount();
+
+    /**
+     * @return the number of commits made through the transaction manager which reported
+     *         a heuristic outcome
+     */
+    long getHeuristicOutcomeCount();
+
+    /**
+     * @return the number of transactions begun but not completed yet
+     */
+    int getActiveCount();
+
+    /**
+     * @return the age in milliseconds of the oldest transaction not completed yet,
+     *         or 0 if there is none
+     */
+    long getOldestActiveTransactionAge();
+
+    long getAverageBeginTime();
+
+    /**
+     * @return the average time from the start of a commit to its completion, whether the
+     *         transaction manager or the transaction itself was asked to commit
+     */
+    long getAverageCommitTime();
+
+    long getMaxCommitTime();
+
+    /**
+     * @return the average time taken by a rollback made through the transaction manager,
+     *         or by a commit which ended in a rollback. A rollback asked of the transaction
+     *         itself is counted but not timed.
+     */
+    long getAverageRollbackTime();
+
+    /**
+     * @return the number of prepare records forced to the transaction log
+     */
+    long getLogForceCount();
+
+    /**
+     * @return the average time a committing transaction waited for its prepare
+     *         record to be forced to the transaction log
+     */
+    long getAverageLogForceTime();
+
+    long getMaxLogForceTime();
+
+    /**
+     * Reset all counters and timers. The active transactions are not affected.
+     */
+    void reset();
+}
@@ -0,0 +1,263 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfoImpl;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalLogTest {
+
+    private File dir;
+    private XidFactory xidFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdirs();
+        xidFactory = new XidFactoryImpl("journal".getBytes());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testRecoverInDoubtTransactions() throws Exception {
+        JournalLog txLog = newLog(1024 * 1024);
+        txLog.doStart();
+        Xid committed = xidFactory.createXid();
+        Xid rolledBack = xidFactory.createXid();
+        Xid inDoubt = xidFactory.createXid();
+        Object mark1 = txLog.prepare(committed, branches(committed, "res1", "res2"));
+        Object mark2 = txLog.prepare(rolledBack, branches(rolledBack, "res1"));
+        txLog.prepare(inDoubt, branches(inDoubt, "res1", "res2"));
+        txLog.commit(committed, mark1);
+        txLog.rollback(rolledBack, mark2);
+        // simulate a crash: the log is not stopped, so the done records are only flushed by the last prepare
+        Xid last = xidFactory.createXid();
+        txLog.prepare(last, branches(last, "res3"));
+
+        JournalLog recovered = newLog(1024 * 1024);
+        recovered.doStart();
+        Map<Xid, Recovery.XidBranchesPair> pairs = byXid(recovered.recover(xidFactory));
+        assertEquals(2, pairs.size());
+        assertTrue(pairs.containsKey(inDoubt));
+        assertTrue(pairs.containsKey(last));
+        Map<String, Xid> branchXids = new HashMap<String, Xid>();
+        for (TransactionBranchInfo branch : pairs.get(inDoubt).getBranches()) {
+            branchXids.put(branch.getResourceName(), branch.getBranchXid());
+        }
+        assertEquals(2, branchXids.size());
+        assertEquals(xidFactory.createBranch(inDoubt, 1), branchXids.get("res1"));
+        assertEquals(xidFactory.createBranch(inDoubt, 2), branchXids.get("res2"));
+
+        // completing the recovered transaction with its mark removes it from the journal
+        recovered.commit(inDoubt, pairs.get(inDoubt).getMark());
+        recovered.doStop();
+        txLog.doStop();
+
+        JournalLog restarted = newLog(1024 * 1024);
+        restarted.doStart();
+        pairs = byXid(restarted.recover(xidFactory));
+        assertEquals(1, pairs.size());
+        assertTrue(pairs.containsKey(last));
+        restarted.doStop();
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws Exception {
+        JournalLog txLog = newLog(1024 * 1024);
+        txLog.doStart();
+        Xid xid = xidFactory.createXid();
+        txLog.prepare(xid, branches(xid, "res1"));
+        txLog.doStop();
+
+        File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        FileOutputStream out = new FileOutputStream(segments[0], true);
+        out.write(new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 5});
+        out.close();
+
+        txLog = newLog(1024 * 1024);
+        txLog.doStart();
+        Map<Xid, Recovery.XidBranchesPair> pairs = byXid(txLog.recover(xidFactory));
+        assertEquals(1, pairs.size());
+        assertTrue(pairs.containsKey(xid));
+        txLog.doStop();
+    }
+
+    @Test
+    public void testRollOverKeepsInDoubtTransactions() throws Exception {
+        JournalLog txLog = newLog(1024);
+        txLog.doStart();
+        List<Xid> inDoubt = new ArrayList<Xid>();
+        for (int i = 0; i < 200; i++) {
+            Xid xid = xidFactory.createXid();
+            Object mark = txLog.prepare(xid, branches(xid, "res1", "res2"));
+            if (i % 50 == 0) {
+                inDoubt.add(xid);
+            } else {
+                txLog.commit(xid, mark);
+            }
+        }
+        txLog.doStop();
+        assertEquals(1, dir.listFiles().length);
+
+        txLog = newLog(1024);
+        txLog.doStart();
+        Map<Xid, Recovery.XidBranchesPair> pairs = byXid(txLog.recover(xidFactory));
+        assertEquals(inDoubt.size(), pairs.size());
+        assertTrue(pairs.keySet().containsAll(inDoubt));
+        txLog.doStop();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final JournalLog txLog = newLog(1024 * 1024);
+        txLog.doStart();
+        final int nbThreads = 20;
+        final int nbTxPerThread = 50;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[nbThreads];
+        for (int i = 0; i < nbThreads; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < nbTxPerThread; j++) {
+                            Xid xid = xidFactory.createXid();
+                            Object mark = txLog.prepare(xid, branches(xid, "res1", "res2"));
+                            if (j % 2 == 0) {
+                                txLog.commit(xid, mark);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(txLog.getForceCount() <= nbThreads * nbTxPerThread);
+        txLog.doStop();
+
+        txLog.doStart();
+        assertEquals(nbThreads * nbTxPerThread / 2, txLog.recover(xidFactory).size());
+        txLog.doStop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPrepareWhenStopped() throws Exception {
+        JournalLog txLog = newLog(1024 * 1024);
+        txLog.doStart();
+        txLog.doStop();
+        assertFalse(txLog.recover(xidFactory).iterator().hasNext());
+        Xid xid = xidFactory.createXid();
+        txLog.prepare(xid, branches(xid, "res1"));
+    }
+
+    @Test
+    public void testFailedPrepareIsNotKept() throws Exception {
+        JournalLog txLog = newLog(1024 * 1024);
+        txLog.doStart();
+        txLog.doStop();
+        Xid xid = xidFactory.createXid();
+        try {
+            txLog.prepare(xid, branches(xid, "res1"));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        txLog.doStart();
+        assertTrue(txLog.recover(xidFactory).isEmpty());
+        txLog.doStop();
+    }
+
+    @Test
+    public void testDoneRecordsForcedWhenIdle() throws Exception {
+        JournalLog txLog = new JournalLog(dir.getAbsolutePath(), "test", "journal", 1024 * 1024, 10);
+        txLog.doStart();
+        Xid xid = xidFactory.createXid();
+        Object mark = txLog.prepare(xid, branches(xid, "res1"));
+        txLog.commit(xid, mark);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (txLog.getForceCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, txLog.getForceCount());
+
+        // simulate a crash: the commit record must be on disk although the log was not stopped
+        JournalLog recovered = newLog(1024 * 1024);
+        recovered.doStart();
+        assertTrue(recovered.recover(xidFactory).isEmpty());
+        recovered.doStop();
+        txLog.doStop();
+    }
+
+    private JournalLog newLog(long maxFileSize) {
+        return new JournalLog(dir.getAbsolutePath(), "test", "journal", maxFileSize);
+    }
+
+    private List<TransactionBranchInfo> branches(Xid xid, String... names) {
+        List<TransactionBranchInfo> branches = new ArrayList<TransactionBranchInfo>();
+        for (int i = 0; i < names.length; i++) {
+            branches.add(new TransactionBranchInfoImpl(xidFactory.createBranch(xid, i + 1), names[i]));
+        }
+        return branches;
+    }
+
+    private Map<Xid, Recovery.XidBranchesPair> byXid(Collection<Recovery.XidBranchesPair> pairs) {
+        Map<Xid, Recovery.XidBranchesPair> map = new HashMap<Xid, Recovery.XidBranchesPair>();
+        for (Recovery.XidBranchesPair pair : pairs) {
+            map.put(pair.getXid(), pair);
+        }
+        return map;
+    }
+
+}
@@ -33,6 +33,8 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 public class LogTest {
 
     int minThreads = 100;
@@ -68,6 +70,50 @@ public class LogTest {
                 null);
         txLog.doStart();
         GeronimoTransactionManager tm = new GeronimoTransactionManager(600, xidFactory, txLog);
+        testThroughput(tm);
+        txLog.doStop();
+        System.err.println();
+        System.err.flush();
+    }
+
+    @Test
+    @Ignore
+    public void testJournal() throws Exception {
+        System.err.println("Journal");
+        File dir = File.createTempFile("journal", "");
+        dir.delete();
+        XidFactory xidFactory = new XidFactoryImpl("hi".getBytes());
+        JournalLog txLog = new JournalLog(dir.getAbsolutePath(),
+                "journal",
+                "log",
+                10 * 1024 * 1024);
+        txLog.doStart();
+        try {
+            GeronimoTransactionManager tm = new GeronimoTransactionManager(600, xidFactory, txLog);
+            testThroughput(tm);
+            System.err.println(txLog.getXMLStats());
+
+            // the last commit records must reach the disk without waiting for another prepare or a stop
+            Thread.sleep(10 * JournalLog.DEFAULT_FLUSH_INTERVAL);
+            JournalLog recovered = new JournalLog(dir.getAbsolutePath(), "journal", "log", 10 * 1024 * 1024);
+            recovered.doStart();
+            assertEquals(0, recovered.recover(xidFactory).size());
+            recovered.doStop();
+        } finally {
+            txLog.doStop();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+        System.err.println();
+        System.err.flush();
+    }
+
+    private void testThroughput(GeronimoTransactionManager tm) throws Exception {
         XAResource xar1 = new TestXAResource("res1");
         XAResource xar2 = new TestXAResource("res2");
         tm.registerNamedXAResourceFactory(new TestXAResourceFactory("res1"));
@@ -78,9 +124,6 @@ public class LogTest {
                 System.err.println("TPS (" + i + " threads, " + j + " tx) = " + ((i * j) / (ms / 1000.0)));
             }
         }
-        txLog.doStop();
-        System.err.println();
-        System.err.flush();
     }
 
     public long testThroughput(final TransactionManager tm, final XAResource xar1, final XAResource xar2, final int nbThreads, final int nbTxPerThread) throws Exception {
@@ -0,0 +1,249 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.LogException;
+import org.apache.geronimo.transaction.manager.NamedXAResource;
+import org.apache.geronimo.transaction.manager.NamedXAResourceFactory;
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfoImpl;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.apache.geronimo.transaction.manager.XidFactoryImpl;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResourceRecoveryTest {
+
+    private ResourceRecovery recovery;
+
+    @After
+    public void tearDown() {
+        if (recovery != null) {
+            recovery.close();
+        }
+    }
+
+    @Test
+    public void testBackgroundRecovery() throws Exception {
+        XidFactory xidFactory = new XidFactoryImpl();
+        Xid global = xidFactory.createXid();
+        Xid branch1 = xidFactory.createBranch(global, 1);
+        Xid branch2 = xidFactory.createBranch(global, 2);
+        Recovery.XidBranchesPair pair = new Recovery.XidBranchesPair(global, null);
+        pair.addBranch(new TransactionBranchInfoImpl(branch1, "res1"));
+        pair.addBranch(new TransactionBranchInfoImpl(branch2, "res2"));
+
+        recovery = new ResourceRecovery(2);
+        TransactionLog log = new MonitoredTransactionLog(new RecoveredLog(pair), new TransactionStatistics(), recovery);
+        MonitoredTransactionManager tm = new MonitoredTransactionManager(600, xidFactory, log);
+        tm.setResourceRecovery(recovery);
+        assertEquals(2, recovery.getInDoubtCount());
+
+        TestResource res1 = new TestResource("res1", branch1);
+        tm.registerNamedXAResourceFactory(new TestResourceFactory(res1));
+        waitForRecovery(1);
+
+        assertEquals(Collections.singletonList(branch1), res1.committed);
+        assertTrue(res1.scanThread, res1.scanThread.startsWith("Aries Transaction Recovery"));
+        assertEquals(1, recovery.getInDoubtCount());
+        assertTrue(recovery.getInDoubtTransactions()[0].startsWith("res2: "));
+
+        TestResource res2 = new TestResource("res2", branch2);
+        tm.registerNamedXAResourceFactory(new TestResourceFactory(res2));
+        waitForRecovery(2);
+
+        assertEquals(Collections.singletonList(branch2), res2.committed);
+        assertEquals(0, recovery.getInDoubtCount());
+        assertEquals(0, recovery.getPendingResourceCount());
+    }
+
+    @Test
+    public void testSynchronousRecovery() throws Exception {
+        recovery = new ResourceRecovery(0);
+        MonitoredTransactionManager tm = new MonitoredTransactionManager(600, new XidFactoryImpl(),
+                new MonitoredTransactionLog(new RecoveredLog(), new TransactionStatistics(), recovery));
+        tm.setResourceRecovery(recovery);
+
+        TestResource res = new TestResource("res", null);
+        tm.registerNamedXAResourceFactory(new TestResourceFactory(res));
+        assertEquals(Thread.currentThread().getName(), res.scanThread);
+        assertEquals(1, recovery.getRecoveredResourceCount());
+    }
+
+    @Test
+    public void testFailedRecoveryIsNotReported() throws Exception {
+        XidFactory xidFactory = new XidFactoryImpl();
+        Xid global = xidFactory.createXid();
+        Xid branch = xidFactory.createBranch(global, 1);
+        Recovery.XidBranchesPair pair = new Recovery.XidBranchesPair(global, null);
+        pair.addBranch(new TransactionBranchInfoImpl(branch, "res"));
+
+        recovery = new ResourceRecovery(0);
+        MonitoredTransactionManager tm = new MonitoredTransactionManager(600, xidFactory,
+                new MonitoredTransactionLog(new RecoveredLog(pair), new TransactionStatistics(), recovery));
+        tm.setResourceRecovery(recovery);
+
+        TestResource res = new TestResource("res", branch);
+        res.commitFailure = new IllegalStateException("resource is gone");
+        try {
+            tm.registerNamedXAResourceFactory(new TestResourceFactory(res));
+            fail("The failure of the recovery should be propagated");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, recovery.getRecoveredResourceCount());
+        assertEquals(1, recovery.getFailedRecoveryCount());
+        assertEquals(1, recovery.getInDoubtCount());
+    }
+
+    private void waitForRecovery(long count) throws InterruptedException {
+        for (int i = 0; i < 100 && recovery.getRecoveredResourceCount() < count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, recovery.getRecoveredResourceCount());
+    }
+
+    private static class RecoveredLog implements TransactionLog {
+
+        private final List<Recovery.XidBranchesPair> pairs = new ArrayList<Recovery.XidBranchesPair>();
+
+        RecoveredLog(Recovery.XidBranchesPair... pairs) {
+            Collections.addAll(this.pairs, pairs);
+        }
+
+        public void begin(Xid xid) throws LogException {
+        }
+
+        public Object prepare(Xid xid, List<? extends TransactionBranchInfo> branches) throws LogException {
+            return null;
+        }
+
+        public void commit(Xid xid, Object logMark) throws LogException {
+        }
+
+        public void rollback(Xid xid, Object logMark) throws LogException {
+        }
+
+        public Collection<Recovery.XidBranchesPair> recover(XidFactory xidFactory) throws LogException {
+            return pairs;
+        }
+
+        public String getXMLStats() {
+            return null;
+        }
+
+        public int getAverageForceTime() {
+            return 0;
+        }
+
+        public int getAverageBytesPerForce() {
+            return 0;
+        }
+    }
+
+    private static class TestResourceFactory implements NamedXAResourceFactory {
+
+        private final TestResource resource;
+
+        TestResourceFactory(TestResource resource) {
+            this.resource = resource;
+        }
+
+        public String getName() {
+            return resource.getName();
+        }
+
+        public NamedXAResource getNamedXAResource() {
+            return resource;
+        }
+
+        public void returnNamedXAResource(NamedXAResource namedXAResource) {
+        }
+    }
+
+    private static class TestResource implements NamedXAResource {
+
+        private final String name;
+        private final Xid prepared;
+        private final List<Xid> committed = new ArrayList<Xid>();
+        private volatile String scanThread;
+        private RuntimeException commitFailure;
+
+        TestResource(String name, Xid prepared) {
+            this.name = name;
+            this.prepared = prepared;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Xid[] recover(int flag) throws XAException {
+            scanThread = Thread.currentThread().getName();
+            return prepared == null ? new Xid[0] : new Xid[] { prepared };
+        }
+
+        public void commit(Xid xid, boolean onePhase) throws XAException {
+            if (commitFailure != null) {
+                throw commitFailure;
+            }
+            committed.add(xid);
+        }
+
+        public void rollback(Xid xid) throws XAException {
+        }
+
+        public void end(Xid xid, int flags) throws XAException {
+        }
+
+        public void forget(Xid xid) throws XAException {
+        }
+
+        public int getTransactionTimeout() throws XAException {
+            return 0;
+        }
+
+        public boolean isSameRM(XAResource xaResource) throws XAException {
+            return xaResource == this;
+        }
+
+        public int prepare(Xid xid) throws XAException {
+            return XA_OK;
+        }
+
+        public boolean setTransactionTimeout(int seconds) throws XAException {
+            return false;
+        }
+
+        public void start(Xid xid, int flags) throws XAException {
+        }
+    }
+}
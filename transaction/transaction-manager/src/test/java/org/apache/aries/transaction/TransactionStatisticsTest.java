@@ -0,0 +1,162 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.apache.geronimo.transaction.log.UnrecoverableLog;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.XidFactoryImpl;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransactionStatisticsTest {
+
+    @Test
+    public void testCompletions() throws Exception {
+        MonitoredTransactionManager tm = new MonitoredTransactionManager();
+        TransactionStatistics statistics = tm.getStatistics();
+
+        tm.begin();
+        assertEquals(1, statistics.getActiveCount());
+        tm.commit();
+        tm.begin();
+        tm.rollback();
+        tm.begin();
+        tm.setRollbackOnly();
+        try {
+            tm.commit();
+            fail("Commit of a rollback only transaction should fail");
+        } catch (RollbackException e) {
+            // expected
+        }
+
+        assertEquals(3, statistics.getBegunCount());
+        assertEquals(1, statistics.getCommittedCount());
+        assertEquals(2, statistics.getRolledBackCount());
+        assertEquals(0, statistics.getTimedOutCount());
+        assertEquals(0, statistics.getActiveCount());
+        assertEquals(0, statistics.getOldestActiveTransactionAge());
+
+        statistics.reset();
+        assertEquals(0, statistics.getBegunCount());
+        assertEquals(0, statistics.getAverageCommitTime());
+    }
+
+    @Test
+    public void testDirectCommitIsTimed() throws Exception {
+        MonitoredTransactionManager tm = new MonitoredTransactionManager();
+        TransactionStatistics statistics = tm.getStatistics();
+
+        tm.begin();
+        Transaction tx = tm.getTransaction();
+        tx.registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            public void afterCompletion(int status) {
+            }
+        });
+        tx.commit();
+        tm.suspend();
+
+        assertEquals(1, statistics.getCommittedCount());
+        assertTrue(statistics.getMaxCommitTime() >= 20000);
+    }
+
+    @Test
+    public void testHeuristicOutcome() throws Exception {
+        MonitoredTransactionManager tm = new MonitoredTransactionManager();
+        TransactionStatistics statistics = tm.getStatistics();
+
+        tm.begin();
+        // two resources so that the transaction goes through prepare
+        tm.getTransaction().enlistResource(resource(true));
+        tm.getTransaction().enlistResource(resource(false));
+        try {
+            tm.commit();
+            fail("A resource committing heuristically should fail the commit");
+        } catch (HeuristicMixedException e) {
+            // expected
+        }
+
+        assertEquals(1, statistics.getHeuristicOutcomeCount());
+        statistics.reset();
+        assertEquals(0, statistics.getHeuristicOutcomeCount());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        MonitoredTransactionManager tm = new MonitoredTransactionManager();
+        TransactionStatistics statistics = tm.getStatistics();
+
+        tm.setTransactionTimeout(1);
+        tm.begin();
+        Thread.sleep(1100);
+        assertTrue(statistics.getOldestActiveTransactionAge() >= 1000);
+        tm.rollback();
+        assertEquals(1, statistics.getRolledBackCount());
+        assertEquals(1, statistics.getTimedOutCount());
+    }
+
+    @Test
+    public void testLogForce() throws Exception {
+        TransactionStatistics statistics = new TransactionStatistics();
+        MonitoredTransactionLog log = new MonitoredTransactionLog(new UnrecoverableLog(), statistics);
+        log.prepare(new XidFactoryImpl().createXid(), Collections.<TransactionBranchInfo>emptyList());
+        assertEquals(1, statistics.getLogForceCount());
+    }
+
+    private static XAResource resource(final boolean heuristic) {
+        return (XAResource) Proxy.newProxyInstance(TransactionStatisticsTest.class.getClassLoader(),
+                new Class[] { XAResource.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (heuristic && "commit".equals(name)) {
+                    throw new XAException(XAException.XA_HEURMIX);
+                } else if ("isSameRM".equals(name) || "equals".equals(name)) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                } else if ("prepare".equals(name)) {
+                    return XAResource.XA_OK;
+                } else if (method.getReturnType() == int.class) {
+                    return 0;
+                } else if (method.getReturnType() == boolean.class) {
+                    return false;
+                }
+                return null;
+            }
+        });
+    }
+}
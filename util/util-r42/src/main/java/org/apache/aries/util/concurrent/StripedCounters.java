@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of counters that are added to by many threads. Each thread adds to the
+ * copy of the counters in its own stripe, so threads on different processors rarely write
+ * to the same cache line, and reading a counter sums the stripes. Adding never allocates.
+ */
+public final class StripedCounters {
+
+  /** The number of longs in a 64 byte cache line, the stripes are padded by this much */
+  private static final int PADDING = 8;
+  private static final int MAX_STRIPES = 32;
+
+  private final int counters;
+  private final int width;
+  private final int mask;
+  private final AtomicLongArray cells;
+
+  /**
+   * @param counters the number of counters, numbered from zero
+   */
+  public StripedCounters(int counters) {
+    this.counters = counters;
+    int stripes = 1;
+    int wanted = Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_STRIPES);
+    while(stripes < wanted)
+      stripes <<= 1;
+    mask = stripes - 1;
+    //Round each stripe up to whole cache lines and keep a line free between them
+    width = ((counters + PADDING - 1) / PADDING + 1) * PADDING;
+    cells = new AtomicLongArray(stripes * width + PADDING);
+  }
+
+  public void increment(int counter) {
+    cells.incrementAndGet(stripe() + counter);
+  }
+
+  public void add(int counter, long delta) {
+    cells.addAndGet(stripe() + counter, delta);
+  }
+
+  /**
+   * Add to two counters of the same stripe, which share a cache line if they are next
+   * to each other
+   */
+  public void add(int counter1, long delta1, int counter2, long delta2) {
+    int stripe = stripe();
+    cells.addAndGet(stripe + counter1, delta1);
+    cells.addAndGet(stripe + counter2, delta2);
+  }
+
+  public long sum(int counter) {
+    long result = 0;
+    for(int stripe = PADDING; stripe < cells.length(); stripe += width)
+      result += cells.get(stripe + counter);
+    return result;
+  }
+
+  /**
+   * Set every counter to zero, adds made at the same time may or may not be kept
+   */
+  public void reset() {
+    for(int stripe = PADDING; stripe < cells.length(); stripe += width) {
+      for(int i = 0; i < counters; i++)
+        cells.set(stripe + i, 0);
+    }
+  }
+
+  private int stripe() {
+    //Thread ids are handed out in sequence, so threads spread evenly over the stripes
+    return ((int) Thread.currentThread().getId() & mask) * width + PADDING;
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.util.service.registry;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Registers management interfaces as OSGi services with a <code>jmx.objectname</code>
+ * property, which a JMX whiteboard, if there is one, uses to expose them as MBeans.
+ */
+public final class MBeanServices
+{
+  /** The service property holding the object name of an MBean service */
+  public static final String OBJECT_NAME = "jmx.objectname";
+  
+  private MBeanServices() {}
+  
+  /**
+   * @param ctx The context to register the service with
+   * @param clazz The management interface
+   * @param mbean The implementation of the interface
+   * @param objectName The object name to expose it under
+   * @return The registration of the service
+   */
+  public static ServiceRegistration register(BundleContext ctx, String clazz, Object mbean, String objectName)
+  {
+    return register(ctx, new String[] {clazz}, mbean, objectName, null);
+  }
+  
+  /**
+   * @param ctx The context to register the service with
+   * @param classes The management interface and any other names to register under
+   * @param mbean The implementation of the interface
+   * @param objectName The object name to expose it under
+   * @param props Any other service properties, or null
+   * @return The registration of the service
+   */
+  public static ServiceRegistration register(BundleContext ctx, String[] classes, Object mbean, 
+      String objectName, Dictionary<String, ?> props)
+  {
+    Hashtable<String, Object> serviceProps = new Hashtable<String, Object>();
+    if (props != null) {
+      for (Enumeration<String> keys = props.keys(); keys.hasMoreElements();) {
+        String key = keys.nextElement();
+        serviceProps.put(key, props.get(key));
+      }
+    }
+    serviceProps.put(OBJECT_NAME, objectName);
+    return ctx.registerService(classes, mbean, serviceProps);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StripedCountersTest
+{
+  @Test
+  public void testCountersAddUpAcrossThreads() throws Exception {
+    final StripedCounters counters = new StripedCounters(3);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            counters.increment(0);
+            counters.add(1, 2, 2, 3);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    
+    assertEquals(8000, counters.sum(0));
+    assertEquals(16000, counters.sum(1));
+    assertEquals(24000, counters.sum(2));
+    
+    counters.reset();
+    assertEquals(0, counters.sum(0));
+    assertEquals(0, counters.sum(2));
+  }
+}